@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.benchmarks;
+
+import org.uribeacon.beacon.UriBeacon;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Advertisement payloads for the benchmarks, as they would arrive in
+ * {@code BluetoothAdapter.LeScanCallback.onLeScan}.
+ * <p>
+ * Every payload starts with an advertising flags field and is padded with zeros to 62 bytes, the
+ * size of an advertisement plus scan response, which is what the JB scanner hands us.
+ */
+public final class AdvertisementCorpus {
+
+  /** Corpus names accepted by {@link #get}. */
+  public static final String URL = "url";
+  public static final String URN_UUID = "urn";
+  public static final String TEST_FRAME = "test";
+  public static final String IBEACON = "ibeacon";
+  public static final String MALFORMED = "malformed";
+  public static final String MIXED = "mixed";
+
+  private static final int SCAN_RECORD_LENGTH = 62;
+  private static final byte[] FLAGS_FIELD = {0x02, 0x01, 0x06};
+  private static final byte TX_POWER_LEVEL = -20;
+
+  /** URIs of the kind beacons advertise, short enough to fit a UriBeacon. */
+  public static final String[] URLS = {
+      "http://www.uribeacon.org",
+      "https://goo.gl/S6zT6P",
+      "http://www.google.com/",
+      "https://www.example.org/a",
+      "http://physical-web.org",
+      "http://www.abc.info/xyz",
+      "https://bit.ly/1Cw0ekd",
+      "http://www.ab.gov/",
+      "http://x.edu/y",
+      "https://store.biz",
+  };
+
+  public static final String[] URN_UUIDS = {
+      "urn:uuid:B1E13D51-5FC9-4D5B-902F-AB668DD8F8AB",
+      "urn:uuid:00000000-0000-0000-0000-000000000000",
+      "urn:uuid:ee0c2080-8786-40ba-ab96-99b91ac981d8",
+  };
+
+  private AdvertisementCorpus() {
+  }
+
+  /**
+   * Returns the named corpus. Payloads are shuffled with a fixed seed so runs are comparable.
+   */
+  public static byte[][] get(String name) {
+    List<byte[]> payloads;
+    if (URL.equals(name)) {
+      payloads = uriBeacons(URLS);
+    } else if (URN_UUID.equals(name)) {
+      payloads = uriBeacons(URN_UUIDS);
+    } else if (TEST_FRAME.equals(name)) {
+      payloads = testFrames();
+    } else if (IBEACON.equals(name)) {
+      payloads = iBeacons();
+    } else if (MALFORMED.equals(name)) {
+      payloads = malformed();
+    } else if (MIXED.equals(name)) {
+      payloads = mixed();
+    } else {
+      throw new IllegalArgumentException("Unknown corpus " + name);
+    }
+    Collections.shuffle(payloads, new Random(42));
+    return payloads.toArray(new byte[payloads.size()][]);
+  }
+
+  private static List<byte[]> uriBeacons(String[] uris) {
+    List<byte[]> payloads = new ArrayList<byte[]>();
+    for (String uri : uris) {
+      try {
+        UriBeacon beacon = new UriBeacon.Builder()
+            .uriString(uri)
+            .txPowerLevel(TX_POWER_LEVEL)
+            .build();
+        payloads.add(pad(concatenate(FLAGS_FIELD, beacon.toByteArray())));
+      } catch (URISyntaxException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return payloads;
+  }
+
+  // UriBeacon test frames: service data for 0xFEAA with frame type 0x10, followed by the tx power
+  // level and the encoded URI.
+  private static List<byte[]> testFrames() {
+    List<byte[]> payloads = new ArrayList<byte[]>();
+    for (String uri : URLS) {
+      byte[] encodedUri = UriBeacon.encodeUri(uri);
+      byte[] serviceData = concatenate(
+          new byte[] {(byte) (encodedUri.length + 5), 0x16, (byte) 0xaa, (byte) 0xfe, 0x10,
+              TX_POWER_LEVEL},
+          encodedUri);
+      payloads.add(pad(concatenate(FLAGS_FIELD, serviceData)));
+    }
+    return payloads;
+  }
+
+  // iBeacon style manufacturer data with a name in the scan response: the bulk of what a scanner
+  // sees in a busy venue, none of which is a UriBeacon.
+  private static List<byte[]> iBeacons() {
+    List<byte[]> payloads = new ArrayList<byte[]>();
+    Random random = new Random(7);
+    for (int i = 0; i < 10; i++) {
+      byte[] manufacturerData = new byte[27];
+      manufacturerData[0] = 26;
+      manufacturerData[1] = (byte) 0xff;
+      manufacturerData[2] = 0x4c;
+      manufacturerData[3] = 0x00;
+      manufacturerData[4] = 0x02;
+      manufacturerData[5] = 0x15;
+      byte[] uuidMajorMinor = new byte[20];
+      random.nextBytes(uuidMajorMinor);
+      System.arraycopy(uuidMajorMinor, 0, manufacturerData, 6, uuidMajorMinor.length);
+      manufacturerData[26] = -59;
+      byte[] name = ("Beacon " + i).getBytes();
+      byte[] nameField = concatenate(new byte[] {(byte) (name.length + 1), 0x09}, name);
+      payloads.add(pad(concatenate(FLAGS_FIELD, manufacturerData, nameField)));
+    }
+    return payloads;
+  }
+
+  // Payloads that fail to parse: fields that run past the end of the record, truncated service
+  // data and manufacturer data, and random noise.
+  private static List<byte[]> malformed() {
+    List<byte[]> payloads = new ArrayList<byte[]>();
+    for (byte[] payload : uriBeacons(URLS)) {
+      // The service data field claims more bytes than the record holds.
+      byte[] truncated = Arrays.copyOf(payload, FLAGS_FIELD.length + 6);
+      payloads.add(truncated);
+    }
+    payloads.add(new byte[] {0x02, 0x01, 0x06, 0x02, 0x16, (byte) 0xd8});
+    payloads.add(new byte[] {0x02, 0x01, 0x06, 0x02, (byte) 0xff, 0x4c});
+    payloads.add(new byte[] {0x02, 0x01, 0x06, 0x1f});
+    Random random = new Random(11);
+    for (int i = 0; i < 7; i++) {
+      byte[] noise = new byte[SCAN_RECORD_LENGTH];
+      random.nextBytes(noise);
+      payloads.add(noise);
+    }
+    return payloads;
+  }
+
+  // Roughly what a scanner sees in a venue where UriBeacons are a minority.
+  private static List<byte[]> mixed() {
+    List<byte[]> payloads = new ArrayList<byte[]>();
+    payloads.addAll(uriBeacons(URLS));
+    payloads.addAll(uriBeacons(URN_UUIDS));
+    payloads.addAll(testFrames());
+    payloads.addAll(iBeacons());
+    payloads.addAll(iBeacons());
+    payloads.addAll(iBeacons());
+    payloads.addAll(malformed());
+    return payloads;
+  }
+
+  private static byte[] pad(byte[] payload) {
+    return Arrays.copyOf(payload, Math.max(payload.length, SCAN_RECORD_LENGTH));
+  }
+
+  private static byte[] concatenate(byte[]... arrays) {
+    int length = 0;
+    for (byte[] array : arrays) {
+      length += array.length;
+    }
+    byte[] result = new byte[length];
+    int offset = 0;
+    for (byte[] array : arrays) {
+      System.arraycopy(array, 0, result, offset, array.length);
+      offset += array.length;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.benchmarks;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.uribeacon.beacon.ConfigUriBeacon;
+import org.uribeacon.beacon.UriBeacon;
+import org.uribeacon.config.BeaconProvisioner;
+import org.uribeacon.config.BeaconProvisioner.Job;
+import org.uribeacon.config.BeaconProvisioner.Result;
+import org.uribeacon.config.BeaconProvisioner.Session;
+import org.uribeacon.config.BeaconProvisioner.SessionCallback;
+import org.uribeacon.config.BeaconProvisioner.Stats;
+import org.uribeacon.config.GattRequestQueue;
+import org.uribeacon.config.GattSession;
+import org.uribeacon.config.ProtocolV2;
+import org.uribeacon.config.UriBeaconConfig;
+import org.uribeacon.config.testing.SimulatedGattTransport;
+import org.uribeacon.config.testing.SimulatedUriBeacon;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Provisions a fleet of simulated beacons with {@link BeaconProvisioner}, over
+ * {@link SimulatedGattTransport}s, and reports how long it took. The whole configuration path
+ * runs as on a device: the provisioner, {@link GattSession}, {@link ProtocolV2}, the write engine
+ * and the request queue with its timeouts and retries. Time is simulated, so a run takes no real
+ * time and, for a given seed, always gives the same result. Use it to see how a change, or a
+ * setting, affects the provisioning time per beacon.
+ * <p/>
+ * Options are given as {@code name=value} arguments:
+ * <ul>
+ * <li>{@code beacons}: the number of beacons, 100 by default
+ * <li>{@code connections}: the maximum number of connections at a time, 4 by default
+ * <li>{@code attempts}: the maximum number of attempts per beacon, 3 by default
+ * <li>{@code connectMillis}: the time a connection takes, 500 by default
+ * <li>{@code operationMillis}: the time each request takes, 30 by default
+ * <li>{@code connectFailureRate}: the share of connections that fail, 0.05 by default
+ * <li>{@code lossRate}: the share of requests that get no answer, 0.01 by default
+ * <li>{@code requestTimeoutMillis}: how long a request may take, 10000 by default
+ * <li>{@code readFields}: the fields to read and write, {@code all} or a combination of
+ * {@code uri}, {@code flags} and {@code txPower}, such as {@code uri+flags}
+ * <li>{@code seed}: the seed of the simulation, 42 by default
+ * </ul>
+ */
+public final class ProvisioningSimulation {
+
+  private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+
+  static {
+    DEFAULTS.put("beacons", "100");
+    DEFAULTS.put("connections", "4");
+    DEFAULTS.put("attempts", "3");
+    DEFAULTS.put("connectMillis", "500");
+    DEFAULTS.put("operationMillis", "30");
+    DEFAULTS.put("connectFailureRate", "0.05");
+    DEFAULTS.put("lossRate", "0.01");
+    DEFAULTS.put("requestTimeoutMillis",
+        String.valueOf(GattRequestQueue.DEFAULT_TIMEOUT_MILLIS));
+    DEFAULTS.put("readFields", "all");
+    DEFAULTS.put("seed", "42");
+  }
+
+  private final Map<String, String> options;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final Map<String, SimulatedUriBeacon> beacons =
+      new LinkedHashMap<String, SimulatedUriBeacon>();
+  private final List<SimulatedGattTransport> transports = new ArrayList<SimulatedGattTransport>();
+  private final Random random;
+  private Stats stats;
+
+  private ProvisioningSimulation(Map<String, String> options) {
+    this.options = options;
+    random = new Random(Long.parseLong(options.get("seed")));
+  }
+
+  public static void main(String[] args) throws URISyntaxException {
+    Map<String, String> options = new LinkedHashMap<String, String>(DEFAULTS);
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (separator < 0 || !DEFAULTS.containsKey(arg.substring(0, separator))) {
+        throw new IllegalArgumentException("Unknown option " + arg + ", expected one of "
+            + DEFAULTS.keySet());
+      }
+      options.put(arg.substring(0, separator), arg.substring(separator + 1));
+    }
+    new ProvisioningSimulation(options).run();
+  }
+
+  private void run() throws URISyntaxException {
+    List<Job> jobs = new ArrayList<Job>();
+    int beaconCount = Integer.parseInt(options.get("beacons"));
+    for (int i = 0; i < beaconCount; i++) {
+      String address = String.format("00:11:22:33:%02X:%02X", i / 256, i % 256);
+      beacons.put(address, new SimulatedUriBeacon(address));
+      jobs.add(new Job(address, new ConfigUriBeacon.Builder()
+          .uriString("http://example.com/" + i)
+          .flags((byte) 0x01)
+          .advertisedTxPowerLevels(new byte[]{-40, -30, -20, -10})
+          .txPowerMode(ConfigUriBeacon.POWER_MODE_MEDIUM)
+          .beaconPeriod(500)
+          .build()));
+    }
+
+    final int readFields = parseFields(options.get("readFields"));
+    final long requestTimeoutMillis = Long.parseLong(options.get("requestTimeoutMillis"));
+    BeaconProvisioner provisioner = new BeaconProvisioner(new BeaconProvisioner.SessionFactory() {
+      @Override
+      public Session newSession(String address, SessionCallback callback) {
+        SimulatedGattTransport transport =
+            new SimulatedGattTransport(beacons.get(address), handler, random);
+        transport.setConnectLatencyMillis(Long.parseLong(options.get("connectMillis")));
+        transport.setOperationLatencyMillis(Long.parseLong(options.get("operationMillis")));
+        transport.setConnectFailureRate(Double.parseDouble(options.get("connectFailureRate")));
+        transport.setLossRate(Double.parseDouble(options.get("lossRate")));
+        transports.add(transport);
+        GattSession session = new GattSession(transport, ProtocolV2.CONFIG_SERVICE_UUID, callback);
+        session.setReadFields(readFields);
+        session.setRequestTimeoutMillis(requestTimeoutMillis);
+        return session;
+      }
+    });
+    provisioner.setMaxConnections(Integer.parseInt(options.get("connections")));
+    provisioner.setMaxAttempts(Integer.parseInt(options.get("attempts")));
+
+    final Map<String, Result> results = new HashMap<String, Result>();
+    provisioner.start(jobs, new BeaconProvisioner.Callback() {
+      @Override
+      public void onJobComplete(Result result) {
+        results.put(result.getJob().getAddress(), result);
+      }
+
+      @Override
+      public void onProvisioningComplete(Stats stats) {
+        ProvisioningSimulation.this.stats = stats;
+      }
+    });
+    Looper.loop();
+
+    int verified = 0;
+    for (Job job : jobs) {
+      if (results.get(job.getAddress()).isSuccess()
+          && isConfigured(beacons.get(job.getAddress()), job.getConfigUriBeacon(), readFields)) {
+        verified++;
+      }
+    }
+    int requests = 0;
+    int lost = 0;
+    for (SimulatedGattTransport transport : transports) {
+      requests += transport.getRequestCount();
+      lost += transport.getLostCount();
+    }
+
+    System.out.println("Options: " + options);
+    System.out.println(stats);
+    System.out.printf("Simulated time: %.1f s, %.0f ms per beacon%n",
+        stats.getElapsedMillis() / 1000.0, (double) stats.getElapsedMillis() / beaconCount);
+    System.out.printf("Connections: %d, requests: %d (%.1f per beacon), lost: %d%n",
+        transports.size(), requests, (double) requests / beaconCount, lost);
+    System.out.println("Beacons verified: " + verified + " of " + beaconCount);
+  }
+
+  // Checks the fields that were written.
+  private static boolean isConfigured(SimulatedUriBeacon beacon, ConfigUriBeacon expected,
+      int fields) {
+    if ((fields & UriBeaconConfig.FIELD_URI) != 0
+        && !Arrays.equals(UriBeacon.encodeUri(expected.getUriString()), beacon.getUriData())) {
+      return false;
+    }
+    if ((fields & UriBeaconConfig.FIELD_FLAGS) != 0 && expected.getFlags() != beacon.getFlags()) {
+      return false;
+    }
+    return (fields & UriBeaconConfig.FIELD_TX_POWER_AND_PERIOD) == 0
+        || (Arrays.equals(expected.getAdvertisedTxPowerLevels(),
+            beacon.getAdvertisedTxPowerLevels())
+            && expected.getTxPowerMode() == beacon.getTxPowerMode()
+            && expected.getBeaconPeriod() == beacon.getBeaconPeriod());
+  }
+
+  private static int parseFields(String value) {
+    if ("all".equals(value)) {
+      return UriBeaconConfig.FIELD_ALL;
+    }
+    int fields = 0;
+    for (String field : value.split("\\+")) {
+      if ("uri".equals(field)) {
+        fields |= UriBeaconConfig.FIELD_URI;
+      } else if ("flags".equals(field)) {
+        fields |= UriBeaconConfig.FIELD_FLAGS;
+      } else if ("txPower".equals(field)) {
+        fields |= UriBeaconConfig.FIELD_TX_POWER_AND_PERIOD;
+      } else {
+        throw new IllegalArgumentException("Unknown field " + field);
+      }
+    }
+    return fields;
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.uribeacon.scan.util.RangingModel;
+import org.uribeacon.scan.util.RangingUtils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the conversions of {@link RangingUtils}, which compute logarithms and powers, with the
+ * table lookups of {@link RangingModel}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RangingBenchmark {
+
+  private static final int SIGHTINGS = 4096;
+
+  private final RangingModel model = RangingModel.FREE_SPACE;
+  private int[] rssis;
+  private int[] txPowerLevels;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    rssis = new int[SIGHTINGS];
+    txPowerLevels = new int[SIGHTINGS];
+    for (int i = 0; i < SIGHTINGS; i++) {
+      rssis[i] = -100 + random.nextInt(70);
+      txPowerLevels[i] = -30 + random.nextInt(30);
+    }
+  }
+
+  @Benchmark
+  public double distanceFromRssi() {
+    int i = nextSighting();
+    return RangingUtils.distanceFromRssi(rssis[i], txPowerLevels[i]);
+  }
+
+  @Benchmark
+  public double modelDistanceFromRssi() {
+    int i = nextSighting();
+    return model.distanceFromRssi(rssis[i], txPowerLevels[i]);
+  }
+
+  // The near to mid boundary, as RegionResolver used to compute it for each sighting.
+  @Benchmark
+  public int nearToMidPathLoss() {
+    int txPower = txPowerLevels[nextSighting()];
+    int rssi = RangingUtils.rssiFromDistance(RangingUtils.NEAR_TO_MID_METERS, txPower);
+    return RangingUtils.pathLossFromRssi(rssi, txPower);
+  }
+
+  @Benchmark
+  public int modelNearToMidPathLoss() {
+    return model.nearToMidPathLoss(txPowerLevels[nextSighting()]);
+  }
+
+  @Benchmark
+  public int regionFromRssi() {
+    int i = nextSighting();
+    return RangingUtils.regionFromDistance(
+        RangingUtils.distanceFromRssi(rssis[i], txPowerLevels[i]));
+  }
+
+  @Benchmark
+  public int modelRegionFromRssi() {
+    int i = nextSighting();
+    return model.regionFromRssi(rssis[i], txPowerLevels[i]);
+  }
+
+  private int nextSighting() {
+    int i = next;
+    next = (next + 1) % SIGHTINGS;
+    return i;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.uribeacon.scan.util.KalmanSmoother;
+import org.uribeacon.scan.util.RegionResolver;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link RegionResolver#onUpdate} with a stream of sightings spread over a number of
+ * beacons, one sighting at a time and in batches, with each kind of smoother.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionResolverBenchmark {
+
+  private static final int SIGHTINGS = 4096;
+  private static final int BATCH_SIZE = 256;
+
+  @Param({"1", "10", "100", "2000"})
+  public int beaconCount;
+
+  @Param({"exponential", "kalman"})
+  public String smoother;
+
+  private RegionResolver resolver;
+  private String[] addresses;
+  private int[] rssis;
+  private int[] txPowerLevels;
+  private long[] timestampsNanos;
+  private int next;
+  // The same sightings, in batches.
+  private String[][] batchAddresses;
+  private int[][] batchRssis;
+  private int[][] batchTxPowerLevels;
+  private long[][] batchTimestampsNanos;
+  private int nextBatch;
+
+  @Setup
+  public void setUp() {
+    resolver = new RegionResolver();
+    if ("kalman".equals(smoother)) {
+      resolver.setSmoother(new KalmanSmoother());
+    }
+    Random random = new Random(42);
+    String[] beacons = new String[beaconCount];
+    for (int i = 0; i < beaconCount; i++) {
+      beacons[i] = String.format("00:11:22:33:%02X:%02X", i / 256, i % 256);
+    }
+    addresses = new String[SIGHTINGS];
+    rssis = new int[SIGHTINGS];
+    txPowerLevels = new int[SIGHTINGS];
+    timestampsNanos = new long[SIGHTINGS];
+    for (int i = 0; i < SIGHTINGS; i++) {
+      int beacon = random.nextInt(beaconCount);
+      addresses[i] = beacons[beacon];
+      // Each beacon hovers around its own distance.
+      rssis[i] = -45 - (beacon % 40) + (int) Math.round(random.nextGaussian() * 4);
+      txPowerLevels[i] = -20 + (beacon % 3) * 4;
+      // Ten sightings a second.
+      timestampsNanos[i] = (i + 1) * 100000000L;
+    }
+    int batches = SIGHTINGS / BATCH_SIZE;
+    batchAddresses = new String[batches][BATCH_SIZE];
+    batchRssis = new int[batches][BATCH_SIZE];
+    batchTxPowerLevels = new int[batches][BATCH_SIZE];
+    batchTimestampsNanos = new long[batches][BATCH_SIZE];
+    for (int i = 0; i < batches; i++) {
+      System.arraycopy(addresses, i * BATCH_SIZE, batchAddresses[i], 0, BATCH_SIZE);
+      System.arraycopy(rssis, i * BATCH_SIZE, batchRssis[i], 0, BATCH_SIZE);
+      System.arraycopy(txPowerLevels, i * BATCH_SIZE, batchTxPowerLevels[i], 0, BATCH_SIZE);
+      System.arraycopy(timestampsNanos, i * BATCH_SIZE, batchTimestampsNanos[i], 0, BATCH_SIZE);
+    }
+  }
+
+  @Benchmark
+  public boolean onUpdate() {
+    int i = next;
+    next = (next + 1) % SIGHTINGS;
+    return resolver.onUpdate(addresses[i], rssis[i], txPowerLevels[i], timestampsNanos[i]);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public boolean onUpdateBatch() {
+    int i = nextBatch;
+    nextBatch = (nextBatch + 1) % batchAddresses.length;
+    return resolver.onUpdate(batchAddresses[i], batchRssis[i], batchTxPowerLevels[i],
+        batchTimestampsNanos[i], BATCH_SIZE);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.benchmarks;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.uribeacon.beacon.UriBeacon;
+import org.uribeacon.scan.compat.ScanFilter;
+import org.uribeacon.scan.compat.ScanRecord;
+import org.uribeacon.scan.compat.ScanResult;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link ScanFilter#matches} over the mixed corpus, both against results whose records
+ * have already been inspected and against freshly parsed ones, which is what the scanner does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanFilterBenchmark {
+
+  @Param({"serviceData", "maskedServiceData", "serviceUuid", "manufacturerData", "deviceName",
+      "deviceAddress"})
+  public String filterType;
+
+  private ScanFilter filter;
+  private byte[][] payloads;
+  private BluetoothDevice[] devices;
+  private ScanResult[] results;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    ScanFilter.Builder builder = new ScanFilter.Builder();
+    if ("serviceData".equals(filterType)) {
+      builder.setServiceData(UriBeacon.URI_SERVICE_UUID, new byte[0]);
+    } else if ("maskedServiceData".equals(filterType)) {
+      builder.setServiceData(UriBeacon.URI_SERVICE_UUID, new byte[] {0x00, 0x00, 0x02},
+          new byte[] {0x00, 0x00, 0x0f});
+    } else if ("serviceUuid".equals(filterType)) {
+      builder.setServiceUuid(UriBeacon.URI_SERVICE_UUID,
+          ParcelUuid.fromString("0000FFFF-0000-0000-0000-000000000000"));
+    } else if ("manufacturerData".equals(filterType)) {
+      builder.setManufacturerData(0x004c, new byte[] {0x02, 0x15});
+    } else if ("deviceName".equals(filterType)) {
+      builder.setDeviceName("Beacon 3");
+    } else if ("deviceAddress".equals(filterType)) {
+      builder.setDeviceAddress("00:11:22:33:44:03");
+    } else {
+      throw new IllegalArgumentException("Unknown filter type " + filterType);
+    }
+    filter = builder.build();
+
+    payloads = AdvertisementCorpus.get(AdvertisementCorpus.MIXED);
+    devices = new BluetoothDevice[payloads.length];
+    results = new ScanResult[payloads.length];
+    for (int i = 0; i < payloads.length; i++) {
+      devices[i] = new BluetoothDevice(String.format("00:11:22:33:44:%02X", i % 256));
+      results[i] = new ScanResult(devices[i], ScanRecord.parseFromBytes(payloads[i]), -60, 0);
+      filter.matches(results[i]);
+    }
+  }
+
+  @Benchmark
+  public boolean matches() {
+    ScanResult result = results[next];
+    next = (next + 1) % results.length;
+    return filter.matches(result);
+  }
+
+  @Benchmark
+  public boolean parseAndMatch() {
+    int i = next;
+    next = (next + 1) % payloads.length;
+    return filter.matches(
+        new ScanResult(devices[i], ScanRecord.parseFromBytes(payloads[i]), -60, 0));
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.uribeacon.beacon.UriBeacon;
+import org.uribeacon.scan.compat.ScanRecord;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link ScanRecord#parseFromBytes}, which runs for every sighting on the JB scanner.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanRecordBenchmark {
+
+  @Param({AdvertisementCorpus.URL, AdvertisementCorpus.URN_UUID, AdvertisementCorpus.TEST_FRAME,
+      AdvertisementCorpus.IBEACON, AdvertisementCorpus.MALFORMED, AdvertisementCorpus.MIXED})
+  public String corpus;
+
+  private byte[][] payloads;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    payloads = AdvertisementCorpus.get(corpus);
+  }
+
+  private byte[] nextPayload() {
+    byte[] payload = payloads[next];
+    next = (next + 1) % payloads.length;
+    return payload;
+  }
+
+  @Benchmark
+  public ScanRecord parseFromBytes() {
+    return ScanRecord.parseFromBytes(nextPayload());
+  }
+
+  @Benchmark
+  public byte[] parseAndGetServiceData() {
+    return ScanRecord.parseFromBytes(nextPayload()).getServiceData(UriBeacon.URI_SERVICE_UUID);
+  }
+
+  @Benchmark
+  public Object parseAndGetAllFields() {
+    ScanRecord record = ScanRecord.parseFromBytes(nextPayload());
+    record.getServiceUuids();
+    record.getServiceData();
+    record.getManufacturerSpecificData();
+    return record.getDeviceName();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.uribeacon.beacon.UriBeacon;
+import org.uribeacon.beacon.UriBeaconCache;
+
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks decoding and encoding of {@link UriBeacon}s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UriBeaconBenchmark {
+
+  @Param({AdvertisementCorpus.URL, AdvertisementCorpus.URN_UUID, AdvertisementCorpus.TEST_FRAME,
+      AdvertisementCorpus.IBEACON, AdvertisementCorpus.MALFORMED, AdvertisementCorpus.MIXED})
+  public String corpus;
+
+  private byte[][] payloads;
+  private String[] uris;
+  private UriBeacon[] beacons;
+  private UriBeaconCache cache;
+  private int nextPayload;
+  private int nextUri;
+
+  @Setup
+  public void setUp() throws URISyntaxException {
+    payloads = AdvertisementCorpus.get(corpus);
+    uris = AdvertisementCorpus.URN_UUID.equals(corpus)
+        ? AdvertisementCorpus.URN_UUIDS : AdvertisementCorpus.URLS;
+    beacons = new UriBeacon[uris.length];
+    for (int i = 0; i < uris.length; i++) {
+      beacons[i] = new UriBeacon.Builder().uriString(uris[i]).build();
+    }
+    // Large enough to hold every payload of the corpus, as a scanner's cache would hold every
+    // beacon in range.
+    cache = new UriBeaconCache(payloads.length);
+  }
+
+  @Benchmark
+  public UriBeacon parseFromBytes() {
+    byte[] payload = payloads[nextPayload];
+    nextPayload = (nextPayload + 1) % payloads.length;
+    return UriBeacon.parseFromBytes(payload);
+  }
+
+  @Benchmark
+  public UriBeacon parseFromBytesCached() {
+    byte[] payload = payloads[nextPayload];
+    nextPayload = (nextPayload + 1) % payloads.length;
+    return cache.parseFromBytes(payload);
+  }
+
+  @Benchmark
+  public byte[] encodeUri() {
+    String uri = uris[nextUri];
+    nextUri = (nextUri + 1) % uris.length;
+    return UriBeacon.encodeUri(uri);
+  }
+
+  @Benchmark
+  public byte[] toByteArray() {
+    UriBeacon beacon = beacons[nextUri];
+    nextUri = (nextUri + 1) % beacons.length;
+    return beacon.toByteArray();
+  }
+}
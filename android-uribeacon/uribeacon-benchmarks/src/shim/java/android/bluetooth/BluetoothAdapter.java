@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+/**
+ * JVM stand-in for the Android class of the same name.
+ */
+public final class BluetoothAdapter {
+
+  private BluetoothAdapter() {
+  }
+
+  public BluetoothDevice getRemoteDevice(String address) {
+    return new BluetoothDevice(address);
+  }
+
+  public static boolean checkBluetoothAddress(String address) {
+    if (address == null || address.length() != 17) {
+      return false;
+    }
+    for (int i = 0; i < address.length(); i++) {
+      char c = address.charAt(i);
+      if (i % 3 == 2 ? c != ':' : Character.digit(c, 16) < 0 || Character.isLowerCase(c)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
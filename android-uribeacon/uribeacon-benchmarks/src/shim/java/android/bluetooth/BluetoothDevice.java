@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * JVM stand-in for the Android class of the same name.
+ */
+public final class BluetoothDevice implements Parcelable {
+
+  public static final Parcelable.Creator<BluetoothDevice> CREATOR =
+      new Parcelable.Creator<BluetoothDevice>() {
+        @Override
+        public BluetoothDevice createFromParcel(Parcel source) {
+          return new BluetoothDevice(source.readString());
+        }
+
+        @Override
+        public BluetoothDevice[] newArray(int size) {
+          return new BluetoothDevice[size];
+        }
+      };
+
+  private final String address;
+
+  public BluetoothDevice(String address) {
+    this.address = address;
+  }
+
+  public String getAddress() {
+    return address;
+  }
+
+  /**
+   * There is no Bluetooth stack on the JVM.
+   */
+  public BluetoothGatt connectGatt(Context context, boolean autoConnect,
+      BluetoothGattCallback callback) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public String toString() {
+    return address;
+  }
+
+  @Override
+  public int hashCode() {
+    return address.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object object) {
+    return object instanceof BluetoothDevice
+        && address.equals(((BluetoothDevice) object).address);
+  }
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    dest.writeString(address);
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * JVM stand-in for the Android class of the same name. There is no Bluetooth stack on the JVM,
+ * so only its constants are of use; run the configuration protocols over a simulated transport
+ * instead.
+ */
+public final class BluetoothGatt implements BluetoothProfile {
+
+  public static final int GATT_SUCCESS = 0;
+  public static final int GATT_READ_NOT_PERMITTED = 0x2;
+  public static final int GATT_WRITE_NOT_PERMITTED = 0x3;
+  public static final int GATT_INSUFFICIENT_AUTHENTICATION = 0x5;
+  public static final int GATT_REQUEST_NOT_SUPPORTED = 0x6;
+  public static final int GATT_INVALID_OFFSET = 0x7;
+  public static final int GATT_INVALID_ATTRIBUTE_LENGTH = 0xd;
+  public static final int GATT_INSUFFICIENT_ENCRYPTION = 0xf;
+  public static final int GATT_CONNECTION_CONGESTED = 0x8f;
+  public static final int GATT_FAILURE = 0x101;
+
+  public static final int CONNECTION_PRIORITY_BALANCED = 0;
+  public static final int CONNECTION_PRIORITY_HIGH = 1;
+  public static final int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+  private BluetoothGatt() {
+  }
+
+  public void disconnect() {
+    throw new UnsupportedOperationException();
+  }
+
+  public void close() {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean discoverServices() {
+    throw new UnsupportedOperationException();
+  }
+
+  public BluetoothGattService getService(UUID uuid) {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean beginReliableWrite() {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean executeReliableWrite() {
+    throw new UnsupportedOperationException();
+  }
+
+  public void abortReliableWrite() {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean requestMtu(int mtu) {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean requestConnectionPriority(int connectionPriority) {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+/**
+ * JVM stand-in for the Android class of the same name.
+ */
+public abstract class BluetoothGattCallback {
+
+  public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+  }
+
+  public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+  }
+
+  public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic,
+      int status) {
+  }
+
+  public void onCharacteristicWrite(BluetoothGatt gatt,
+      BluetoothGattCharacteristic characteristic, int status) {
+  }
+
+  public void onCharacteristicChanged(BluetoothGatt gatt,
+      BluetoothGattCharacteristic characteristic) {
+  }
+
+  public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+      int status) {
+  }
+
+  public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+      int status) {
+  }
+
+  public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+  }
+
+  public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+  }
+
+  public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+  }
+}
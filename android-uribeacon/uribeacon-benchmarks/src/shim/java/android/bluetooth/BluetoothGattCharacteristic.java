@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * JVM stand-in for the Android class of the same name. Integer values are little endian, like
+ * the original.
+ */
+public class BluetoothGattCharacteristic {
+
+  public static final int PROPERTY_BROADCAST = 0x01;
+  public static final int PROPERTY_READ = 0x02;
+  public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+  public static final int PROPERTY_WRITE = 0x08;
+  public static final int PROPERTY_NOTIFY = 0x10;
+  public static final int PROPERTY_INDICATE = 0x20;
+  public static final int PROPERTY_SIGNED_WRITE = 0x40;
+  public static final int PROPERTY_EXTENDED_PROPS = 0x80;
+
+  public static final int PERMISSION_READ = 0x01;
+  public static final int PERMISSION_WRITE = 0x10;
+
+  public static final int WRITE_TYPE_NO_RESPONSE = 0x01;
+  public static final int WRITE_TYPE_DEFAULT = 0x02;
+  public static final int WRITE_TYPE_SIGNED = 0x04;
+
+  public static final int FORMAT_UINT8 = 0x11;
+  public static final int FORMAT_UINT16 = 0x12;
+  public static final int FORMAT_UINT32 = 0x14;
+  public static final int FORMAT_SINT8 = 0x21;
+  public static final int FORMAT_SINT16 = 0x22;
+  public static final int FORMAT_SINT32 = 0x24;
+
+  private final UUID uuid;
+  private final int properties;
+  private final int permissions;
+  private final List<BluetoothGattDescriptor> descriptors =
+      new ArrayList<BluetoothGattDescriptor>();
+  private BluetoothGattService service;
+  private int writeType;
+  private byte[] value;
+
+  public BluetoothGattCharacteristic(UUID uuid, int properties, int permissions) {
+    this.uuid = uuid;
+    this.properties = properties;
+    this.permissions = permissions;
+    writeType = (properties & PROPERTY_WRITE_NO_RESPONSE) != 0
+        ? WRITE_TYPE_NO_RESPONSE : WRITE_TYPE_DEFAULT;
+  }
+
+  public UUID getUuid() {
+    return uuid;
+  }
+
+  public int getProperties() {
+    return properties;
+  }
+
+  public int getPermissions() {
+    return permissions;
+  }
+
+  public BluetoothGattService getService() {
+    return service;
+  }
+
+  void setService(BluetoothGattService service) {
+    this.service = service;
+  }
+
+  public boolean addDescriptor(BluetoothGattDescriptor descriptor) {
+    descriptors.add(descriptor);
+    descriptor.setCharacteristic(this);
+    return true;
+  }
+
+  public List<BluetoothGattDescriptor> getDescriptors() {
+    return descriptors;
+  }
+
+  public BluetoothGattDescriptor getDescriptor(UUID uuid) {
+    for (BluetoothGattDescriptor descriptor : descriptors) {
+      if (uuid.equals(descriptor.getUuid())) {
+        return descriptor;
+      }
+    }
+    return null;
+  }
+
+  public int getWriteType() {
+    return writeType;
+  }
+
+  public void setWriteType(int writeType) {
+    this.writeType = writeType;
+  }
+
+  public byte[] getValue() {
+    return value;
+  }
+
+  public boolean setValue(byte[] value) {
+    this.value = value;
+    return true;
+  }
+
+  public Integer getIntValue(int formatType, int offset) {
+    int size = formatType & 0xf;
+    if (value == null || offset + size > value.length) {
+      return null;
+    }
+    int result = 0;
+    for (int i = size - 1; i >= 0; i--) {
+      result = result << 8 | value[offset + i] & 0xff;
+    }
+    if ((formatType & 0x20) != 0 && size < 4) {
+      // Sign extend.
+      int shift = 32 - size * 8;
+      result = result << shift >> shift;
+    }
+    return result;
+  }
+
+  public boolean setValue(int value, int formatType, int offset) {
+    int size = formatType & 0xf;
+    if (this.value == null) {
+      this.value = new byte[offset + size];
+    }
+    if (offset + size > this.value.length) {
+      return false;
+    }
+    for (int i = 0; i < size; i++) {
+      this.value[offset + i] = (byte) (value >> (8 * i));
+    }
+    return true;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * JVM stand-in for the Android class of the same name.
+ */
+public class BluetoothGattDescriptor {
+
+  public static final int PERMISSION_READ = 0x01;
+  public static final int PERMISSION_WRITE = 0x10;
+
+  private final UUID uuid;
+  private final int permissions;
+  private BluetoothGattCharacteristic characteristic;
+  private byte[] value;
+
+  public BluetoothGattDescriptor(UUID uuid, int permissions) {
+    this.uuid = uuid;
+    this.permissions = permissions;
+  }
+
+  public UUID getUuid() {
+    return uuid;
+  }
+
+  public int getPermissions() {
+    return permissions;
+  }
+
+  public BluetoothGattCharacteristic getCharacteristic() {
+    return characteristic;
+  }
+
+  void setCharacteristic(BluetoothGattCharacteristic characteristic) {
+    this.characteristic = characteristic;
+  }
+
+  public byte[] getValue() {
+    return value;
+  }
+
+  public boolean setValue(byte[] value) {
+    this.value = value;
+    return true;
+  }
+}
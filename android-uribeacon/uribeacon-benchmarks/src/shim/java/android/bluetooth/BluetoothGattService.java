@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * JVM stand-in for the Android class of the same name.
+ */
+public class BluetoothGattService {
+
+  public static final int SERVICE_TYPE_PRIMARY = 0;
+  public static final int SERVICE_TYPE_SECONDARY = 1;
+
+  private final UUID uuid;
+  private final int serviceType;
+  private final List<BluetoothGattCharacteristic> characteristics =
+      new ArrayList<BluetoothGattCharacteristic>();
+
+  public BluetoothGattService(UUID uuid, int serviceType) {
+    this.uuid = uuid;
+    this.serviceType = serviceType;
+  }
+
+  public UUID getUuid() {
+    return uuid;
+  }
+
+  public int getType() {
+    return serviceType;
+  }
+
+  public boolean addCharacteristic(BluetoothGattCharacteristic characteristic) {
+    characteristics.add(characteristic);
+    characteristic.setService(this);
+    return true;
+  }
+
+  public List<BluetoothGattCharacteristic> getCharacteristics() {
+    return characteristics;
+  }
+
+  public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+    for (BluetoothGattCharacteristic characteristic : characteristics) {
+      if (uuid.equals(characteristic.getUuid())) {
+        return characteristic;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+/**
+ * JVM stand-in for the Android class of the same name. There are no system services on the JVM,
+ * so its methods throw {@link UnsupportedOperationException}.
+ */
+public abstract class Context {
+
+  public static final int MODE_PRIVATE = 0;
+  public static final int BIND_AUTO_CREATE = 1;
+  public static final String BLUETOOTH_SERVICE = "bluetooth";
+
+  public Object getSystemService(String name) {
+    throw new UnsupportedOperationException();
+  }
+
+  public SharedPreferences getSharedPreferences(String name, int mode) {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean bindService(Intent service, ServiceConnection connection, int flags) {
+    throw new UnsupportedOperationException();
+  }
+
+  public void unbindService(ServiceConnection connection) {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+/**
+ * JVM stand-in for the Android interface of the same name, with the methods the library uses.
+ */
+public interface SharedPreferences {
+
+  String getString(String key, String defaultValue);
+
+  Editor edit();
+
+  interface Editor {
+
+    Editor putString(String key, String value);
+
+    Editor remove(String key);
+
+    Editor clear();
+
+    boolean commit();
+
+    void apply();
+  }
+}
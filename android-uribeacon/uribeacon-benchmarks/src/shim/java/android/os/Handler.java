@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * JVM stand-in for the Android class of the same name. Messages run when {@link Looper#loop} gets
+ * to them.
+ */
+public class Handler {
+
+  private final Looper looper;
+
+  public Handler() {
+    this(Looper.myLooper());
+  }
+
+  public Handler(Looper looper) {
+    this.looper = looper;
+  }
+
+  public final Looper getLooper() {
+    return looper;
+  }
+
+  public final boolean post(Runnable runnable) {
+    return postDelayed(runnable, 0);
+  }
+
+  public final boolean postDelayed(Runnable runnable, long delayMillis) {
+    looper.enqueue(this, runnable, delayMillis);
+    return true;
+  }
+
+  public final void removeCallbacks(Runnable runnable) {
+    looper.remove(this, runnable);
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * JVM stand-in for the Android class of the same name, with a clock of its own. There is only
+ * the main looper, and {@link #loop} runs its messages on the calling thread in time order,
+ * moving the clock straight to each one, and returns once there are none left. A simulated run
+ * therefore takes no real time and always runs the same way. {@link SystemClock} reads the same
+ * clock.
+ */
+public final class Looper {
+
+  private static final Looper mainLooper = new Looper();
+
+  private final PriorityQueue<Message> queue = new PriorityQueue<Message>();
+  private long nowMillis;
+  private long sequence;
+
+  private Looper() {
+  }
+
+  public static Looper getMainLooper() {
+    return mainLooper;
+  }
+
+  public static Looper myLooper() {
+    return mainLooper;
+  }
+
+  /**
+   * Runs the messages of the main looper until there are none left.
+   */
+  public static void loop() {
+    while (true) {
+      Message message;
+      synchronized (mainLooper) {
+        message = mainLooper.queue.poll();
+        if (message == null) {
+          return;
+        }
+        mainLooper.nowMillis = Math.max(mainLooper.nowMillis, message.whenMillis);
+      }
+      message.runnable.run();
+    }
+  }
+
+  synchronized long uptimeMillis() {
+    return nowMillis;
+  }
+
+  synchronized void enqueue(Handler handler, Runnable runnable, long delayMillis) {
+    queue.add(new Message(handler, runnable, nowMillis + Math.max(0, delayMillis), sequence++));
+  }
+
+  synchronized void remove(Handler handler, Runnable runnable) {
+    Iterator<Message> iterator = queue.iterator();
+    while (iterator.hasNext()) {
+      Message message = iterator.next();
+      if (message.handler == handler && message.runnable == runnable) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private static final class Message implements Comparable<Message> {
+    final Handler handler;
+    final Runnable runnable;
+    final long whenMillis;
+    final long sequence;
+
+    Message(Handler handler, Runnable runnable, long whenMillis, long sequence) {
+      this.handler = handler;
+      this.runnable = runnable;
+      this.whenMillis = whenMillis;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Message other) {
+      if (whenMillis != other.whenMillis) {
+        return whenMillis < other.whenMillis ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * JVM stand-in for the Android class of the same name. Parceling is not benchmarked, so every
+ * method throws.
+ */
+public final class Parcel {
+
+  private Parcel() {
+  }
+
+  public void writeInt(int value) {
+    throw new UnsupportedOperationException();
+  }
+
+  public void writeLong(long value) {
+    throw new UnsupportedOperationException();
+  }
+
+  public void writeString(String value) {
+    throw new UnsupportedOperationException();
+  }
+
+  public void writeByteArray(byte[] value) {
+    throw new UnsupportedOperationException();
+  }
+
+  public void writeParcelable(Parcelable value, int flags) {
+    throw new UnsupportedOperationException();
+  }
+
+  public int readInt() {
+    throw new UnsupportedOperationException();
+  }
+
+  public long readLong() {
+    throw new UnsupportedOperationException();
+  }
+
+  public String readString() {
+    throw new UnsupportedOperationException();
+  }
+
+  public void readByteArray(byte[] value) {
+    throw new UnsupportedOperationException();
+  }
+
+  public byte[] createByteArray() {
+    throw new UnsupportedOperationException();
+  }
+
+  public <T extends Parcelable> T readParcelable(ClassLoader loader) {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.UUID;
+
+/**
+ * JVM stand-in for the Android class of the same name, covering what the benchmarked library
+ * classes use.
+ */
+public final class ParcelUuid implements Parcelable {
+
+  private final UUID uuid;
+
+  public ParcelUuid(UUID uuid) {
+    this.uuid = uuid;
+  }
+
+  public static ParcelUuid fromString(String uuid) {
+    return new ParcelUuid(UUID.fromString(uuid));
+  }
+
+  public UUID getUuid() {
+    return uuid;
+  }
+
+  @Override
+  public String toString() {
+    return uuid.toString();
+  }
+
+  @Override
+  public int hashCode() {
+    return uuid.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object object) {
+    return object instanceof ParcelUuid && uuid.equals(((ParcelUuid) object).uuid);
+  }
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    dest.writeLong(uuid.getMostSignificantBits());
+    dest.writeLong(uuid.getLeastSignificantBits());
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * JVM stand-in for the Android class of the same name. It reads the clock of the main
+ * {@link Looper}, which only moves as messages run.
+ */
+public final class SystemClock {
+
+  private SystemClock() {
+  }
+
+  public static long uptimeMillis() {
+    return Looper.getMainLooper().uptimeMillis();
+  }
+
+  public static long elapsedRealtime() {
+    return uptimeMillis();
+  }
+
+  public static long elapsedRealtimeNanos() {
+    return uptimeMillis() * 1000000L;
+  }
+}
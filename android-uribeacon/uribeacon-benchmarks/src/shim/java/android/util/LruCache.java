@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JVM stand-in for the Android class of the same name: a map in access order that drops its least
+ * recently used entry when it grows past its maximum size, counting hits, misses and evictions.
+ */
+public class LruCache<K, V> {
+  private final LinkedHashMap<K, V> map;
+  private int maxSize;
+  private int hitCount;
+  private int missCount;
+  private int evictionCount;
+
+  public LruCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    this.maxSize = maxSize;
+    this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
+  }
+
+  public final synchronized V get(K key) {
+    V value = map.get(key);
+    if (value != null) {
+      hitCount++;
+      return value;
+    }
+    missCount++;
+    return null;
+  }
+
+  public final synchronized V put(K key, V value) {
+    V previous = map.put(key, value);
+    while (map.size() > maxSize) {
+      Map.Entry<K, V> eldest = map.entrySet().iterator().next();
+      map.remove(eldest.getKey());
+      evictionCount++;
+    }
+    return previous;
+  }
+
+  public final synchronized V remove(K key) {
+    return map.remove(key);
+  }
+
+  public final synchronized void evictAll() {
+    map.clear();
+  }
+
+  public final synchronized int size() {
+    return map.size();
+  }
+
+  public final synchronized int maxSize() {
+    return maxSize;
+  }
+
+  public final synchronized int hitCount() {
+    return hitCount;
+  }
+
+  public final synchronized int missCount() {
+    return missCount;
+  }
+
+  public final synchronized int evictionCount() {
+    return evictionCount;
+  }
+}
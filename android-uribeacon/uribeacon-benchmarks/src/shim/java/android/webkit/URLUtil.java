@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.webkit;
+
+/**
+ * JVM stand-in for the Android class of the same name.
+ */
+public final class URLUtil {
+
+  private URLUtil() {
+  }
+
+  public static boolean isHttpUrl(String url) {
+    return url != null && url.length() > 6 && url.substring(0, 7).equalsIgnoreCase("http://");
+  }
+
+  public static boolean isHttpsUrl(String url) {
+    return url != null && url.length() > 7 && url.substring(0, 8).equalsIgnoreCase("https://");
+  }
+
+  public static boolean isNetworkUrl(String url) {
+    return isHttpUrl(url) || isHttpsUrl(url);
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.beacon;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+
+/**
+ * Unit tests for the {@link UriBeaconCache} class.
+ */
+public class UriBeaconCacheTest extends AndroidTestCase {
+
+  // Flags, then service data for http://www.uribeacon.org with a tx power level of -20.
+  private static final byte[] URL_RECORD = {
+      0x02, 0x01, 0x06,
+      0x10, 0x16, (byte) 0xd8, (byte) 0xfe, 0x00, (byte) 0xec,
+      0x00, 'u', 'r', 'i', 'b', 'e', 'a', 'c', 'o', 'n', 0x08,
+  };
+
+  // The same URI in a test frame.
+  private static final byte[] TEST_FRAME_RECORD = {
+      0x02, 0x01, 0x06,
+      0x10, 0x16, (byte) 0xaa, (byte) 0xfe, 0x10, (byte) 0xec,
+      0x00, 'u', 'r', 'i', 'b', 'e', 'a', 'c', 'o', 'n', 0x08,
+  };
+
+  public void testSamePayloadReturnsSameBeacon() {
+    UriBeaconCache cache = new UriBeaconCache(4);
+    UriBeacon beacon = cache.parseFromBytes(URL_RECORD);
+    assertEquals("http://www.uribeacon.org", beacon.getUriString());
+    assertEquals(-20, beacon.getTxPowerLevel());
+
+    // A different record around the same service data, such as one with trailing padding.
+    byte[] padded = Arrays.copyOf(URL_RECORD, 62);
+    assertSame(beacon, cache.parseFromBytes(padded));
+    assertEquals(1, cache.hitCount());
+    assertEquals(1, cache.missCount());
+    assertEquals(1, cache.size());
+  }
+
+  public void testMatchesUncachedParse() {
+    UriBeaconCache cache = new UriBeaconCache(4);
+    for (byte[] record : new byte[][] {URL_RECORD, TEST_FRAME_RECORD}) {
+      UriBeacon expected = UriBeacon.parseFromBytes(record);
+      UriBeacon actual = cache.parseFromBytes(record);
+      assertEquals(expected.getUriString(), actual.getUriString());
+      assertEquals(expected.getFlags(), actual.getFlags());
+      assertEquals(expected.getTxPowerLevel(), actual.getTxPowerLevel());
+    }
+    // The test frame is not mistaken for the regular frame.
+    assertEquals(2, cache.missCount());
+  }
+
+  public void testCacheDoesNotAliasScanRecord() {
+    UriBeaconCache cache = new UriBeaconCache(4);
+    byte[] record = Arrays.copyOf(URL_RECORD, URL_RECORD.length);
+    UriBeacon beacon = cache.parseFromBytes(record);
+    record[10] = 'x';
+    UriBeacon changed = cache.parseFromBytes(record);
+    assertNotSame(beacon, changed);
+    assertEquals("http://www.xribeacon.org", changed.getUriString());
+    assertSame(beacon, cache.parseFromBytes(URL_RECORD));
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() {
+    UriBeaconCache cache = new UriBeaconCache(1);
+    UriBeacon beacon = cache.parseFromBytes(URL_RECORD);
+    cache.parseFromBytes(TEST_FRAME_RECORD);
+    assertEquals(1, cache.evictionCount());
+    assertEquals(1, cache.size());
+    assertNotSame(beacon, cache.parseFromBytes(URL_RECORD));
+  }
+
+  public void testNotAUriBeacon() {
+    UriBeaconCache cache = new UriBeaconCache(4);
+    assertNull(cache.parseFromBytes(new byte[] {0x02, 0x01, 0x06}));
+    assertEquals(0, cache.size());
+  }
+}
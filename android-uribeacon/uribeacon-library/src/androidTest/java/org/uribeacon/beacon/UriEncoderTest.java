@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.beacon;
+
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for the {@link UriEncoder} class.
+ */
+public class UriEncoderTest extends AndroidTestCase {
+
+  public void testEncodeMatchesTestData() {
+    UriEncoder encoder = new UriEncoder();
+    MoreAsserts.assertEquals(new byte[]{}, encoder.encode(TestData.emptyTestString));
+    MoreAsserts.assertEquals(TestData.urlTestByteArray, encoder.encode(TestData.urlTestString));
+    MoreAsserts.assertEquals(TestData.uuidTestByteArray, encoder.encode(TestData.uuidTestString));
+    assertNull(encoder.encode(TestData.malformedUrlString));
+    assertNull(encoder.encode("urn:uuid:not-a-uuid"));
+  }
+
+  public void testEncodeUsesLongestExpansion() {
+    UriEncoder encoder = new UriEncoder();
+    MoreAsserts.assertEquals(new byte[]{0x02, 'a', 0x00, 'b'}, encoder.encode("http://a.com/b"));
+    MoreAsserts.assertEquals(new byte[]{0x02, 'a', 0x07}, encoder.encode("http://a.com"));
+    MoreAsserts.assertEquals(new byte[]{0x03, 'a', 0x0b, 'x'}, encoder.encode("https://a.infox"));
+    // Expansions are case sensitive, unlike the scheme.
+    MoreAsserts.assertEquals(new byte[]{0x00, 'a', '.', 'C', 'O', 'M'},
+        encoder.encode("HTTP://WWW.a.COM"));
+  }
+
+  public void testEncodeAllReportsWhichUrisFit() {
+    List<UriEncoder.Result> results = new UriEncoder().encodeAll(Arrays.asList(
+        TestData.urlTestString,
+        TestData.longButValidUrlString,
+        TestData.longButInvalidUrlString,
+        TestData.malformedUrlString));
+    assertEquals(4, results.size());
+    assertEquals(TestData.urlTestString, results.get(0).getUri());
+    MoreAsserts.assertEquals(TestData.urlTestByteArray, results.get(0).getEncodedUri());
+    assertTrue(results.get(0).fits());
+    assertEquals(18, results.get(1).getLength());
+    assertTrue(results.get(1).fits());
+    assertTrue(results.get(2).getLength() > 18);
+    assertFalse(results.get(2).fits());
+    assertNull(results.get(3).getEncodedUri());
+    assertEquals(-1, results.get(3).getLength());
+    assertFalse(results.get(3).fits());
+  }
+
+  public void testEncodeMatchesGreedyLongestMatch() {
+    String[] pieces = {"a", "b", ".", "/", ".com", ".co", ".org/", ".info", ".inf", "o/", "biz",
+        ".net/", ".gov", "v/", ".edu", "\u00e9"};
+    String[] schemes = {"http://", "https://www.", "HTTP://www."};
+    Random random = new Random(42);
+    UriEncoder encoder = new UriEncoder();
+    for (int i = 0; i < 2000; i++) {
+      StringBuilder uri = new StringBuilder(schemes[random.nextInt(schemes.length)]);
+      int count = random.nextInt(12);
+      for (int j = 0; j < count; j++) {
+        uri.append(pieces[random.nextInt(pieces.length)]);
+      }
+      String uriString = uri.toString();
+      MoreAsserts.assertEquals(uriString, encodeGreedy(uriString), encoder.encode(uriString));
+    }
+  }
+
+  // The longest match encoding that UriBeacon.encodeUri used before UriEncoder.
+  private static byte[] encodeGreedy(String uri) {
+    String lowerCaseUri = uri.toLowerCase();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int position = -1;
+    for (int i = 0; i < UriBeacon.URI_SCHEMES.size(); i++) {
+      if (lowerCaseUri.startsWith(UriBeacon.URI_SCHEMES.valueAt(i))) {
+        out.write(UriBeacon.URI_SCHEMES.keyAt(i));
+        position = UriBeacon.URI_SCHEMES.valueAt(i).length();
+        break;
+      }
+    }
+    while (position < uri.length()) {
+      int expansion = -1;
+      int expansionLength = 0;
+      for (int i = 0; i < UriBeacon.URL_CODES.size(); i++) {
+        String value = UriBeacon.URL_CODES.valueAt(i);
+        if (value.length() > expansionLength && uri.startsWith(value, position)) {
+          expansion = UriBeacon.URL_CODES.keyAt(i);
+          expansionLength = value.length();
+        }
+      }
+      if (expansion >= 0) {
+        out.write(expansion);
+        position += expansionLength;
+      } else {
+        out.write((byte) uri.charAt(position++));
+      }
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import org.uribeacon.beacon.ConfigUriBeacon;
+import org.uribeacon.config.BeaconProvisioner.Job;
+import org.uribeacon.config.BeaconProvisioner.Result;
+import org.uribeacon.config.BeaconProvisioner.Session;
+import org.uribeacon.config.BeaconProvisioner.SessionCallback;
+import org.uribeacon.config.BeaconProvisioner.SessionFactory;
+import org.uribeacon.config.BeaconProvisioner.Stats;
+import org.uribeacon.scan.testing.FakeClock;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for the {@link BeaconProvisioner} class.
+ */
+public class BeaconProvisionerTest extends AndroidTestCase {
+
+  private FakeClock mClock;
+  private FakeSessions mSessions;
+  private BeaconProvisioner mProvisioner;
+  private RecordingCallback mCallback;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mClock = new FakeClock();
+    mSessions = new FakeSessions();
+    mProvisioner = new BeaconProvisioner(mSessions, new Handler(Looper.getMainLooper()), mClock);
+    mProvisioner.setRetryDelayMillis(0);
+    mCallback = new RecordingCallback();
+  }
+
+  public void testProvisionsAllJobs() throws URISyntaxException {
+    mSessions.mImmediate = true;
+    mProvisioner.start(jobs(10), mCallback);
+
+    assertEquals(10, mCallback.mResults.size());
+    for (Result result : mCallback.mResults) {
+      assertTrue(result.isSuccess());
+      assertEquals(1, result.getAttempts());
+    }
+    assertEquals(10, mSessions.mWritten.size());
+    assertEquals(10, mSessions.mClosed);
+    assertNotNull(mCallback.mStats);
+    assertEquals(10, mCallback.mStats.getSucceededCount());
+    assertFalse(mProvisioner.isRunning());
+  }
+
+  public void testConnectsOneAtATimeUpToMaxConnections() throws URISyntaxException {
+    mProvisioner.setMaxConnections(2);
+    mProvisioner.start(jobs(4), mCallback);
+
+    // The next session connects once the one connecting has connected.
+    assertEquals(1, mSessions.mOpen.size());
+    mSessions.mOpen.get(0).connected();
+    assertEquals(2, mSessions.mOpen.size());
+    mSessions.mOpen.get(1).connected();
+    assertEquals(2, mSessions.mOpen.size());
+    mSessions.mOpen.get(0).read(BluetoothGatt.GATT_SUCCESS);
+    mSessions.mOpen.get(1).read(BluetoothGatt.GATT_SUCCESS);
+    assertEquals(2, mSessions.mOpen.size());
+    assertEquals(2, mProvisioner.getStats().getActiveCount());
+
+    mClock.advance(60000);
+    mSessions.mOpen.get(0).write(BluetoothGatt.GATT_SUCCESS);
+    assertEquals(3, mSessions.mOpen.size());
+    assertEquals(1, mCallback.mResults.size());
+    assertEquals(1.0, mProvisioner.getStats().getBeaconsPerMinute(), 0.001);
+    assertEquals(60000, mProvisioner.getStats().getAverageWriteMillis());
+  }
+
+  public void testReadsOfConnectedSessionsOverlap() throws URISyntaxException {
+    mProvisioner.setMaxConnections(3);
+    mProvisioner.start(jobs(3), mCallback);
+    for (int i = 0; i < 3; i++) {
+      mSessions.mOpen.get(i).connected();
+    }
+
+    // All three sessions read at once, and finish reading in any order.
+    assertEquals(3, mProvisioner.getStats().getActiveCount());
+    mSessions.mOpen.get(2).read(BluetoothGatt.GATT_SUCCESS);
+    mSessions.mOpen.get(0).read(BluetoothGatt.GATT_SUCCESS);
+    mSessions.mOpen.get(1).read(BluetoothGatt.GATT_SUCCESS);
+    assertEquals(3, mSessions.mWritten.size());
+  }
+
+  public void testStartsNextSessionWhenReadWithoutConnected() throws URISyntaxException {
+    mProvisioner.setMaxConnections(2);
+    mProvisioner.start(jobs(2), mCallback);
+    mSessions.mOpen.get(0).read(BluetoothGatt.GATT_SUCCESS);
+
+    assertEquals(2, mSessions.mOpen.size());
+  }
+
+  public void testConnectsOneAtATimeWhenReadingSessionFails() throws URISyntaxException {
+    mProvisioner.setMaxConnections(3);
+    mProvisioner.start(jobs(3), mCallback);
+    mSessions.mOpen.get(0).connected();
+    assertEquals(2, mSessions.mOpen.size());
+
+    // The second session is still connecting, so the third job waits for it.
+    mSessions.mOpen.get(0).read(BluetoothGatt.GATT_FAILURE);
+    assertEquals(2, mSessions.mOpen.size());
+    mSessions.mOpen.get(1).connected();
+    assertEquals(3, mSessions.mOpen.size());
+  }
+
+  public void testRetriesFailedJobsAfterTheOthers() throws URISyntaxException {
+    mSessions.mImmediate = true;
+    mSessions.mReadFailures.put("00:00:00:00:00:00", 1);
+    mProvisioner.start(jobs(3), mCallback);
+
+    assertEquals(3, mCallback.mResults.size());
+    Result retried = mCallback.mResults.get(2);
+    assertEquals("00:00:00:00:00:00", retried.getJob().getAddress());
+    assertTrue(retried.isSuccess());
+    assertEquals(2, retried.getAttempts());
+    assertEquals(1, mCallback.mStats.getRetryCount());
+    assertEquals(4, mSessions.mClosed);
+  }
+
+  public void testGivesUpAfterMaxAttempts() throws URISyntaxException {
+    mSessions.mImmediate = true;
+    mSessions.mReadFailures.put("00:00:00:00:00:00", 10);
+    mProvisioner.setMaxAttempts(2);
+    mProvisioner.start(jobs(1), mCallback);
+
+    Result result = mCallback.mResults.get(0);
+    assertFalse(result.isSuccess());
+    assertEquals(BluetoothGatt.GATT_FAILURE, result.getStatus());
+    assertEquals(2, result.getAttempts());
+    assertEquals(1, mCallback.mStats.getFailedCount());
+  }
+
+  public void testDoesNotRetryRefusedWrites() throws URISyntaxException {
+    mProvisioner.start(jobs(1), mCallback);
+    mSessions.mOpen.get(0).read(BluetoothGatt.GATT_SUCCESS);
+    mSessions.mOpen.get(0).write(ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION);
+
+    assertEquals(1, mCallback.mResults.size());
+    assertEquals(ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION, mCallback.mResults.get(0).getStatus());
+    assertEquals(1, mCallback.mResults.get(0).getAttempts());
+    assertEquals(1, mSessions.mOpen.size());
+  }
+
+  public void testIgnoresCallbacksOfFailedSessions() throws URISyntaxException {
+    mProvisioner.start(jobs(1), mCallback);
+    FakeSession first = mSessions.mOpen.get(0);
+    first.read(BluetoothGatt.GATT_FAILURE);
+    assertEquals(2, mSessions.mOpen.size());
+
+    // A late callback of the first session must not complete the second attempt.
+    first.connected();
+    first.read(BluetoothGatt.GATT_SUCCESS);
+    first.write(BluetoothGatt.GATT_SUCCESS);
+    assertTrue(mCallback.mResults.isEmpty());
+  }
+
+  public void testCancelReportsIncompleteJobs() throws URISyntaxException {
+    mProvisioner.setMaxConnections(2);
+    mProvisioner.start(jobs(3), mCallback);
+    mSessions.mOpen.get(0).read(BluetoothGatt.GATT_SUCCESS);
+    mProvisioner.cancel();
+
+    assertEquals(3, mCallback.mResults.size());
+    for (Result result : mCallback.mResults) {
+      assertEquals(GattRequestQueue.STATUS_CANCELLED, result.getStatus());
+    }
+    assertEquals(0, mCallback.mResults.get(2).getAttempts());
+    assertEquals(2, mSessions.mClosed);
+    assertEquals(3, mCallback.mStats.getFailedCount());
+    assertFalse(mProvisioner.isRunning());
+  }
+
+  public void testCompletesWithoutJobs() {
+    mProvisioner.start(new ArrayList<Job>(), mCallback);
+    assertNotNull(mCallback.mStats);
+    assertEquals(0, mCallback.mStats.getJobCount());
+    assertFalse(mProvisioner.isRunning());
+  }
+
+  private static List<Job> jobs(int count) throws URISyntaxException {
+    List<Job> jobs = new ArrayList<Job>();
+    for (int i = 0; i < count; i++) {
+      ConfigUriBeacon configUriBeacon = new ConfigUriBeacon.Builder()
+          .uriString("http://example.com/" + i)
+          .build();
+      jobs.add(new Job(String.format("00:00:00:00:00:%02X", i), configUriBeacon));
+    }
+    return jobs;
+  }
+
+  private static class RecordingCallback implements BeaconProvisioner.Callback {
+    final List<Result> mResults = new ArrayList<Result>();
+    Stats mStats;
+
+    @Override
+    public void onJobComplete(Result result) {
+      mResults.add(result);
+    }
+
+    @Override
+    public void onProvisioningComplete(Stats stats) {
+      assertNull(mStats);
+      mStats = stats;
+    }
+  }
+
+  /**
+   * Sessions that either succeed as soon as they are used, or wait for the test to complete them.
+   */
+  private static class FakeSessions implements SessionFactory {
+    boolean mImmediate;
+    // The number of times connecting to each address fails.
+    final Map<String, Integer> mReadFailures = new HashMap<String, Integer>();
+    final List<FakeSession> mOpen = new ArrayList<FakeSession>();
+    final List<ConfigUriBeacon> mWritten = new ArrayList<ConfigUriBeacon>();
+    int mClosed;
+
+    @Override
+    public Session newSession(String address, SessionCallback callback) {
+      return new FakeSession(this, address, callback);
+    }
+  }
+
+  private static class FakeSession implements Session {
+    private final FakeSessions mSessions;
+    private final String mAddress;
+    private final SessionCallback mCallback;
+
+    FakeSession(FakeSessions sessions, String address, SessionCallback callback) {
+      mSessions = sessions;
+      mAddress = address;
+      mCallback = callback;
+    }
+
+    @Override
+    public void connect() {
+      mSessions.mOpen.add(this);
+      if (mSessions.mImmediate) {
+        Integer failures = mSessions.mReadFailures.get(mAddress);
+        if (failures != null && failures > 0) {
+          mSessions.mReadFailures.put(mAddress, failures - 1);
+          read(BluetoothGatt.GATT_FAILURE);
+        } else {
+          connected();
+          read(BluetoothGatt.GATT_SUCCESS);
+        }
+      }
+    }
+
+    @Override
+    public void writeUriBeacon(ConfigUriBeacon configUriBeacon) {
+      mSessions.mWritten.add(configUriBeacon);
+      if (mSessions.mImmediate) {
+        write(BluetoothGatt.GATT_SUCCESS);
+      }
+    }
+
+    @Override
+    public void close() {
+      mSessions.mClosed++;
+    }
+
+    void connected() {
+      mCallback.onConnected();
+    }
+
+    void read(int status) {
+      ConfigUriBeacon configUriBeacon = null;
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        try {
+          configUriBeacon = new ConfigUriBeacon.Builder().uriString("http://old.com").build();
+        } catch (URISyntaxException e) {
+          throw new AssertionError(e);
+        }
+      }
+      mCallback.onUriBeaconRead(configUriBeacon, status);
+    }
+
+    void write(int status) {
+      mCallback.onUriBeaconWrite(status);
+    }
+  }
+}
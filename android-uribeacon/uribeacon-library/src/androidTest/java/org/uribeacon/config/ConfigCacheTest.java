@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+
+import org.uribeacon.beacon.ConfigUriBeacon;
+import org.uribeacon.scan.testing.FakeClock;
+
+import java.net.URISyntaxException;
+
+/**
+ * Unit tests for the {@link ConfigCache} class.
+ */
+public class ConfigCacheTest extends AndroidTestCase {
+  private static final String ADDRESS = "00:11:22:33:44:55";
+
+  private SharedPreferences mPreferences;
+  private FakeClock mClock;
+  private ConfigCache mCache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mPreferences = getContext().getSharedPreferences("ConfigCacheTest", Context.MODE_PRIVATE);
+    mPreferences.edit().clear().commit();
+    mClock = new FakeClock();
+    mCache = new ConfigCache(mPreferences, mClock);
+  }
+
+  public void testStoresConfiguration() throws URISyntaxException {
+    ConfigUriBeacon configUriBeacon = new ConfigUriBeacon.Builder()
+        .lockState(true)
+        .uriString("http://example.com/a,b")
+        .flags((byte) 0x10)
+        .advertisedTxPowerLevels(new byte[]{-30, -20, -10, 0})
+        .txPowerMode(ConfigUriBeacon.POWER_MODE_LOW)
+        .beaconPeriod(1000)
+        .key(new byte[16])
+        .build();
+    mCache.put(ADDRESS, configUriBeacon, UriBeaconConfig.FIELD_ALL);
+
+    ConfigCache.Entry entry = mCache.get(ADDRESS, UriBeaconConfig.FIELD_ALL);
+    assertNotNull(entry);
+    assertEquals(UriBeaconConfig.FIELD_ALL, entry.getFields());
+    ConfigUriBeacon cached = entry.getConfigUriBeacon();
+    assertTrue(cached.getLockState());
+    assertEquals("http://example.com/a,b", cached.getUriString());
+    assertEquals(0x10, cached.getFlags());
+    MoreAsserts.assertEquals(new byte[]{-30, -20, -10, 0}, cached.getAdvertisedTxPowerLevels());
+    assertEquals(ConfigUriBeacon.POWER_MODE_LOW, cached.getTxPowerMode());
+    assertEquals(1000, cached.getBeaconPeriod());
+    // Keys are never stored.
+    assertNull(cached.getKey());
+  }
+
+  public void testOnlyReturnsEntriesThatKnowTheFields() throws URISyntaxException {
+    ConfigUriBeacon configUriBeacon = new ConfigUriBeacon.Builder()
+        .uriString("http://example.com")
+        .build();
+    mCache.put(ADDRESS, configUriBeacon, UriBeaconConfig.FIELD_URI);
+
+    assertNotNull(mCache.get(ADDRESS, UriBeaconConfig.FIELD_URI));
+    assertNull(mCache.get(ADDRESS, UriBeaconConfig.FIELD_URI | UriBeaconConfig.FIELD_FLAGS));
+    assertNull(mCache.get("66:77:88:99:AA:BB", UriBeaconConfig.FIELD_URI));
+  }
+
+  public void testEntriesExpire() throws URISyntaxException {
+    mCache.setMaxAgeMillis(1000);
+    mCache.put(ADDRESS, new ConfigUriBeacon.Builder().uriString("http://example.com").build(),
+        UriBeaconConfig.FIELD_ALL);
+
+    mClock.advance(1000);
+    assertNotNull(mCache.get(ADDRESS, UriBeaconConfig.FIELD_ALL));
+    mClock.advance(1);
+    assertNull(mCache.get(ADDRESS, UriBeaconConfig.FIELD_ALL));
+  }
+
+  public void testDropsUnreadableEntries() {
+    mPreferences.edit().putString(ADDRESS, "1,not,a,valid,entry").commit();
+    assertNull(mCache.get(ADDRESS, UriBeaconConfig.FIELD_URI));
+    assertNull(mPreferences.getString(ADDRESS, null));
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A {@link GattTransport} that records the operations started on it and leaves answering them to
+ * the test, which plays the stack through the callback passed to {@link #connect}.
+ */
+class FakeGattTransport implements GattTransport {
+  static final String BEGIN_RELIABLE_WRITE = "beginReliableWrite";
+  static final String EXECUTE_RELIABLE_WRITE = "executeReliableWrite";
+  static final String ABORT_RELIABLE_WRITE = "abortReliableWrite";
+
+  private final List<String> mOperations = new ArrayList<String>();
+  private BluetoothGattService mService;
+  private BluetoothGattCallback mCallback;
+  private int mRefusals;
+
+  /**
+   * Returns the operation recorded for a read of the characteristic.
+   */
+  static String readOperation(BluetoothGattCharacteristic characteristic) {
+    return "read " + characteristic.getUuid();
+  }
+
+  /**
+   * Returns the operation recorded for a write of the characteristic with its current value.
+   */
+  static String writeOperation(BluetoothGattCharacteristic characteristic) {
+    return writeOperation(characteristic.getUuid(), characteristic.getWriteType(),
+        characteristic.getValue());
+  }
+
+  static String writeOperation(UUID uuid, int writeType, byte[] value) {
+    String type = writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+        ? "without response" : "with response";
+    return "write " + uuid + " " + type + " " + Util.byteArrayToHexString(value);
+  }
+
+  static String mtuOperation(int mtu) {
+    return "requestMtu " + mtu;
+  }
+
+  static String priorityOperation(int connectionPriority) {
+    return "requestConnectionPriority " + connectionPriority;
+  }
+
+  synchronized void setService(BluetoothGattService service) {
+    mService = service;
+  }
+
+  /**
+   * Makes the transport turn away the next {@code refusals} requests, as a busy stack does.
+   */
+  synchronized void refuse(int refusals) {
+    mRefusals = refusals;
+  }
+
+  synchronized BluetoothGattCallback getCallback() {
+    return mCallback;
+  }
+
+  /**
+   * Returns the operations started, including the ones turned away, in order.
+   */
+  synchronized List<String> getOperations() {
+    return new ArrayList<String>(mOperations);
+  }
+
+  /**
+   * Waits until at least {@code count} operations have been started.
+   */
+  synchronized List<String> awaitOperations(int count) throws InterruptedException {
+    long deadlineMillis = System.currentTimeMillis() + 5000;
+    while (mOperations.size() < count) {
+      long waitMillis = deadlineMillis - System.currentTimeMillis();
+      if (waitMillis <= 0) {
+        Assert.fail("Expected " + count + " operations, got " + mOperations);
+      }
+      wait(waitMillis);
+    }
+    return getOperations();
+  }
+
+  @Override
+  public synchronized boolean connect(BluetoothGattCallback callback) {
+    mCallback = callback;
+    return record("connect");
+  }
+
+  @Override
+  public synchronized void disconnect() {
+    record("disconnect");
+  }
+
+  @Override
+  public synchronized void close() {
+    record("close");
+  }
+
+  @Override
+  public synchronized boolean discoverServices() {
+    return record("discoverServices");
+  }
+
+  @Override
+  public synchronized BluetoothGattService getService(UUID uuid) {
+    return mService != null && mService.getUuid().equals(uuid) ? mService : null;
+  }
+
+  @Override
+  public synchronized boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+    return record(readOperation(characteristic));
+  }
+
+  @Override
+  public synchronized boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+    return record(writeOperation(characteristic));
+  }
+
+  @Override
+  public synchronized boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+    return record("readDescriptor " + descriptor.getUuid());
+  }
+
+  @Override
+  public synchronized boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+    return record("writeDescriptor " + descriptor.getUuid());
+  }
+
+  @Override
+  public synchronized boolean beginReliableWrite() {
+    return record(BEGIN_RELIABLE_WRITE);
+  }
+
+  @Override
+  public synchronized boolean executeReliableWrite() {
+    return record(EXECUTE_RELIABLE_WRITE);
+  }
+
+  @Override
+  public synchronized void abortReliableWrite() {
+    record(ABORT_RELIABLE_WRITE);
+  }
+
+  @Override
+  public synchronized boolean requestMtu(int mtu) {
+    return record(mtuOperation(mtu));
+  }
+
+  @Override
+  public synchronized boolean requestConnectionPriority(int connectionPriority) {
+    return record(priorityOperation(connectionPriority));
+  }
+
+  @Override
+  public String getAddress() {
+    return "00:11:22:33:44:55";
+  }
+
+  // Records an operation, returning whether the transport takes it.
+  private boolean record(String operation) {
+    mOperations.add(operation);
+    notifyAll();
+    if (mRefusals > 0) {
+      mRefusals--;
+      return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import static org.uribeacon.config.FakeGattTransport.readOperation;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import org.uribeacon.config.GattRequestQueue.Request;
+import org.uribeacon.config.GattRequestQueue.RequestCallback;
+import org.uribeacon.config.GattRequestQueue.RequestType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the {@link GattRequestQueue} class. The queue runs on a thread of its own, and the
+ * test plays the stack through a {@link FakeGattTransport}.
+ */
+public class GattRequestQueueTest extends AndroidTestCase {
+  // GATT_BUSY, one of the statuses the queue retries.
+  private static final int GATT_BUSY = 0x84;
+
+  private final BluetoothGattCharacteristic mFirst = new BluetoothGattCharacteristic(
+      UUID.fromString("ee0c2081-8786-40ba-ab96-99b91ac981d8"),
+      BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+  private final BluetoothGattCharacteristic mSecond = new BluetoothGattCharacteristic(
+      UUID.fromString("ee0c2082-8786-40ba-ab96-99b91ac981d8"),
+      BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+
+  private HandlerThread mThread;
+  private Handler mHandler;
+  private GattRequestQueue mQueue;
+  private FakeGattTransport mTransport;
+  private EventLog mEvents;
+  private BluetoothGattCallback mStack;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mThread = new HandlerThread("GattRequestQueueTest");
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+    mQueue = new GattRequestQueue(mHandler);
+    mTransport = new FakeGattTransport();
+    mEvents = new EventLog();
+    mStack = mQueue.newGattCallbackOnUiThread(mEvents);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mThread.quit();
+    super.tearDown();
+  }
+
+  public void testRunsOneRequestAtATime() throws InterruptedException {
+    read(mFirst);
+    read(mSecond);
+    assertEquals(Arrays.asList(readOperation(mFirst)), mTransport.getOperations());
+
+    mStack.onCharacteristicRead(null, mFirst, BluetoothGatt.GATT_SUCCESS);
+    assertEquals(Arrays.asList(readOperation(mFirst), readOperation(mSecond)),
+        mTransport.awaitOperations(2));
+    // The request's callback runs after the client's.
+    assertEquals(Arrays.asList(readEvent(mFirst, BluetoothGatt.GATT_SUCCESS),
+        completeEvent(BluetoothGatt.GATT_SUCCESS)), mEvents.await(2));
+  }
+
+  public void testRetriesBusyStatusWithBackoff() throws InterruptedException {
+    read(mFirst);
+    long startMillis = System.currentTimeMillis();
+    mStack.onCharacteristicRead(null, mFirst, GATT_BUSY);
+
+    mTransport.awaitOperations(2);
+    assertTrue(System.currentTimeMillis() - startMillis >= GattRequestQueue.INITIAL_BACKOFF_MILLIS);
+    // The busy answer is not passed on.
+    idle();
+    assertTrue(mEvents.get().isEmpty());
+
+    mStack.onCharacteristicRead(null, mFirst, BluetoothGatt.GATT_SUCCESS);
+    assertEquals(readEvent(mFirst, BluetoothGatt.GATT_SUCCESS), mEvents.await(1).get(0));
+  }
+
+  public void testPassesBusyStatusOnAfterMaxAttempts() throws InterruptedException {
+    read(mFirst);
+    for (int attempt = 1; attempt <= GattRequestQueue.MAX_ATTEMPTS; attempt++) {
+      mTransport.awaitOperations(attempt);
+      mStack.onCharacteristicRead(null, mFirst, GATT_BUSY);
+    }
+
+    assertEquals(Arrays.asList(readEvent(mFirst, GATT_BUSY), completeEvent(GATT_BUSY)),
+        mEvents.await(2));
+    assertEquals(GattRequestQueue.MAX_ATTEMPTS, mTransport.getOperations().size());
+  }
+
+  public void testRetriesRefusedStarts() throws InterruptedException {
+    mTransport.refuse(1);
+    read(mFirst);
+    assertEquals(Arrays.asList(readOperation(mFirst), readOperation(mFirst)),
+        mTransport.awaitOperations(2));
+
+    mStack.onCharacteristicRead(null, mFirst, BluetoothGatt.GATT_SUCCESS);
+    assertEquals(completeEvent(BluetoothGatt.GATT_SUCCESS), mEvents.await(2).get(1));
+  }
+
+  public void testFailsRequestRefusedMaxAttempts() throws InterruptedException {
+    mTransport.refuse(GattRequestQueue.MAX_ATTEMPTS);
+    read(mFirst);
+    read(mSecond);
+
+    // The client is told, as if by the stack, and the next request starts.
+    assertEquals(Arrays.asList(readEvent(mFirst, BluetoothGatt.GATT_FAILURE),
+        completeEvent(BluetoothGatt.GATT_FAILURE)), mEvents.await(2));
+    List<String> operations = mTransport.awaitOperations(GattRequestQueue.MAX_ATTEMPTS + 1);
+    assertEquals(readOperation(mSecond), operations.get(GattRequestQueue.MAX_ATTEMPTS));
+  }
+
+  public void testTimesOutAndStartsNextOnceStackHasTimedOut() throws InterruptedException {
+    mQueue.setTimeoutMillis(50);
+    mQueue.setStackTimeoutMillis(200);
+    long startMillis = System.currentTimeMillis();
+    read(mFirst);
+    read(mSecond);
+
+    assertEquals(Arrays.asList(readEvent(mFirst, GattRequestQueue.STATUS_TIMED_OUT),
+        completeEvent(GattRequestQueue.STATUS_TIMED_OUT)), mEvents.await(2));
+    // The next request waits for the stack to give up on the first.
+    assertEquals(readOperation(mSecond), mTransport.awaitOperations(2).get(1));
+    assertTrue(System.currentTimeMillis() - startMillis >= 200);
+  }
+
+  public void testWaitsForStackRefusingStartsAfterTimeout() throws InterruptedException {
+    mQueue.setTimeoutMillis(50);
+    read(mFirst);
+    read(mSecond);
+    read(mSecond);
+    // The stack is stuck on the first read, and turns away anything else until it gives up.
+    mTransport.refuse(Integer.MAX_VALUE);
+    assertEquals(2, mEvents.await(2).size());
+    Thread.sleep(GattRequestQueue.INITIAL_BACKOFF_MILLIS << GattRequestQueue.MAX_ATTEMPTS);
+    idle();
+    assertEquals(1, mTransport.getOperations().size());
+    assertEquals(2, mEvents.get().size());
+
+    mTransport.refuse(0);
+    mStack.onCharacteristicRead(null, mFirst, BluetoothGatt.GATT_FAILURE);
+    for (int read = 1; read <= 2; read++) {
+      assertEquals(readOperation(mSecond), mTransport.awaitOperations(read + 1).get(read));
+      mStack.onCharacteristicRead(null, mSecond, BluetoothGatt.GATT_SUCCESS);
+    }
+    assertEquals(Arrays.asList(
+        readEvent(mSecond, BluetoothGatt.GATT_SUCCESS), completeEvent(BluetoothGatt.GATT_SUCCESS),
+        readEvent(mSecond, BluetoothGatt.GATT_SUCCESS), completeEvent(BluetoothGatt.GATT_SUCCESS)),
+        mEvents.await(6).subList(2, 6));
+  }
+
+  public void testDropsLateCallbackArrivingAfterNextRequest() throws InterruptedException {
+    mQueue.setTimeoutMillis(50);
+    read(mFirst);
+    assertEquals(2, mEvents.await(2).size());
+    // The next request, for the same characteristic, is added after the first timed out.
+    read(mFirst);
+    idle();
+    assertEquals(1, mTransport.getOperations().size());
+
+    // The late answer to the first read is not taken for it, and lets it start.
+    mStack.onCharacteristicRead(null, mFirst, BluetoothGatt.GATT_SUCCESS);
+    assertEquals(2, mTransport.awaitOperations(2).size());
+    idle();
+    assertEquals(2, mEvents.get().size());
+
+    mStack.onCharacteristicRead(null, mFirst, BluetoothGatt.GATT_SUCCESS);
+    assertEquals(Arrays.asList(readEvent(mFirst, BluetoothGatt.GATT_SUCCESS),
+        completeEvent(BluetoothGatt.GATT_SUCCESS)), mEvents.await(4).subList(2, 4));
+  }
+
+  public void testDropsLateCallbackOfTimedOutRequest() throws InterruptedException {
+    mQueue.setTimeoutMillis(50);
+    read(mFirst);
+    read(mFirst);
+
+    // The answer to the first read arrives just as it times out, while the queue's thread is busy.
+    final CountDownLatch release = new CountDownLatch(1);
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+    Thread.sleep(100);
+    mStack.onCharacteristicRead(null, mFirst, BluetoothGatt.GATT_SUCCESS);
+    release.countDown();
+
+    // It is not taken for the second read of the same characteristic.
+    assertEquals(2, mTransport.awaitOperations(2).size());
+    idle();
+    assertEquals(Arrays.asList(readEvent(mFirst, GattRequestQueue.STATUS_TIMED_OUT),
+        completeEvent(GattRequestQueue.STATUS_TIMED_OUT)), mEvents.get());
+
+    mStack.onCharacteristicRead(null, mFirst, BluetoothGatt.GATT_SUCCESS);
+    assertEquals(completeEvent(BluetoothGatt.GATT_SUCCESS), mEvents.await(4).get(3));
+  }
+
+  public void testCancelsRequestsNotStarted() throws InterruptedException {
+    final Request[] requests = new Request[2];
+    runOnQueueThread(new Runnable() {
+      @Override
+      public void run() {
+        requests[0] = mQueue.add(mTransport, RequestType.READ_CHARACTERISTIC, mFirst);
+        requests[1] = mQueue.add(mTransport, RequestType.READ_CHARACTERISTIC, mSecond);
+        requests[1].setCallback(mEvents);
+        assertFalse(requests[0].cancel());
+        assertTrue(requests[1].cancel());
+      }
+    });
+    assertEquals(Arrays.asList(completeEvent(GattRequestQueue.STATUS_CANCELLED)), mEvents.get());
+
+    mStack.onCharacteristicRead(null, mFirst, BluetoothGatt.GATT_SUCCESS);
+    idle();
+    assertEquals(Arrays.asList(readOperation(mFirst)), mTransport.getOperations());
+    assertTrue(requests[0].isDone());
+  }
+
+  public void testDisconnectCancelsPendingRequests() throws InterruptedException {
+    read(mFirst);
+    read(mSecond);
+    mStack.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS,
+        BluetoothProfile.STATE_DISCONNECTED);
+
+    // The client is not called back for the cancelled requests, only told of the disconnection.
+    assertEquals(Arrays.asList(
+        completeEvent(GattRequestQueue.STATUS_CANCELLED),
+        completeEvent(GattRequestQueue.STATUS_CANCELLED),
+        "connectionState " + BluetoothProfile.STATE_DISCONNECTED), mEvents.await(3));
+
+    // An answer that was on its way is dropped.
+    mStack.onCharacteristicRead(null, mFirst, BluetoothGatt.GATT_SUCCESS);
+    idle();
+    assertEquals(3, mEvents.get().size());
+    assertEquals(1, mTransport.getOperations().size());
+  }
+
+  private static String readEvent(BluetoothGattCharacteristic characteristic, int status) {
+    return "read " + characteristic.getUuid() + " " + status;
+  }
+
+  private static String completeEvent(int status) {
+    return "complete " + RequestType.READ_CHARACTERISTIC + " " + status;
+  }
+
+  // Queues a read of the characteristic, on the queue's thread, with the event log as callback.
+  private void read(final BluetoothGattCharacteristic characteristic)
+      throws InterruptedException {
+    runOnQueueThread(new Runnable() {
+      @Override
+      public void run() {
+        mQueue.add(mTransport, RequestType.READ_CHARACTERISTIC, characteristic)
+            .setCallback(mEvents);
+      }
+    });
+  }
+
+  // Waits until the queue's thread has run what was posted to it so far.
+  private void idle() throws InterruptedException {
+    runOnQueueThread(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+  }
+
+  private void runOnQueueThread(final Runnable runnable) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        runnable.run();
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Records the client's callbacks and the requests' callbacks, in the order they are made.
+   */
+  private static class EventLog extends BluetoothGattCallback implements RequestCallback {
+    private final List<String> mEvents = new ArrayList<String>();
+
+    synchronized List<String> get() {
+      return new ArrayList<String>(mEvents);
+    }
+
+    synchronized List<String> await(int count) throws InterruptedException {
+      long deadlineMillis = System.currentTimeMillis() + 5000;
+      while (mEvents.size() < count) {
+        long waitMillis = deadlineMillis - System.currentTimeMillis();
+        if (waitMillis <= 0) {
+          fail("Expected " + count + " events, got " + mEvents);
+        }
+        wait(waitMillis);
+      }
+      return get();
+    }
+
+    private synchronized void add(String event) {
+      mEvents.add(event);
+      notifyAll();
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+      add("connectionState " + newState);
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt,
+        BluetoothGattCharacteristic characteristic, int status) {
+      add(readEvent(characteristic, status));
+    }
+
+    @Override
+    public void onRequestComplete(Request request, int status) {
+      add("complete " + request.getRequestType() + " " + status);
+    }
+  }
+}
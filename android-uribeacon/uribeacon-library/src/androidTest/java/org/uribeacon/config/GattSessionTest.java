@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+
+import org.uribeacon.beacon.ConfigUriBeacon;
+import org.uribeacon.beacon.UriBeacon;
+import org.uribeacon.config.BeaconProvisioner.SessionCallback;
+import org.uribeacon.config.testing.SimulatedGattTransport;
+import org.uribeacon.config.testing.SimulatedUriBeacon;
+
+import java.net.URISyntaxException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link GattSession} with {@link ProtocolV2} against a {@link SimulatedUriBeacon}.
+ */
+public class GattSessionTest extends AndroidTestCase {
+  private static final byte[] KEY = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private SimulatedUriBeacon mBeacon;
+  private SimulatedGattTransport mTransport;
+  private RecordingCallback mCallback;
+  private GattSession mSession;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mBeacon = new SimulatedUriBeacon("00:11:22:33:44:55");
+    mTransport = new SimulatedGattTransport(mBeacon, mHandler, new Random(0));
+    mTransport.setConnectLatencyMillis(0);
+    mTransport.setOperationLatencyMillis(1);
+    mCallback = new RecordingCallback();
+    mSession = new GattSession(mTransport, ProtocolV2.CONFIG_SERVICE_UUID, mCallback);
+    mSession.setRequestTimeoutMillis(100);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        mSession.close();
+      }
+    });
+    super.tearDown();
+  }
+
+  public void testReadsConfiguration() throws InterruptedException {
+    connect();
+
+    assertTrue(mCallback.mConnected);
+    assertEquals(BluetoothGatt.GATT_SUCCESS, mCallback.mReadStatus);
+    ConfigUriBeacon configUriBeacon = mCallback.mConfigUriBeacon;
+    assertFalse(configUriBeacon.getLockState());
+    assertEquals(SimulatedUriBeacon.DEFAULT_URI, configUriBeacon.getUriString());
+    assertEquals(0, configUriBeacon.getFlags());
+    assertEquals(ConfigUriBeacon.POWER_MODE_LOW, configUriBeacon.getTxPowerMode());
+    assertEquals(1000, configUriBeacon.getBeaconPeriod());
+  }
+
+  public void testWritesOnlyChangedFields() throws Exception {
+    connect();
+    int writeCount = mBeacon.getWriteCount();
+    write(new ConfigUriBeacon.Builder()
+        .uriString("http://example.com")
+        .flags((byte) 0)
+        .advertisedTxPowerLevels(mBeacon.getAdvertisedTxPowerLevels())
+        .txPowerMode(ConfigUriBeacon.POWER_MODE_LOW)
+        .beaconPeriod(500)
+        .build());
+
+    assertEquals(BluetoothGatt.GATT_SUCCESS, mCallback.mWriteStatus);
+    MoreAsserts.assertEquals(UriBeacon.encodeUri("http://example.com"), mBeacon.getUriData());
+    assertEquals(500, mBeacon.getBeaconPeriod());
+    // The URI and the period.
+    assertEquals(writeCount + 2, mBeacon.getWriteCount());
+  }
+
+  public void testUnlocksWithKey() throws Exception {
+    mBeacon.lock(KEY);
+    connect();
+    assertTrue(mCallback.mConfigUriBeacon.getLockState());
+
+    write(new ConfigUriBeacon.Builder()
+        .uriString("http://example.com")
+        .key(KEY)
+        .build());
+
+    assertEquals(BluetoothGatt.GATT_SUCCESS, mCallback.mWriteStatus);
+    assertFalse(mBeacon.isLocked());
+    MoreAsserts.assertEquals(UriBeacon.encodeUri("http://example.com"), mBeacon.getUriData());
+  }
+
+  public void testReportsWrongKey() throws Exception {
+    mBeacon.lock(KEY);
+    connect();
+
+    write(new ConfigUriBeacon.Builder()
+        .uriString("http://example.com")
+        .key(new byte[16])
+        .build());
+
+    assertEquals(ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION, mCallback.mWriteStatus);
+    assertTrue(mBeacon.isLocked());
+    MoreAsserts.assertEquals(UriBeacon.encodeUri(SimulatedUriBeacon.DEFAULT_URI),
+        mBeacon.getUriData());
+  }
+
+  public void testLocksAgainAfterFailedWrite() throws Exception {
+    mBeacon.lock(KEY);
+    mBeacon.setWriteFailure(ProtocolV2.DATA, BluetoothGatt.GATT_FAILURE);
+    connect();
+
+    write(new ConfigUriBeacon.Builder()
+        .uriString("http://example.com")
+        .key(KEY)
+        .lockState(true)
+        .build());
+
+    assertEquals(BluetoothGatt.GATT_FAILURE, mCallback.mWriteStatus);
+    assertTrue(mBeacon.isLocked());
+    MoreAsserts.assertEquals(UriBeacon.encodeUri(SimulatedUriBeacon.DEFAULT_URI),
+        mBeacon.getUriData());
+    // The beacon was unlocked and locked again with the same key.
+    mBeacon.write(ProtocolV2.UNLOCK, KEY);
+    assertFalse(mBeacon.isLocked());
+  }
+
+  public void testReportsFailedConnection() throws InterruptedException {
+    mTransport.setConnectFailureRate(1);
+    connect();
+
+    assertEquals(SimulatedGattTransport.STATUS_CONNECTION_FAILED, mCallback.mReadStatus);
+    assertNull(mCallback.mConfigUriBeacon);
+    assertFalse(mCallback.mConnected);
+  }
+
+  public void testReportsDisconnectionDuringWriteAsFailedWrite() throws Exception {
+    connect();
+    runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          mSession.writeUriBeacon(
+              new ConfigUriBeacon.Builder().uriString("http://example.com").build());
+        } catch (URISyntaxException e) {
+          throw new AssertionError(e);
+        }
+        mTransport.disconnect();
+      }
+    });
+    assertTrue(mCallback.mWritten.await(5, TimeUnit.SECONDS));
+
+    // The disconnection's status, not the cancellation of the write's requests.
+    assertEquals(BluetoothGatt.GATT_FAILURE, mCallback.mWriteStatus);
+  }
+
+  public void testTimesOutLostWrites() throws Exception {
+    connect();
+    mTransport.setLossRate(1);
+    write(new ConfigUriBeacon.Builder().uriString("http://example.com").build());
+
+    assertEquals(GattRequestQueue.STATUS_TIMED_OUT, mCallback.mWriteStatus);
+    assertEquals(1, mTransport.getLostCount());
+  }
+
+  private void connect() throws InterruptedException {
+    runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        mSession.connect();
+      }
+    });
+    assertTrue(mCallback.mRead.await(5, TimeUnit.SECONDS));
+  }
+
+  private void write(final ConfigUriBeacon configUriBeacon) throws InterruptedException {
+    runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          mSession.writeUriBeacon(configUriBeacon);
+        } catch (URISyntaxException e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+    assertTrue(mCallback.mWritten.await(5, TimeUnit.SECONDS));
+  }
+
+  // The session, like the request queue, is used on the main thread.
+  private void runOnMainThread(final Runnable runnable) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        runnable.run();
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  private static class RecordingCallback implements SessionCallback {
+    final CountDownLatch mRead = new CountDownLatch(1);
+    final CountDownLatch mWritten = new CountDownLatch(1);
+    volatile boolean mConnected;
+    volatile ConfigUriBeacon mConfigUriBeacon;
+    volatile int mReadStatus;
+    volatile int mWriteStatus;
+
+    @Override
+    public void onConnected() {
+      mConnected = true;
+    }
+
+    @Override
+    public void onUriBeaconRead(ConfigUriBeacon configUriBeacon, int status) {
+      mConfigUriBeacon = configUriBeacon;
+      mReadStatus = status;
+      mRead.countDown();
+    }
+
+    @Override
+    public void onUriBeaconWrite(int status) {
+      mWriteStatus = status;
+      mWritten.countDown();
+    }
+  }
+}
@@ -0,0 +1,580 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import static org.uribeacon.config.FakeGattTransport.mtuOperation;
+import static org.uribeacon.config.FakeGattTransport.priorityOperation;
+import static org.uribeacon.config.FakeGattTransport.writeOperation;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import org.uribeacon.config.GattWriteEngine.Mode;
+import org.uribeacon.config.GattWriteEngine.Write;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the {@link GattWriteEngine} class. The engine writes over a
+ * {@link GattConnection} to a {@link FakeGattTransport}, and the test plays the peripheral, whose
+ * characteristics declare reliable writes, writes without response, or neither.
+ */
+public class GattWriteEngineTest extends AndroidTestCase {
+  private static final UUID SERVICE_UUID = UUID.fromString("ee0c2080-8786-40ba-ab96-99b91ac981d8");
+  private static final int WITH_RESPONSE = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+  private static final int WITHOUT_RESPONSE = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+  // The status Android reports when the link to the peripheral times out.
+  private static final int STATUS_CONNECTION_TIMEOUT = 0x08;
+
+  // Reliable writes, declared in the extended properties.
+  private final BluetoothGattCharacteristic mReliable1 = newCharacteristic(1,
+      BluetoothGattCharacteristic.PROPERTY_EXTENDED_PROPS, 0x01);
+  private final BluetoothGattCharacteristic mReliable2 = newCharacteristic(2,
+      BluetoothGattCharacteristic.PROPERTY_EXTENDED_PROPS, 0x01);
+  // Extended properties that declare writable auxiliaries, but not reliable writes.
+  private final BluetoothGattCharacteristic mNotReliable = newCharacteristic(3,
+      BluetoothGattCharacteristic.PROPERTY_EXTENDED_PROPS, 0x02);
+  private final BluetoothGattCharacteristic mNoResponse1 = newCharacteristic(4,
+      BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 0);
+  private final BluetoothGattCharacteristic mNoResponse2 = newCharacteristic(5,
+      BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 0);
+  private final BluetoothGattCharacteristic mUnlock = newCharacteristic(6, 0, 0);
+  private final BluetoothGattCharacteristic mLock = newCharacteristic(7, 0, 0);
+
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private FakeGattTransport mTransport;
+  private BluetoothGattCallback mStack;
+  private GattConnection mConnection;
+  private GattWriteEngine mEngine;
+  private EventLog mEvents;
+  // The index of the next operation to check.
+  private int mNextOperation;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    BluetoothGattService service =
+        new BluetoothGattService(SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    for (BluetoothGattCharacteristic characteristic : Arrays.asList(mReliable1, mReliable2,
+        mNotReliable, mNoResponse1, mNoResponse2, mUnlock, mLock)) {
+      service.addCharacteristic(characteristic);
+    }
+    mTransport = new FakeGattTransport();
+    mTransport.setService(service);
+    mEvents = new EventLog();
+    mConnection = new GattConnection();
+    mEngine = new GattWriteEngine(mConnection);
+    runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        mConnection.connect(mTransport, new EngineOwner());
+        assertTrue(mConnection.setService(SERVICE_UUID));
+      }
+    });
+    mStack = mTransport.getCallback();
+    expect("connect");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        mConnection.close();
+      }
+    });
+    super.tearDown();
+  }
+
+  public void testReadsExtendedPropertiesOfCharacteristicsThatHaveThem() throws Exception {
+    readWriteProperties();
+
+    // Only the characteristics whose properties include extended properties are read.
+    assertEquals(mNextOperation, mTransport.getOperations().size());
+  }
+
+  public void testSelectsMode() throws Exception {
+    readWriteProperties();
+    final Mode reliable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+        ? Mode.RELIABLE : Mode.ACKNOWLEDGED;
+
+    runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        assertEquals(reliable, selectMode(batchable(mReliable1), batchable(mReliable2)));
+        // A reliable write of a single value is a round trip more than a write with response.
+        assertEquals(Mode.ACKNOWLEDGED, selectMode(batchable(mReliable1)));
+        assertEquals(Mode.ACKNOWLEDGED, selectMode(batchable(mReliable1), batchable(mNotReliable)));
+        assertEquals(Mode.WITHOUT_RESPONSE,
+            selectMode(batchable(mNoResponse1), batchable(mNoResponse2)));
+        assertEquals(Mode.ACKNOWLEDGED, selectMode(batchable(mNoResponse1), batchable(mUnlock)));
+        assertEquals(Mode.ACKNOWLEDGED, selectMode(alone(mNoResponse1)));
+        // Every characteristic must allow reliable writes, even those that also allow writes
+        // without response.
+        assertEquals(Mode.ACKNOWLEDGED,
+            selectMode(batchable(mReliable1), batchable(mNoResponse1)));
+      }
+    });
+  }
+
+  public void testDoesNotWriteReliablyBeforeReadingProperties() throws Exception {
+    runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        assertEquals(Mode.ACKNOWLEDGED, selectMode(batchable(mReliable1), batchable(mReliable2)));
+      }
+    });
+  }
+
+  public void testSplitsRunsAtWritesThatAreNotBatchable() throws Exception {
+    write(alone(mUnlock), batchable(mNoResponse1), batchable(mNoResponse2), alone(mLock));
+
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    answer(mUnlock, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    answer(mNoResponse1, WITHOUT_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    answer(mNoResponse2, WITHOUT_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    answer(mLock, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+
+    assertEquals(Arrays.asList(
+        writeEvent(mUnlock, BluetoothGatt.GATT_SUCCESS),
+        writeEvent(mNoResponse1, BluetoothGatt.GATT_SUCCESS),
+        writeEvent(mNoResponse2, BluetoothGatt.GATT_SUCCESS),
+        writeEvent(mLock, BluetoothGatt.GATT_SUCCESS),
+        completeEvent(BluetoothGatt.GATT_SUCCESS)), mEvents.await(5));
+    assertEquals(mNextOperation, mTransport.getOperations().size());
+  }
+
+  public void testStartsNextRunOnlyOnceWriteIsAcknowledged() throws Exception {
+    write(alone(mUnlock), batchable(mNoResponse1));
+
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    expect(writeOperation(mUnlock.getUuid(), WITH_RESPONSE, value(mUnlock)));
+    idle();
+    assertEquals(mNextOperation, mTransport.getOperations().size());
+
+    mStack.onCharacteristicWrite(null, mUnlock, BluetoothGatt.GATT_SUCCESS);
+    expect(writeOperation(mNoResponse1.getUuid(), WITHOUT_RESPONSE, value(mNoResponse1)));
+  }
+
+  public void testStopsAfterFailedWriteThatIsNotBatchable() throws Exception {
+    write(alone(mUnlock), batchable(mNoResponse1), alone(mLock));
+
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    answer(mUnlock, WITH_RESPONSE, BluetoothGatt.GATT_FAILURE);
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+
+    // The writes that depend on it are neither attempted nor reported.
+    assertEquals(Arrays.asList(
+        writeEvent(mUnlock, BluetoothGatt.GATT_FAILURE),
+        completeEvent(BluetoothGatt.GATT_FAILURE)), mEvents.await(2));
+    idle();
+    assertEquals(mNextOperation, mTransport.getOperations().size());
+  }
+
+  public void testContinuesAfterFailedBatchableWrite() throws Exception {
+    write(batchable(mNoResponse1), batchable(mNoResponse2), alone(mLock));
+
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    answer(mNoResponse1, WITHOUT_RESPONSE, BluetoothGatt.GATT_FAILURE);
+    answer(mNoResponse2, WITHOUT_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    // The lock is still written.
+    answer(mLock, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+
+    assertEquals(Arrays.asList(
+        writeEvent(mNoResponse1, BluetoothGatt.GATT_FAILURE),
+        writeEvent(mNoResponse2, BluetoothGatt.GATT_SUCCESS),
+        writeEvent(mLock, BluetoothGatt.GATT_SUCCESS),
+        completeEvent(BluetoothGatt.GATT_FAILURE)), mEvents.await(4));
+  }
+
+  public void testWritesReliably() throws Exception {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      return;
+    }
+    readWriteProperties();
+    write(alone(mUnlock), batchable(mReliable1), batchable(mReliable2));
+
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    answer(mUnlock, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    expect(FakeGattTransport.BEGIN_RELIABLE_WRITE);
+    answer(mReliable1, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    answer(mReliable2, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    expect(FakeGattTransport.EXECUTE_RELIABLE_WRITE);
+    // The prepared writes are only reported once they are executed.
+    assertEquals(Arrays.asList(writeEvent(mUnlock, BluetoothGatt.GATT_SUCCESS)), mEvents.get());
+
+    mStack.onReliableWriteCompleted(null, BluetoothGatt.GATT_SUCCESS);
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+    assertEquals(Arrays.asList(
+        writeEvent(mUnlock, BluetoothGatt.GATT_SUCCESS),
+        writeEvent(mReliable1, BluetoothGatt.GATT_SUCCESS),
+        writeEvent(mReliable2, BluetoothGatt.GATT_SUCCESS),
+        completeEvent(BluetoothGatt.GATT_SUCCESS)), mEvents.await(4));
+  }
+
+  public void testReportsFailedExecute() throws Exception {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      return;
+    }
+    readWriteProperties();
+    write(batchable(mReliable1), batchable(mReliable2), alone(mLock));
+
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    expect(FakeGattTransport.BEGIN_RELIABLE_WRITE);
+    answer(mReliable1, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    answer(mReliable2, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    expect(FakeGattTransport.EXECUTE_RELIABLE_WRITE);
+    mStack.onReliableWriteCompleted(null, BluetoothGatt.GATT_FAILURE);
+    answer(mLock, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+
+    assertEquals(Arrays.asList(
+        writeEvent(mReliable1, BluetoothGatt.GATT_FAILURE),
+        writeEvent(mReliable2, BluetoothGatt.GATT_FAILURE),
+        writeEvent(mLock, BluetoothGatt.GATT_SUCCESS),
+        completeEvent(BluetoothGatt.GATT_FAILURE)), mEvents.await(4));
+  }
+
+  public void testAbortsReliableWriteWhenPrepareFails() throws Exception {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      return;
+    }
+    readWriteProperties();
+    write(batchable(mReliable1), batchable(mReliable2), alone(mLock));
+
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    expect(FakeGattTransport.BEGIN_RELIABLE_WRITE);
+    answer(mReliable1, WITH_RESPONSE, BluetoothGatt.GATT_FAILURE);
+    answer(mReliable2, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    // Nothing is executed, and the lock is still written.
+    expect(FakeGattTransport.ABORT_RELIABLE_WRITE);
+    answer(mLock, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+
+    // The prepared write that was discarded is reported with the failure that discarded it.
+    assertEquals(Arrays.asList(
+        writeEvent(mReliable1, BluetoothGatt.GATT_FAILURE),
+        writeEvent(mReliable2, BluetoothGatt.GATT_FAILURE),
+        writeEvent(mLock, BluetoothGatt.GATT_SUCCESS),
+        completeEvent(BluetoothGatt.GATT_FAILURE)), mEvents.await(4));
+  }
+
+  public void testWritesWithResponseWhenReliableWriteCannotBegin() throws Exception {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      return;
+    }
+    readWriteProperties();
+    write(alone(mUnlock), batchable(mReliable1), batchable(mReliable2));
+
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    expect(writeOperation(mUnlock.getUuid(), WITH_RESPONSE, value(mUnlock)));
+    mTransport.refuse(GattRequestQueue.MAX_ATTEMPTS);
+    mStack.onCharacteristicWrite(null, mUnlock, BluetoothGatt.GATT_SUCCESS);
+    for (int attempt = 1; attempt <= GattRequestQueue.MAX_ATTEMPTS; attempt++) {
+      expect(FakeGattTransport.BEGIN_RELIABLE_WRITE);
+    }
+    // Each write is acknowledged on its own, and nothing is executed.
+    answer(mReliable1, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    answer(mReliable2, WITH_RESPONSE, BluetoothGatt.GATT_SUCCESS);
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+
+    assertEquals(Arrays.asList(
+        writeEvent(mUnlock, BluetoothGatt.GATT_SUCCESS),
+        writeEvent(mReliable1, BluetoothGatt.GATT_SUCCESS),
+        writeEvent(mReliable2, BluetoothGatt.GATT_SUCCESS),
+        completeEvent(BluetoothGatt.GATT_SUCCESS)), mEvents.await(4));
+    assertEquals(mNextOperation, mTransport.getOperations().size());
+  }
+
+  public void testRequestsMtuForLongValues() throws Exception {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return;
+    }
+    // A Prepare Write Request of 20 bytes takes 25, more than the default MTU of 23.
+    Write longWrite = new Write(mNoResponse1.getUuid(), new byte[20], true);
+    write(longWrite);
+
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    expect(mtuOperation(25));
+    mStack.onMtuChanged(null, 25, BluetoothGatt.GATT_SUCCESS);
+    expect(writeOperation(mNoResponse1.getUuid(), WITHOUT_RESPONSE, new byte[20]));
+    mStack.onCharacteristicWrite(null, mNoResponse1, BluetoothGatt.GATT_SUCCESS);
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+    mEvents.await(2);
+
+    // The agreed MTU is kept for later writes.
+    write(longWrite);
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    expect(writeOperation(mNoResponse1.getUuid(), WITHOUT_RESPONSE, new byte[20]));
+  }
+
+  public void testDoesNotRequestMtuForShortValues() throws Exception {
+    write(batchable(mNoResponse1));
+
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    expect(writeOperation(mNoResponse1.getUuid(), WITHOUT_RESPONSE, value(mNoResponse1)));
+  }
+
+  public void testCancelsWriteWhenDisconnected() throws Exception {
+    write(batchable(mNoResponse1), batchable(mNoResponse2));
+
+    expectPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    expect(writeOperation(mNoResponse1.getUuid(), WITHOUT_RESPONSE, value(mNoResponse1)));
+    mStack.onConnectionStateChange(null, STATUS_CONNECTION_TIMEOUT,
+        BluetoothProfile.STATE_DISCONNECTED);
+
+    assertEquals(Arrays.asList(completeEvent(STATUS_CONNECTION_TIMEOUT)), mEvents.await(1));
+    // Nothing more is written, and there is no connection to restore the priority of.
+    mStack.onCharacteristicWrite(null, mNoResponse1, BluetoothGatt.GATT_SUCCESS);
+    idle();
+    assertEquals(mNextOperation, mTransport.getOperations().size());
+    assertEquals(1, mEvents.get().size());
+    assertFalse(mEngine.isWriting());
+  }
+
+  public void testCompletesEmptyWriteAtOnce() throws Exception {
+    write();
+
+    assertEquals(Arrays.asList(completeEvent(BluetoothGatt.GATT_SUCCESS)), mEvents.get());
+    assertEquals(mNextOperation, mTransport.getOperations().size());
+  }
+
+  public void testRejectsWriteWhileWriting() throws Exception {
+    write(batchable(mNoResponse1));
+    runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          mEngine.write(Arrays.asList(batchable(mNoResponse2)), mEvents);
+          fail();
+        } catch (IllegalStateException e) {
+          // Expected.
+        }
+      }
+    });
+  }
+
+  private static BluetoothGattCharacteristic newCharacteristic(int index, int properties,
+      int extendedProperties) {
+    BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+        UUID.fromString("ee0c208" + index + "-8786-40ba-ab96-99b91ac981d8"),
+        BluetoothGattCharacteristic.PROPERTY_WRITE | properties,
+        BluetoothGattCharacteristic.PERMISSION_WRITE);
+    if ((properties & BluetoothGattCharacteristic.PROPERTY_EXTENDED_PROPS) != 0) {
+      BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(
+          GattWriteEngine.EXTENDED_PROPERTIES, BluetoothGattDescriptor.PERMISSION_READ);
+      // Set as if read from the peripheral.
+      descriptor.setValue(new byte[] {(byte) extendedProperties, 0});
+      characteristic.addDescriptor(descriptor);
+    }
+    return characteristic;
+  }
+
+  // The value written to a characteristic, the last byte of its UUID's first group.
+  private static byte[] value(BluetoothGattCharacteristic characteristic) {
+    return new byte[] {(byte) (characteristic.getUuid().getMostSignificantBits() >>> 32)};
+  }
+
+  private static Write batchable(BluetoothGattCharacteristic characteristic) {
+    return new Write(characteristic.getUuid(), value(characteristic), true);
+  }
+
+  private static Write alone(BluetoothGattCharacteristic characteristic) {
+    return new Write(characteristic.getUuid(), value(characteristic), false);
+  }
+
+  private static String writeEvent(BluetoothGattCharacteristic characteristic, int status) {
+    return "write " + characteristic.getUuid() + " " + status;
+  }
+
+  private static String completeEvent(int status) {
+    return "complete " + status;
+  }
+
+  private Mode selectMode(Write... writes) {
+    return mEngine.selectMode(Arrays.asList(writes), 0, writes.length);
+  }
+
+  // Reads the extended properties, answering the reads as the peripheral.
+  private void readWriteProperties() throws InterruptedException {
+    final List<UUID> uuids = new ArrayList<UUID>();
+    for (BluetoothGattCharacteristic characteristic : Arrays.asList(mReliable1, mReliable2,
+        mNotReliable, mNoResponse1, mNoResponse2, mUnlock, mLock)) {
+      uuids.add(characteristic.getUuid());
+    }
+    runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        mEngine.readWriteProperties(uuids.toArray(new UUID[uuids.size()]));
+      }
+    });
+    for (BluetoothGattCharacteristic characteristic : Arrays.asList(mReliable1, mReliable2,
+        mNotReliable)) {
+      expect("readDescriptor " + GattWriteEngine.EXTENDED_PROPERTIES);
+      mStack.onDescriptorRead(null,
+          characteristic.getDescriptor(GattWriteEngine.EXTENDED_PROPERTIES),
+          BluetoothGatt.GATT_SUCCESS);
+    }
+    idle();
+  }
+
+  private void write(Write... writes) throws InterruptedException {
+    final List<Write> list = Arrays.asList(writes);
+    runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        mEngine.write(list, mEvents);
+      }
+    });
+  }
+
+  // Checks that the next operation started is the given one.
+  private void expect(String operation) throws InterruptedException {
+    assertEquals(operation, mTransport.awaitOperations(mNextOperation + 1).get(mNextOperation));
+    mNextOperation++;
+  }
+
+  // Checks for a request of the connection priority, which is only made on Lollipop and later.
+  private void expectPriority(int connectionPriority) throws InterruptedException {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      expect(priorityOperation(connectionPriority));
+    }
+  }
+
+  // Checks that the next operation is a write of the characteristic, and answers it.
+  private void answer(BluetoothGattCharacteristic characteristic, int writeType, int status)
+      throws InterruptedException {
+    expect(writeOperation(characteristic.getUuid(), writeType, value(characteristic)));
+    mStack.onCharacteristicWrite(null, characteristic, status);
+  }
+
+  // Waits until the main thread has run what was posted to it so far.
+  private void idle() throws InterruptedException {
+    runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+  }
+
+  // The engine, like the connection's callbacks, is used on the main thread.
+  private void runOnMainThread(final Runnable runnable) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    final Throwable[] thrown = new Throwable[1];
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          runnable.run();
+        } catch (Throwable t) {
+          thrown[0] = t;
+        }
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    if (thrown[0] != null) {
+      throw new AssertionError(thrown[0]);
+    }
+  }
+
+  /**
+   * Passes the callbacks of the connection on to the engine, as its owner must.
+   */
+  private class EngineOwner extends BluetoothGattCallback {
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+      if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+        mEngine.cancel(status);
+      }
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt,
+        BluetoothGattCharacteristic characteristic, int status) {
+      mEngine.onCharacteristicWrite(characteristic, status);
+    }
+
+    @Override
+    public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+      mEngine.onReliableWriteCompleted(status);
+    }
+
+    @Override
+    public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+        int status) {
+      mEngine.onDescriptorRead(descriptor, status);
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+      mEngine.onMtuChanged(mtu, status);
+    }
+  }
+
+  /**
+   * Records the engine's callbacks, in the order they are made.
+   */
+  private static class EventLog implements GattWriteEngine.Callback {
+    private final List<String> mEvents = new ArrayList<String>();
+
+    synchronized List<String> get() {
+      return new ArrayList<String>(mEvents);
+    }
+
+    synchronized List<String> await(int count) throws InterruptedException {
+      long deadlineMillis = System.currentTimeMillis() + 5000;
+      while (mEvents.size() < count) {
+        long waitMillis = deadlineMillis - System.currentTimeMillis();
+        if (waitMillis <= 0) {
+          fail("Expected " + count + " events, got " + mEvents);
+        }
+        wait(waitMillis);
+      }
+      return get();
+    }
+
+    private synchronized void add(String event) {
+      mEvents.add(event);
+      notifyAll();
+    }
+
+    @Override
+    public void onCharacteristicWrite(UUID uuid, int status) {
+      add("write " + uuid + " " + status);
+    }
+
+    @Override
+    public void onWriteComplete(int status) {
+      add(completeEvent(status));
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config.testing;
+
+import android.bluetooth.BluetoothGatt;
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+
+import org.uribeacon.beacon.ConfigUriBeacon;
+import org.uribeacon.beacon.UriBeacon;
+import org.uribeacon.config.ProtocolV2;
+
+/**
+ * Unit tests for the {@link SimulatedUriBeacon} class, against the return codes of the
+ * configuration service spec.
+ */
+public class SimulatedUriBeaconTest extends AndroidTestCase {
+  private static final byte[] KEY = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+  private static final byte[] OTHER_KEY = new byte[16];
+
+  private SimulatedUriBeacon mBeacon;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mBeacon = new SimulatedUriBeacon("00:11:22:33:44:55");
+  }
+
+  public void testStartsWithDefaults() {
+    assertFalse(mBeacon.isLocked());
+    MoreAsserts.assertEquals(UriBeacon.encodeUri(SimulatedUriBeacon.DEFAULT_URI),
+        mBeacon.read(ProtocolV2.DATA));
+    MoreAsserts.assertEquals(new byte[]{0}, mBeacon.read(ProtocolV2.LOCK_STATE));
+    MoreAsserts.assertEquals(new byte[]{0}, mBeacon.read(ProtocolV2.FLAGS));
+    MoreAsserts.assertEquals(new byte[]{ConfigUriBeacon.POWER_MODE_LOW},
+        mBeacon.read(ProtocolV2.POWER_MODE));
+    // 1000, little endian.
+    MoreAsserts.assertEquals(new byte[]{(byte) 0xe8, 0x03}, mBeacon.read(ProtocolV2.PERIOD));
+    assertNull(mBeacon.read(ProtocolV2.LOCK));
+    assertNull(mBeacon.read(ProtocolV2.UNLOCK));
+    assertNull(mBeacon.read(ProtocolV2.RESET));
+  }
+
+  public void testLocking() {
+    assertEquals(BluetoothGatt.GATT_SUCCESS, mBeacon.write(ProtocolV2.LOCK, KEY));
+    assertTrue(mBeacon.isLocked());
+    MoreAsserts.assertEquals(new byte[]{1}, mBeacon.read(ProtocolV2.LOCK_STATE));
+    assertEquals(ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION,
+        mBeacon.write(ProtocolV2.LOCK, OTHER_KEY));
+    assertEquals(ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION,
+        mBeacon.write(ProtocolV2.FLAGS, new byte[]{1}));
+    assertEquals(ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION,
+        mBeacon.write(ProtocolV2.RESET, new byte[]{1}));
+    assertEquals(0, mBeacon.getFlags());
+  }
+
+  public void testUnlocking() {
+    mBeacon.lock(KEY);
+    assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+        mBeacon.write(ProtocolV2.UNLOCK, new byte[15]));
+    assertEquals(ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION,
+        mBeacon.write(ProtocolV2.UNLOCK, OTHER_KEY));
+    assertTrue(mBeacon.isLocked());
+    assertEquals(BluetoothGatt.GATT_SUCCESS, mBeacon.write(ProtocolV2.UNLOCK, KEY));
+    assertFalse(mBeacon.isLocked());
+    // Unlocking an unlocked beacon succeeds with any key.
+    assertEquals(BluetoothGatt.GATT_SUCCESS, mBeacon.write(ProtocolV2.UNLOCK, OTHER_KEY));
+  }
+
+  public void testRefusesInvalidValues() {
+    assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+        mBeacon.write(ProtocolV2.LOCK, new byte[17]));
+    assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+        mBeacon.write(ProtocolV2.DATA, new byte[19]));
+    assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+        mBeacon.write(ProtocolV2.FLAGS, new byte[2]));
+    assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+        mBeacon.write(ProtocolV2.POWER_LEVELS, new byte[3]));
+    assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+        mBeacon.write(ProtocolV2.PERIOD, new byte[1]));
+    assertEquals(BluetoothGatt.GATT_WRITE_NOT_PERMITTED,
+        mBeacon.write(ProtocolV2.POWER_MODE, new byte[]{4}));
+    assertEquals(BluetoothGatt.GATT_WRITE_NOT_PERMITTED,
+        mBeacon.write(ProtocolV2.LOCK_STATE, new byte[]{0}));
+    assertFalse(mBeacon.isLocked());
+  }
+
+  public void testRaisesUnsupportedPeriods() {
+    mBeacon.setMinPeriodMillis(100);
+    assertEquals(BluetoothGatt.GATT_SUCCESS, mBeacon.write(ProtocolV2.PERIOD, new byte[]{10, 0}));
+    assertEquals(100, mBeacon.getBeaconPeriod());
+    assertEquals(BluetoothGatt.GATT_SUCCESS, mBeacon.write(ProtocolV2.PERIOD, new byte[]{0, 0}));
+    assertEquals(0, mBeacon.getBeaconPeriod());
+  }
+
+  public void testResetRestoresDefaults() {
+    mBeacon.write(ProtocolV2.DATA, UriBeacon.encodeUri("http://example.com"));
+    mBeacon.write(ProtocolV2.FLAGS, new byte[]{1});
+    mBeacon.write(ProtocolV2.POWER_MODE, new byte[]{ConfigUriBeacon.POWER_MODE_HIGH});
+    assertEquals(BluetoothGatt.GATT_SUCCESS, mBeacon.write(ProtocolV2.RESET, new byte[]{1}));
+    MoreAsserts.assertEquals(UriBeacon.encodeUri(SimulatedUriBeacon.DEFAULT_URI),
+        mBeacon.getUriData());
+    assertEquals(0, mBeacon.getFlags());
+    assertEquals(ConfigUriBeacon.POWER_MODE_LOW, mBeacon.getTxPowerMode());
+    assertEquals(1000, mBeacon.getBeaconPeriod());
+  }
+}
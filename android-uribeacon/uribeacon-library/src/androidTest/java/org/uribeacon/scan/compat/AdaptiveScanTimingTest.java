@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Unit tests for the {@link AdaptiveScanTiming} class.
+ */
+public class AdaptiveScanTimingTest extends AndroidTestCase {
+
+  private final AdaptiveScanTiming timing = new AdaptiveScanTiming(100);
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    timing.reset(1000, 1000);
+  }
+
+  public void testStartsQuick() {
+    assertEquals(1000, timing.getActiveMillis());
+    assertEquals(100, timing.getIdleMillis());
+    assertEquals(2000, timing.getSteadyCycleMillis());
+  }
+
+  public void testActiveWindowGrowsWhileDevicesAppear() {
+    for (int i = 2; i <= AdaptiveScanTiming.MAX_ACTIVE_WINDOWS; i++) {
+      assertTrue(timing.onCycleComplete(1, 0));
+      assertEquals(i * 1000, timing.getActiveMillis());
+      assertEquals(100, timing.getIdleMillis());
+    }
+    assertFalse(timing.onCycleComplete(3, 1));
+    assertEquals(AdaptiveScanTiming.MAX_ACTIVE_WINDOWS * 1000, timing.getActiveMillis());
+  }
+
+  public void testBacksOffWhileNothingChanges() {
+    timing.onCycleComplete(1, 0);
+    assertTrue(timing.onCycleComplete(0, 0));
+    assertEquals(1000, timing.getActiveMillis());
+    assertEquals(200, timing.getIdleMillis());
+    timing.onCycleComplete(0, 0);
+    timing.onCycleComplete(0, 0);
+    assertEquals(800, timing.getIdleMillis());
+    assertTrue(timing.onCycleComplete(0, 0));
+    assertEquals(1000, timing.getIdleMillis());
+    assertFalse(timing.onCycleComplete(0, 0));
+    assertEquals(2000, timing.getCycleMillis());
+
+    // Losing devices speeds it up again, but less than finding them.
+    assertTrue(timing.onCycleComplete(0, 2));
+    assertEquals(500, timing.getIdleMillis());
+    assertEquals(1000, timing.getActiveMillis());
+    timing.onCycleComplete(1, 0);
+    assertEquals(100, timing.getIdleMillis());
+  }
+
+  public void testResetClampsToTheScanMode() {
+    // A scan mode quicker than the quickest adaptive cycle isn't slowed down.
+    timing.reset(500, 50);
+    assertEquals(100, timing.getIdleMillis());
+    assertFalse(timing.onCycleComplete(0, 0));
+    assertEquals(600, timing.getSteadyCycleMillis());
+  }
+}
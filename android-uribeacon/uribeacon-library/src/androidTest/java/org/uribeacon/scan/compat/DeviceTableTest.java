@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Unit tests for the {@link DeviceTable} class.
+ */
+public class DeviceTableTest extends AndroidTestCase {
+
+  public void testParseAddress() {
+    assertEquals(0x001122aabbccL, DeviceTable.parseAddress("00:11:22:AA:BB:CC"));
+    assertEquals(0xffffffffffffL, DeviceTable.parseAddress("ff:ff:ff:ff:ff:ff"));
+    assertEquals(-1, DeviceTable.parseAddress("address"));
+    assertEquals(-1, DeviceTable.parseAddress("00-11-22-AA-BB-CC"));
+    assertEquals(-1, DeviceTable.parseAddress("00:11:22:AA:BB:CG"));
+    assertEquals(-1, DeviceTable.parseAddress(null));
+  }
+
+  public void testPutReplacesResultInSameSlot() {
+    DeviceTable table = new DeviceTable();
+    int slot = table.put("00:11:22:AA:BB:CC", result(1));
+    ScanResult latest = result(2);
+    assertEquals(slot, table.put("00:11:22:AA:BB:CC", latest));
+    assertEquals(1, table.size());
+    assertSame(latest, table.getResult(slot));
+    assertEquals(2, table.getTimestampMillis(slot));
+    assertEquals("00:11:22:AA:BB:CC", table.getAddress(slot));
+  }
+
+  public void testNonMacAddresses() {
+    DeviceTable table = new DeviceTable();
+    int bert = table.put("Bert", result(1));
+    int ernie = table.put("Ernie", result(1));
+    assertTrue(bert != ernie);
+    assertEquals("Bert", table.getAddress(bert));
+    table.remove(bert);
+    assertEquals(-1, table.getSlot("Bert"));
+    assertEquals(ernie, table.getSlot("Ernie"));
+  }
+
+  public void testRemovedSlotsAreReused() {
+    DeviceTable table = new DeviceTable();
+    int first = table.put("00:00:00:00:00:01", result(1));
+    table.put("00:00:00:00:00:02", result(1));
+    table.remove(first);
+    assertNull(table.getResult(first));
+    assertEquals(first, table.put("00:00:00:00:00:03", result(1)));
+    assertEquals(2, table.getSlotLimit());
+  }
+
+  public void testUnchangedScanRecordIsReused() {
+    DeviceTable table = new DeviceTable();
+    ScanResult first = result(1, ScanRecord.DATA_TYPE_SERVICE_DATA, 0xfed8);
+    byte[] bytes = first.getScanRecord().getBytes().clone();
+    assertNull(table.getUnchangedScanRecord("Bert", bytes));
+    assertTrue(table.isPayloadChanged("Bert", first));
+    table.put("Bert", first);
+
+    assertSame(first.getScanRecord(), table.getUnchangedScanRecord("Bert", bytes));
+    assertNull(table.getUnchangedScanRecord("Ernie", bytes));
+    ScanResult repeated = result(2, ScanRecord.DATA_TYPE_SERVICE_DATA, 0xfed8);
+    assertFalse(table.isPayloadChanged("Bert", repeated));
+
+    ScanResult changed = result(3, ScanRecord.DATA_TYPE_SERVICE_DATA, 0xfed9);
+    assertNull(table.getUnchangedScanRecord("Bert", changed.getScanRecord().getBytes()));
+    assertTrue(table.isPayloadChanged("Bert", changed));
+    assertTrue(table.isPayloadChanged("Bert", result(4)));
+  }
+
+  public void testIdentifierIndex() {
+    DeviceTable table = new DeviceTable();
+    int bert = table.put("00:00:00:00:00:01", result(1, 0x16, 0xfed8));
+    int ernie = table.put("00:00:00:00:00:02", result(1, 0xff, 0x00e0));
+    assertTrue(table.getSlotsWithServiceData(0xfed8).get(bert));
+    assertFalse(table.getSlotsWithServiceData(0xfed8).get(ernie));
+    assertTrue(table.getSlotsWithManufacturerData(0x00e0).get(ernie));
+    assertNull(table.getSlotsWithManufacturerData(0xfed8));
+
+    // The index follows the latest record of each device.
+    table.put("00:00:00:00:00:01", result(2, 0xff, 0x00e0));
+    assertNull(table.getSlotsWithServiceData(0xfed8));
+    assertEquals(2, table.getSlotsWithManufacturerData(0x00e0).cardinality());
+    table.put("00:00:00:00:00:02", result(2));
+    table.remove(bert);
+    assertNull(table.getSlotsWithManufacturerData(0x00e0));
+  }
+
+  /**
+   * Compares the table with a HashMap over a random sequence of puts and removes, with enough
+   * devices to grow the table several times.
+   */
+  public void testMatchesHashMap() {
+    DeviceTable table = new DeviceTable();
+    Map<String, ScanResult> expected = new HashMap<String, ScanResult>();
+    Random random = new Random(42);
+    for (int i = 0; i < 20000; i++) {
+      String address = address(random.nextInt(500));
+      if (random.nextInt(3) == 0) {
+        int slot = table.getSlot(address);
+        assertEquals(expected.containsKey(address), slot >= 0);
+        if (slot >= 0) {
+          assertSame(expected.remove(address), table.getResult(slot));
+          table.remove(slot);
+        }
+      } else {
+        ScanResult result = result(i);
+        expected.put(address, result);
+        assertSame(result, table.getResult(table.put(address, result)));
+      }
+      assertEquals(expected.size(), table.size());
+    }
+    for (Map.Entry<String, ScanResult> entry : expected.entrySet()) {
+      assertSame(entry.getValue(), table.getResult(table.getSlot(entry.getKey())));
+    }
+  }
+
+  private static String address(int device) {
+    // Vary the top bytes as well, as addresses of one vendor share them.
+    return String.format(Locale.US, "%02X:%02X:00:00:%02X:%02X",
+        device % 7, device % 3, device >> 8, device & 0xff);
+  }
+
+  private static ScanResult result(long timeMillis) {
+    return new ScanResult(null, null, 0, timeMillis * 1000000);
+  }
+
+  // A result whose scan record has one field of the type, with the identifier and a data byte.
+  private static ScanResult result(long timeMillis, int fieldType, int identifier) {
+    byte[] scanRecord = {4, (byte) fieldType, (byte) identifier, (byte) (identifier >> 8), 0};
+    return new ScanResult(null, ScanRecord.parseFromBytes(scanRecord), 0, timeMillis * 1000000);
+  }
+}
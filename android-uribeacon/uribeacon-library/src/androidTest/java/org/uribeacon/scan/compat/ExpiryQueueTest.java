@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+/**
+ * Unit tests for the {@link ExpiryQueue} class.
+ */
+public class ExpiryQueueTest extends AndroidTestCase {
+
+  public void testOnlyExpiredSlotsArePolled() {
+    ExpiryQueue queue = new ExpiryQueue();
+    queue.add(1, 300);
+    queue.add(2, 100);
+    queue.add(3, 200);
+
+    assertEquals(-1, queue.pollExpired(100));
+    assertEquals(2, queue.pollExpired(101));
+    assertEquals(-1, queue.pollExpired(101));
+    assertEquals(3, queue.pollExpired(1000));
+    assertEquals(1, queue.pollExpired(1000));
+    assertEquals(-1, queue.pollExpired(1000));
+    assertEquals(0, queue.size());
+  }
+
+  /**
+   * Checks that slots come out in deadline order over random adds and polls, with enough slots
+   * to grow the queue.
+   */
+  public void testPollsInDeadlineOrder() {
+    ExpiryQueue queue = new ExpiryQueue();
+    long[] deadlines = new long[5000];
+    Random random = new Random(42);
+    for (int slot = 0; slot < deadlines.length; slot++) {
+      deadlines[slot] = random.nextInt(100000);
+      queue.add(slot, deadlines[slot]);
+    }
+    long previousDeadline = Long.MIN_VALUE;
+    // The last poll is after every deadline.
+    for (long now = 0; now <= 101000; now += random.nextInt(1000)) {
+      int slot;
+      while ((slot = queue.pollExpired(now)) >= 0) {
+        assertTrue(deadlines[slot] < now);
+        assertTrue(deadlines[slot] >= previousDeadline);
+        previousDeadline = deadlines[slot];
+      }
+    }
+    assertEquals(-1, queue.pollExpired(Long.MAX_VALUE));
+  }
+
+  public void testClear() {
+    ExpiryQueue queue = new ExpiryQueue();
+    queue.add(1, 0);
+    queue.clear();
+    assertEquals(0, queue.size());
+    assertEquals(-1, queue.pollExpired(Long.MAX_VALUE));
+  }
+}
@@ -18,7 +18,6 @@ package org.uribeacon.scan.compat;
 
 import static android.content.Context.ALARM_SERVICE;
 import static android.content.Context.BLUETOOTH_SERVICE;
-import static android.test.MoreAsserts.assertEmpty;
 import static org.uribeacon.scan.compat.JbBluetoothLeScannerCompat.BALANCED_ACTIVE_MILLIS;
 import static org.uribeacon.scan.compat.JbBluetoothLeScannerCompat.BALANCED_IDLE_MILLIS;
 import static org.uribeacon.scan.compat.JbBluetoothLeScannerCompat.LOW_LATENCY_ACTIVE_MILLIS;
@@ -48,12 +47,14 @@ import org.uribeacon.scan.testing.FakeClock;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.bluetooth.BluetoothManager;
+import android.os.ParcelUuid;
 import android.test.AndroidTestCase;
 
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -208,6 +209,45 @@ public class JbBluetoothLeScannerCompatTest extends AndroidTestCase {
         scanner.getLostTimestampMillis());
   }
 
+  /**
+   * Verify that adaptive timing speeds the scan cycle up while devices come and go, and backs off
+   * to the timing of the scan mode while nothing changes.
+   */
+  public void testAdaptiveScanTiming() {
+    scanner.setAdaptiveScanTiming(true);
+    scanner.startScan(NO_FILTER, MEDIUM, callback);
+    assertEquals(BALANCED_ACTIVE_MILLIS, scanner.getScanActiveMillis());
+    assertEquals(LOW_LATENCY_IDLE_MILLIS, scanner.getScanIdleMillis());
+    // Devices are lost after the slowest cycles, not the current ones.
+    long steadyCycleMillis = BALANCED_ACTIVE_MILLIS + BALANCED_IDLE_MILLIS;
+    assertEquals(nowMillis() - SCAN_LOST_CYCLES * steadyCycleMillis,
+        scanner.getLostTimestampMillis());
+
+    // A new device extends the active window.
+    onScan("Bert", nowMillis());
+    scanner.onScanCycleComplete();
+    assertEquals(2 * BALANCED_ACTIVE_MILLIS, scanner.getScanActiveMillis());
+    assertEquals(LOW_LATENCY_IDLE_MILLIS, scanner.getScanIdleMillis());
+
+    // Seeing it again is no change, so the cycle backs off.
+    int idleMillis = LOW_LATENCY_IDLE_MILLIS;
+    while (idleMillis < BALANCED_IDLE_MILLIS) {
+      onScan("Bert", nowMillis());
+      scanner.onScanCycleComplete();
+      idleMillis = Math.min(2 * idleMillis, BALANCED_IDLE_MILLIS);
+      assertEquals(BALANCED_ACTIVE_MILLIS, scanner.getScanActiveMillis());
+      assertEquals(idleMillis, scanner.getScanIdleMillis());
+    }
+
+    // Losing it halves the idle period.
+    clock.advance(SCAN_LOST_CYCLES * steadyCycleMillis + 1);
+    scanner.onScanCycleComplete();
+    assertEquals(BALANCED_IDLE_MILLIS / 2, scanner.getScanIdleMillis());
+
+    scanner.setAdaptiveScanTiming(false);
+    assertEquals(BALANCED_IDLE_MILLIS, scanner.getScanIdleMillis());
+  }
+
   /**
    * Verify the time values sent to the alarm scheduler instance.
    */
@@ -316,7 +356,7 @@ public class JbBluetoothLeScannerCompatTest extends AndroidTestCase {
     clock.advance(10);
     scanner.onScanCycleComplete();
     assertEquals(1, callback.lost);
-    assertEmpty(scanner.recentScanResults);
+    assertEquals(0, scanner.recentScanResults.size());
   }
   
   public void testSetScanLostOverride() {
@@ -343,7 +383,7 @@ public class JbBluetoothLeScannerCompatTest extends AndroidTestCase {
     clock.advance(10);
     scanner.onScanCycleComplete();
     assertEquals(1, callback.lost);
-    assertEmpty(scanner.recentScanResults);
+    assertEquals(0, scanner.recentScanResults.size());
   }
 
   /**
@@ -489,8 +529,262 @@ public class JbBluetoothLeScannerCompatTest extends AndroidTestCase {
     assertEquals(1, callback.found);
   }
 
+  /**
+   * Test new registrations filtering on service data or manufacturer data get the recent finds
+   * that have it.
+   */
+  public void testNewListenersGetPastSightingsByIdentifier() {
+    onScan("Bert", nowMillis(), 0x16, 0xfed8);
+    onScan("Ernie", nowMillis(), 0xff, 0x00e0);
+    onScan("Grover", nowMillis(), 0xff, 0x004c);
+    clock.advance(10);
+
+    scanner.startScan(Arrays.asList(new ScanFilter.Builder()
+        .setManufacturerData(0x00e0, new byte[0]).build()), FOUND, callback);
+    assertEquals(1, callback.found);
+
+    TestingCallback uriBeacons = new TestingCallback();
+    scanner.startScan(Arrays.asList(new ScanFilter.Builder()
+        .setServiceData(ParcelUuid.fromString("0000FED8-0000-1000-8000-00805F9B34FB"),
+            new byte[0]).build()), FOUND, uriBeacons);
+    assertEquals(1, uriBeacons.found);
+  }
+
   /////////////////////////////////////////////////////////////////////////////
 
+  /**
+   * Test that a sighting before the lost timeout runs out keeps the device from being lost.
+   */
+  public void testSightingDelaysLostEvent() {
+    scanner.startScan(NO_FILTER, LOST, callback);
+    onScan("address", nowMillis());
+    long lostTimeoutMillis = clock.currentTimeMillis() - scanner.getLostTimestampMillis();
+
+    clock.advance(lostTimeoutMillis - 5);
+    onScan("address", nowMillis());
+    clock.advance(10);
+    scanner.onScanCycleComplete();
+    assertEquals(0, callback.lost);
+    assertEquals(1, scanner.recentScanResults.size());
+
+    clock.advance(lostTimeoutMillis);
+    scanner.onScanCycleComplete();
+    assertEquals(1, callback.lost);
+    assertEquals(0, scanner.recentScanResults.size());
+  }
+
+  /**
+   * Test that a client's own lost timeout applies to it alone, whether it is shorter or longer
+   * than the scanner's.
+   */
+  public void testPerClientScanLostOverride() {
+    TestingCallback shortCallback = new TestingCallback();
+    TestingCallback longCallback = new TestingCallback();
+    scanner.startScan(NO_FILTER, LOST, callback);
+    scanner.startScan(NO_FILTER, LOST, shortCallback);
+    scanner.startScan(NO_FILTER, LOST, longCallback);
+    long lostTimeoutMillis = clock.currentTimeMillis() - scanner.getLostTimestampMillis();
+    scanner.setScanLostOverride(shortCallback, 5000);
+    scanner.setScanLostOverride(longCallback, lostTimeoutMillis + 5000);
+    onScan("address", nowMillis());
+
+    clock.advance(5001);
+    scanner.onScanCycleComplete();
+    assertEquals(1, shortCallback.lost);
+    assertEquals(0, callback.lost);
+
+    clock.advance(lostTimeoutMillis - 5000);
+    scanner.onScanCycleComplete();
+    assertEquals(1, callback.lost);
+    assertEquals(0, longCallback.lost);
+    // Kept for the client that has not lost it yet.
+    assertEquals(1, scanner.recentScanResults.size());
+
+    clock.advance(5000);
+    scanner.onScanCycleComplete();
+    assertEquals(1, longCallback.lost);
+    assertEquals(1, shortCallback.lost);
+    assertEquals(1, callback.lost);
+    assertEquals(0, scanner.recentScanResults.size());
+  }
+
+  /**
+   * Test that a device lost for a client with a short lost timeout is found again when it is
+   * next sighted.
+   */
+  public void testFoundAgainAfterPerClientLost() {
+    scanner.startScan(NO_FILTER, ALL, callback);
+    scanner.setScanLostOverride(callback, 1000);
+    onScan("address", nowMillis());
+    assertEquals(1, callback.found);
+
+    clock.advance(1001);
+    scanner.onScanCycleComplete();
+    assertEquals(1, callback.lost);
+
+    onScan("address", nowMillis());
+    assertEquals(2, callback.found);
+  }
+
+  /**
+   * Test that a client with a report delay gets one batch per delay, with each device once.
+   */
+  public void testBatchedResultsAreCoalesced() {
+    ScanSettings settings = builder().setReportDelayMillis(10000).build();
+    scanner.startScan(NO_FILTER, settings, callback);
+
+    onScan("Bert", nowMillis());
+    onScan("Ernie", nowMillis());
+    onScan("Bert", nowMillis());
+    assertEquals(0, callback.batched);
+    assertEquals(0, callback.found);
+
+    // The delay has passed, so the next sighting completes the batch.
+    clock.advance(10000);
+    onScan("Elmo", nowMillis());
+    assertEquals(3, callback.batched);
+    assertEquals(0, callback.found);
+    assertEquals(0, callback.updated);
+  }
+
+  /**
+   * Test that a batch is delivered at the end of the last cycle before its delay runs out, and
+   * that batching clients are not sent lost events.
+   */
+  public void testBatchFlushedAtEndOfCycle() {
+    long cycleMillis = BALANCED_ACTIVE_MILLIS + BALANCED_IDLE_MILLIS;
+    ScanSettings settings = builder()
+        .setScanMode(SCAN_MODE_BALANCED)
+        .setReportDelayMillis(cycleMillis + 5000)
+        .build();
+    scanner.startScan(NO_FILTER, settings, callback);
+    onScan("address", nowMillis());
+
+    // The batch is not due before the end of the next cycle.
+    scanner.onScanCycleComplete();
+    assertEquals(0, callback.batched);
+
+    // It would be overdue by the end of the next cycle.
+    clock.advance(5000);
+    scanner.onScanCycleComplete();
+    assertEquals(1, callback.batched);
+
+    clock.advance(clock.currentTimeMillis() - scanner.getLostTimestampMillis() + 1);
+    scanner.onScanCycleComplete();
+    assertEquals(0, callback.lost);
+    assertEquals(1, callback.batched);
+  }
+
+  /**
+   * Test that a client asking for payload changes only is not sent repeated advertisements.
+   */
+  public void testPayloadChangesOnly() {
+    TestingCallback everyUpdate = new TestingCallback();
+    scanner.startScan(NO_FILTER, ALL, everyUpdate);
+    scanner.startScan(NO_FILTER, builder().setPayloadChangesOnly(true).build(), callback);
+
+    onScan("Bert", nowMillis());
+    onScan("Bert", nowMillis());
+    onScan("Bert", nowMillis());
+    assertEquals(1, callback.found);
+    assertEquals(0, callback.updated);
+    assertEquals(2, everyUpdate.updated);
+
+    onScan("Bert", nowMillis(), ScanRecord.DATA_TYPE_SERVICE_DATA, 0xfed8);
+    onScan("Bert", nowMillis(), ScanRecord.DATA_TYPE_SERVICE_DATA, 0xfed8);
+    onScan("Bert", nowMillis());
+    assertEquals(2, callback.updated);
+    assertEquals(5, everyUpdate.updated);
+  }
+
+  /**
+   * Test that the listener is told what happened during each scan cycle.
+   */
+  public void testScanCycleStats() {
+    final List<ScanCycleStats> cycles = new ArrayList<ScanCycleStats>();
+    scanner.setScanCycleListener(new ScanCycleListener() {
+      @Override
+      public void onScanCycleComplete(ScanCycleStats stats) {
+        cycles.add(stats);
+      }
+    });
+    TestingCallback lostCallback = new TestingCallback();
+    scanner.startScan(BERT_FILTER, ALL, callback);
+    scanner.startScan(ERNIE_FILTER, LOST, lostCallback);
+    scanner.startScan(NO_FILTER, FOUND, new TestingCallback() {
+      @Override
+      public void onScanResult(int callbackType, ScanResult result) {
+        throw new RuntimeException("Boom");
+      }
+    });
+
+    onScan("Bert", nowMillis());
+    onScan("Bert", nowMillis());
+    onScan("Ernie", nowMillis());
+    scanner.onScanCycleComplete();
+    scanner.publishScanCycleStats(BALANCED_ACTIVE_MILLIS, BALANCED_ACTIVE_MILLIS + 20);
+    assertEquals(1, cycles.size());
+    ScanCycleStats stats = cycles.get(0);
+    assertEquals(3, stats.getSightings());
+    assertEquals(2, stats.getUniqueDevices());
+    assertEquals(2, stats.getNewDevices());
+    assertEquals(3, stats.getFilterHits());
+    assertEquals(0, stats.getFilterMisses());
+    assertEquals(0, stats.getParseFailures());
+    assertEquals(2, stats.getCallbackFailures());
+    assertEquals(0, stats.getLostEvents());
+    assertEquals(20, stats.getActiveOvershootMillis());
+    assertEquals(3, sum(stats.getDispatchHistogram()));
+    // Bert found and updated, and the two failing found callbacks.
+    assertEquals(4, sum(stats.getCallbackHistogram()));
+
+    // The counts start again for the next cycle.
+    scanner.setScanCycleListener(null);
+    onScan("Elmo", nowMillis());
+    scanner.onScanCycleComplete();
+    scanner.publishScanCycleStats(BALANCED_ACTIVE_MILLIS, BALANCED_ACTIVE_MILLIS);
+    assertEquals(1, cycles.size());
+    scanner.setScanCycleListener(new ScanCycleListener() {
+      @Override
+      public void onScanCycleComplete(ScanCycleStats stats) {
+        cycles.add(stats);
+      }
+    });
+    clock.advance(clock.currentTimeMillis() - scanner.getLostTimestampMillis() + 1);
+    scanner.onScanCycleComplete();
+    scanner.publishScanCycleStats(BALANCED_ACTIVE_MILLIS, BALANCED_ACTIVE_MILLIS - 10);
+    stats = cycles.get(1);
+    assertEquals(0, stats.getSightings());
+    assertEquals(0, stats.getUniqueDevices());
+    // Bert and Ernie are both lost, to the clients that saw them.
+    assertEquals(2, stats.getLostEvents());
+    assertEquals(1, callback.lost);
+    assertEquals(1, lostCallback.lost);
+    assertEquals(0, stats.getActiveOvershootMillis());
+    assertEquals(2, sum(stats.getCallbackHistogram()));
+  }
+
+  /**
+   * Test the bounds of the duration histogram buckets.
+   */
+  public void testScanCycleStatsBuckets() {
+    assertEquals(0, ScanCycleStats.getBucket(999));
+    assertEquals(1, ScanCycleStats.getBucket(1000));
+    assertEquals(1, ScanCycleStats.getBucket(ScanCycleStats.getBucketLimitNanos(1) - 1));
+    assertEquals(2, ScanCycleStats.getBucket(ScanCycleStats.getBucketLimitNanos(1)));
+    int last = ScanCycleStats.HISTOGRAM_BUCKETS - 1;
+    assertEquals(last, ScanCycleStats.getBucket(Long.MAX_VALUE));
+    assertEquals(Long.MAX_VALUE, ScanCycleStats.getBucketLimitNanos(last));
+  }
+
+  private static int sum(int[] histogram) {
+    int total = 0;
+    for (int count : histogram) {
+      total += count;
+    }
+    return total;
+  }
+
   private static class TestingCallback extends ScanCallback {
     
     int found = 0;
@@ -536,6 +830,27 @@ public class JbBluetoothLeScannerCompatTest extends AndroidTestCase {
             TimeUnit.MILLISECONDS.toNanos(timeMillis)));
   }
 
+  // Scans a device whose record also has one field of the type, with the identifier.
+  private void onScan(String address, long timeMillis, int fieldType, int identifier) {
+    byte[] addressBytes = address.getBytes();
+    byte[] scanRecordBytes = new byte[addressBytes.length + 6];
+    scanRecordBytes[0] = (byte) (addressBytes.length + 1);
+    scanRecordBytes[1] = 0x09; // Value of private ScanRecord.DATA_TYPE_LOCAL_NAME_COMPLETE;
+    System.arraycopy(addressBytes, 0, scanRecordBytes, 2, addressBytes.length);
+    int field = addressBytes.length + 2;
+    scanRecordBytes[field] = 3;
+    scanRecordBytes[field + 1] = (byte) fieldType;
+    scanRecordBytes[field + 2] = (byte) identifier;
+    scanRecordBytes[field + 3] = (byte) (identifier >> 8);
+
+    scanner.onScanResult(address,
+        new ScanResult(
+            null /* BluetoothDevice */,
+            ScanRecord.parseFromBytes(scanRecordBytes),
+            0 /* rssi */,
+            TimeUnit.MILLISECONDS.toNanos(timeMillis)));
+  }
+
   private long nowMillis() {
     return clock.currentTimeMillis();
   }
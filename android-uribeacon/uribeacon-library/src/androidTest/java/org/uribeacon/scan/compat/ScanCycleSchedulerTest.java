@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+import org.uribeacon.scan.testing.FakeClock;
+import org.uribeacon.scan.util.Clock;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the {@link ScanCycleScheduler} class.
+ */
+public class ScanCycleSchedulerTest extends AndroidTestCase {
+
+  // Times the cycles in real time, for the tests that let the scheduler run them.
+  private static final Clock REAL_CLOCK = new Clock() {
+    @Override
+    public long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+
+    @Override
+    public long elapsedRealtimeNanos() {
+      return System.nanoTime();
+    }
+  };
+
+  private static final Runnable NO_CYCLE = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+
+  public void testRecordsCyclePeriodsAndOverruns() {
+    FakeClock clock = new FakeClock();
+    ScanCycleScheduler scheduler = new ScanCycleScheduler(clock, NO_CYCLE);
+    scheduler.setRequestedPeriodMillis(1000);
+
+    scheduler.recordCycleStart();
+    clock.advance(500);
+    scheduler.recordCycleEnd();
+    assertEquals(1, scheduler.getCycleCount());
+    assertEquals(0, scheduler.getAveragePeriodMillis());
+    assertEquals(0, scheduler.getOverrunCount());
+
+    clock.advance(700);
+    scheduler.recordCycleStart();
+    clock.advance(1100);
+    scheduler.recordCycleEnd();
+    assertEquals(1200, scheduler.getLastPeriodMillis());
+    assertEquals(1, scheduler.getOverrunCount());
+
+    scheduler.recordCycleStart();
+    assertEquals(3, scheduler.getCycleCount());
+    assertEquals(1100, scheduler.getLastPeriodMillis());
+    assertEquals(1150, scheduler.getAveragePeriodMillis());
+    assertEquals(1000, scheduler.getRequestedPeriodMillis());
+  }
+
+  public void testScheduleDoesNotDriftAndSkipsMissedCycles() throws InterruptedException {
+    FakeClock clock = new FakeClock();
+    final CountDownLatch release = new CountDownLatch(1);
+    // Holds up the first cycle, so the test owns the schedule.
+    ScanCycleScheduler scheduler = new ScanCycleScheduler(clock, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    scheduler.start(1000);
+    try {
+      synchronized (scheduler) {
+        // The time a cycle takes is not added to the period.
+        clock.advance(300);
+        assertEquals(700, scheduler.advanceSchedule());
+        // Cycles that were due while a cycle ran are skipped.
+        clock.advance(2000);
+        assertEquals(700, scheduler.advanceSchedule());
+        clock.advance(700);
+        assertEquals(1000, scheduler.advanceSchedule());
+      }
+      assertTrue(scheduler.isRunning());
+    } finally {
+      scheduler.stop();
+      release.countDown();
+    }
+    assertFalse(scheduler.isRunning());
+  }
+
+  public void testRestartsReuseOneThread() throws InterruptedException {
+    final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+    final AtomicInteger cycles = new AtomicInteger();
+    ScanCycleScheduler scheduler = new ScanCycleScheduler(REAL_CLOCK, new Runnable() {
+      @Override
+      public void run() {
+        threads.add(Thread.currentThread());
+        cycles.incrementAndGet();
+      }
+    });
+    try {
+      for (int i = 0; i < 50; i++) {
+        scheduler.start(1 + i % 5);
+        Thread.sleep(1);
+      }
+      long deadline = System.currentTimeMillis() + 10000;
+      while (cycles.get() < 60 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+    } finally {
+      scheduler.stop();
+    }
+    assertTrue(cycles.get() >= 60);
+    assertEquals(1, threads.size());
+    assertTrue(threads.iterator().next().isDaemon());
+  }
+
+  public void testStopEndsCycles() throws InterruptedException {
+    final CountDownLatch running = new CountDownLatch(3);
+    final AtomicInteger cycles = new AtomicInteger();
+    ScanCycleScheduler scheduler = new ScanCycleScheduler(REAL_CLOCK, new Runnable() {
+      @Override
+      public void run() {
+        cycles.incrementAndGet();
+        running.countDown();
+        throw new RuntimeException("Failing cycles don't stop the schedule");
+      }
+    });
+    scheduler.start(5);
+    assertTrue(running.await(10, TimeUnit.SECONDS));
+    scheduler.stop();
+    // Let a cycle that had already started finish.
+    Thread.sleep(20);
+    int stoppedAt = cycles.get();
+    Thread.sleep(50);
+    assertEquals(stoppedAt, cycles.get());
+  }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.compat.ScanFilterMatcher} class.
+ */
+public class ScanFilterMatcherTest extends AndroidTestCase {
+
+  private static final String[] ADDRESSES = {"00:11:22:33:44:55", "00:11:22:33:44:66"};
+  private static final String[] NAMES = {"Ped", "Bert"};
+  private static final int[] SHORT_UUIDS = {0xfed8, 0xfeaa, 0x110b};
+  private static final int[] MANUFACTURER_IDS = {0x00e0, 0x004c};
+  private static final ParcelUuid LONG_UUID =
+      ParcelUuid.fromString("ee0c2080-8786-40ba-ab96-99b91ac981d8");
+  private static final ParcelUuid SHORT_UUID_MASK =
+      ParcelUuid.fromString("0000FF00-0000-0000-0000-000000000000");
+
+  public void testUnfilteredClientMatchesEverything() {
+    ScanFilterMatcher<String> matcher = newMatcher(
+        new String[] {"all", "none"},
+        null,
+        filters(new ScanFilter.Builder().setDeviceName("Nobody").build()));
+    boolean[] matched = new boolean[2];
+
+    assertEquals(1, matcher.match(newResult(ADDRESSES[0], new byte[] {0x00}), matched));
+    assertTrue(matched[0]);
+    assertFalse(matched[1]);
+  }
+
+  public void testIndexedFilters() {
+    ScanFilterMatcher<String> matcher = newMatcher(
+        new String[] {"address", "serviceData", "manufacturer", "name"},
+        filters(new ScanFilter.Builder().setDeviceAddress(ADDRESSES[1]).build()),
+        filters(new ScanFilter.Builder().setServiceData(
+            shortUuid(0xfed8), new byte[] {0x01}).build()),
+        filters(new ScanFilter.Builder().setManufacturerData(
+            0x004c, new byte[] {0x02, 0x15}).build()),
+        filters(new ScanFilter.Builder().setDeviceName("Ped").build()));
+    boolean[] matched = new boolean[4];
+
+    byte[] record = new byte[] {
+        0x04, 0x16, (byte) 0xd8, (byte) 0xfe, 0x01, // service data
+        0x05, (byte) 0xff, 0x4c, 0x00, 0x02, 0x15, // manufacturer specific data
+    };
+    assertEquals(2, matcher.match(newResult(ADDRESSES[0], record), matched));
+    assertFalse(matched[0]);
+    assertTrue(matched[1]);
+    assertTrue(matched[2]);
+    assertFalse(matched[3]);
+
+    assertEquals(1, matcher.match(newResult(ADDRESSES[1], new byte[] {0x00}), matched));
+    assertTrue(matched[0]);
+    assertFalse(matched[1]);
+    assertFalse(matched[2]);
+  }
+
+  public void testClientMatchesWhenAnyFilterMatches() {
+    ScanFilterMatcher<String> matcher = newMatcher(
+        new String[] {"client"},
+        filters(
+            new ScanFilter.Builder().setDeviceName("Nobody").build(),
+            new ScanFilter.Builder().setManufacturerData(0x00e0, new byte[0]).build()));
+    boolean[] matched = new boolean[1];
+
+    byte[] record = new byte[] {0x03, (byte) 0xff, (byte) 0xe0, 0x00};
+    assertEquals(1, matcher.match(newResult(ADDRESSES[0], record), matched));
+    assertTrue(matched[0]);
+  }
+
+  public void testLastDuplicateServiceDataWins() {
+    ScanFilterMatcher<String> matcher = newMatcher(
+        new String[] {"first", "last"},
+        filters(new ScanFilter.Builder().setServiceData(
+            shortUuid(0xfed8), new byte[] {0x01}).build()),
+        filters(new ScanFilter.Builder().setServiceData(
+            shortUuid(0xfed8), new byte[] {0x02}).build()));
+    boolean[] matched = new boolean[2];
+
+    byte[] record = new byte[] {
+        0x04, 0x16, (byte) 0xd8, (byte) 0xfe, 0x01,
+        0x04, 0x16, (byte) 0xd8, (byte) 0xfe, 0x02,
+    };
+    assertEquals(1, matcher.match(newResult(ADDRESSES[0], record), matched));
+    assertFalse(matched[0]);
+    assertTrue(matched[1]);
+  }
+
+  /**
+   * Compares the matcher, over random filters and records, against matching every filter of every
+   * client with a reference implementation of the original {@link ScanFilter#matches} that reads
+   * the materialized scan record fields.
+   */
+  public void testEquivalentToMatchingEachFilter() {
+    Random random = new Random(42);
+    for (int round = 0; round < 200; round++) {
+      int clientCount = 1 + random.nextInt(8);
+      List<Integer> clients = new ArrayList<Integer>();
+      List<List<ScanFilter>> clientFilters = new ArrayList<List<ScanFilter>>();
+      for (int client = 0; client < clientCount; client++) {
+        clients.add(client);
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        int filterCount = random.nextInt(4);
+        for (int i = 0; i < filterCount; i++) {
+          filters.add(randomFilter(random));
+        }
+        clientFilters.add(filters);
+      }
+      ScanFilterMatcher<Integer> matcher = new ScanFilterMatcher<Integer>(clients, clientFilters);
+      boolean[] matched = new boolean[clientCount];
+
+      for (int sighting = 0; sighting < 50; sighting++) {
+        ScanResult result = newResult(ADDRESSES[random.nextInt(ADDRESSES.length)],
+            randomRecord(random));
+        int count = matcher.match(result, matched);
+        int expectedCount = 0;
+        for (int client = 0; client < clientCount; client++) {
+          boolean expected = referenceMatchesAny(clientFilters.get(client), result);
+          assertEquals("client " + client + " filters " + clientFilters.get(client) + " record "
+              + Arrays.toString(result.getScanRecord().getBytes()), expected, matched[client]);
+          if (expected) {
+            expectedCount++;
+          }
+        }
+        assertEquals(expectedCount, count);
+      }
+    }
+  }
+
+  private static ScanFilterMatcher<String> newMatcher(String[] names,
+      List<ScanFilter>... filters) {
+    List<List<ScanFilter>> clientFilters = new ArrayList<List<ScanFilter>>(Arrays.asList(filters));
+    return new ScanFilterMatcher<String>(Arrays.asList(names), clientFilters);
+  }
+
+  private static List<ScanFilter> filters(ScanFilter... filters) {
+    return new ArrayList<ScanFilter>(Arrays.asList(filters));
+  }
+
+  private static ScanResult newResult(String address, byte[] scanRecord) {
+    BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+    return new ScanResult(device, ScanRecord.parseFromBytes(scanRecord), -50, 0);
+  }
+
+  private static ParcelUuid shortUuid(int uuid16) {
+    UUID base = BluetoothUuid.BASE_UUID.getUuid();
+    return new ParcelUuid(new UUID(base.getMostSignificantBits() + ((long) uuid16 << 32),
+        base.getLeastSignificantBits()));
+  }
+
+  private static ScanFilter randomFilter(Random random) {
+    ScanFilter.Builder builder = new ScanFilter.Builder();
+    if (random.nextInt(6) == 0) {
+      builder.setDeviceAddress(ADDRESSES[random.nextInt(ADDRESSES.length)]);
+    }
+    if (random.nextInt(6) == 0) {
+      builder.setDeviceName(NAMES[random.nextInt(NAMES.length)]);
+    }
+    if (random.nextInt(5) == 0) {
+      ParcelUuid uuid = random.nextInt(4) == 0
+          ? LONG_UUID : shortUuid(SHORT_UUIDS[random.nextInt(SHORT_UUIDS.length)]);
+      if (random.nextBoolean()) {
+        builder.setServiceUuid(uuid, SHORT_UUID_MASK);
+      } else {
+        builder.setServiceUuid(uuid);
+      }
+    }
+    if (random.nextInt(2) == 0) {
+      ParcelUuid uuid = random.nextInt(6) == 0
+          ? LONG_UUID : shortUuid(SHORT_UUIDS[random.nextInt(SHORT_UUIDS.length)]);
+      byte[] data = randomBytes(random, random.nextInt(3));
+      if (random.nextBoolean()) {
+        builder.setServiceData(uuid, data, randomBytes(random, data.length));
+      } else {
+        builder.setServiceData(uuid, data);
+      }
+    } else if (random.nextInt(2) == 0) {
+      int manufacturerId = MANUFACTURER_IDS[random.nextInt(MANUFACTURER_IDS.length)];
+      byte[] data = randomBytes(random, random.nextInt(3));
+      if (random.nextBoolean()) {
+        builder.setManufacturerData(manufacturerId, data, randomBytes(random, data.length));
+      } else {
+        builder.setManufacturerData(manufacturerId, data);
+      }
+    }
+    return builder.build();
+  }
+
+  // Random values are drawn from a small alphabet so that filters and records often agree.
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) random.nextInt(3);
+    }
+    return bytes;
+  }
+
+  private static byte[] randomRecord(Random random) {
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    int fieldCount = random.nextInt(5);
+    for (int i = 0; i < fieldCount; i++) {
+      switch (random.nextInt(5)) {
+        case 0:
+          writeField(record, 0x09, NAMES[random.nextInt(NAMES.length)].getBytes());
+          break;
+        case 1:
+          int uuid16 = SHORT_UUIDS[random.nextInt(SHORT_UUIDS.length)];
+          writeField(record, 0x03, new byte[] {(byte) uuid16, (byte) (uuid16 >> 8)});
+          break;
+        case 2:
+          ByteArrayOutputStream uuid128 = new ByteArrayOutputStream();
+          UUID uuid = LONG_UUID.getUuid();
+          writeLittleEndian(uuid128, uuid.getLeastSignificantBits());
+          writeLittleEndian(uuid128, uuid.getMostSignificantBits());
+          writeField(record, 0x07, uuid128.toByteArray());
+          break;
+        case 3:
+          int serviceUuid = SHORT_UUIDS[random.nextInt(SHORT_UUIDS.length)];
+          writeIdentifiedField(record, 0x16, serviceUuid, randomBytes(random, random.nextInt(4)));
+          break;
+        default:
+          int manufacturerId = MANUFACTURER_IDS[random.nextInt(MANUFACTURER_IDS.length)];
+          writeIdentifiedField(record, 0xff, manufacturerId,
+              randomBytes(random, random.nextInt(4)));
+          break;
+      }
+    }
+    // Truncate some records so that they fail to parse.
+    byte[] bytes = record.toByteArray();
+    if (bytes.length > 2 && random.nextInt(10) == 0) {
+      bytes = Arrays.copyOf(bytes, bytes.length - 1);
+    }
+    return bytes;
+  }
+
+  private static void writeField(ByteArrayOutputStream record, int type, byte[] data) {
+    record.write(data.length + 1);
+    record.write(type);
+    record.write(data, 0, data.length);
+  }
+
+  private static void writeIdentifiedField(ByteArrayOutputStream record, int type, int identifier,
+      byte[] data) {
+    byte[] field = new byte[data.length + 2];
+    field[0] = (byte) identifier;
+    field[1] = (byte) (identifier >> 8);
+    System.arraycopy(data, 0, field, 2, data.length);
+    writeField(record, type, field);
+  }
+
+  private static void writeLittleEndian(ByteArrayOutputStream out, long value) {
+    for (int i = 0; i < 8; i++) {
+      out.write((int) (value >> (8 * i)));
+    }
+  }
+
+  private static boolean referenceMatchesAny(List<ScanFilter> filters, ScanResult result) {
+    if (filters == null || filters.isEmpty()) {
+      return true;
+    }
+    for (ScanFilter filter : filters) {
+      if (referenceMatches(filter, result)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean referenceMatches(ScanFilter filter, ScanResult result) {
+    BluetoothDevice device = result.getDevice();
+    if (filter.getDeviceAddress() != null
+        && (device == null || !filter.getDeviceAddress().equals(device.getAddress()))) {
+      return false;
+    }
+    ScanRecord scanRecord = result.getScanRecord();
+    if (filter.getDeviceName() != null
+        && !filter.getDeviceName().equals(scanRecord.getDeviceName())) {
+      return false;
+    }
+    if (filter.getServiceUuid() != null
+        && !referenceMatchesServiceUuids(filter.getServiceUuid(), filter.getServiceUuidMask(),
+            scanRecord.getServiceUuids())) {
+      return false;
+    }
+    if (filter.getServiceDataUuid() != null
+        && !ScanFilter.matchesPartialData(filter.getServiceData(), filter.getServiceDataMask(),
+            scanRecord.getServiceData(filter.getServiceDataUuid()))) {
+      return false;
+    }
+    if (filter.getManufacturerId() >= 0
+        && !ScanFilter.matchesPartialData(filter.getManufacturerData(),
+            filter.getManufacturerDataMask(),
+            scanRecord.getManufacturerSpecificData(filter.getManufacturerId()))) {
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean referenceMatchesServiceUuids(ParcelUuid uuid, ParcelUuid parcelUuidMask,
+      List<ParcelUuid> uuids) {
+    if (uuids == null) {
+      return false;
+    }
+    for (ParcelUuid parcelUuid : uuids) {
+      UUID data = parcelUuid.getUuid();
+      if (parcelUuidMask == null) {
+        if (uuid.getUuid().equals(data)) {
+          return true;
+        }
+        continue;
+      }
+      UUID mask = parcelUuidMask.getUuid();
+      if ((uuid.getUuid().getLeastSignificantBits() & mask.getLeastSignificantBits())
+          == (data.getLeastSignificantBits() & mask.getLeastSignificantBits())
+          && (uuid.getUuid().getMostSignificantBits() & mask.getMostSignificantBits())
+          == (data.getMostSignificantBits() & mask.getMostSignificantBits())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -155,6 +155,17 @@ public class ScanFilterTest extends AndroidTestCase {
         assertMatches(filter, null, 0, scanRecord);
     }
 
+    public void testEqualFiltersHashEqually() {
+        ScanFilter filter = new ScanFilter.Builder()
+            .setManufacturerData(0x00e0, new byte[] { (byte) 0x15 }, new byte[] { (byte) 0xff })
+            .build();
+        ScanFilter same = new ScanFilter.Builder()
+            .setManufacturerData(0x00e0, new byte[] { (byte) 0x15 }, new byte[] { (byte) 0xff })
+            .build();
+        assertEquals(filter, same);
+        assertEquals(filter.hashCode(), same.hashCode());
+    }
+
     public void testManufacturerDataNoMatch() {
         byte[] scanRecord = TestData.manu_data_1;
         // Verify manufacturer with no data
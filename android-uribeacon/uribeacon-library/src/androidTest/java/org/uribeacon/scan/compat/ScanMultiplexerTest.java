@@ -0,0 +1,353 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+
+import org.uribeacon.scan.testing.FakeClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the {@link ScanMultiplexer} class.
+ */
+public class ScanMultiplexerTest extends AndroidTestCase {
+
+  private static final List<ScanFilter> BERT_FILTER =
+      Arrays.asList(new ScanFilter.Builder().setDeviceName("Bert").build());
+  private static final List<ScanFilter> ERNIE_FILTER =
+      Arrays.asList(new ScanFilter.Builder().setDeviceName("Ernie").build());
+  private static final List<ScanFilter> NO_FILTER = Collections.emptyList();
+
+  private static final ScanSettings SLOW =
+      new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_POWER).build();
+  private static final ScanSettings FAST =
+      new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
+
+  private static final ScanSettings FOUND = new ScanSettings.Builder()
+      .setCallbackType(ScanSettings.CALLBACK_TYPE_FIRST_MATCH).build();
+  private static final ScanSettings FOUND_AND_LOST = new ScanSettings.Builder()
+      .setCallbackType(ScanSettings.CALLBACK_TYPE_FIRST_MATCH
+          | ScanSettings.CALLBACK_TYPE_MATCH_LOST).build();
+  private static final ScanSettings FOUND_AND_ALL = withCallbackType(
+      ScanSettings.CALLBACK_TYPE_FIRST_MATCH | ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+
+  private final FakeClock clock = new FakeClock();
+  private final ScanMultiplexer multiplexer = new ScanMultiplexer(clock);
+
+  public void testCanMultiplex() {
+    assertTrue(ScanMultiplexer.canMultiplex(SLOW));
+    assertTrue(ScanMultiplexer.canMultiplex(FOUND_AND_LOST));
+    assertFalse(ScanMultiplexer.canMultiplex(new ScanSettings.Builder()
+        .setReportDelayMillis(1000).build()));
+  }
+
+  public void testFiltersAreMergedWithoutDuplicates() {
+    assertTrue(multiplexer.addClient(BERT_FILTER, SLOW, new TestingCallback()));
+    assertTrue(multiplexer.addClient(ERNIE_FILTER, SLOW, new TestingCallback()));
+    // The same filter again doesn't change the scan.
+    assertFalse(multiplexer.addClient(
+        Arrays.asList(new ScanFilter.Builder().setDeviceName("Bert").build()), SLOW,
+        new TestingCallback()));
+    assertEquals(Arrays.asList(BERT_FILTER.get(0), ERNIE_FILTER.get(0)), multiplexer.getFilters());
+    assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, multiplexer.getSettings().getScanMode());
+  }
+
+  public void testUnfilteredClientUnfiltersScan() {
+    multiplexer.addClient(BERT_FILTER, SLOW, new TestingCallback());
+    TestingCallback everything = new TestingCallback();
+    assertTrue(multiplexer.addClient(NO_FILTER, SLOW, everything));
+    assertTrue(multiplexer.getFilters().isEmpty());
+    assertTrue(multiplexer.removeClient(everything));
+    assertEquals(BERT_FILTER, multiplexer.getFilters());
+  }
+
+  public void testTooManyFiltersUnfiltersScan() {
+    List<ScanFilter> filters = new ArrayList<ScanFilter>();
+    for (int i = 0; i <= ScanMultiplexer.MAX_SCAN_FILTERS; i++) {
+      filters.add(new ScanFilter.Builder().setDeviceName("device " + i).build());
+    }
+    TestingCallback callback = new TestingCallback();
+    multiplexer.addClient(filters, SLOW, callback);
+    assertTrue(multiplexer.getFilters().isEmpty());
+
+    // Results are still filtered for the client.
+    onScan("device 0");
+    onScan("some other device");
+    assertEquals(1, callback.sightings());
+  }
+
+  public void testScanRunsAtFastestMode() {
+    TestingCallback fast = new TestingCallback();
+    multiplexer.addClient(NO_FILTER, SLOW, new TestingCallback());
+    assertTrue(multiplexer.addClient(NO_FILTER, FAST, fast));
+    assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, multiplexer.getSettings().getScanMode());
+    assertTrue(multiplexer.removeClient(fast));
+    assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, multiplexer.getSettings().getScanMode());
+  }
+
+  public void testRemovingLastClientStopsScan() {
+    TestingCallback callback = new TestingCallback();
+    multiplexer.addClient(BERT_FILTER, SLOW, callback);
+    assertFalse(multiplexer.removeClient(new TestingCallback()));
+    assertTrue(multiplexer.removeClient(callback));
+    assertTrue(multiplexer.isEmpty());
+    assertNull(multiplexer.getSettings());
+  }
+
+  public void testResultsAreDemultiplexed() {
+    TestingCallback bert = new TestingCallback();
+    TestingCallback ernie = new TestingCallback();
+    TestingCallback everything = new TestingCallback();
+    multiplexer.addClient(BERT_FILTER, SLOW, bert);
+    multiplexer.addClient(ERNIE_FILTER, SLOW, ernie);
+    multiplexer.addClient(NO_FILTER, SLOW, everything);
+
+    onScan("Bert");
+    onScan("Bert");
+    onScan("Ernie");
+    assertEquals(2, bert.sightings());
+    assertEquals(1, ernie.sightings());
+    assertEquals(3, everything.sightings());
+
+    multiplexer.onScanFailed(ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+    assertEquals(1, bert.failures);
+    assertEquals(1, everything.failures);
+  }
+
+  public void testFailingClientDoesNotStopOthers() {
+    TestingCallback callback = new TestingCallback();
+    multiplexer.addClient(NO_FILTER, SLOW, new TestingCallback() {
+      @Override
+      public void onScanResult(int callbackType, ScanResult result) {
+        throw new RuntimeException("Boom");
+      }
+    });
+    multiplexer.addClient(NO_FILTER, SLOW, callback);
+    onScan("Bert");
+    assertEquals(1, callback.sightings());
+  }
+
+  public void testFoundOnlyOncePerDevice() {
+    TestingCallback callback = new TestingCallback();
+    assertTrue(multiplexer.addClient(BERT_FILTER, FOUND, callback));
+    // The platform is asked for every result, whatever the clients want.
+    assertEquals(ScanSettings.CALLBACK_TYPE_ALL_MATCHES,
+        multiplexer.getSettings().getCallbackType());
+
+    onScan("Bert");
+    onScan("Bert");
+    onScan("Ernie");
+    assertEquals(1, callback.found);
+    assertEquals(0, callback.results);
+  }
+
+  public void testLostAfterTimeout() {
+    TestingCallback callback = new TestingCallback();
+    multiplexer.addClient(NO_FILTER, FOUND_AND_LOST, callback);
+    onScan("Bert");
+
+    clock.advance(ScanMultiplexer.DEFAULT_LOST_TIMEOUT_MILLIS - 1);
+    onScan("Ernie");
+    multiplexer.checkLost();
+    assertEquals(0, callback.lost);
+
+    // A sighting before the timeout runs out postpones it.
+    onScan("Bert");
+    clock.advance(2);
+    multiplexer.checkLost();
+    assertEquals(0, callback.lost);
+
+    clock.advance(ScanMultiplexer.DEFAULT_LOST_TIMEOUT_MILLIS);
+    multiplexer.checkLost();
+    assertEquals(2, callback.lost);
+    assertEquals(0, multiplexer.recentScanResults.size());
+
+    // Once lost, a device is found again.
+    onScan("Bert");
+    assertEquals(3, callback.found);
+  }
+
+  public void testNewClientsGetRecentSightings() {
+    onScan("Bert");
+    onScan("Ernie");
+    clock.advance(10);
+
+    TestingCallback bert = new TestingCallback();
+    multiplexer.addClient(BERT_FILTER, FOUND, bert);
+    assertEquals(1, bert.found);
+    onScan("Bert");
+    assertEquals(1, bert.found);
+
+    // Sightings older than the lost timeout are not replayed.
+    clock.advance(ScanMultiplexer.DEFAULT_LOST_TIMEOUT_MILLIS);
+    TestingCallback ernie = new TestingCallback();
+    multiplexer.addClient(ERNIE_FILTER, FOUND, ernie);
+    assertEquals(0, ernie.found);
+  }
+
+  public void testLostTimeoutOverrides() {
+    TestingCallback quick = new TestingCallback();
+    TestingCallback patient = new TestingCallback();
+    multiplexer.addClient(NO_FILTER, FOUND_AND_LOST, quick);
+    multiplexer.addClient(NO_FILTER, FOUND_AND_LOST, patient);
+    multiplexer.setLostTimeoutMillis(1000);
+    assertTrue(multiplexer.setLostOverride(patient, 5000));
+    assertFalse(multiplexer.setLostOverride(new TestingCallback(), 5000));
+    onScan("Bert");
+
+    clock.advance(1001);
+    multiplexer.checkLost();
+    assertEquals(1, quick.lost);
+    assertEquals(0, patient.lost);
+
+    clock.advance(4000);
+    multiplexer.checkLost();
+    assertEquals(1, patient.lost);
+    assertEquals(0, multiplexer.recentScanResults.size());
+  }
+
+  public void testAllMatchesAreFoundFirstAndLost() {
+    TestingCallback callback = new TestingCallback();
+    multiplexer.addClient(BERT_FILTER, SLOW, callback);
+    onScan("Bert");
+    assertEquals(1, callback.found);
+    assertEquals(0, callback.results);
+    onScan("Bert");
+    onScan("Bert");
+    assertEquals(1, callback.found);
+    assertEquals(2, callback.results);
+
+    clock.advance(ScanMultiplexer.DEFAULT_LOST_TIMEOUT_MILLIS + 1);
+    multiplexer.checkLost();
+    assertEquals(1, callback.lost);
+    onScan("Bert");
+    assertEquals(2, callback.found);
+  }
+
+  public void testFoundAndAllMatches() {
+    TestingCallback callback = new TestingCallback();
+    multiplexer.addClient(NO_FILTER, FOUND_AND_ALL, callback);
+    onScan("Bert");
+    onScan("Bert");
+    onScan("Ernie");
+    onScan("Bert");
+    assertEquals(2, callback.found);
+    assertEquals(2, callback.results);
+
+    // Clients that want every result are told about lost devices too.
+    clock.advance(ScanMultiplexer.DEFAULT_LOST_TIMEOUT_MILLIS + 1);
+    multiplexer.checkLost();
+    assertEquals(2, callback.lost);
+  }
+
+  public void testNewAllMatchesClientsGetRecentSightings() {
+    onScan("Bert");
+    TestingCallback callback = new TestingCallback();
+    multiplexer.addClient(BERT_FILTER, SLOW, callback);
+    assertEquals(1, callback.found);
+    onScan("Bert");
+    assertEquals(1, callback.found);
+    assertEquals(1, callback.results);
+  }
+
+  public void testPayloadChangesOnly() {
+    TestingCallback changes = new TestingCallback();
+    multiplexer.addClient(NO_FILTER,
+        new ScanSettings.Builder().setPayloadChangesOnly(true).build(), changes);
+    onScan("Bert");
+    onScan("Bert");
+    onScan("Ernie");
+    onScan("Ernie");
+    onScan("Bert");
+    assertEquals(2, changes.found);
+    assertEquals(0, changes.results);
+
+    // The same device with a new advertisement.
+    multiplexer.onScanResult("Bert", result("Bert 2"));
+    assertEquals(1, changes.results);
+  }
+
+  private void onScan(String name) {
+    multiplexer.onScanResult(name, result(name));
+  }
+
+  private ScanResult result(String name) {
+    byte[] nameBytes = name.getBytes();
+    byte[] scanRecordBytes = new byte[nameBytes.length + 2];
+    scanRecordBytes[0] = (byte) (nameBytes.length + 1);
+    scanRecordBytes[1] = 0x09; // Value of private ScanRecord.DATA_TYPE_LOCAL_NAME_COMPLETE;
+    System.arraycopy(nameBytes, 0, scanRecordBytes, 2, nameBytes.length);
+    return new ScanResult(null, ScanRecord.parseFromBytes(scanRecordBytes), 0,
+        TimeUnit.MILLISECONDS.toNanos(clock.currentTimeMillis()));
+  }
+
+  // The builder refuses the combinations the platform does, but they can still come in a parcel.
+  private static ScanSettings withCallbackType(int callbackType) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeInt(ScanSettings.SCAN_MODE_LOW_POWER);
+      parcel.writeInt(callbackType);
+      parcel.writeInt(ScanSettings.SCAN_RESULT_TYPE_FULL);
+      parcel.writeLong(0);
+      parcel.writeInt(0);
+      parcel.setDataPosition(0);
+      return ScanSettings.CREATOR.createFromParcel(parcel);
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private static class TestingCallback extends ScanCallback {
+    int results;
+    int found;
+    int lost;
+    int failures;
+
+    // The results delivered, whether as found events or as matches.
+    int sightings() {
+      return found + results;
+    }
+
+    @Override
+    public void onScanResult(int callbackType, ScanResult result) {
+      switch (callbackType) {
+        case ScanSettings.CALLBACK_TYPE_ALL_MATCHES:
+          results++;
+          break;
+        case ScanSettings.CALLBACK_TYPE_FIRST_MATCH:
+          found++;
+          break;
+        case ScanSettings.CALLBACK_TYPE_MATCH_LOST:
+          lost++;
+          break;
+        default:
+          fail("Unexpected callback type " + callbackType);
+      }
+    }
+
+    @Override
+    public void onScanFailed(int errorCode) {
+      failures++;
+    }
+  }
+}
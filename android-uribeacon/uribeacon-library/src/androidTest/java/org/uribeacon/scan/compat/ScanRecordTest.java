@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.compat.ScanRecord} class.
+ */
+public class ScanRecordTest extends AndroidTestCase {
+
+    private static final byte[] SCAN_RECORD = new byte[] {
+        0x02, 0x01, 0x1a, // advertising flags
+        0x05, 0x02, 0x0b, 0x11, 0x0a, 0x11, // 16 bit service uuids
+        0x04, 0x09, 0x50, 0x65, 0x64, // setName
+        0x02, 0x0A, (byte) 0xec, // tx power level
+        0x05, 0x16, 0x0b, 0x11, 0x50, 0x64, // service data
+        0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x02, 0x15, // manufacturer specific data
+        0x03, 0x50, 0x01, 0x02, // an unknown data type won't cause trouble
+    };
+
+    public void testParseFromBytes() {
+        ScanRecord record = ScanRecord.parseFromBytes(SCAN_RECORD);
+        assertSame(SCAN_RECORD, record.getBytes());
+        assertEquals(0x1a, record.getAdvertiseFlags());
+        assertEquals(-20, record.getTxPowerLevel());
+        assertEquals("Ped", record.getDeviceName());
+
+        List<ParcelUuid> uuids = record.getServiceUuids();
+        assertEquals(2, uuids.size());
+        assertEquals(ParcelUuid.fromString("0000110B-0000-1000-8000-00805F9B34FB"), uuids.get(0));
+        assertEquals(ParcelUuid.fromString("0000110A-0000-1000-8000-00805F9B34FB"), uuids.get(1));
+
+        ParcelUuid serviceDataUuid = ParcelUuid.fromString("0000110B-0000-1000-8000-00805F9B34FB");
+        assertEquals(1, record.getServiceData().size());
+        MoreAsserts.assertEquals(new byte[] {0x50, 0x64}, record.getServiceData(serviceDataUuid));
+
+        assertEquals(1, record.getManufacturerSpecificData().size());
+        MoreAsserts.assertEquals(new byte[] {0x02, 0x15},
+                record.getManufacturerSpecificData(0x00e0));
+    }
+
+    public void testLazyFieldsAreMaterializedOnce() {
+        ScanRecord record = ScanRecord.parseFromBytes(SCAN_RECORD);
+        assertSame(record.getServiceUuids(), record.getServiceUuids());
+        assertSame(record.getServiceData(), record.getServiceData());
+        assertSame(record.getManufacturerSpecificData(), record.getManufacturerSpecificData());
+        assertSame(record.getDeviceName(), record.getDeviceName());
+    }
+
+    public void testLazyFieldsDoNotAliasRawBytes() {
+        byte[] bytes = Arrays.copyOf(SCAN_RECORD, SCAN_RECORD.length);
+        ScanRecord record = ScanRecord.parseFromBytes(bytes);
+        byte[] manufacturerData = record.getManufacturerSpecificData(0x00e0);
+        manufacturerData[0] = 0x7f;
+        assertEquals(0x02, bytes[27]);
+    }
+
+    public void testEmptyRecord() {
+        ScanRecord record = ScanRecord.parseFromBytes(new byte[] {0x00});
+        assertEquals(-1, record.getAdvertiseFlags());
+        assertEquals(Integer.MIN_VALUE, record.getTxPowerLevel());
+        assertNull(record.getServiceUuids());
+        assertNull(record.getDeviceName());
+        MoreAsserts.assertEmpty(record.getServiceData());
+        assertEquals(0, record.getManufacturerSpecificData().size());
+    }
+
+    public void testLastDuplicateFieldWins() {
+        ScanRecord record = ScanRecord.parseFromBytes(new byte[] {
+            0x02, 0x09, 0x41, // name "A"
+            0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x01, 0x02,
+            0x02, 0x09, 0x42, // name "B"
+            0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x03, 0x04,
+        });
+        assertEquals("B", record.getDeviceName());
+        MoreAsserts.assertEquals(new byte[] {0x03, 0x04},
+                record.getManufacturerSpecificData(0x00e0));
+    }
+
+    public void testTruncatedRecordIsInvalid() {
+        // The service data claims five bytes but only three follow.
+        byte[] bytes = new byte[] {
+            0x02, 0x01, 0x1a,
+            0x06, 0x16, 0x0b, 0x11, 0x50,
+        };
+        ScanRecord record = ScanRecord.parseFromBytes(bytes);
+        assertSame(bytes, record.getBytes());
+        assertEquals(-1, record.getAdvertiseFlags());
+        assertEquals(Integer.MIN_VALUE, record.getTxPowerLevel());
+        assertNull(record.getServiceUuids());
+        assertNull(record.getServiceData());
+        assertNull(record.getManufacturerSpecificData());
+        assertNull(record.getManufacturerSpecificData(0x00e0));
+        assertNull(record.getDeviceName());
+    }
+
+    public void testShortManufacturerDataIsInvalid() {
+        ScanRecord record = ScanRecord.parseFromBytes(new byte[] {
+            0x02, (byte) 0xff, (byte) 0xe0, 0x00,
+        });
+        assertNull(record.getManufacturerSpecificData());
+    }
+
+    public void testNullBytes() {
+        assertNull(ScanRecord.parseFromBytes(null));
+    }
+}
@@ -26,6 +26,12 @@ import org.uribeacon.scan.compat.ScanSettings;
  */
 public class ScanSettingsTest extends AndroidTestCase {
 
+  public void testPayloadChangesOnly() {
+    assertFalse(new ScanSettings.Builder().build().getPayloadChangesOnly());
+    assertTrue(new ScanSettings.Builder().setPayloadChangesOnly(true).build()
+        .getPayloadChangesOnly());
+  }
+
   public void testCallbackType() {
     ScanSettings.Builder builder = new ScanSettings.Builder();
     builder.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the {@link SerialExecutor} class.
+ */
+public class SerialExecutorTest extends AndroidTestCase {
+
+  private static final int TASK_COUNT = 1000;
+
+  public void testRunsTasksInSubmissionOrder() throws InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      SerialExecutor executor = new SerialExecutor(pool);
+      final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+      final CountDownLatch done = new CountDownLatch(TASK_COUNT);
+      for (int i = 0; i < TASK_COUNT; i++) {
+        final int task = i;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            order.add(task);
+            done.countDown();
+          }
+        });
+      }
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      for (int i = 0; i < TASK_COUNT; i++) {
+        assertEquals(i, (int) order.get(i));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public void testFailingTaskDoesNotStallLaterTasks() throws InterruptedException {
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    try {
+      SerialExecutor executor = new SerialExecutor(pool);
+      final CountDownLatch done = new CountDownLatch(1);
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          throw new IllegalStateException();
+        }
+      });
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          done.countDown();
+        }
+      });
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.util.KalmanSmoother} class.
+ */
+public class KalmanSmootherTest extends AndroidTestCase {
+
+  private static final long SECOND_NANOS = 1000000000L;
+  private static final double NOISE_DBM = 4.0;
+
+  private final KalmanSmoother kalman = new KalmanSmoother();
+  private final ExponentialSmoother exponential = new ExponentialSmoother(0.5);
+  // Two devices each, at offset 0 and after the state of the first.
+  private final double[] kalmanState = new double[2 * kalman.getStateSize()];
+  private final double[] exponentialState = new double[2 * exponential.getStateSize()];
+
+  public void testStationaryBeaconJittersLess() {
+    Random random = new Random(1);
+    kalman.reset(kalmanState, 0, -70, SECOND_NANOS);
+    exponential.reset(exponentialState, 0, -70, SECOND_NANOS);
+    double kalmanError = 0;
+    double exponentialError = 0;
+    for (int i = 2; i < 500; i++) {
+      double rssi = -70 + random.nextGaussian() * NOISE_DBM;
+      double kalmanRssi = kalman.update(kalmanState, 0, rssi, i * SECOND_NANOS);
+      double exponentialRssi = exponential.update(exponentialState, 0, rssi, i * SECOND_NANOS);
+      if (i > 50) {
+        kalmanError += (kalmanRssi + 70) * (kalmanRssi + 70);
+        exponentialError += (exponentialRssi + 70) * (exponentialRssi + 70);
+      }
+    }
+    assertTrue(kalmanError < exponentialError);
+  }
+
+  public void testMovingBeaconConvergesFaster() {
+    Random random = new Random(2);
+    kalman.reset(kalmanState, 0, -70, SECOND_NANOS);
+    exponential.reset(exponentialState, 0, -70, SECOND_NANOS);
+    long timestampNanos = SECOND_NANOS;
+    for (int i = 0; i < 50; i++) {
+      timestampNanos += SECOND_NANOS;
+      double rssi = -70 + random.nextGaussian() * NOISE_DBM;
+      kalman.update(kalmanState, 0, rssi, timestampNanos);
+      exponential.update(exponentialState, 0, rssi, timestampNanos);
+    }
+
+    // The beacon is picked up and brought 20dBm closer.
+    timestampNanos += SECOND_NANOS;
+    double kalmanRssi = kalman.update(kalmanState, 0, -50, timestampNanos);
+    double exponentialRssi = exponential.update(exponentialState, 0, -50, timestampNanos);
+    assertEquals(-50, kalmanRssi, 2.0);
+    assertTrue(exponentialRssi < -55);
+  }
+
+  public void testGainGrowsWithTimeSinceLastSample() {
+    int offset = kalman.getStateSize();
+    kalman.reset(kalmanState, 0, -70, SECOND_NANOS);
+    kalman.reset(kalmanState, offset, -70, SECOND_NANOS);
+    Random random = new Random(3);
+    for (int i = 2; i < 50; i++) {
+      double rssi = -70 + random.nextGaussian() * NOISE_DBM;
+      kalman.update(kalmanState, 0, rssi, i * SECOND_NANOS);
+      kalman.update(kalmanState, offset, rssi, i * SECOND_NANOS);
+    }
+    long lastNanos = 49 * SECOND_NANOS;
+    double before = kalman.getValue(kalmanState, 0);
+
+    // The same sample moves the estimate further when it comes after a longer silence.
+    double soon = kalman.update(kalmanState, 0, before + 5, lastNanos + SECOND_NANOS / 10);
+    double later = kalman.update(kalmanState, offset, before + 5, lastNanos + 30 * SECOND_NANOS);
+    assertTrue(before < soon);
+    assertTrue(soon < later);
+    assertTrue(later < before + 5);
+  }
+
+  public void testUnknownTimestamps() {
+    kalman.reset(kalmanState, 0, -70, 0);
+    for (int i = 0; i < 100; i++) {
+      kalman.update(kalmanState, 0, -60, 0);
+    }
+    assertEquals(-60, kalman.getValue(kalmanState, 0), 0.1);
+  }
+
+  public void testInvalidParameters() {
+    try {
+      new KalmanSmoother(-1, KalmanSmoother.DEFAULT_MEASUREMENT_VARIANCE);
+      fail("should have thrown IllegalArgumentException!");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+    try {
+      new KalmanSmoother(KalmanSmoother.DEFAULT_PROCESS_NOISE, 0);
+      fail("should have thrown IllegalArgumentException!");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.util.RangingModel} class.
+ */
+public class RangingModelTest extends AndroidTestCase {
+
+  // relative error to be used in comparing doubles
+  private static final double DELTA = 1e-5;
+
+  public void testFreeSpaceMatchesRangingUtils() {
+    RangingModel model = RangingModel.FREE_SPACE;
+    for (int txPower = -130; txPower <= 130; txPower++) {
+      for (int rssi = -130; rssi <= 130; rssi++) {
+        double distance = RangingUtils.distanceFromRssi(rssi, txPower);
+        assertEquals(distance, model.distanceFromRssi(rssi, txPower));
+        assertEquals(RangingUtils.regionFromDistance(distance),
+            model.regionFromRssi(rssi, txPower));
+      }
+      int midRssi = RangingUtils.rssiFromDistance(RangingUtils.NEAR_TO_MID_METERS, txPower);
+      int farRssi = RangingUtils.rssiFromDistance(RangingUtils.MID_TO_FAR_METERS, txPower);
+      assertEquals(txPower - midRssi, model.nearToMidPathLoss(txPower));
+      assertEquals(txPower - farRssi, model.midToFarPathLoss(txPower));
+      assertEquals(RangingUtils.rssiFromDistance(3.7, txPower),
+          model.rssiFromDistance(3.7, txPower));
+    }
+  }
+
+  public void testPathLossExponent() {
+    RangingModel indoor = new RangingModel(3.0);
+    assertEquals(3.0, indoor.getPathLossExponent());
+
+    // 30dBm past the loss at 1 meter is 10 meters, not the 31.6 meters of free space.
+    assertEquals(1.0, indoor.distanceFromRssi(-41, 0), DELTA);
+    assertEquals(10.0, indoor.distanceFromRssi(-71, 0), DELTA);
+    // Like RangingUtils, rssiFromDistance takes the TX power at 1 meter.
+    assertEquals(-30, indoor.rssiFromDistance(10.0, 0));
+    assertEquals(RangingUtils.Region.MID, indoor.regionFromRssi(-48, 0));
+    assertEquals(RangingUtils.Region.FAR, RangingModel.FREE_SPACE.regionFromRssi(-48, 0));
+  }
+
+  public void testInvalidPathLossExponent() {
+    try {
+      new RangingModel(0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+    try {
+      new RangingModel(Double.NaN);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+}
@@ -61,6 +61,122 @@ public class RegionResolverTest extends TestCase {
     assertTrue(chi2Smoothed <= chi2Calculated);
   }
 
+  public void testBatchUpdateMatchesSingleUpdates() {
+    RegionResolver single = new RegionResolver();
+    RegionResolver batch = new RegionResolver();
+    final int calibratedTxPower = -55;
+
+    int count = TEST_DATA.length / 2;
+    String[] addresses = new String[count];
+    int[] rssis = new int[count];
+    int[] txPowers = new int[count];
+    boolean nearestHasChanged = false;
+    for (int i = 0; i < count; i++) {
+      addresses[i] = "beacon" + (i % 3);
+      rssis[i] = (int) TEST_DATA[2 * i + 1];
+      txPowers[i] = calibratedTxPower;
+      nearestHasChanged |= single.onUpdate(addresses[i], rssis[i], txPowers[i]);
+    }
+
+    assertEquals(nearestHasChanged, batch.onUpdate(addresses, rssis, txPowers, count));
+    assertEquals(single.getNearestAddress(), batch.getNearestAddress());
+    for (int i = 0; i < 3; i++) {
+      String address = "beacon" + i;
+      assertEquals(single.getRegion(address), batch.getRegion(address));
+      assertEquals(single.getDistance(address), batch.getDistance(address));
+      assertEquals(single.getSmoothedRssi(address), batch.getSmoothedRssi(address));
+    }
+  }
+
+  public void testLostDevicesAreForgotten() {
+    RegionResolver resolver = new RegionResolver();
+    final int calibratedTxPower = -20;
+
+    // Enough devices to grow the state arrays.
+    for (int i = 0; i < 2000; i++) {
+      resolver.onUpdate("beacon" + i, -90, calibratedTxPower);
+    }
+    assertEquals(2000, resolver.size());
+    assertEquals(RangingUtils.Region.FAR, resolver.getRegion("beacon1999"));
+
+    assertTrue(resolver.onUpdate("near", -25, calibratedTxPower));
+    assertEquals("near", resolver.getNearestAddress());
+    assertEquals(RangingUtils.Region.NEAR, resolver.getRegion("near"));
+
+    assertTrue(resolver.onLost("near"));
+    assertNull(resolver.getNearestAddress());
+    assertFalse(resolver.onLost("beacon7"));
+    assertEquals(1999, resolver.size());
+    assertEquals(0, resolver.getSmoothedRssi("beacon7"));
+    assertEquals(0.0, resolver.getDistance("beacon7"));
+
+    // A device seen again starts afresh.
+    resolver.onUpdate("beacon7", -60, calibratedTxPower);
+    assertEquals(-60, resolver.getSmoothedRssi("beacon7"));
+    assertEquals(RangingUtils.Region.MID, resolver.getRegion("beacon7"));
+    assertEquals(-90, resolver.getSmoothedRssi("beacon8"));
+    assertEquals(RangingUtils.Region.FAR, resolver.getRegion("beacon8"));
+  }
+
+  public void testKalmanSmoother() {
+    RegionResolver resolver = new RegionResolver();
+    final int calibratedTxPower = -20;
+    final long secondNanos = 1000000000L;
+
+    resolver.onUpdate("beacon", -90, calibratedTxPower);
+    resolver.onUpdate("beacon", -86, calibratedTxPower);
+    assertEquals(-88, resolver.getSmoothedRssi("beacon"));
+
+    // Switching smoothers keeps the smoothed RSSI of the devices being tracked.
+    resolver.setSmoother(new KalmanSmoother());
+    assertTrue(resolver.getSmoother() instanceof KalmanSmoother);
+    assertEquals(-88, resolver.getSmoothedRssi("beacon"));
+
+    for (int i = 1; i <= 20; i++) {
+      resolver.onUpdate("beacon", i % 2 == 0 ? -86 : -90, calibratedTxPower, i * secondNanos);
+      resolver.onUpdate("other", -80, calibratedTxPower, i * secondNanos);
+    }
+    assertEquals(-88, resolver.getSmoothedRssi("beacon"), 1);
+
+    // The beacon moves, and the smoothed RSSI follows within a sighting.
+    resolver.onUpdate("beacon", -66, calibratedTxPower, 21 * secondNanos);
+    assertEquals(-66, resolver.getSmoothedRssi("beacon"), 2);
+    assertEquals(-80, resolver.getSmoothedRssi("other"));
+
+    resolver.setSmoothFactor(0.5);
+    assertTrue(resolver.getSmoother() instanceof ExponentialSmoother);
+    resolver.onUpdate("other", -70, calibratedTxPower);
+    assertEquals(-75, resolver.getSmoothedRssi("other"));
+  }
+
+  public void testKalmanSmootherSettlesNearestBeacon() {
+    // Without a smoother set, the nearest beacon follows the jitter of the raw RSSI.
+    assertTrue(countNearestFlips(new RegionResolver()) >= 10);
+
+    RegionResolver resolver = new RegionResolver();
+    resolver.setSmoother(new KalmanSmoother());
+    assertEquals(0, countNearestFlips(resolver));
+    assertNotNull(resolver.getNearestAddress());
+  }
+
+  // Two beacons at the same distance in the NEAR region, whose RSSI jitters by 6 dB with a period
+  // of four sightings, a sighting apart. Returns the number of times the nearest beacon changes
+  // once the smoothers have had 10 sightings.
+  private static int countNearestFlips(RegionResolver resolver) {
+    final int calibratedTxPower = -20;
+    final long secondNanos = 1000000000L;
+    int flips = 0;
+    for (int i = 0; i < 50; i++) {
+      String nearest = resolver.getNearestAddress();
+      resolver.onUpdate("first", i % 4 < 2 ? -39 : -51, calibratedTxPower, i * secondNanos);
+      resolver.onUpdate("second", (i + 3) % 4 < 2 ? -39 : -51, calibratedTxPower, i * secondNanos);
+      if (i >= 10 && nearest != null && !nearest.equals(resolver.getNearestAddress())) {
+        flips++;
+      }
+    }
+    return flips;
+  }
+
   public void testRegion() {
     RegionResolver resolver = new RegionResolver();
 
@@ -57,7 +57,7 @@ public class UriBeacon {
   /**
    * URI Scheme maps a byte code into the scheme and an optional scheme specific prefix.
    */
-  private static final SparseArray<String> URI_SCHEMES = new SparseArray<String>() {{
+  static final SparseArray<String> URI_SCHEMES = new SparseArray<String>() {{
     put((byte) 0, "http://www.");
     put((byte) 1, "https://www.");
     put((byte) 2, "http://");
@@ -68,7 +68,7 @@ public class UriBeacon {
    * Expansion strings for "http" and "https" schemes. These contain strings appearing anywhere in a
    * URL. Restricted to Generic TLDs. <p/> Note: this is a scheme specific encoding.
    */
-  private static final SparseArray<String> URL_CODES = new SparseArray<String>() {{
+  static final SparseArray<String> URL_CODES = new SparseArray<String>() {{
     put((byte) 0, ".com/");
     put((byte) 1, ".org/");
     put((byte) 2, ".edu/");
@@ -90,7 +90,9 @@ public class UriBeacon {
       (byte) 0xFE};
   private static final byte[] URI_SERVICE_DATA_FIELD_HEADER = {0x16, (byte) 0xD8, (byte) 0xFE};
   private static final int MAX_ADVERTISING_DATA_BYTES = 31;
-  private static final int MAX_URI_LENGTH = 18;
+  static final int MAX_URI_LENGTH = 18;
+  // Returned by findUriServiceData and findTestServiceData when there is no service data.
+  static final long NO_SLICE = -1;
   private final byte mFlags;
   private final byte mTxPowerLevel;
   private final String mUriString;
@@ -109,29 +111,7 @@ public class UriBeacon {
    * @return the Uri string with expansion codes.
    */
   public static byte[] encodeUri(String uri) {
-    if (uri.length() == 0) {
-      return new byte[0];
-    }
-    ByteBuffer bb = ByteBuffer.allocate(uri.length());
-    // UUIDs are ordered as byte array, which means most significant first
-    bb.order(ByteOrder.BIG_ENDIAN);
-    int position = 0;
-
-    // Add the byte code for the scheme or return null if none
-    Byte schemeCode = encodeUriScheme(uri);
-    if (schemeCode == null) {
-      return null;
-    }
-    String scheme = URI_SCHEMES.get(schemeCode);
-    bb.put(schemeCode);
-    position += scheme.length();
-
-    if (URLUtil.isNetworkUrl(scheme)) {
-      return encodeUrl(uri, position, bb);
-    } else if ("urn:uuid:".equals(scheme)) {
-      return encodeUrnUuid(uri, position, bb);
-    }
-    return null;
+    return new UriEncoder().encode(uri);
   }
 
   /**
@@ -171,28 +151,39 @@ public class UriBeacon {
    * @param scanRecordBytes The scan record of Bluetooth LE advertisement and/or scan response.
    */
   public static UriBeacon parseFromBytes(byte[] scanRecordBytes) {
-    byte[] serviceData = parseServiceDataFromBytes(scanRecordBytes);
-    // Minimum UriBeacon consists of flags, TxPower
-    if (serviceData != null && serviceData.length >= 2) {
-      int currentPos = 0;
-      byte flags = serviceData[currentPos++];
-      byte txPowerLevel = serviceData[currentPos++];
-      String uri = decodeUri(serviceData, currentPos);
-      return new UriBeacon(flags, txPowerLevel, uri);
+    long slice = findUriServiceData(scanRecordBytes);
+    if (slice != NO_SLICE) {
+      return parseFromServiceData(scanRecordBytes, sliceOffset(slice), sliceLength(slice), false);
     }
-    //TODO: refactor
-    serviceData = parseTestServiceDataFromBytes(scanRecordBytes);
-    if (serviceData != null && serviceData.length >= 2) {
-      int currentPos = 0;
-      byte txPowerLevel = serviceData[currentPos++];
-      byte flags = (byte) (serviceData[currentPos] >> 4);
-      serviceData[currentPos] = (byte) (serviceData[currentPos] & 0xFF);
-      String uri = decodeUri(serviceData, currentPos);
-      return new UriBeacon(flags, txPowerLevel, uri);
+    slice = findTestServiceData(scanRecordBytes);
+    if (slice != NO_SLICE) {
+      return parseFromServiceData(scanRecordBytes, sliceOffset(slice), sliceLength(slice), true);
     }
     return null;
   }
 
+  /**
+   * Parse the service data of a UriBeacon, as located by {@link #findUriServiceData} or
+   * {@link #findTestServiceData}.
+   */
+  static UriBeacon parseFromServiceData(byte[] scanRecordBytes, int offset, int length,
+      boolean testFrame) {
+    byte[] serviceData = Arrays.copyOfRange(scanRecordBytes, offset, offset + length);
+    int currentPos = 0;
+    byte flags;
+    byte txPowerLevel;
+    if (testFrame) {
+      txPowerLevel = serviceData[currentPos++];
+      flags = (byte) (serviceData[currentPos] >> 4);
+      serviceData[currentPos] = (byte) (serviceData[currentPos] & 0xFF);
+    } else {
+      flags = serviceData[currentPos++];
+      txPowerLevel = serviceData[currentPos++];
+    }
+    String uri = decodeUri(serviceData, currentPos);
+    return new UriBeacon(flags, txPowerLevel, uri);
+  }
+
   @Override
   public String toString() {
     return String.format(Locale.ENGLISH,
@@ -374,70 +365,6 @@ public class UriBeacon {
     return urnBuilder.toString();
   }
 
-  /**
-   * Finds the longest expansion from the uri at the current position.
-   *
-   * @param uriString the Uri
-   * @param pos start position
-   * @return an index in URI_MAP or 0 if none.
-   */
-  private static byte findLongestExpansion(String uriString, int pos) {
-    byte expansion = -1;
-    int expansionLength = 0;
-    for (int i = 0; i < URL_CODES.size(); i++) {
-      // get the key and value.
-      int key = URL_CODES.keyAt(i);
-      String value = URL_CODES.valueAt(i);
-      if (value.length() > expansionLength && uriString.startsWith(value, pos)) {
-        expansion = (byte) key;
-        expansionLength = value.length();
-      }
-    }
-    return expansion;
-  }
-
-  private static Byte encodeUriScheme(String uri) {
-    String lowerCaseUri = uri.toLowerCase(Locale.ENGLISH);
-    for (int i = 0; i < URI_SCHEMES.size(); i++) {
-      // get the key and value.
-      int key = URI_SCHEMES.keyAt(i);
-      String value = URI_SCHEMES.valueAt(i);
-      if (lowerCaseUri.startsWith(value)) {
-        return (byte) key;
-      }
-    }
-    return null;
-  }
-
-  private static byte[] encodeUrl(String url, int position, ByteBuffer bb) {
-    while (position < url.length()) {
-      byte expansion = findLongestExpansion(url, position);
-      if (expansion >= 0) {
-        bb.put(expansion);
-        position += URL_CODES.get(expansion).length();
-      } else {
-        bb.put((byte) url.charAt(position++));
-      }
-    }
-    return byteBufferToArray(bb);
-  }
-
-  private static byte[] encodeUrnUuid(String urn, int position, ByteBuffer bb) {
-    String uuidString = urn.substring(position, urn.length());
-    UUID uuid;
-    try {
-      uuid = UUID.fromString(uuidString);
-    } catch (IllegalArgumentException e) {
-      Log.w(TAG, "encodeUrnUuid invalid urn:uuid format - " + urn);
-      return null;
-    }
-    // UUIDs are ordered as byte array, which means most significant first
-    bb.order(ByteOrder.BIG_ENDIAN);
-    bb.putLong(uuid.getMostSignificantBits());
-    bb.putLong(uuid.getLeastSignificantBits());
-    return byteBufferToArray(bb);
-  }
-
   private static byte[] byteBufferToArray(ByteBuffer bb) {
     byte[] bytes = new byte[bb.position()];
     bb.rewind();
@@ -469,12 +396,16 @@ public class UriBeacon {
   }
 
   /**
-   * Return the Service Data for Uri Service.
+   * Locate the Service Data for Uri Service, without copying it.
+   * <p>
+   * The location is packed into a long, to be unpacked with {@link #sliceOffset} and
+   * {@link #sliceLength}, so that finding it allocates nothing.
    *
    * @param scanRecord The scanRecord containing the UriBeacon advertisement.
-   * @return data from the Uri Service field
+   * @return the location of the data from the Uri Service field, or {@link #NO_SLICE} if there
+   *     is none, or it is too short to hold the flags and tx power level.
    */
-  private static byte[] parseServiceDataFromBytes(byte[] scanRecord) {
+  static long findUriServiceData(byte[] scanRecord) {
     int currentPos = 0;
     try {
       while (currentPos < scanRecord.length) {
@@ -490,9 +421,7 @@ public class UriBeacon {
             // jump to data
             currentPos += 3;
             // length includes the length of the field type and ID
-            byte[] bytes = new byte[fieldLength - 3];
-            System.arraycopy(scanRecord, currentPos, bytes, 0, fieldLength - 3);
-            return bytes;
+            return toSlice(scanRecord, currentPos, fieldLength - 3);
           }
         }
         // length includes the length of the field type
@@ -501,10 +430,15 @@ public class UriBeacon {
     } catch (Exception e) {
       Log.e(TAG, "unable to parse scan record: " + Arrays.toString(scanRecord), e);
     }
-    return null;
+    return NO_SLICE;
   }
-  private static byte[] parseTestServiceDataFromBytes(byte[] scanRecord) {
-    //TODO: Add comments
+
+  /**
+   * Locate the frame of a UriBeacon test frame, without copying it.
+   *
+   * @see #findUriServiceData
+   */
+  static long findTestServiceData(byte[] scanRecord) {
     int currentPos = 0;
     try {
       while (currentPos < scanRecord.length) {
@@ -519,11 +453,8 @@ public class UriBeacon {
               && scanRecord[currentPos + 3] == TEST_URL_FRAME_TYPE) {
             // Jump to beginning of frame.
             currentPos += 4;
-            // TODO: Add tests
             // field length - field type - ID - frame type
-            byte[] bytes = new byte[fieldLength - 4];
-            System.arraycopy(scanRecord, currentPos, bytes, 0, fieldLength - 4);
-            return bytes;
+            return toSlice(scanRecord, currentPos, fieldLength - 4);
           }
         }
         // length includes the length of the field type.
@@ -532,6 +463,26 @@ public class UriBeacon {
     } catch (Exception e) {
       Log.e(TAG, "unable to parse scan record: " + Arrays.toString(scanRecord), e);
     }
-    return null;
+    return NO_SLICE;
+  }
+
+  private static long toSlice(byte[] scanRecord, int offset, int length) {
+    if (length < 0 || offset + length > scanRecord.length) {
+      Log.e(TAG, "unable to parse scan record: " + Arrays.toString(scanRecord));
+      return NO_SLICE;
+    }
+    // Minimum UriBeacon consists of flags, TxPower
+    if (length < 2) {
+      return NO_SLICE;
+    }
+    return ((long) offset << 32) | length;
+  }
+
+  static int sliceOffset(long slice) {
+    return (int) (slice >>> 32);
+  }
+
+  static int sliceLength(long slice) {
+    return (int) slice;
   }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.beacon;
+
+import android.util.LruCache;
+
+import java.util.Arrays;
+
+/**
+ * Parses scan records into {@link UriBeacon}s, remembering the beacons parsed from the most
+ * recently seen service data.
+ * <p>
+ * Beacons advertise the same bytes over and over. The cache is keyed by the UriBeacon service
+ * data in the scan record, so a record whose service data has been seen before returns the same
+ * {@link UriBeacon} instance without decoding the URI again, and without allocating: the lookup
+ * compares the service data where it lies in the scan record. Only a miss copies the service data
+ * to keep as a key.
+ * <p>
+ * This class is thread safe.
+ */
+public class UriBeaconCache {
+
+  /**
+   * The UriBeacon service data of a scan record, or a copy of it. Test frames and regular
+   * UriBeacons with the same bytes decode differently, so the kind of frame is part of the key.
+   */
+  private static final class ServiceDataKey {
+    byte[] bytes;
+    int offset;
+    int length;
+    boolean testFrame;
+    int hash;
+
+    ServiceDataKey set(byte[] bytes, int offset, int length, boolean testFrame) {
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+      this.testFrame = testFrame;
+      int h = testFrame ? 1 : 0;
+      for (int i = offset; i < offset + length; i++) {
+        h = 31 * h + bytes[i];
+      }
+      hash = h;
+      return this;
+    }
+
+    ServiceDataKey copy() {
+      return new ServiceDataKey().set(
+          Arrays.copyOfRange(bytes, offset, offset + length), 0, length, testFrame);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof ServiceDataKey)) {
+        return false;
+      }
+      ServiceDataKey other = (ServiceDataKey) object;
+      if (hash != other.hash || length != other.length || testFrame != other.testFrame) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (bytes[offset + i] != other.bytes[other.offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private final LruCache<ServiceDataKey, UriBeacon> mBeacons;
+  // Reused for every lookup. Guarded by this.
+  private final ServiceDataKey mProbe = new ServiceDataKey();
+
+  /**
+   * @param maxSize the number of distinct service data payloads to remember
+   */
+  public UriBeaconCache(int maxSize) {
+    mBeacons = new LruCache<ServiceDataKey, UriBeacon>(maxSize);
+  }
+
+  /**
+   * Parse scan record bytes to {@link UriBeacon}, as {@link UriBeacon#parseFromBytes} does.
+   *
+   * @param scanRecordBytes The scan record of Bluetooth LE advertisement and/or scan response.
+   * @return the beacon, or null if the scan record does not contain a UriBeacon
+   */
+  public synchronized UriBeacon parseFromBytes(byte[] scanRecordBytes) {
+    boolean testFrame = false;
+    long slice = UriBeacon.findUriServiceData(scanRecordBytes);
+    if (slice == UriBeacon.NO_SLICE) {
+      testFrame = true;
+      slice = UriBeacon.findTestServiceData(scanRecordBytes);
+      if (slice == UriBeacon.NO_SLICE) {
+        return null;
+      }
+    }
+    int offset = UriBeacon.sliceOffset(slice);
+    int length = UriBeacon.sliceLength(slice);
+    mProbe.set(scanRecordBytes, offset, length, testFrame);
+    UriBeacon beacon = mBeacons.get(mProbe);
+    if (beacon == null) {
+      beacon = UriBeacon.parseFromServiceData(scanRecordBytes, offset, length, testFrame);
+      mBeacons.put(mProbe.copy(), beacon);
+    }
+    // Don't hold on to the caller's scan record.
+    mProbe.bytes = null;
+    return beacon;
+  }
+
+  /**
+   * Returns the number of lookups that returned a cached beacon.
+   */
+  public synchronized int hitCount() {
+    return mBeacons.hitCount();
+  }
+
+  /**
+   * Returns the number of lookups that had to decode the beacon.
+   */
+  public synchronized int missCount() {
+    return mBeacons.missCount();
+  }
+
+  /**
+   * Returns the number of beacons dropped to make room for others.
+   */
+  public synchronized int evictionCount() {
+    return mBeacons.evictionCount();
+  }
+
+  /**
+   * Returns the number of beacons in the cache.
+   */
+  public synchronized int size() {
+    return mBeacons.size();
+  }
+
+  /**
+   * Forgets all cached beacons.
+   */
+  public synchronized void evictAll() {
+    mBeacons.evictAll();
+  }
+}
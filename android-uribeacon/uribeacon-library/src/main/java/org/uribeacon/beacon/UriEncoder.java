@@ -0,0 +1,252 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.beacon;
+
+import android.util.Log;
+import android.util.SparseArray;
+import android.webkit.URLUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Encodes Uris into the compressed form advertised by UriBeacons.
+ * <p>
+ * The expansion codes are held in a trie, so the codes matching at a position of the Uri are found
+ * in a single walk no longer than the longest code. Dynamic programming over the positions then
+ * picks the encoding with the fewest bytes. Where several encodings are equally short the one
+ * using the longest expansions is chosen, so the bytes are the same as a greedy longest match
+ * would give whenever that is optimal.
+ * <p>
+ * An encoder keeps scratch buffers between calls, so {@link #encodeAll} over a long list of Uris
+ * allocates little besides the results. This class is not thread safe; {@link UriBeacon#encodeUri}
+ * can be used from any thread.
+ */
+public class UriEncoder {
+  private static final String TAG = "UriEncoder";
+  private static final String URN_UUID_SCHEME = "urn:uuid:";
+  private static final int URN_UUID_LENGTH = 16;
+
+  // The trie over UriBeacon.URL_CODES. Characters that occur in some code are mapped to a dense
+  // index, and node n's child for index c is sChildren[n * sAlphabetSize + c], or 0 for none.
+  // Node 0 is the root. sCodes[n] is the expansion code ending at node n, or -1.
+  private static final byte[] sCharIndex = new byte[128];
+  private static final int sAlphabetSize;
+  private static final int[] sChildren;
+  private static final byte[] sCodes;
+
+  static {
+    SparseArray<String> urlCodes = UriBeacon.URL_CODES;
+    Arrays.fill(sCharIndex, (byte) -1);
+    int alphabetSize = 0;
+    int maxNodes = 1;
+    for (int i = 0; i < urlCodes.size(); i++) {
+      String expansion = urlCodes.valueAt(i);
+      maxNodes += expansion.length();
+      for (int j = 0; j < expansion.length(); j++) {
+        char c = expansion.charAt(j);
+        if (sCharIndex[c] < 0) {
+          sCharIndex[c] = (byte) alphabetSize++;
+        }
+      }
+    }
+    sAlphabetSize = alphabetSize;
+    int[] children = new int[maxNodes * alphabetSize];
+    byte[] codes = new byte[maxNodes];
+    Arrays.fill(codes, (byte) -1);
+    int nodeCount = 1;
+    for (int i = 0; i < urlCodes.size(); i++) {
+      String expansion = urlCodes.valueAt(i);
+      int node = 0;
+      for (int j = 0; j < expansion.length(); j++) {
+        int child = node * alphabetSize + sCharIndex[expansion.charAt(j)];
+        if (children[child] == 0) {
+          children[child] = nodeCount++;
+        }
+        node = children[child];
+      }
+      codes[node] = (byte) urlCodes.keyAt(i);
+    }
+    sChildren = children;
+    sCodes = codes;
+  }
+
+  /**
+   * The encoding of one of the Uris passed to {@link #encodeAll}.
+   */
+  public static final class Result {
+    private final String mUri;
+    private final byte[] mEncodedUri;
+
+    Result(String uri, byte[] encodedUri) {
+      mUri = uri;
+      mEncodedUri = encodedUri;
+    }
+
+    /**
+     * @return The Uri that was encoded.
+     */
+    public String getUri() {
+      return mUri;
+    }
+
+    /**
+     * @return The encoded Uri, or null if the Uri is not valid.
+     */
+    public byte[] getEncodedUri() {
+      return mEncodedUri;
+    }
+
+    /**
+     * @return The length of the encoded Uri, or -1 if the Uri is not valid.
+     */
+    public int getLength() {
+      return mEncodedUri == null ? -1 : mEncodedUri.length;
+    }
+
+    /**
+     * @return Whether the Uri is valid and short enough to be advertised by a UriBeacon.
+     */
+    public boolean fits() {
+      return mEncodedUri != null && mEncodedUri.length <= UriBeacon.MAX_URI_LENGTH;
+    }
+  }
+
+  // cost[i] is the fewest bytes encoding the Uri from position i, and step[i] is the expansion
+  // code used at position i in that encoding, or -1 for a literal character.
+  private int[] mCost = new int[64];
+  private byte[] mStep = new byte[64];
+
+  /**
+   * Creates the Uri string with embedded expansion codes.
+   *
+   * @param uri to be encoded
+   * @return the Uri string with expansion codes, or null if the Uri is not valid.
+   */
+  public byte[] encode(String uri) {
+    if (uri.length() == 0) {
+      return new byte[0];
+    }
+    int schemeCode = encodeUriScheme(uri);
+    if (schemeCode < 0) {
+      return null;
+    }
+    String scheme = UriBeacon.URI_SCHEMES.get(schemeCode);
+    if (URLUtil.isNetworkUrl(scheme)) {
+      return encodeUrl(uri, scheme.length(), (byte) schemeCode);
+    } else if (URN_UUID_SCHEME.equals(scheme)) {
+      return encodeUrnUuid(uri, scheme.length(), (byte) schemeCode);
+    }
+    return null;
+  }
+
+  /**
+   * Encodes each of the Uris.
+   *
+   * @param uris the Uris to be encoded
+   * @return the encoding of each Uri, in the same order.
+   */
+  public List<Result> encodeAll(List<String> uris) {
+    List<Result> results = new ArrayList<Result>(uris.size());
+    for (String uri : uris) {
+      results.add(new Result(uri, encode(uri)));
+    }
+    return results;
+  }
+
+  private static int encodeUriScheme(String uri) {
+    String lowerCaseUri = uri.toLowerCase(Locale.ENGLISH);
+    SparseArray<String> schemes = UriBeacon.URI_SCHEMES;
+    for (int i = 0; i < schemes.size(); i++) {
+      if (lowerCaseUri.startsWith(schemes.valueAt(i))) {
+        return schemes.keyAt(i);
+      }
+    }
+    return -1;
+  }
+
+  private byte[] encodeUrl(String url, int start, byte schemeCode) {
+    int length = url.length();
+    if (mCost.length <= length) {
+      mCost = new int[length * 2];
+      mStep = new byte[length * 2];
+    }
+    int[] cost = mCost;
+    byte[] step = mStep;
+    cost[length] = 0;
+    for (int i = length - 1; i >= start; i--) {
+      int best = 1 + cost[i + 1];
+      byte bestStep = -1;
+      // Walk the trie along the Uri, considering each expansion that matches here. Later matches
+      // are longer, so they win ties.
+      int node = 0;
+      for (int j = i; j < length; j++) {
+        char c = url.charAt(j);
+        if (c >= sCharIndex.length || sCharIndex[c] < 0) {
+          break;
+        }
+        node = sChildren[node * sAlphabetSize + sCharIndex[c]];
+        if (node == 0) {
+          break;
+        }
+        if (sCodes[node] >= 0 && 1 + cost[j + 1] <= best) {
+          best = 1 + cost[j + 1];
+          bestStep = sCodes[node];
+        }
+      }
+      cost[i] = best;
+      step[i] = bestStep;
+    }
+
+    byte[] encoded = new byte[1 + cost[start]];
+    encoded[0] = schemeCode;
+    int position = start;
+    for (int k = 1; k < encoded.length; k++) {
+      byte expansion = step[position];
+      if (expansion >= 0) {
+        encoded[k] = expansion;
+        position += UriBeacon.URL_CODES.get(expansion).length();
+      } else {
+        encoded[k] = (byte) url.charAt(position++);
+      }
+    }
+    return encoded;
+  }
+
+  private static byte[] encodeUrnUuid(String urn, int start, byte schemeCode) {
+    String uuidString = urn.substring(start, urn.length());
+    UUID uuid;
+    try {
+      uuid = UUID.fromString(uuidString);
+    } catch (IllegalArgumentException e) {
+      Log.w(TAG, "encodeUrnUuid invalid urn:uuid format - " + urn);
+      return null;
+    }
+    // UUIDs are ordered as byte array, which means most significant first
+    ByteBuffer bb = ByteBuffer.allocate(1 + URN_UUID_LENGTH);
+    bb.order(ByteOrder.BIG_ENDIAN);
+    bb.put(schemeCode);
+    bb.putLong(uuid.getMostSignificantBits());
+    bb.putLong(uuid.getLeastSignificantBits());
+    return bb.array();
+  }
+}
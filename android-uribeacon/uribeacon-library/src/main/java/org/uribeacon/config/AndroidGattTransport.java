@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.UUID;
+
+/**
+ * A {@link GattTransport} over the {@link BluetoothGatt} of a remote device.
+ */
+public class AndroidGattTransport implements GattTransport {
+  private final Context mContext;
+  private final BluetoothDevice mDevice;
+  private BluetoothGatt mBluetoothGatt;
+
+  public AndroidGattTransport(Context context, BluetoothDevice device) {
+    mContext = context;
+    mDevice = device;
+  }
+
+  @Override
+  public boolean connect(BluetoothGattCallback callback) {
+    mBluetoothGatt = mDevice.connectGatt(mContext, false, callback);
+    return mBluetoothGatt != null;
+  }
+
+  @Override
+  public void disconnect() {
+    if (mBluetoothGatt != null) {
+      mBluetoothGatt.disconnect();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (mBluetoothGatt != null) {
+      mBluetoothGatt.close();
+      mBluetoothGatt = null;
+    }
+  }
+
+  @Override
+  public boolean discoverServices() {
+    return mBluetoothGatt.discoverServices();
+  }
+
+  @Override
+  public BluetoothGattService getService(UUID uuid) {
+    return mBluetoothGatt.getService(uuid);
+  }
+
+  @Override
+  public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+    return mBluetoothGatt.readCharacteristic(characteristic);
+  }
+
+  @Override
+  public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+    return mBluetoothGatt.writeCharacteristic(characteristic);
+  }
+
+  @Override
+  public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+    return mBluetoothGatt.readDescriptor(descriptor);
+  }
+
+  @Override
+  public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+    return mBluetoothGatt.writeDescriptor(descriptor);
+  }
+
+  @Override
+  public boolean beginReliableWrite() {
+    return mBluetoothGatt.beginReliableWrite();
+  }
+
+  @Override
+  public boolean executeReliableWrite() {
+    return mBluetoothGatt.executeReliableWrite();
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  public void abortReliableWrite() {
+    mBluetoothGatt.abortReliableWrite();
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  public boolean requestMtu(int mtu) {
+    return mBluetoothGatt.requestMtu(mtu);
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  public boolean requestConnectionPriority(int connectionPriority) {
+    return mBluetoothGatt.requestConnectionPriority(connectionPriority);
+  }
+
+  @Override
+  public String getAddress() {
+    return mDevice.getAddress();
+  }
+}
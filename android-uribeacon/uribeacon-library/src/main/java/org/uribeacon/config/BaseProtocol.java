@@ -38,6 +38,20 @@ abstract class BaseProtocol extends BluetoothGattCallback {
    */
   public abstract void writeUriBeacon(ConfigUriBeacon configUriBeacon) throws URISyntaxException;
 
+  /**
+   * Sets the {@link UriBeaconConfig} fields to read and write. Protocols that can only read and
+   * write the whole configuration ignore it.
+   */
+  public void setReadFields(int fields) {
+  }
+
+  /**
+   * Sets the cache of beacon configurations to use, or null for none. Protocols that can't use
+   * one ignore it.
+   */
+  public void setConfigCache(ConfigCache configCache) {
+  }
+
   /**
    * @return The version of the Uri Beacon
    */
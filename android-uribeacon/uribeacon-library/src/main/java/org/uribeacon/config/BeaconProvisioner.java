@@ -0,0 +1,644 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import android.bluetooth.BluetoothGatt;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+
+import org.uribeacon.beacon.ConfigUriBeacon;
+import org.uribeacon.config.UriBeaconConfig.UriBeaconCallback;
+import org.uribeacon.scan.util.Clock;
+import org.uribeacon.scan.util.SystemClock;
+
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configures many beacons, with several configuration sessions open at once.
+ * <p/>
+ * For each {@link Job} a session connects to the beacon, reads its configuration and writes the
+ * job's {@link ConfigUriBeacon}, as {@link UriBeaconConfig} does for a single beacon. Up to
+ * {@link #setMaxConnections} sessions are open at a time, but only one of them connects and
+ * discovers services at any moment, since the Bluetooth stack makes connection attempts one at a
+ * time anyway. Once a session has connected, told by {@link SessionCallback#onConnected}, the
+ * next one starts connecting while it reads and writes, so the reads of several beacons overlap.
+ * <p/>
+ * A session that fails is closed, and its job tried again once the jobs that have not run yet
+ * have started, up to {@link #setMaxAttempts} attempts. Jobs that the beacon refused are not
+ * tried again. A session that has not finished within {@link #setSessionTimeoutMillis} fails
+ * with {@link GattRequestQueue#STATUS_TIMED_OUT}.
+ * <p/>
+ * The provisioner must be used on the main thread, where the sessions deliver their callbacks.
+ */
+public class BeaconProvisioner {
+  public static final int DEFAULT_MAX_CONNECTIONS = 4;
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+  public static final long DEFAULT_SESSION_TIMEOUT_MILLIS = 30000;
+  public static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+  /**
+   * The status of a job whose URI could not be encoded.
+   */
+  public static final int STATUS_INVALID_URI = -3;
+
+  private static final int PHASE_CONNECTING = 0;
+  private static final int PHASE_READING = 1;
+  private static final int PHASE_WRITING = 2;
+  private static final int PHASE_DONE = 3;
+
+  private final SessionFactory mSessionFactory;
+  private final Handler mHandler;
+  private final Clock mClock;
+  private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+  private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+  private long mSessionTimeoutMillis = DEFAULT_SESSION_TIMEOUT_MILLIS;
+  private long mRetryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+
+  // Null unless a run is in progress.
+  private Callback mCallback;
+  private final ArrayDeque<Attempt> mPending = new ArrayDeque<Attempt>();
+  // Ordered by the time they are due, as the retry delay is the same for all of them.
+  private final ArrayDeque<Attempt> mRetries = new ArrayDeque<Attempt>();
+  private final List<Attempt> mActive = new ArrayList<Attempt>();
+  // Whether one of the active sessions is connecting.
+  private boolean mConnecting;
+  // Whether startSessions() is running, so that sessions that call back straight away don't
+  // start sessions from within it.
+  private boolean mStarting;
+  private final Runnable mStartSessions = new Runnable() {
+    @Override
+    public void run() {
+      startSessions();
+    }
+  };
+
+  // Metrics of the current or last run.
+  private int mJobCount;
+  private int mSucceeded;
+  private int mFailed;
+  private int mRetryCount;
+  private int mConnected;
+  private long mConnectNanos;
+  private int mWritten;
+  private long mWriteNanos;
+  private long mStartNanos;
+  private long mEndNanos;
+
+  /**
+   * Creates a provisioner that configures beacons over GATT connections, with the configuration
+   * service of the given version.
+   */
+  public BeaconProvisioner(Context context, ParcelUuid version) {
+    this(GattSession.newFactory(context, version));
+  }
+
+  /**
+   * Creates a provisioner that opens its sessions with the given factory.
+   */
+  public BeaconProvisioner(SessionFactory sessionFactory) {
+    this(sessionFactory, new Handler(Looper.getMainLooper()), new SystemClock());
+  }
+
+  /* @VisibleForTesting */ BeaconProvisioner(SessionFactory sessionFactory, Handler handler,
+      Clock clock) {
+    mSessionFactory = sessionFactory;
+    mHandler = handler;
+    mClock = clock;
+  }
+
+  /**
+   * Sets the number of sessions that may be open at a time. Takes effect as sessions finish.
+   */
+  public void setMaxConnections(int maxConnections) {
+    if (maxConnections < 1) {
+      throw new IllegalArgumentException("maxConnections must be positive: " + maxConnections);
+    }
+    mMaxConnections = maxConnections;
+    startSessions();
+  }
+
+  /**
+   * Sets the number of times a job is tried before its failure is reported.
+   */
+  public void setMaxAttempts(int maxAttempts) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+    }
+    mMaxAttempts = maxAttempts;
+  }
+
+  /**
+   * Sets the time a session may take to connect, read and write, for sessions started after.
+   */
+  public void setSessionTimeoutMillis(long timeoutMillis) {
+    mSessionTimeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Sets the time to wait before trying a failed job again, for jobs that fail after.
+   */
+  public void setRetryDelayMillis(long retryDelayMillis) {
+    mRetryDelayMillis = retryDelayMillis;
+  }
+
+  /**
+   * Starts configuring the beacons of the jobs, in order.
+   *
+   * @throws IllegalStateException if the provisioner is already running
+   */
+  public void start(List<Job> jobs, Callback callback) {
+    if (mCallback != null) {
+      throw new IllegalStateException("Provisioning already in progress");
+    }
+    mCallback = callback;
+    mJobCount = jobs.size();
+    mSucceeded = 0;
+    mFailed = 0;
+    mRetryCount = 0;
+    mConnected = 0;
+    mConnectNanos = 0;
+    mWritten = 0;
+    mWriteNanos = 0;
+    mStartNanos = mClock.elapsedRealtimeNanos();
+    for (Job job : jobs) {
+      mPending.add(new Attempt(job, 1));
+    }
+    startSessions();
+    completeIfDone();
+  }
+
+  /**
+   * Closes the open sessions, and reports the jobs that have not completed with
+   * {@link GattRequestQueue#STATUS_CANCELLED}.
+   */
+  public void cancel() {
+    Callback callback = mCallback;
+    if (callback == null) {
+      return;
+    }
+    mCallback = null;
+    mHandler.removeCallbacks(mStartSessions);
+    List<Result> results = new ArrayList<Result>();
+    for (Attempt attempt : mActive) {
+      mHandler.removeCallbacks(attempt);
+      attempt.mPhase = PHASE_DONE;
+      attempt.mSession.close();
+      results.add(new Result(attempt.mJob, GattRequestQueue.STATUS_CANCELLED, attempt.mNumber,
+          attempt.elapsedMillis()));
+    }
+    for (Attempt attempt : mRetries) {
+      results.add(new Result(attempt.mJob, GattRequestQueue.STATUS_CANCELLED,
+          attempt.mNumber - 1, 0));
+    }
+    for (Attempt attempt : mPending) {
+      results.add(new Result(attempt.mJob, GattRequestQueue.STATUS_CANCELLED,
+          attempt.mNumber - 1, 0));
+    }
+    mActive.clear();
+    mRetries.clear();
+    mPending.clear();
+    mConnecting = false;
+    mFailed += results.size();
+    mEndNanos = mClock.elapsedRealtimeNanos();
+    for (Result result : results) {
+      callback.onJobComplete(result);
+    }
+    callback.onProvisioningComplete(getStats());
+  }
+
+  /**
+   * Returns whether jobs are being run.
+   */
+  public boolean isRunning() {
+    return mCallback != null;
+  }
+
+  /**
+   * Returns the metrics of the current run, or of the last one if none is in progress.
+   */
+  public Stats getStats() {
+    long endNanos = mCallback != null ? mClock.elapsedRealtimeNanos() : mEndNanos;
+    return new Stats(mJobCount, mSucceeded, mFailed, mRetryCount, mActive.size(),
+        nanosToMillis(endNanos - mStartNanos),
+        mConnected > 0 ? nanosToMillis(mConnectNanos / mConnected) : 0,
+        mWritten > 0 ? nanosToMillis(mWriteNanos / mWritten) : 0);
+  }
+
+  private void startSessions() {
+    if (mStarting || mCallback == null) {
+      return;
+    }
+    mStarting = true;
+    try {
+      mHandler.removeCallbacks(mStartSessions);
+      while (mCallback != null && !mConnecting && mActive.size() < mMaxConnections) {
+        Attempt attempt = mPending.poll();
+        if (attempt == null) {
+          attempt = mRetries.peek();
+          if (attempt == null) {
+            break;
+          }
+          long waitNanos = attempt.mDueNanos - mClock.elapsedRealtimeNanos();
+          if (waitNanos > 0) {
+            mHandler.postDelayed(mStartSessions, nanosToMillis(waitNanos) + 1);
+            break;
+          }
+          mRetries.poll();
+        }
+        connect(attempt);
+      }
+    } finally {
+      mStarting = false;
+    }
+  }
+
+  private void connect(Attempt attempt) {
+    attempt.mPhase = PHASE_CONNECTING;
+    attempt.mStartNanos = mClock.elapsedRealtimeNanos();
+    mActive.add(attempt);
+    mConnecting = true;
+    mHandler.postDelayed(attempt, mSessionTimeoutMillis);
+    attempt.mSession = mSessionFactory.newSession(attempt.mJob.getAddress(), attempt);
+    attempt.mSession.connect();
+  }
+
+  private void onConnected(Attempt attempt) {
+    attempt.mPhase = PHASE_READING;
+    mConnecting = false;
+    startSessions();
+  }
+
+  private void onRead(Attempt attempt, ConfigUriBeacon configUriBeacon, int status) {
+    if (status != BluetoothGatt.GATT_SUCCESS || configUriBeacon == null) {
+      finish(attempt, status != BluetoothGatt.GATT_SUCCESS ? status : BluetoothGatt.GATT_FAILURE);
+      return;
+    }
+    if (attempt.mPhase == PHASE_CONNECTING) {
+      // The session read without telling it had connected.
+      mConnecting = false;
+    }
+    attempt.mPhase = PHASE_WRITING;
+    attempt.mReadNanos = mClock.elapsedRealtimeNanos();
+    mConnected++;
+    mConnectNanos += attempt.mReadNanos - attempt.mStartNanos;
+    try {
+      attempt.mSession.writeUriBeacon(attempt.mJob.getConfigUriBeacon());
+    } catch (URISyntaxException e) {
+      finish(attempt, STATUS_INVALID_URI);
+      return;
+    }
+    startSessions();
+  }
+
+  private void finish(Attempt attempt, int status) {
+    mHandler.removeCallbacks(attempt);
+    if (attempt.mPhase == PHASE_CONNECTING) {
+      mConnecting = false;
+    } else if (status == BluetoothGatt.GATT_SUCCESS) {
+      mWritten++;
+      mWriteNanos += mClock.elapsedRealtimeNanos() - attempt.mReadNanos;
+    }
+    attempt.mPhase = PHASE_DONE;
+    mActive.remove(attempt);
+    attempt.mSession.close();
+    if (status != BluetoothGatt.GATT_SUCCESS && attempt.mNumber < mMaxAttempts
+        && isRetryable(status)) {
+      Attempt retry = new Attempt(attempt.mJob, attempt.mNumber + 1);
+      retry.mDueNanos = mClock.elapsedRealtimeNanos()
+          + TimeUnit.MILLISECONDS.toNanos(mRetryDelayMillis);
+      mRetries.add(retry);
+      mRetryCount++;
+    } else {
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        mSucceeded++;
+      } else {
+        mFailed++;
+      }
+      mCallback.onJobComplete(new Result(attempt.mJob, status, attempt.mNumber,
+          attempt.elapsedMillis()));
+    }
+    startSessions();
+    completeIfDone();
+  }
+
+  private void completeIfDone() {
+    if (mCallback == null || !mActive.isEmpty() || !mPending.isEmpty() || !mRetries.isEmpty()) {
+      return;
+    }
+    Callback callback = mCallback;
+    mCallback = null;
+    mHandler.removeCallbacks(mStartSessions);
+    mEndNanos = mClock.elapsedRealtimeNanos();
+    callback.onProvisioningComplete(getStats());
+  }
+
+  /**
+   * Returns whether a job that failed with the status may succeed if tried again. Beacons
+   * refuse writes when the key is wrong or the value invalid, which a retry won't change.
+   */
+  private static boolean isRetryable(int status) {
+    return status != ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION
+        && status != BluetoothGatt.GATT_WRITE_NOT_PERMITTED
+        && status != BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH
+        && status != STATUS_INVALID_URI;
+  }
+
+  private static long nanosToMillis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  /**
+   * One attempt at a job. It is the callback of its session, and ignores the callbacks that don't
+   * belong to its current phase, so a session that misbehaves after failing or timing out can't
+   * affect the attempts after it.
+   */
+  private class Attempt implements SessionCallback, Runnable {
+    private final Job mJob;
+    private final int mNumber;
+    private Session mSession;
+    private int mPhase = PHASE_CONNECTING;
+    private long mDueNanos;
+    private long mStartNanos;
+    private long mReadNanos;
+
+    private Attempt(Job job, int number) {
+      mJob = job;
+      mNumber = number;
+    }
+
+    @Override
+    public void onConnected() {
+      if (mPhase == PHASE_CONNECTING && mSession != null) {
+        BeaconProvisioner.this.onConnected(this);
+      }
+    }
+
+    @Override
+    public void onUriBeaconRead(ConfigUriBeacon configUriBeacon, int status) {
+      if ((mPhase == PHASE_CONNECTING || mPhase == PHASE_READING) && mSession != null) {
+        onRead(this, configUriBeacon, status);
+      }
+    }
+
+    @Override
+    public void onUriBeaconWrite(int status) {
+      if (mPhase == PHASE_WRITING) {
+        finish(this, status);
+      }
+    }
+
+    /**
+     * Times the session out.
+     */
+    @Override
+    public void run() {
+      if (mPhase != PHASE_DONE && mSession != null) {
+        finish(this, GattRequestQueue.STATUS_TIMED_OUT);
+      }
+    }
+
+    private long elapsedMillis() {
+      return nanosToMillis(mClock.elapsedRealtimeNanos() - mStartNanos);
+    }
+  }
+
+  /**
+   * A beacon to configure.
+   */
+  public static final class Job {
+    private final String mAddress;
+    private final ConfigUriBeacon mConfigUriBeacon;
+
+    /**
+     * @param address the Bluetooth address of the beacon
+     * @param configUriBeacon the configuration to write to it
+     */
+    public Job(String address, ConfigUriBeacon configUriBeacon) {
+      mAddress = address;
+      mConfigUriBeacon = configUriBeacon;
+    }
+
+    public String getAddress() {
+      return mAddress;
+    }
+
+    public ConfigUriBeacon getConfigUriBeacon() {
+      return mConfigUriBeacon;
+    }
+  }
+
+  /**
+   * How a job ended.
+   */
+  public static final class Result {
+    private final Job mJob;
+    private final int mStatus;
+    private final int mAttempts;
+    private final long mMillis;
+
+    Result(Job job, int status, int attempts, long millis) {
+      mJob = job;
+      mStatus = status;
+      mAttempts = attempts;
+      mMillis = millis;
+    }
+
+    public Job getJob() {
+      return mJob;
+    }
+
+    /**
+     * Returns {@link BluetoothGatt#GATT_SUCCESS}, or the status the last attempt failed with.
+     */
+    public int getStatus() {
+      return mStatus;
+    }
+
+    public boolean isSuccess() {
+      return mStatus == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * Returns the number of sessions opened for the job.
+     */
+    public int getAttempts() {
+      return mAttempts;
+    }
+
+    /**
+     * Returns the time the last attempt took.
+     */
+    public long getMillis() {
+      return mMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "Result [address=" + mJob.getAddress() + ", status=" + mStatus + ", attempts="
+          + mAttempts + ", millis=" + mMillis + "]";
+    }
+  }
+
+  /**
+   * What a run has done so far.
+   */
+  public static final class Stats {
+    private final int mJobCount;
+    private final int mSucceeded;
+    private final int mFailed;
+    private final int mRetries;
+    private final int mActive;
+    private final long mElapsedMillis;
+    private final long mAverageConnectMillis;
+    private final long mAverageWriteMillis;
+
+    Stats(int jobCount, int succeeded, int failed, int retries, int active, long elapsedMillis,
+        long averageConnectMillis, long averageWriteMillis) {
+      mJobCount = jobCount;
+      mSucceeded = succeeded;
+      mFailed = failed;
+      mRetries = retries;
+      mActive = active;
+      mElapsedMillis = elapsedMillis;
+      mAverageConnectMillis = averageConnectMillis;
+      mAverageWriteMillis = averageWriteMillis;
+    }
+
+    public int getJobCount() {
+      return mJobCount;
+    }
+
+    public int getSucceededCount() {
+      return mSucceeded;
+    }
+
+    public int getFailedCount() {
+      return mFailed;
+    }
+
+    /**
+     * Returns the number of failed sessions whose jobs were tried again.
+     */
+    public int getRetryCount() {
+      return mRetries;
+    }
+
+    /**
+     * Returns the number of sessions open.
+     */
+    public int getActiveCount() {
+      return mActive;
+    }
+
+    public long getElapsedMillis() {
+      return mElapsedMillis;
+    }
+
+    /**
+     * Returns the number of beacons configured per minute of the run.
+     */
+    public double getBeaconsPerMinute() {
+      return mElapsedMillis > 0 ? mSucceeded * 60000.0 / mElapsedMillis : 0;
+    }
+
+    /**
+     * Returns the average time from opening a session to having read the beacon's configuration.
+     */
+    public long getAverageConnectMillis() {
+      return mAverageConnectMillis;
+    }
+
+    /**
+     * Returns the average time successful writes took.
+     */
+    public long getAverageWriteMillis() {
+      return mAverageWriteMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats [jobs=" + mJobCount + ", succeeded=" + mSucceeded + ", failed=" + mFailed
+          + ", retries=" + mRetries + ", active=" + mActive + ", elapsed=" + mElapsedMillis
+          + "ms, connect=" + mAverageConnectMillis + "ms, write=" + mAverageWriteMillis + "ms]";
+    }
+  }
+
+  /**
+   * Receives the results of a run, on the main thread.
+   */
+  public interface Callback {
+
+    /**
+     * Called when a job has succeeded, or failed for the last time.
+     */
+    public void onJobComplete(Result result);
+
+    /**
+     * Called when all jobs have completed, or the run was cancelled.
+     */
+    public void onProvisioningComplete(Stats stats);
+  }
+
+  /**
+   * A connection to one beacon, through which its configuration is read and written.
+   */
+  public interface Session {
+
+    /**
+     * Connects, and reads the beacon's configuration. The session's callback is told
+     * {@link SessionCallback#onConnected} once connected, before reading, and
+     * {@link UriBeaconCallback#onUriBeaconRead} when the configuration has been read, or when
+     * connecting or reading failed.
+     */
+    public void connect();
+
+    /**
+     * Writes a configuration, which is reported to {@link UriBeaconCallback#onUriBeaconWrite}.
+     */
+    public void writeUriBeacon(ConfigUriBeacon configUriBeacon) throws URISyntaxException;
+
+    /**
+     * Closes the connection. The session is not used after.
+     */
+    public void close();
+  }
+
+  /**
+   * Receives the results of a {@link Session}.
+   */
+  public interface SessionCallback extends UriBeaconCallback {
+
+    /**
+     * Called once the session has connected and discovered the beacon's services, so that the
+     * next session may start connecting while this one reads.
+     */
+    public void onConnected();
+  }
+
+  /**
+   * Opens sessions. A {@link GattSession} factory is used on devices; tests use fakes.
+   */
+  public interface SessionFactory {
+
+    public Session newSession(String address, SessionCallback callback);
+  }
+}
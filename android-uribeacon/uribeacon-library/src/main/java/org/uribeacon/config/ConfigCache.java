@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.uribeacon.beacon.ConfigUriBeacon;
+import org.uribeacon.scan.util.Clock;
+import org.uribeacon.scan.util.SystemClock;
+
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the configuration last read from or written to each beacon, so that a configuration
+ * session can skip reading it. Entries are kept in {@link SharedPreferences}, keyed by device
+ * address, and record which of the {@link UriBeaconConfig} fields they know.
+ * <p/>
+ * A beacon may be reconfigured by someone else, in which case its entry is wrong until it is
+ * read again. Entries are therefore only used for {@link #getMaxAgeMillis} after they were
+ * stored. Keys are never stored.
+ */
+public class ConfigCache {
+  public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final String TAG = ConfigCache.class.getCanonicalName();
+  private static final String PREFERENCES_NAME = "org.uribeacon.config.ConfigCache";
+  // Written first in each entry, so that entries in an older format are ignored.
+  private static final String FORMAT = "1";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final SharedPreferences mPreferences;
+  private final Clock mClock;
+  private long mMaxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+  public ConfigCache(Context context) {
+    this(context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE), new SystemClock());
+  }
+
+  /* @VisibleForTesting */ ConfigCache(SharedPreferences preferences, Clock clock) {
+    mPreferences = preferences;
+    mClock = clock;
+  }
+
+  /**
+   * Sets how long after they were stored entries are used.
+   */
+  public void setMaxAgeMillis(long maxAgeMillis) {
+    mMaxAgeMillis = maxAgeMillis;
+  }
+
+  public long getMaxAgeMillis() {
+    return mMaxAgeMillis;
+  }
+
+  /**
+   * Returns the entry of a beacon, or null if there is none, it is too old, or it does not know
+   * all of the given fields.
+   *
+   * @param address the address of the beacon
+   * @param fields the {@link UriBeaconConfig} fields the entry must know
+   */
+  public Entry get(String address, int fields) {
+    String value = mPreferences.getString(address, null);
+    if (value == null) {
+      return null;
+    }
+    String[] parts = value.split(",", -1);
+    try {
+      if (parts.length != 9 || !FORMAT.equals(parts[0])) {
+        throw new IllegalArgumentException("Unknown format");
+      }
+      long timestampMillis = Long.parseLong(parts[1]);
+      int knownFields = Integer.parseInt(parts[2]);
+      long ageMillis = mClock.currentTimeMillis() - timestampMillis;
+      if (ageMillis < 0 || ageMillis > mMaxAgeMillis || (knownFields & fields) != fields) {
+        return null;
+      }
+      ConfigUriBeacon.Builder builder = new ConfigUriBeacon.Builder()
+          .lockState("1".equals(parts[3]))
+          .uriString(new String(Util.hexStringToByteArray(parts[4]), UTF_8))
+          .flags(Byte.parseByte(parts[5]));
+      if (!parts[6].isEmpty()) {
+        builder.advertisedTxPowerLevels(Util.hexStringToByteArray(parts[6]))
+            .txPowerMode(Byte.parseByte(parts[7]))
+            .beaconPeriod(Integer.parseInt(parts[8]));
+      }
+      return new Entry(builder.build(), knownFields, timestampMillis);
+    } catch (IllegalArgumentException | URISyntaxException e) {
+      Log.w(TAG, "Dropping unreadable entry for " + address, e);
+      remove(address);
+      return null;
+    }
+  }
+
+  /**
+   * Stores the configuration of a beacon, replacing its previous entry.
+   *
+   * @param address the address of the beacon
+   * @param configUriBeacon the configuration
+   * @param fields the {@link UriBeaconConfig} fields of the configuration that are known
+   */
+  public void put(String address, ConfigUriBeacon configUriBeacon, int fields) {
+    byte[] txPowerLevels = configUriBeacon.getAdvertisedTxPowerLevels();
+    String uriString = configUriBeacon.getUriString() != null
+        ? configUriBeacon.getUriString() : ConfigUriBeacon.NO_URI;
+    String value = FORMAT
+        + "," + mClock.currentTimeMillis()
+        + "," + fields
+        + "," + (configUriBeacon.getLockState() ? "1" : "0")
+        + "," + Util.byteArrayToHexString(uriString.getBytes(UTF_8))
+        + "," + configUriBeacon.getFlags()
+        + "," + (txPowerLevels != null ? Util.byteArrayToHexString(txPowerLevels) : "")
+        + "," + configUriBeacon.getTxPowerMode()
+        + "," + configUriBeacon.getBeaconPeriod();
+    mPreferences.edit().putString(address, value).apply();
+  }
+
+  /**
+   * Forgets a beacon, so that its configuration is read the next time.
+   */
+  public void remove(String address) {
+    mPreferences.edit().remove(address).apply();
+  }
+
+  public void clear() {
+    mPreferences.edit().clear().apply();
+  }
+
+  /**
+   * The configuration a beacon had, as far as it is known.
+   */
+  public static final class Entry {
+    private final ConfigUriBeacon mConfigUriBeacon;
+    private final int mFields;
+    private final long mTimestampMillis;
+
+    Entry(ConfigUriBeacon configUriBeacon, int fields, long timestampMillis) {
+      mConfigUriBeacon = configUriBeacon;
+      mFields = fields;
+      mTimestampMillis = timestampMillis;
+    }
+
+    /**
+     * Returns the configuration. Fields that are not known have their default values.
+     */
+    public ConfigUriBeacon getConfigUriBeacon() {
+      return mConfigUriBeacon;
+    }
+
+    /**
+     * Returns the {@link UriBeaconConfig} fields that are known.
+     */
+    public int getFields() {
+      return mFields;
+    }
+
+    /**
+     * Returns when the entry was stored, in {@link System#currentTimeMillis} time.
+     */
+    public long getTimestampMillis() {
+      return mTimestampMillis;
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import org.uribeacon.config.GattRequestQueue.Request;
+import org.uribeacon.config.GattRequestQueue.RequestType;
+
+import java.util.UUID;
+
+/**
+ * A GATT connection to one peripheral, and the requests made over it.
+ * <p/>
+ * Because the Android BLE stack only allows one active request at a time this class uses a
+ * request queue, which also times out and retries requests. Because callers want to update UI
+ * views, this class delivers BluetoothGatt callbacks on the main UI Thread.
+ * <p/>
+ * Requests go over a {@link GattTransport}: an {@link AndroidGattTransport} when connecting to a
+ * BluetoothDevice, or any other transport passed to {@link #connect(GattTransport,
+ * BluetoothGattCallback)}. {@link GattService} holds one connection for the lifetime of a bound
+ * Service; a {@link GattSession} holds one of its own.
+ */
+public class GattConnection {
+  private static final String TAG = "GattConnection";
+  private GattRequestQueue mRequestQueue;
+  private GattTransport mTransport;
+  private BluetoothGattService mBluetoothGattService;
+
+  private BluetoothGattCharacteristic initializeCharacteristic(UUID uuid) {
+    BluetoothGattCharacteristic characteristic = mBluetoothGattService.getCharacteristic(uuid);
+    // WriteType is WRITE_TYPE_NO_RESPONSE even though the one that requests a response
+    // is called WRITE_TYPE_DEFAULT!
+    if (characteristic.getWriteType() != BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
+      Log.w(TAG, "writeCharacteristic default WriteType is being forced to WRITE_TYPE_DEFAULT");
+      characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    }
+    return characteristic;
+  }
+
+  public Request writeCharacteristic(UUID uuid, byte[] value) {
+    BluetoothGattCharacteristic characteristic = initializeCharacteristic(uuid);
+    characteristic.setValue(value);
+    return mRequestQueue.add(mTransport, RequestType.WRITE_CHARACTERISTIC, characteristic);
+  }
+
+  public Request writeCharacteristic(UUID uuid, int value, int formatType, int offset) {
+    BluetoothGattCharacteristic characteristic = initializeCharacteristic(uuid);
+    characteristic.setValue(value, formatType, offset);
+    return mRequestQueue.add(mTransport, RequestType.WRITE_CHARACTERISTIC, characteristic);
+  }
+
+  /**
+   * Write a characteristic with the given write type, rather than forcing a write with response.
+   */
+  public Request writeCharacteristic(UUID uuid, byte[] value, int writeType) {
+    BluetoothGattCharacteristic characteristic = mBluetoothGattService.getCharacteristic(uuid);
+    characteristic.setWriteType(writeType);
+    characteristic.setValue(value);
+    return mRequestQueue.add(mTransport, RequestType.WRITE_CHARACTERISTIC, characteristic);
+  }
+
+  /**
+   * Returns a characteristic of the service set by {@link #setService}, or null if it has none.
+   */
+  public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+    return mBluetoothGattService.getCharacteristic(uuid);
+  }
+
+  /**
+   * Queue the start of a reliable write. Characteristic writes up to the next
+   * {@link #executeReliableWrite} or {@link #abortReliableWrite} are prepared by the peripheral,
+   * and applied together.
+   */
+  public Request beginReliableWrite() {
+    return mRequestQueue.add(mTransport, RequestType.BEGIN_RELIABLE_WRITE, 0);
+  }
+
+  public Request executeReliableWrite() {
+    return mRequestQueue.add(mTransport, RequestType.EXECUTE_RELIABLE_WRITE, 0);
+  }
+
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  public Request abortReliableWrite() {
+    return mRequestQueue.add(mTransport, RequestType.ABORT_RELIABLE_WRITE, 0);
+  }
+
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  public Request requestMtu(int mtu) {
+    return mRequestQueue.add(mTransport, RequestType.REQUEST_MTU, mtu);
+  }
+
+  /**
+   * Queue a request for a connection priority, such as
+   * {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH} for a shorter connection interval.
+   */
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  public Request requestConnectionPriority(int connectionPriority) {
+    return mRequestQueue.add(mTransport, RequestType.REQUEST_CONNECTION_PRIORITY,
+        connectionPriority);
+  }
+
+  public Request readCharacteristic(UUID uuid) {
+    BluetoothGattCharacteristic characteristic = mBluetoothGattService.getCharacteristic(uuid);
+    return mRequestQueue.add(mTransport, RequestType.READ_CHARACTERISTIC, characteristic);
+  }
+
+  public Request readDescriptor(UUID characteristicUuid, UUID descriptorUuid) {
+    BluetoothGattCharacteristic characteristic =
+        mBluetoothGattService.getCharacteristic(characteristicUuid);
+    BluetoothGattDescriptor descriptor = characteristic.getDescriptor(descriptorUuid);
+    return mRequestQueue.add(mTransport, RequestType.READ_DESCRIPTOR, descriptor);
+  }
+
+  /**
+   * Connect to a remote Bluetooth Smart device. Callbacks are delivered on the UI Thread.
+   */
+  public void connect(Context context, BluetoothDevice device, BluetoothGattCallback callback) {
+    connect(new AndroidGattTransport(context, device), callback);
+  }
+
+  /**
+   * Connect to a peripheral over the given transport, such as a simulated one. Callbacks are
+   * delivered on the UI Thread.
+   */
+  public void connect(GattTransport transport, BluetoothGattCallback callback) {
+    mRequestQueue = new GattRequestQueue();
+    mTransport = transport;
+    mTransport.connect(mRequestQueue.newGattCallbackOnUiThread(callback));
+  }
+
+  /**
+   * Returns the address of the connected peripheral, or null if there is none.
+   */
+  public String getAddress() {
+    return mTransport != null ? mTransport.getAddress() : null;
+  }
+
+  /**
+   * Sets the time GATT requests may take before they time out. See
+   * {@link GattRequestQueue#setTimeoutMillis}.
+   */
+  public void setRequestTimeoutMillis(long timeoutMillis) {
+    mRequestQueue.setTimeoutMillis(timeoutMillis);
+  }
+
+  /**
+   * Cancels the GATT requests that have not completed.
+   */
+  public void cancelRequests() {
+    if (mRequestQueue != null) {
+      mRequestQueue.cancelAll();
+    }
+  }
+
+  public void discoverServices() {
+    mTransport.discoverServices();
+  }
+
+  /*
+  * Once close() is called we are done. If you want to re-connect you will have to call connect()
+  * again; close() will release resources held by the transport.
+  */
+  public void close() {
+    if (mTransport != null) {
+      mRequestQueue.cancelAll();
+      mTransport.close();
+      mTransport = null;
+      mRequestQueue = null;
+    }
+  }
+
+  /**
+   * With disconnect() you can later call connect() and continue with that cycle.
+   */
+  public void disconnect() {
+    if (mTransport != null) {
+      mTransport.disconnect();
+    }
+  }
+
+  /**
+   * Set the service UUID for subsequent GATT calls.
+   */
+  public boolean setService(UUID uuid) {
+    mBluetoothGattService = mTransport.getService(uuid);
+    if (mBluetoothGattService == null) {
+      Log.e(TAG, "setService not found: " + uuid);
+    }
+    return mBluetoothGattService != null;
+  }
+}
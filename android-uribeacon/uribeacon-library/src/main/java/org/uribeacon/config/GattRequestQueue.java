@@ -16,15 +16,20 @@
 
 package org.uribeacon.config;
 
+import android.annotation.TargetApi;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
 /**
@@ -37,33 +42,162 @@ import java.util.Queue;
  * commands you will see the log entry: "E/bt-btif﹕ already has a pending command!!"
  * <p>
  * See <a href="https://code.google.com/p/android/issues/detail?id=58381">Issue 58381</a>.
+ * <p>
+ * Requests run one at a time, each with a deadline. A request the stack turns away, or answers
+ * with a busy status, is retried with exponential backoff a few times. One that fails for good or
+ * gets no callback before its deadline completes with a failure status, which is passed to the
+ * client's callback as if it came from the stack, so the queue never wedges. When the connection
+ * drops, the requests still pending are cancelled. Each request can also take a
+ * {@link RequestCallback}. All requests complete, and all callbacks run, on the main UI thread.
+ * <p>
+ * The stack's callbacks carry nothing to tell which request they answer. A request that timed out
+ * may still be answered late, and until it is, or until the stack gives up on it at its own ATT
+ * timeout, the stack refuses any other. So the next request is held until the late answer has
+ * arrived, and been dropped, or until {@link #STACK_TIMEOUT_MILLIS} have passed since the timed-out
+ * request started. Each start of a request also begins a new generation, and a callback is only
+ * taken for the request of the generation it arrived in, so an answer already on its way when a
+ * request is retried is not taken for the retry.
  */
 
 public class GattRequestQueue {
+  /**
+   * Status of a request that got no callback before its deadline.
+   */
+  public static final int STATUS_TIMED_OUT = -1;
+
+  /**
+   * Status of a request cancelled before it completed.
+   */
+  public static final int STATUS_CANCELLED = -2;
+
+  /**
+   * The default time a request may take. It is shorter than {@link #STACK_TIMEOUT_MILLIS}, so the
+   * client hears early of a request the stack is stuck on, and may disconnect to start over. The
+   * requests after it are held until the stack has settled, rather than started and refused.
+   */
+  public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+  /**
+   * The time the Android stack waits for the answer to a request before it gives up on it, the ATT
+   * timeout.
+   */
+  public static final long STACK_TIMEOUT_MILLIS = 30000;
+
+  // Statuses the stack answers with while it is busy, which are worth retrying: GATT_NO_RESOURCES,
+  // GATT_BUSY and GATT_CONNECTION_CONGESTED. The backoff only needs to outlast a busy moment, as a
+  // stack still working on a timed-out request is waited for before the next one is started.
+  private static final int GATT_NO_RESOURCES = 0x80;
+  private static final int GATT_BUSY = 0x84;
+  /* @VisibleForTesting */ static final int MAX_ATTEMPTS = 4;
+  /* @VisibleForTesting */ static final long INITIAL_BACKOFF_MILLIS = 50;
+
   private final String TAG = "GattRequestQueue";
   private final Queue<Request> mQueue = new LinkedList<Request>();
+  private final Handler mHandler;
   private BluetoothGattCallback mGattCallback;
+  private GattTransport mTransport;
+  // The gatt of the last callback, passed to the callbacks the queue makes itself.
+  private BluetoothGatt mGatt;
+  private long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+  private long mStackTimeoutMillis = STACK_TIMEOUT_MILLIS;
+  // The request that timed out while the stack may still answer it. No other request is started
+  // until it has settled.
+  private Request mSettling;
+  private final Runnable mSettled = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (GattRequestQueue.this) {
+        settle();
+      }
+    }
+  };
+  // Bumped each time a request is started. Written with the queue's lock held, and read without it
+  // on the binder thread to stamp the stack's callbacks.
+  private volatile int mGeneration;
 
   /**
    * Queue of pending requests.
    */
   public GattRequestQueue() {
+    this(new Handler(Looper.getMainLooper()));
+  }
+
+  /**
+   * @param handler the handler of the thread requests complete on
+   */
+  GattRequestQueue(Handler handler) {
+    mHandler = handler;
+  }
+
+  /**
+   * Sets the time requests added from now on may take before they time out.
+   */
+  public synchronized void setTimeoutMillis(long timeoutMillis) {
+    mTimeoutMillis = timeoutMillis;
   }
 
-  public void add(BluetoothGatt gatt, RequestType type, BluetoothGattDescriptor descriptor) {
+  /**
+   * Sets the time the stack may take to give up on a request, in place of
+   * {@link #STACK_TIMEOUT_MILLIS}.
+   */
+  /* @VisibleForTesting */ synchronized void setStackTimeoutMillis(long stackTimeoutMillis) {
+    mStackTimeoutMillis = stackTimeoutMillis;
+  }
+
+  public Request add(GattTransport transport, RequestType type,
+      BluetoothGattDescriptor descriptor) {
     Request request = new Request(type, descriptor);
-    add(gatt, request);
+    add(transport, request);
+    return request;
   }
 
-  public void add(BluetoothGatt gatt, RequestType type, BluetoothGattCharacteristic characteristic) {
+  public Request add(GattTransport transport, RequestType type,
+      BluetoothGattCharacteristic characteristic) {
     Request request = new Request(type, characteristic);
-    add(gatt, request);
+    add(transport, request);
+    return request;
   }
 
-  synchronized private void add(BluetoothGatt gatt, Request request) {
+  /**
+   * Adds a request that takes no attribute, such as beginning a reliable write or requesting an
+   * MTU.
+   *
+   * @param value the MTU or connection priority requested, if any
+   */
+  public Request add(GattTransport transport, RequestType type, int value) {
+    Request request = new Request(type, value);
+    add(transport, request);
+    return request;
+  }
+
+  synchronized private void add(GattTransport transport, Request request) {
+    mTransport = transport;
+    request.timeoutMillis = mTimeoutMillis;
     mQueue.add(request);
     if (mQueue.size() == 1) {
-      mQueue.peek().start(gatt);
+      startNext();
+    }
+  }
+
+  /**
+   * Cancels the requests that have not completed. The client's callback is not called for them,
+   * only their {@link RequestCallback}s, with {@link #STATUS_CANCELLED}.
+   */
+  public void cancelAll() {
+    List<Request> cancelled;
+    synchronized (this) {
+      cancelled = new ArrayList<Request>(mQueue);
+      mQueue.clear();
+      // The stack drops what it was working on with the connection.
+      mSettling = null;
+      mHandler.removeCallbacks(mSettled);
+      for (Request request : cancelled) {
+        mHandler.removeCallbacks(request.mRetry);
+        mHandler.removeCallbacks(request.mTimeout);
+      }
+    }
+    for (Request request : cancelled) {
+      request.complete(STATUS_CANCELLED);
     }
   }
 
@@ -74,22 +208,160 @@ public class GattRequestQueue {
    * @return the wrapper callback object
    */
   public BluetoothGattCallback newGattCallbackOnUiThread(BluetoothGattCallback callback) {
+    mGattCallback = callback;
     return new GattCallbackOnUiThread(callback);
   }
 
   /**
-   * Process the next request in the queue for a BluetoothGatt function (such as characteristic read).
+   * Takes the active request off the queue if the stack's callback is for it, unless the callback
+   * has a busy status and the request is retried. A callback that arrived in the generation of an
+   * earlier request is dropped, and so is the late answer to a request that has timed out, which
+   * lets the next request start.
+   *
+   * @param generation the generation when the callback arrived from the stack
+   * @return the request to pass to {@link #finish} after the client's callback, or null if the
+   *         callback should not be passed to the client
    */
-  synchronized private void processNext(BluetoothGatt bluetoothGatt) {
-    // The currently executing request is kept on the head of the queue until this is called.
-    if (mQueue.isEmpty())
-      throw new RuntimeException("No active request in processNext()");
+  synchronized private Request onCallback(RequestType type, Object attribute, int status,
+      int generation) {
+    if (mSettling != null) {
+      if (mSettling.isFor(type, attribute)) {
+        Log.w(TAG, "Dropping late callback for a request that timed out: " + type);
+        settle();
+      }
+      return null;
+    }
+    Request request = mQueue.peek();
+    if (request == null || !request.mStarted || request.mGeneration != generation
+        || !request.isFor(type, attribute)) {
+      Log.w(TAG, "Dropping callback for a request that is not active: " + type);
+      return null;
+    }
+    if (isBusy(status) && request.mAttempts < MAX_ATTEMPTS) {
+      Log.w(TAG, "Retrying " + type + " after status " + status);
+      retry(request);
+      return null;
+    }
+    mHandler.removeCallbacks(request.mTimeout);
     mQueue.remove();
-    if (!mQueue.isEmpty()) {
-      mQueue.peek().start(bluetoothGatt);
+    return request;
+  }
+
+  /**
+   * Completes a request taken off the queue, and starts the next.
+   */
+  private void finish(Request request, int status) {
+    request.complete(status);
+    synchronized (this) {
+      startNext();
+    }
+  }
+
+  /**
+   * Starts the request at the head of the queue, and the ones after it as long as they complete
+   * without a callback.
+   */
+  private void startNext() {
+    if (mSettling != null) {
+      return;
+    }
+    while (!mQueue.isEmpty()) {
+      Request request = mQueue.peek();
+      if (request.mStarted) {
+        return;
+      }
+      request.mAttempts++;
+      request.mGeneration = ++mGeneration;
+      int result = request.start(mTransport);
+      if (result == Request.STARTED) {
+        mHandler.postDelayed(request.mTimeout, request.timeoutMillis);
+        return;
+      }
+      if (result == Request.REFUSED && request.mAttempts < MAX_ATTEMPTS) {
+        Log.w(TAG, "Stack refused " + request.requestType + ", retrying");
+        retry(request);
+        return;
+      }
+      mQueue.remove();
+      if (result == Request.DONE) {
+        request.complete(BluetoothGatt.GATT_SUCCESS);
+        continue;
+      }
+      // Fails the request later, so the client is never called back from within its own call.
+      final Request failed = request;
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          deliverFailure(failed, BluetoothGatt.GATT_FAILURE);
+          finish(failed, BluetoothGatt.GATT_FAILURE);
+        }
+      });
+      return;
+    }
+  }
+
+  // Tries the request again after a delay that doubles with each attempt.
+  private void retry(Request request) {
+    request.mStarted = false;
+    mHandler.removeCallbacks(request.mTimeout);
+    mHandler.postDelayed(request.mRetry, INITIAL_BACKOFF_MILLIS << (request.mAttempts - 1));
+  }
+
+  // Ends the wait for the stack to settle after a timeout, and starts the next request.
+  private void settle() {
+    mSettling = null;
+    mHandler.removeCallbacks(mSettled);
+    startNext();
+  }
+
+  private void onTimeout(Request request) {
+    synchronized (this) {
+      if (mQueue.peek() != request) {
+        return;
+      }
+      Log.w(TAG, request.requestType + " timed out");
+      mQueue.remove();
+      mSettling = request;
+      mHandler.postDelayed(mSettled, Math.max(0, mStackTimeoutMillis - request.timeoutMillis));
+    }
+    deliverFailure(request, STATUS_TIMED_OUT);
+    finish(request, STATUS_TIMED_OUT);
+  }
+
+  // Gives the client the callback the stack never made, so that it doesn't wait for it forever.
+  private void deliverFailure(Request request, int status) {
+    if (mGattCallback == null || status == BluetoothGatt.GATT_SUCCESS) {
+      return;
+    }
+    switch (request.requestType) {
+      case READ_CHARACTERISTIC:
+        mGattCallback.onCharacteristicRead(mGatt, request.characteristic, status);
+        break;
+      case READ_DESCRIPTOR:
+        mGattCallback.onDescriptorRead(mGatt, request.descriptor, status);
+        break;
+      case WRITE_CHARACTERISTIC:
+        mGattCallback.onCharacteristicWrite(mGatt, request.characteristic, status);
+        break;
+      case WRITE_DESCRIPTOR:
+        mGattCallback.onDescriptorWrite(mGatt, request.descriptor, status);
+        break;
+      case EXECUTE_RELIABLE_WRITE:
+        mGattCallback.onReliableWriteCompleted(mGatt, status);
+        break;
+      case REQUEST_MTU:
+        mGattCallback.onMtuChanged(mGatt, 0, status);
+        break;
+      default:
+        break;
     }
   }
 
+  private static boolean isBusy(int status) {
+    return status == GATT_NO_RESOURCES || status == GATT_BUSY
+        || status == BluetoothGatt.GATT_CONNECTION_CONGESTED;
+  }
+
   /**
    * BluetoothGatt request types.
    */
@@ -99,18 +371,71 @@ public class GattRequestQueue {
     READ_DESCRIPTOR,
     //  READ_RSSI,
     WRITE_CHARACTERISTIC,
-    WRITE_DESCRIPTOR
+    WRITE_DESCRIPTOR,
+    BEGIN_RELIABLE_WRITE,
+    EXECUTE_RELIABLE_WRITE,
+    ABORT_RELIABLE_WRITE,
+    REQUEST_MTU,
+    REQUEST_CONNECTION_PRIORITY
+  }
+
+  /**
+   * Told when a request completes.
+   */
+  public interface RequestCallback {
+    /**
+     * Called on the main UI thread once the request has completed, failed, timed out or been
+     * cancelled, after the client's BluetoothGattCallback if it has one.
+     *
+     * @param status the status of the request: {@link BluetoothGatt#GATT_SUCCESS}, a GATT error,
+     *        {@link #STATUS_TIMED_OUT} or {@link #STATUS_CANCELLED}
+     */
+    void onRequestComplete(Request request, int status);
   }
 
   /**
    * The object that holds a Gatt request while in the queue.
    * <br>
-   * This object holds the parameters for calling BluetoothGatt methods (see start());
+   * This object holds the parameters for calling GattTransport methods (see start());
    */
   public class Request {
+    // Results of start().
+    static final int STARTED = 0;
+    static final int DONE = 1;
+    static final int REFUSED = 2;
+
     final RequestType requestType;
     BluetoothGattCharacteristic characteristic;
     BluetoothGattDescriptor descriptor;
+    int value;
+    long timeoutMillis;
+
+    // Guarded by the queue.
+    private int mAttempts;
+    private int mGeneration;
+    private boolean mStarted;
+    // Guarded by this.
+    private boolean mDone;
+    private int mStatus;
+    private RequestCallback mCallback;
+
+    private final Runnable mTimeout = new Runnable() {
+      @Override
+      public void run() {
+        onTimeout(Request.this);
+      }
+    };
+
+    private final Runnable mRetry = new Runnable() {
+      @Override
+      public void run() {
+        synchronized (GattRequestQueue.this) {
+          if (mQueue.peek() == Request.this) {
+            startNext();
+          }
+        }
+      }
+    };
 
     public Request(RequestType requestType, BluetoothGattCharacteristic characteristic) {
       this.requestType = requestType;
@@ -122,28 +447,116 @@ public class GattRequestQueue {
       this.descriptor = descriptor;
     }
 
-    public void start(BluetoothGatt bluetoothGatt) {
+    public Request(RequestType requestType, int value) {
+      this.requestType = requestType;
+      this.value = value;
+    }
+
+    public RequestType getRequestType() {
+      return requestType;
+    }
+
+    /**
+     * Sets the callback told when the request completes. If it already has, the callback is
+     * called straight away.
+     */
+    public void setCallback(RequestCallback callback) {
+      boolean done;
+      synchronized (this) {
+        mCallback = callback;
+        done = mDone;
+      }
+      if (done) {
+        callback.onRequestComplete(this, mStatus);
+      }
+    }
+
+    public synchronized boolean isDone() {
+      return mDone;
+    }
+
+    /**
+     * Returns the status the request completed with. Only meaningful once it is done.
+     */
+    public synchronized int getStatus() {
+      return mStatus;
+    }
+
+    /**
+     * Cancels the request if it has not started yet.
+     *
+     * @return true if the request was cancelled
+     */
+    public boolean cancel() {
+      synchronized (GattRequestQueue.this) {
+        if (mStarted || mQueue.peek() == this || !mQueue.remove(this)) {
+          return false;
+        }
+      }
+      complete(STATUS_CANCELLED);
+      return true;
+    }
+
+    /**
+     * Starts the request.
+     *
+     * @return {@link #STARTED} if the request completes with a callback, {@link #DONE} if it is
+     *         already complete, or {@link #REFUSED} if the stack could not take it
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    int start(GattTransport transport) {
+      boolean started = true;
       switch (requestType) {
         case READ_CHARACTERISTIC:
-          if (!bluetoothGatt.readCharacteristic(characteristic)) {
-            throw new IllegalArgumentException("Characteristic is not valid");
-          }
+          started = transport.readCharacteristic(characteristic);
           break;
         case READ_DESCRIPTOR:
-          if (!bluetoothGatt.readDescriptor(descriptor)) {
-            throw new IllegalArgumentException("Descriptor is not valid");
-          }
+          started = transport.readDescriptor(descriptor);
           break;
         case WRITE_CHARACTERISTIC:
-          if (!bluetoothGatt.writeCharacteristic(characteristic)) {
-            throw new IllegalArgumentException("Characteristic is not valid");
-          }
+          started = transport.writeCharacteristic(characteristic);
           break;
         case WRITE_DESCRIPTOR:
-          if (!bluetoothGatt.writeDescriptor(descriptor)) {
-            throw new IllegalArgumentException("Characteristic is not valid");
-          }
+          started = transport.writeDescriptor(descriptor);
           break;
+        case BEGIN_RELIABLE_WRITE:
+          return transport.beginReliableWrite() ? DONE : REFUSED;
+        case EXECUTE_RELIABLE_WRITE:
+          started = transport.executeReliableWrite();
+          break;
+        case ABORT_RELIABLE_WRITE:
+          // Only called on KitKat and later.
+          transport.abortReliableWrite();
+          return DONE;
+        case REQUEST_MTU:
+          // Only called on Lollipop and later.
+          started = transport.requestMtu(value);
+          break;
+        case REQUEST_CONNECTION_PRIORITY:
+          // Only called on Lollipop and later. Takes effect without a callback.
+          return transport.requestConnectionPriority(value) ? DONE : REFUSED;
+      }
+      mStarted = started;
+      return started ? STARTED : REFUSED;
+    }
+
+    boolean isFor(RequestType type, Object attribute) {
+      return requestType == type
+          && (attribute == null || attribute == characteristic || attribute == descriptor);
+    }
+
+    void complete(int status) {
+      RequestCallback callback;
+      synchronized (this) {
+        if (mDone) {
+          return;
+        }
+        mDone = true;
+        mStatus = status;
+        callback = mCallback;
+      }
+      if (callback != null) {
+        callback.onRequestComplete(this, status);
       }
     }
   }
@@ -154,12 +567,9 @@ public class GattRequestQueue {
    */
   private class GattCallbackOnUiThread extends BluetoothGattCallback {
     private final BluetoothGattCallback mUiThreadGattCallback;
-    private final Handler mHandler;
 
     public GattCallbackOnUiThread(BluetoothGattCallback uiThreadCallback) {
       mUiThreadGattCallback = uiThreadCallback;
-      // Defines a Handler object that's attached to the UI thread.
-      mHandler = new Handler(Looper.getMainLooper());
     }
 
     @Override
@@ -167,14 +577,46 @@ public class GattRequestQueue {
       mHandler.post(new Runnable() {
         @Override
         public void run() {
+          mGatt = gatt;
+          if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            cancelAll();
+          }
           mUiThreadGattCallback.onConnectionStateChange(gatt, status, newState);
         }
       });
     }
 
     @Override
-    public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
-      throw new RuntimeException("onReliableWriteCompleted not yet implemented");
+    public void onReliableWriteCompleted(final BluetoothGatt gatt, final int status) {
+      final int generation = mGeneration;
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          // Also called after an abort, which has no request waiting for it.
+          Request request = onCallback(RequestType.EXECUTE_RELIABLE_WRITE, null, status,
+              generation);
+          if (request != null) {
+            mUiThreadGattCallback.onReliableWriteCompleted(gatt, status);
+            finish(request, status);
+          }
+        }
+      });
+    }
+
+    @Override
+    public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+      final int generation = mGeneration;
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          Request request = onCallback(RequestType.REQUEST_MTU, null, status,
+              generation);
+          if (request != null) {
+            mUiThreadGattCallback.onMtuChanged(gatt, mtu, status);
+            finish(request, status);
+          }
+        }
+      });
     }
 
     @Override
@@ -189,28 +631,49 @@ public class GattRequestQueue {
 
     @Override
     public void onDescriptorRead(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+      final int generation = mGeneration;
       mHandler.post(new Runnable() {
         @Override
         public void run() {
-          mUiThreadGattCallback.onDescriptorRead(gatt, descriptor, status);
-          processNext(gatt);
+          Request request = onCallback(RequestType.READ_DESCRIPTOR, descriptor, status,
+              generation);
+          if (request != null) {
+            mUiThreadGattCallback.onDescriptorRead(gatt, descriptor, status);
+            finish(request, status);
+          }
         }
       });
     }
 
     @Override
-    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-      throw new RuntimeException("onDescriptorWrite not yet implemented");
+    public void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+      final int generation = mGeneration;
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          Request request = onCallback(RequestType.WRITE_DESCRIPTOR, descriptor, status,
+              generation);
+          if (request != null) {
+            mUiThreadGattCallback.onDescriptorWrite(gatt, descriptor, status);
+            finish(request, status);
+          }
+        }
+      });
     }
 
     @Override
     public void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
 
+      final int generation = mGeneration;
       mHandler.post(new Runnable() {
         @Override
         public void run() {
-          mUiThreadGattCallback.onCharacteristicRead(gatt, characteristic, status);
-          processNext(gatt);
+          Request request = onCallback(RequestType.READ_CHARACTERISTIC, characteristic, status,
+              generation);
+          if (request != null) {
+            mUiThreadGattCallback.onCharacteristicRead(gatt, characteristic, status);
+            finish(request, status);
+          }
         }
       });
     }
@@ -218,11 +681,16 @@ public class GattRequestQueue {
     @Override
     public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
 
+      final int generation = mGeneration;
       mHandler.post(new Runnable() {
         @Override
         public void run() {
-          mUiThreadGattCallback.onCharacteristicWrite(gatt, characteristic, status);
-          processNext(gatt);
+          Request request = onCallback(RequestType.WRITE_CHARACTERISTIC, characteristic, status,
+              generation);
+          if (request != null) {
+            mUiThreadGattCallback.onCharacteristicWrite(gatt, characteristic, status);
+            finish(request, status);
+          }
         }
       });
 
@@ -239,4 +707,3 @@ public class GattRequestQueue {
     }
   }
 }
-
@@ -18,34 +18,26 @@ package org.uribeacon.config;
 
 import android.app.Service;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
-import android.util.Log;
 
-import org.uribeacon.config.GattRequestQueue.RequestType;
+import org.uribeacon.config.GattRequestQueue.Request;
 
 import java.util.UUID;
 
 /**
  * Manages Gatt connections within a Service lifecycle.
  * <p/>
- * Because the Android BLE stack only allows one active request at a time
- * this class uses a request queue. Because callers want to update UI views,
- * this class delivers BluetoothGatt callbacks on the main UI Thread.
+ * The service holds one {@link GattConnection}, which queues the requests and delivers the
+ * BluetoothGatt callbacks on the main UI Thread. Its methods are also available from
+ * {@link #getConnection}, with the ones for reliable writes, MTU and connection priority.
  */
 public class GattService extends Service {
   private final IBinder mBinder = new LocalBinder();
-  private GattRequestQueue mRequestQueue;
-  private BluetoothGatt mBluetoothGatt;
-  private BluetoothGattService mBluetoothGattService;
-  private String TAG = "GattService";
+  private final GattConnection mConnection = new GattConnection();
 
   @Override
   public IBinder onBind(Intent intent) {
@@ -68,82 +60,60 @@ public class GattService extends Service {
     super.onDestroy();
   }
 
-  private BluetoothGattCharacteristic initializeCharacteristic(UUID uuid) {
-    BluetoothGattCharacteristic characteristic = mBluetoothGattService.getCharacteristic(uuid);
-    // WriteType is WRITE_TYPE_NO_RESPONSE even though the one that requests a response
-    // is called WRITE_TYPE_DEFAULT!
-    if (characteristic.getWriteType() != BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
-      Log.w(TAG, "writeCharacteristic default WriteType is being forced to WRITE_TYPE_DEFAULT");
-      characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-    }
-    return characteristic;
+  /**
+   * Returns the connection the service holds.
+   */
+  public GattConnection getConnection() {
+    return mConnection;
   }
 
-  public void writeCharacteristic(UUID uuid, byte[] value) {
-    BluetoothGattCharacteristic characteristic = initializeCharacteristic(uuid);
-    characteristic.setValue(value);
-    mRequestQueue.add(mBluetoothGatt, RequestType.WRITE_CHARACTERISTIC, characteristic);
+  public Request writeCharacteristic(UUID uuid, byte[] value) {
+    return mConnection.writeCharacteristic(uuid, value);
   }
 
-  public void writeCharacteristic(UUID uuid, int value, int formatType, int offset) {
-    BluetoothGattCharacteristic characteristic = initializeCharacteristic(uuid);
-    characteristic.setValue(value, formatType, offset);
-    mRequestQueue.add(mBluetoothGatt, RequestType.WRITE_CHARACTERISTIC, characteristic);
+  public Request writeCharacteristic(UUID uuid, int value, int formatType, int offset) {
+    return mConnection.writeCharacteristic(uuid, value, formatType, offset);
   }
 
-  public void readCharacteristic(UUID uuid) {
-    BluetoothGattCharacteristic characteristic = mBluetoothGattService.getCharacteristic(uuid);
-    mRequestQueue.add(mBluetoothGatt, RequestType.READ_CHARACTERISTIC, characteristic);
+  public Request readCharacteristic(UUID uuid) {
+    return mConnection.readCharacteristic(uuid);
   }
 
-  public void readDescriptor(UUID characteristicUuid, UUID descriptorUuid) {
-    BluetoothGattCharacteristic characteristic = mBluetoothGattService.getCharacteristic(characteristicUuid);
-    BluetoothGattDescriptor descriptor = characteristic.getDescriptor(descriptorUuid);
-    mRequestQueue.add(mBluetoothGatt, RequestType.READ_DESCRIPTOR, descriptor);
+  public Request readDescriptor(UUID characteristicUuid, UUID descriptorUuid) {
+    return mConnection.readDescriptor(characteristicUuid, descriptorUuid);
   }
 
   /**
    * Connect to a remote Bluetooth Smart device. Callbacks are delivered on the UI Thread.
    */
   public void connect(Context context, BluetoothDevice device, BluetoothGattCallback callback) {
-    mRequestQueue = new GattRequestQueue();
-    mBluetoothGatt = device.connectGatt(context, false,
-        mRequestQueue.newGattCallbackOnUiThread(callback));
+    mConnection.connect(context, device, callback);
   }
 
   public void discoverServices() {
-    mBluetoothGatt.discoverServices();
+    mConnection.discoverServices();
   }
+
   /*
-  * Once close() is called we are done. If you want to re-connect you will have to call connectGatt()
-  * on the BluetoothDevice again; close() will release resources held by BluetoothGatt.
+  * Once close() is called we are done. If you want to re-connect you will have to call connect()
+  * again; close() will release resources held by the transport.
   */
   public void close() {
-    if (mBluetoothGatt != null) {
-      mBluetoothGatt.close();
-      mBluetoothGatt = null;
-      mRequestQueue = null;
-    }
+    mConnection.close();
   }
 
   /**
    * With disconnect() you can later call connect() and continue with that cycle.
    */
   public void disconnect() {
-    if (mBluetoothGatt != null) {
-      mBluetoothGatt.disconnect();
-    }
+    mConnection.disconnect();
   }
 
   /**
    * Set the service UUID for subsequent GATT calls.
    */
   public boolean setService(UUID uuid) {
-    mBluetoothGattService = mBluetoothGatt.getService(uuid);
-    if (mBluetoothGattService == null) {
-      Log.e(TAG, "setService not found: " + uuid);
-    }
-    return mBluetoothGattService != null;
+    return mConnection.setService(uuid);
   }
 
   /**
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.ParcelUuid;
+
+import org.uribeacon.beacon.ConfigUriBeacon;
+import org.uribeacon.config.UriBeaconConfig.UriBeaconCallback;
+
+import java.net.URISyntaxException;
+
+/**
+ * A {@link BeaconProvisioner.Session} over a GATT connection of its own.
+ * <p/>
+ * The bound {@link GattService} holds one connection for the whole process, so each session
+ * holds a {@link GattConnection} of its own. Unlike {@link UriBeaconConfig}, a session reports a
+ * disconnection before the configuration was read or written as a failed read or write. A
+ * {@link BeaconProvisioner.SessionCallback} is told when services have been discovered.
+ */
+public class GattSession implements BeaconProvisioner.Session {
+  private final GattTransport mTransport;
+  private final UriBeaconCallback mUriBeaconCallback;
+  private final GattConnection mConnection = new GattConnection();
+  private final BaseProtocol mBaseProtocol;
+  private long mRequestTimeoutMillis = GattRequestQueue.DEFAULT_TIMEOUT_MILLIS;
+  private boolean mRead;
+  private boolean mWriting;
+  private final UriBeaconCallback mProtocolCallback = new UriBeaconCallback() {
+    @Override
+    public void onUriBeaconRead(ConfigUriBeacon configUriBeacon, int status) {
+      mRead = true;
+      mUriBeaconCallback.onUriBeaconRead(configUriBeacon, status);
+    }
+
+    @Override
+    public void onUriBeaconWrite(int status) {
+      mWriting = false;
+      mUriBeaconCallback.onUriBeaconWrite(status);
+    }
+  };
+  private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+      mBaseProtocol.onConnectionStateChange(gatt, status, newState);
+      if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+        int failure = status != BluetoothGatt.GATT_SUCCESS ? status : BluetoothGatt.GATT_FAILURE;
+        if (!mRead) {
+          mProtocolCallback.onUriBeaconRead(null, failure);
+        } else if (mWriting) {
+          mProtocolCallback.onUriBeaconWrite(failure);
+        }
+      }
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+      if (status == BluetoothGatt.GATT_SUCCESS
+          && mUriBeaconCallback instanceof BeaconProvisioner.SessionCallback) {
+        ((BeaconProvisioner.SessionCallback) mUriBeaconCallback).onConnected();
+      }
+      mBaseProtocol.onServicesDiscovered(gatt, status);
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt,
+        BluetoothGattCharacteristic characteristic, int status) {
+      mBaseProtocol.onCharacteristicRead(gatt, characteristic, status);
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt,
+        BluetoothGattCharacteristic characteristic, int status) {
+      mBaseProtocol.onCharacteristicWrite(gatt, characteristic, status);
+    }
+
+    @Override
+    public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+        int status) {
+      mBaseProtocol.onDescriptorRead(gatt, descriptor, status);
+    }
+
+    @Override
+    public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+      mBaseProtocol.onReliableWriteCompleted(gatt, status);
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+      mBaseProtocol.onMtuChanged(gatt, mtu, status);
+    }
+  };
+
+  /**
+   * @param context the context to connect with
+   * @param device the beacon
+   * @param version the UUID of the configuration service, which selects the protocol
+   * @param uriBeaconCallback told the results of reading and writing
+   */
+  public GattSession(Context context, BluetoothDevice device, ParcelUuid version,
+      UriBeaconCallback uriBeaconCallback) {
+    this(new AndroidGattTransport(context, device), version, uriBeaconCallback);
+  }
+
+  /**
+   * @param transport the transport to the beacon, such as a simulated one
+   * @param version the UUID of the configuration service, which selects the protocol
+   * @param uriBeaconCallback told the results of reading and writing
+   */
+  public GattSession(GattTransport transport, ParcelUuid version,
+      UriBeaconCallback uriBeaconCallback) {
+    mTransport = transport;
+    mUriBeaconCallback = uriBeaconCallback;
+    if (ProtocolV1.CONFIG_SERVICE_UUID.equals(version)) {
+      mBaseProtocol = new ProtocolV1(mConnection, mProtocolCallback);
+    } else {
+      mBaseProtocol = new ProtocolV2(mConnection, mProtocolCallback);
+    }
+  }
+
+  /**
+   * See {@link UriBeaconConfig#setReadFields}. Must be called before {@link #connect}.
+   */
+  public void setReadFields(int fields) {
+    mBaseProtocol.setReadFields(fields);
+  }
+
+  /**
+   * See {@link UriBeaconConfig#setConfigCache}. Must be called before {@link #connect}.
+   */
+  public void setConfigCache(ConfigCache configCache) {
+    mBaseProtocol.setConfigCache(configCache);
+  }
+
+  /**
+   * Sets the time each GATT request may take. See {@link GattRequestQueue#setTimeoutMillis}. Must
+   * be called before {@link #connect}.
+   */
+  public void setRequestTimeoutMillis(long timeoutMillis) {
+    mRequestTimeoutMillis = timeoutMillis;
+  }
+
+  @Override
+  public void connect() {
+    mConnection.connect(mTransport, mGattCallback);
+    mConnection.setRequestTimeoutMillis(mRequestTimeoutMillis);
+  }
+
+  @Override
+  public void writeUriBeacon(ConfigUriBeacon configUriBeacon) throws URISyntaxException {
+    mWriting = true;
+    mBaseProtocol.writeUriBeacon(configUriBeacon);
+  }
+
+  @Override
+  public void close() {
+    mConnection.close();
+  }
+
+  /**
+   * Returns a factory of sessions with the beacons at the addresses they are given.
+   *
+   * @param context the context to connect with
+   * @param version the UUID of the configuration service, which selects the protocol
+   */
+  public static BeaconProvisioner.SessionFactory newFactory(Context context, ParcelUuid version) {
+    return newFactory(context, version, UriBeaconConfig.FIELD_ALL, null);
+  }
+
+  /**
+   * Returns a factory of sessions with the beacons at the addresses they are given, which read
+   * and write only some fields and may use a cache of configurations.
+   *
+   * @param context the context to connect with
+   * @param version the UUID of the configuration service, which selects the protocol
+   * @param readFields see {@link UriBeaconConfig#setReadFields}
+   * @param configCache see {@link UriBeaconConfig#setConfigCache}, or null for none
+   */
+  public static BeaconProvisioner.SessionFactory newFactory(final Context context,
+      final ParcelUuid version, final int readFields, final ConfigCache configCache) {
+    final BluetoothAdapter adapter =
+        ((BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter();
+    return new BeaconProvisioner.SessionFactory() {
+      @Override
+      public BeaconProvisioner.Session newSession(String address,
+          BeaconProvisioner.SessionCallback uriBeaconCallback) {
+        GattSession session = new GattSession(context, adapter.getRemoteDevice(address), version,
+            uriBeaconCallback);
+        session.setReadFields(readFields);
+        session.setConfigCache(configCache);
+        return session;
+      }
+    };
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.UUID;
+
+/**
+ * The GATT client operations the configuration protocols use, so that they can run over
+ * something other than a {@link BluetoothGatt}, such as a simulated peripheral.
+ * <p/>
+ * The methods have the meaning of the {@link BluetoothGatt} methods of the same name, and report
+ * their results to the {@link BluetoothGattCallback} given to {@link #connect} in the same way.
+ * Transports that have no BluetoothGatt pass null as the {@code gatt} of the callbacks. Like
+ * BluetoothGatt, a transport takes one request at a time; {@link GattConnection} queues them.
+ */
+public interface GattTransport {
+
+  /**
+   * Connects to the peripheral. The result is reported to
+   * {@link BluetoothGattCallback#onConnectionStateChange}.
+   *
+   * @return false if the connection could not be started
+   */
+  boolean connect(BluetoothGattCallback callback);
+
+  void disconnect();
+
+  /**
+   * Releases the connection. No callbacks are made after it returns.
+   */
+  void close();
+
+  boolean discoverServices();
+
+  /**
+   * Returns a service found by {@link #discoverServices}, or null if the peripheral has none
+   * with the given UUID.
+   */
+  BluetoothGattService getService(UUID uuid);
+
+  boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+  boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+  boolean readDescriptor(BluetoothGattDescriptor descriptor);
+
+  boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+  boolean beginReliableWrite();
+
+  boolean executeReliableWrite();
+
+  void abortReliableWrite();
+
+  boolean requestMtu(int mtu);
+
+  boolean requestConnectionPriority(int connectionPriority);
+
+  /**
+   * Returns the address of the peripheral.
+   */
+  String getAddress();
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Writes a sequence of characteristics of the service set on a {@link GattConnection} in as
+ * few round trips as the peripheral allows, and reports the result of each write.
+ * <p>
+ * Writes are applied in order. A write that is not batchable, such as an unlock, is written with
+ * a response on its own, and the writes after it only start once it has succeeded. A failed
+ * batchable write doesn't stop the writes after it, so a lock that follows the fields is still
+ * written when one of them fails, and the beacon isn't left unlocked. Runs of batchable writes
+ * are sent together:
+ * <ul>
+ * <li>as a reliable write, when every characteristic declares reliable write in its extended
+ * properties, so the peripheral acknowledges them with one execute. If the stack can't begin
+ * the reliable write, the run is written with response instead;
+ * <li>otherwise as writes without response, when every characteristic allows them, so they are
+ * sent in consecutive connection events;
+ * <li>otherwise as writes with response, one round trip each.
+ * </ul>
+ * The UriBeacon configuration service allows neither reliable writes nor writes without response,
+ * so the faster modes are only used with peripherals that declare them. While writing, the engine
+ * also asks for a short connection interval and, for values that don't fit in one PDU, a larger
+ * MTU.
+ * <p>
+ * The engine is driven by the GATT callbacks of its owner, which must pass them on, and like them
+ * runs on the UI thread. Requests that time out or fail in the {@link GattRequestQueue} reach it
+ * as failed callbacks.
+ */
+public class GattWriteEngine {
+  private static final String TAG = "GattWriteEngine";
+
+  // The Characteristic Extended Properties descriptor. Bit 0 of its value is Reliable Write.
+  static final UUID EXTENDED_PROPERTIES = UUID.fromString("00002900-0000-1000-8000-00805f9b34fb");
+  private static final int RELIABLE_WRITE = 0x01;
+
+  // The ATT MTU until a larger one is agreed, and the header of a Prepare Write Request.
+  private static final int DEFAULT_MTU = 23;
+  private static final int PREPARE_WRITE_HEADER_SIZE = 5;
+  private static final int MAX_MTU = 517;
+
+  /**
+   * How a run of writes is sent.
+   */
+  public enum Mode {
+    ACKNOWLEDGED,
+    RELIABLE,
+    WITHOUT_RESPONSE
+  }
+
+  /**
+   * A characteristic value to write.
+   */
+  public static final class Write {
+    final UUID uuid;
+    final byte[] value;
+    final boolean batchable;
+
+    /**
+     * @param batchable whether the write may be sent together with the batchable writes next to
+     *        it. Writes that later writes depend on, such as an unlock, are not.
+     */
+    public Write(UUID uuid, byte[] value, boolean batchable) {
+      this.uuid = uuid;
+      this.value = value;
+      this.batchable = batchable;
+    }
+  }
+
+  /**
+   * Receives the results of a {@link #write}.
+   */
+  public interface Callback {
+    /**
+     * Called for each characteristic once its write has completed or failed. A write prepared in
+     * a reliable write that is aborted is reported with the status of the failure that aborted
+     * it. Writes that were not attempted because a write they depend on failed are not reported.
+     */
+    void onCharacteristicWrite(UUID uuid, int status);
+
+    /**
+     * Called once all the writes have been attempted, or a write the others depend on has failed.
+     *
+     * @param status {@link BluetoothGatt#GATT_SUCCESS}, or the status of the first failure
+     */
+    void onWriteComplete(int status);
+  }
+
+  private final GattConnection mConnection;
+  // Characteristics whose extended properties allow reliable writes.
+  private final Set<UUID> mReliableWritable = new HashSet<UUID>();
+  private int mMtu = DEFAULT_MTU;
+
+  // The writes in progress. The current run is mWrites[mRunStart, mRunEnd).
+  private List<Write> mWrites;
+  private Callback mCallback;
+  private int mRunStart;
+  private int mRunEnd;
+  private Mode mMode;
+  private int mPending;
+  private int mStatus;
+  private int mRunStatus;
+  // The writes of the current reliable run that the peripheral has prepared.
+  private final List<UUID> mPrepared = new ArrayList<UUID>();
+  private boolean mExecuting;
+  private boolean mPriorityRaised;
+  // Writes the run with response if the stack could not begin the reliable write. The writes of the
+  // run are queued after it, so none has started yet.
+  private final GattRequestQueue.RequestCallback mBeginCallback =
+      new GattRequestQueue.RequestCallback() {
+        @Override
+        public void onRequestComplete(GattRequestQueue.Request request, int status) {
+          if (status != BluetoothGatt.GATT_SUCCESS && isWriting() && mMode == Mode.RELIABLE) {
+            Log.w(TAG, "Could not begin a reliable write, writing with response");
+            mMode = Mode.ACKNOWLEDGED;
+          }
+        }
+      };
+
+  public GattWriteEngine(GattConnection connection) {
+    mConnection = connection;
+  }
+
+  /**
+   * Queues reads of the extended properties of the characteristics that have them, to find
+   * those that allow reliable writes. Call once the service is set, before writing.
+   */
+  public void readWriteProperties(UUID... uuids) {
+    mReliableWritable.clear();
+    for (UUID uuid : uuids) {
+      BluetoothGattCharacteristic characteristic = mConnection.getCharacteristic(uuid);
+      if (characteristic != null
+          && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_EXTENDED_PROPS)
+              != 0
+          && characteristic.getDescriptor(EXTENDED_PROPERTIES) != null) {
+        mConnection.readDescriptor(uuid, EXTENDED_PROPERTIES);
+      }
+    }
+  }
+
+  public boolean isWriting() {
+    return mWrites != null;
+  }
+
+  /**
+   * Starts writing the characteristics in order.
+   *
+   * @throws IllegalStateException if a write is already in progress
+   */
+  public void write(List<Write> writes, Callback callback) {
+    if (isWriting()) {
+      throw new IllegalStateException("A write is already in progress");
+    }
+    if (writes.isEmpty()) {
+      callback.onWriteComplete(BluetoothGatt.GATT_SUCCESS);
+      return;
+    }
+    mWrites = new ArrayList<Write>(writes);
+    mCallback = callback;
+    mStatus = BluetoothGatt.GATT_SUCCESS;
+    mRunEnd = 0;
+    tuneConnection();
+    startNextRun();
+  }
+
+  /**
+   * Ends the write in progress, if any, with the given status unless a write had already failed.
+   * Call when the connection drops, as the requests it was waiting for are then cancelled.
+   *
+   * @param status the status to report, such as that of the disconnection
+   */
+  public void cancel(int status) {
+    if (isWriting()) {
+      // There is no connection to restore the priority of.
+      mPriorityRaised = false;
+      fail(status);
+      finish();
+    }
+  }
+
+  /**
+   * Passes on {@link android.bluetooth.BluetoothGattCallback#onCharacteristicWrite}.
+   *
+   * @return true if the write was one of the engine's
+   */
+  public boolean onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+    if (!isWriting() || mExecuting || !isInRun(characteristic.getUuid())) {
+      return false;
+    }
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      fail(status);
+      mCallback.onCharacteristicWrite(characteristic.getUuid(), status);
+    } else if (mMode != Mode.RELIABLE) {
+      mCallback.onCharacteristicWrite(characteristic.getUuid(), status);
+    } else {
+      mPrepared.add(characteristic.getUuid());
+    }
+    if (--mPending > 0) {
+      return true;
+    }
+    if (mMode == Mode.RELIABLE) {
+      // The prepared writes are applied, or discarded, together.
+      if (mRunStatus == BluetoothGatt.GATT_SUCCESS) {
+        mExecuting = true;
+        mConnection.executeReliableWrite();
+      } else {
+        mConnection.abortReliableWrite();
+        for (UUID uuid : mPrepared) {
+          mCallback.onCharacteristicWrite(uuid, mRunStatus);
+        }
+        startNextRun();
+      }
+    } else if (mRunStatus != BluetoothGatt.GATT_SUCCESS && !mWrites.get(mRunStart).batchable) {
+      // The writes after it depend on it.
+      finish();
+    } else {
+      startNextRun();
+    }
+    return true;
+  }
+
+  /**
+   * Passes on {@link android.bluetooth.BluetoothGattCallback#onReliableWriteCompleted}.
+   *
+   * @return true if the reliable write was the engine's
+   */
+  public boolean onReliableWriteCompleted(int status) {
+    if (!isWriting() || !mExecuting) {
+      return false;
+    }
+    mExecuting = false;
+    for (int i = mRunStart; i < mRunEnd; i++) {
+      mCallback.onCharacteristicWrite(mWrites.get(i).uuid, status);
+    }
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      fail(status);
+    }
+    startNextRun();
+    return true;
+  }
+
+  /**
+   * Passes on {@link android.bluetooth.BluetoothGattCallback#onDescriptorRead}.
+   *
+   * @return true if the descriptor was one the engine read
+   */
+  public boolean onDescriptorRead(BluetoothGattDescriptor descriptor, int status) {
+    if (!EXTENDED_PROPERTIES.equals(descriptor.getUuid())) {
+      return false;
+    }
+    byte[] value = descriptor.getValue();
+    if (status == BluetoothGatt.GATT_SUCCESS && value != null && value.length > 0
+        && (value[0] & RELIABLE_WRITE) != 0) {
+      mReliableWritable.add(descriptor.getCharacteristic().getUuid());
+    }
+    return true;
+  }
+
+  /**
+   * Passes on {@link android.bluetooth.BluetoothGattCallback#onMtuChanged}.
+   */
+  public void onMtuChanged(int mtu, int status) {
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      mMtu = mtu;
+    }
+  }
+
+  /**
+   * Returns how a run of writes would be sent.
+   */
+  Mode selectMode(List<Write> writes, int start, int end) {
+    if (!writes.get(start).batchable) {
+      return Mode.ACKNOWLEDGED;
+    }
+    boolean reliable = end - start > 1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    boolean withoutResponse = true;
+    for (int i = start; i < end; i++) {
+      UUID uuid = writes.get(i).uuid;
+      BluetoothGattCharacteristic characteristic = mConnection.getCharacteristic(uuid);
+      reliable &= mReliableWritable.contains(uuid);
+      withoutResponse &= characteristic != null && (characteristic.getProperties()
+          & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+    }
+    if (reliable) {
+      return Mode.RELIABLE;
+    }
+    return withoutResponse ? Mode.WITHOUT_RESPONSE : Mode.ACKNOWLEDGED;
+  }
+
+  private void startNextRun() {
+    mRunStart = mRunEnd;
+    if (mRunStart == mWrites.size()) {
+      finish();
+      return;
+    }
+    mRunEnd = mRunStart + 1;
+    if (mWrites.get(mRunStart).batchable) {
+      while (mRunEnd < mWrites.size() && mWrites.get(mRunEnd).batchable) {
+        mRunEnd++;
+      }
+    }
+    mMode = selectMode(mWrites, mRunStart, mRunEnd);
+    mPending = mRunEnd - mRunStart;
+    mRunStatus = BluetoothGatt.GATT_SUCCESS;
+    mPrepared.clear();
+    Log.d(TAG, "Writing " + mPending + " characteristics, " + mMode);
+    if (mMode == Mode.RELIABLE) {
+      mConnection.beginReliableWrite().setCallback(mBeginCallback);
+    }
+    int writeType = mMode == Mode.WITHOUT_RESPONSE
+        ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+        : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    for (int i = mRunStart; i < mRunEnd; i++) {
+      Write write = mWrites.get(i);
+      mConnection.writeCharacteristic(write.uuid, write.value, writeType);
+    }
+  }
+
+  // Records a failure in the current run. The run and the write complete with the first failure's
+  // status.
+  private void fail(int status) {
+    if (mRunStatus == BluetoothGatt.GATT_SUCCESS) {
+      mRunStatus = status;
+    }
+    if (mStatus == BluetoothGatt.GATT_SUCCESS) {
+      mStatus = status;
+    }
+  }
+
+  private boolean isInRun(UUID uuid) {
+    for (int i = mRunStart; i < mRunEnd; i++) {
+      if (mWrites.get(i).uuid.equals(uuid)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Asks for a short connection interval while writing, and an MTU that fits the largest value.
+  private void tuneConnection() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return;
+    }
+    mConnection.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    mPriorityRaised = true;
+    int largestValue = 0;
+    for (Write write : mWrites) {
+      largestValue = Math.max(largestValue, write.value.length);
+    }
+    if (largestValue + PREPARE_WRITE_HEADER_SIZE > mMtu) {
+      mConnection.requestMtu(Math.min(largestValue + PREPARE_WRITE_HEADER_SIZE, MAX_MTU));
+    }
+  }
+
+  private void finish() {
+    if (mPriorityRaised) {
+      mConnection.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+      mPriorityRaised = false;
+    }
+    Callback callback = mCallback;
+    int status = mStatus;
+    mWrites = null;
+    mCallback = null;
+    mExecuting = false;
+    callback.onWriteComplete(status);
+  }
+}
@@ -40,16 +40,16 @@ public class ProtocolV1 extends BaseProtocol {
   private static final UUID DATA_LENGTH = UUID.fromString("b35d7da9-eed4-4d59-8f89-f6573edea967");
   private static final int DATA_LENGTH_MAX = 20;
   private static final byte TX_POWER_LEVEL_DEFAULT = -22;
-  private final GattService mService;
+  private final GattConnection mConnection;
   private final UriBeaconCallback mUriBeaconCallback;
   private Integer mDataLength;
   private byte[] mData;
   private byte[] mDataWrite;
   private ConfigUriBeacon mConfigUriBeacon;
 
-  public ProtocolV1(GattService serviceConnection,
+  public ProtocolV1(GattConnection connection,
       UriBeaconCallback uriBeaconCallback) {
-    mService = serviceConnection;
+    mConnection = connection;
     mUriBeaconCallback = uriBeaconCallback;
   }
 
@@ -85,12 +85,12 @@ public class ProtocolV1 extends BaseProtocol {
     mDataWrite = correctedUriBeacon.toByteArray();
     if (mDataWrite.length <= 20) {
       // write the value
-      mService.writeCharacteristic(DATA_ONE, mDataWrite);
+      mConnection.writeCharacteristic(DATA_ONE, mDataWrite);
     } else {
       byte[] buff = Arrays.copyOfRange(mDataWrite, 0, 20);
       Log.d(TAG, "Buffer length is " + buff.length);
-      mService.writeCharacteristic(DATA_ONE, buff);
-      mService.writeCharacteristic(DATA_TWO,
+      mConnection.writeCharacteristic(DATA_ONE, buff);
+      mConnection.writeCharacteristic(DATA_TWO,
           Arrays.copyOfRange(mDataWrite, 20, mDataWrite.length));
     }
   }
@@ -99,15 +99,20 @@ public class ProtocolV1 extends BaseProtocol {
   public void onConnectionStateChange(android.bluetooth.BluetoothGatt gatt, int status,
       int newState) {
     if (newState == BluetoothProfile.STATE_CONNECTED) {
-      mService.discoverServices();
+      mConnection.discoverServices();
     }
   }
 
   @Override
   public void onServicesDiscovered(BluetoothGatt gatt, int status) {
     Log.d(TAG, "onServicesDiscovered request queue");
-    mService.setService(CONFIG_SERVICE_UUID.getUuid());
-    mService.readCharacteristic(DATA_LENGTH);
+    if (status != BluetoothGatt.GATT_SUCCESS
+        || !mConnection.setService(CONFIG_SERVICE_UUID.getUuid())) {
+      mUriBeaconCallback.onUriBeaconRead(null,
+          status != BluetoothGatt.GATT_SUCCESS ? status : BluetoothGatt.GATT_FAILURE);
+      return;
+    }
+    mConnection.readCharacteristic(DATA_LENGTH);
   }
 
   @Override
@@ -119,11 +124,11 @@ public class ProtocolV1 extends BaseProtocol {
       try {
         if (DATA_LENGTH.equals(uuid)) {
           mDataLength = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT8, 0);
-          mService.readCharacteristic(DATA_ONE);
+          mConnection.readCharacteristic(DATA_ONE);
         } else if (DATA_ONE.equals(uuid)) {
           mData = characteristic.getValue();
           if (mDataLength > DATA_LENGTH_MAX) {
-            mService.readCharacteristic(DATA_TWO);
+            mConnection.readCharacteristic(DATA_TWO);
           } else {
             mConfigUriBeacon = ConfigUriBeacon.createConfigUriBeacon(mData);
             mUriBeaconCallback.onUriBeaconRead(mConfigUriBeacon, status);
@@ -18,6 +18,7 @@ package org.uribeacon.config;
 
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothProfile;
 import android.os.ParcelUuid;
 import android.util.Log;
@@ -25,9 +26,12 @@ import android.util.Log;
 import org.uribeacon.beacon.ConfigUriBeacon;
 import org.uribeacon.beacon.ConfigUriBeacon.Builder;
 import org.uribeacon.config.UriBeaconConfig.UriBeaconCallback;
+import org.uribeacon.config.UriBeaconConfig.UriBeaconWriteCallback;
 
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
 public class ProtocolV2 extends BaseProtocol {
@@ -47,147 +51,228 @@ public class ProtocolV2 extends BaseProtocol {
   private static final int LOCK_FORMAT = BluetoothGattCharacteristic.FORMAT_UINT8;
   private static final int PERIOD_FORMAT = BluetoothGattCharacteristic.FORMAT_UINT16;
 
-  private final GattService mService;
+  private final GattConnection mConnection;
   private final UriBeaconCallback mUriBeaconCallback;
-  private UUID mLastUUID;
+  private final GattWriteEngine mWriteEngine;
+  private final GattWriteEngine.Callback mWriteCallback = new GattWriteEngine.Callback() {
+    @Override
+    public void onCharacteristicWrite(UUID uuid, int status) {
+      if (mUriBeaconCallback instanceof UriBeaconWriteCallback) {
+        ((UriBeaconWriteCallback) mUriBeaconCallback).onCharacteristicWrite(uuid, status);
+      }
+    }
+
+    @Override
+    public void onWriteComplete(int status) {
+      if (status == BluetoothGatt.GATT_SUCCESS && mExpectedUriBeacon != null) {
+        mConfigUriBeacon = mExpectedUriBeacon;
+        if (mConfigCache != null) {
+          mConfigCache.put(mAddress, mConfigUriBeacon, mKnownFields);
+        }
+      } else if (mConfigCache != null) {
+        // What the beacon has now is unknown.
+        mConfigCache.remove(mAddress);
+      }
+      mUriBeaconCallback.onUriBeaconWrite(status);
+    }
+  };
+  private int mReadFields = UriBeaconConfig.FIELD_ALL;
+  private ConfigCache mConfigCache;
+  private String mAddress;
   private ConfigUriBeacon mConfigUriBeacon;
+  // The fields of mConfigUriBeacon that were read, rather than left at their defaults.
+  private int mKnownFields;
+  // The configuration the beacon has if the write in progress succeeds, or null if unknown.
+  private ConfigUriBeacon mExpectedUriBeacon;
   private ConfigUriBeacon.Builder mBuilder;
+  // The number of reads still to complete, or -1 once one has failed.
+  private int mPendingReads;
 
-  public ProtocolV2(GattService serviceConnection,
+  public ProtocolV2(GattConnection connection,
       UriBeaconCallback beaconCallback) {
-    mService = serviceConnection;
+    mConnection = connection;
     mUriBeaconCallback = beaconCallback;
+    mWriteEngine = new GattWriteEngine(connection);
   }
 
   public ParcelUuid getVersion() {
     return CONFIG_SERVICE_UUID;
   }
 
+  @Override
+  public void setReadFields(int fields) {
+    mReadFields = fields;
+  }
+
+  @Override
+  public void setConfigCache(ConfigCache configCache) {
+    mConfigCache = configCache;
+  }
+
   public void writeUriBeacon(ConfigUriBeacon configUriBeacon) throws URISyntaxException {
     //TODO: If beacon has invalid data initialize a beacon with RESET values
-    // Define last call
-    if (mConfigUriBeacon.getLockState()) {
-      if (configUriBeacon.getKey() == null) {
-        mUriBeaconCallback.onUriBeaconWrite(ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION);
-      }
-      mLastUUID = UNLOCK;
+    if ((mConfigUriBeacon.getLockState() || configUriBeacon.getLockState())
+        && configUriBeacon.getKey() == null) {
+      mUriBeaconCallback.onUriBeaconWrite(ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION);
+      return;
     }
-    if (configUriBeacon.getReset()) {
-      mLastUUID = RESET;
-    } else {
-      if (configUriBeacon.getUriString() != null
-          && !configUriBeacon.getUriString().equals(mConfigUriBeacon.getUriString())) {
-        mLastUUID = DATA;
-      }
-      if (configUriBeacon.getFlags() != mConfigUriBeacon.getFlags()) {
-        mLastUUID = FLAGS;
-      }
-      if (configUriBeacon.getAdvertisedTxPowerLevels() != null
-          && !Arrays.equals(configUriBeacon.getAdvertisedTxPowerLevels(),
-          mConfigUriBeacon.getAdvertisedTxPowerLevels())) {
-        mLastUUID = POWER_LEVELS;
-      }
-      if (configUriBeacon.getTxPowerMode() != ConfigUriBeacon.POWER_MODE_NONE
-          && configUriBeacon.getTxPowerMode() != mConfigUriBeacon.getTxPowerMode()) {
-        mLastUUID = POWER_MODE;
-      }
-      if (configUriBeacon.getBeaconPeriod() != ConfigUriBeacon.PERIOD_NONE
-          && configUriBeacon.getBeaconPeriod() != mConfigUriBeacon.getBeaconPeriod()) {
-        mLastUUID = PERIOD;
-      }
-      if (configUriBeacon.getLockState()) {
-        if (configUriBeacon.getKey() == null) {
-          mUriBeaconCallback.onUriBeaconWrite(ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION);
-        }
-        mLastUUID = LOCK;
-      }
-      // If there are no changes or the only change is that the beacon was unlocked, return.
-    }
-    if (mLastUUID == null) {
-      mUriBeaconCallback.onUriBeaconWrite(BluetoothGatt.GATT_SUCCESS);
-    }
-    // Start enqueing writes
+    // Unlock, lock and reset are written on their own, the fields between them in one batch.
+    // Only the fields that were read are compared and written.
+    List<GattWriteEngine.Write> writes = new ArrayList<GattWriteEngine.Write>();
     if (mConfigUriBeacon.getLockState()) {
-      mService.writeCharacteristic(UNLOCK, configUriBeacon.getKey());
+      writes.add(new GattWriteEngine.Write(UNLOCK, configUriBeacon.getKey(), false));
     }
     if (configUriBeacon.getReset()) {
-      mService.writeCharacteristic(RESET, new byte[]{1});
+      writes.add(new GattWriteEngine.Write(RESET, new byte[]{1}, false));
+      mExpectedUriBeacon = null;
     } else {
-      if (configUriBeacon.getUriString() != null
+      ConfigUriBeacon.Builder expected = new Builder()
+          .lockState(configUriBeacon.getLockState())
+          .uriString(mConfigUriBeacon.getUriString())
+          .flags(mConfigUriBeacon.getFlags());
+      byte[] txPowerLevels = mConfigUriBeacon.getAdvertisedTxPowerLevels();
+      byte txPowerMode = mConfigUriBeacon.getTxPowerMode();
+      int beaconPeriod = mConfigUriBeacon.getBeaconPeriod();
+      if ((mReadFields & UriBeaconConfig.FIELD_URI) != 0
+          && configUriBeacon.getUriString() != null
           && !configUriBeacon.getUriString().equals(mConfigUriBeacon.getUriString())) {
-        mService.writeCharacteristic(DATA, configUriBeacon.getUriBytes());
+        writes.add(new GattWriteEngine.Write(DATA, configUriBeacon.getUriBytes(), true));
+        expected.uriString(configUriBeacon.getUriString());
       }
-      if (configUriBeacon.getFlags() != mConfigUriBeacon.getFlags()) {
-        mService.writeCharacteristic(FLAGS, new byte[]{configUriBeacon.getFlags()});
+      if ((mReadFields & UriBeaconConfig.FIELD_FLAGS) != 0
+          && configUriBeacon.getFlags() != mConfigUriBeacon.getFlags()) {
+        writes.add(new GattWriteEngine.Write(FLAGS, new byte[]{configUriBeacon.getFlags()}, true));
+        expected.flags(configUriBeacon.getFlags());
       }
-      if (configUriBeacon.getAdvertisedTxPowerLevels() != null
-          && !Arrays.equals(configUriBeacon.getAdvertisedTxPowerLevels(),
-          mConfigUriBeacon.getAdvertisedTxPowerLevels())) {
-        mService.writeCharacteristic(POWER_LEVELS, configUriBeacon.getAdvertisedTxPowerLevels());
+      if ((mReadFields & UriBeaconConfig.FIELD_TX_POWER_AND_PERIOD) != 0) {
+        if (configUriBeacon.getAdvertisedTxPowerLevels() != null
+            && !Arrays.equals(configUriBeacon.getAdvertisedTxPowerLevels(), txPowerLevels)) {
+          txPowerLevels = configUriBeacon.getAdvertisedTxPowerLevels();
+          writes.add(new GattWriteEngine.Write(POWER_LEVELS, txPowerLevels, true));
+        }
+        if (configUriBeacon.getTxPowerMode() != ConfigUriBeacon.POWER_MODE_NONE
+            && configUriBeacon.getTxPowerMode() != txPowerMode) {
+          txPowerMode = configUriBeacon.getTxPowerMode();
+          writes.add(new GattWriteEngine.Write(POWER_MODE, new byte[]{txPowerMode}, true));
+        }
+        if (configUriBeacon.getBeaconPeriod() != ConfigUriBeacon.PERIOD_NONE
+            && configUriBeacon.getBeaconPeriod() != beaconPeriod) {
+          // PERIOD_FORMAT, little endian.
+          beaconPeriod = configUriBeacon.getBeaconPeriod();
+          writes.add(new GattWriteEngine.Write(PERIOD,
+              new byte[]{(byte) beaconPeriod, (byte) (beaconPeriod >> 8)}, true));
+        }
       }
-      if (configUriBeacon.getTxPowerMode() != ConfigUriBeacon.POWER_MODE_NONE
-          && configUriBeacon.getTxPowerMode() != mConfigUriBeacon.getTxPowerMode()) {
-        mService.writeCharacteristic(POWER_MODE, new byte[]{configUriBeacon.getTxPowerMode()});
+      if (configUriBeacon.getLockState()) {
+        writes.add(new GattWriteEngine.Write(LOCK, configUriBeacon.getKey(), false));
       }
-      if (configUriBeacon.getBeaconPeriod() != ConfigUriBeacon.PERIOD_NONE
-          && configUriBeacon.getBeaconPeriod() != mConfigUriBeacon.getBeaconPeriod()) {
-        mService.writeCharacteristic(PERIOD, configUriBeacon.getBeaconPeriod(), PERIOD_FORMAT, 0);
+      if (txPowerLevels != null || txPowerMode != ConfigUriBeacon.POWER_MODE_NONE
+          || beaconPeriod != ConfigUriBeacon.PERIOD_NONE) {
+        expected.advertisedTxPowerLevels(txPowerLevels)
+            .txPowerMode(txPowerMode)
+            .beaconPeriod(beaconPeriod);
       }
-      if (configUriBeacon.getLockState()) {
-        mService.writeCharacteristic(LOCK, configUriBeacon.getKey());
+      try {
+        mExpectedUriBeacon = expected.build();
+      } catch (URISyntaxException | IllegalArgumentException e) {
+        // Only some of the tx power fields are known.
+        mExpectedUriBeacon = null;
       }
     }
+    // If there are no changes this reports success straight away.
+    mWriteEngine.write(writes, mWriteCallback);
   }
 
   @Override
   public void onConnectionStateChange(android.bluetooth.BluetoothGatt gatt, int status,
       int newState) {
     if (newState == BluetoothProfile.STATE_CONNECTED) {
-      mService.discoverServices();
+      mConnection.discoverServices();
+    } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+      // The write in progress fails with the status of the disconnection.
+      mWriteEngine.cancel(
+          status != BluetoothGatt.GATT_SUCCESS ? status : BluetoothGatt.GATT_FAILURE);
     }
   }
 
   @Override
   public void onServicesDiscovered(BluetoothGatt gatt, int status) {
     Log.d(TAG, "onServicesDiscovered request queue");
-    mBuilder = new Builder();
-    mService.setService(CONFIG_SERVICE_UUID.getUuid());
-    mService.readCharacteristic(LOCK_STATE);
-    mService.readCharacteristic(DATA);
-    mService.readCharacteristic(FLAGS);
-    mService.readCharacteristic(POWER_LEVELS);
-    mService.readCharacteristic(POWER_MODE);
-    mService.readCharacteristic(PERIOD);
+    if (status != BluetoothGatt.GATT_SUCCESS
+        || !mConnection.setService(CONFIG_SERVICE_UUID.getUuid())) {
+      mUriBeaconCallback.onUriBeaconRead(null,
+          status != BluetoothGatt.GATT_SUCCESS ? status : BluetoothGatt.GATT_FAILURE);
+      return;
+    }
+    mAddress = mConnection.getAddress();
+    ConfigCache.Entry entry = mConfigCache != null ? mConfigCache.get(mAddress, mReadFields) : null;
+    if (entry != null) {
+      // The write properties aren't read either. The spec allows no reliable writes, so the write
+      // engine only misses them on beacons that don't follow it.
+      mConfigUriBeacon = entry.getConfigUriBeacon();
+      mKnownFields = entry.getFields();
+      mUriBeaconCallback.onUriBeaconRead(mConfigUriBeacon, BluetoothGatt.GATT_SUCCESS);
+      return;
+    }
+    mBuilder = new Builder().uriString(ConfigUriBeacon.NO_URI);
+    mWriteEngine.readWriteProperties(DATA, FLAGS, POWER_LEVELS, POWER_MODE, PERIOD);
+    mConnection.readCharacteristic(LOCK_STATE);
+    mPendingReads = 1;
+    if ((mReadFields & UriBeaconConfig.FIELD_URI) != 0) {
+      mConnection.readCharacteristic(DATA);
+      mPendingReads++;
+    }
+    if ((mReadFields & UriBeaconConfig.FIELD_FLAGS) != 0) {
+      mConnection.readCharacteristic(FLAGS);
+      mPendingReads++;
+    }
+    if ((mReadFields & UriBeaconConfig.FIELD_TX_POWER_AND_PERIOD) != 0) {
+      mConnection.readCharacteristic(POWER_LEVELS);
+      mConnection.readCharacteristic(POWER_MODE);
+      mConnection.readCharacteristic(PERIOD);
+      mPendingReads += 3;
+    }
   }
 
   @Override
   public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic,
       int status) {
-    // If the operation was successful
-    if (status == BluetoothGatt.GATT_SUCCESS) {
-      UUID uuid = characteristic.getUuid();
-      try {
-        if (LOCK_STATE.equals(uuid)) {
-          //0 unlocked; 1 locked
-          mBuilder.lockState(characteristic.getIntValue(LOCK_FORMAT, 0) != 0);
-        } else if (DATA.equals(uuid)) {
-          mBuilder.uriString(characteristic.getValue());
-        } else if (FLAGS.equals(uuid)) {
-          mBuilder.flags(characteristic.getValue()[0]);
-        } else if (POWER_LEVELS.equals(uuid)) {
-          mBuilder.advertisedTxPowerLevels(characteristic.getValue());
-        } else if (POWER_MODE.equals(uuid)) {
-          mBuilder.txPowerMode(characteristic.getValue()[0]);
-        } else if (PERIOD.equals(uuid)) {
-          mBuilder.beaconPeriod(characteristic.getIntValue(PERIOD_FORMAT, 0));
-          mConfigUriBeacon = mBuilder.build();
-          mUriBeaconCallback.onUriBeaconRead(mConfigUriBeacon, status);
+    if (mPendingReads <= 0) {
+      // A read has already failed.
+      return;
+    }
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      mPendingReads = -1;
+      mUriBeaconCallback.onUriBeaconRead(null, status);
+      return;
+    }
+    UUID uuid = characteristic.getUuid();
+    try {
+      if (LOCK_STATE.equals(uuid)) {
+        //0 unlocked; 1 locked
+        mBuilder.lockState(characteristic.getIntValue(LOCK_FORMAT, 0) != 0);
+      } else if (DATA.equals(uuid)) {
+        mBuilder.uriString(characteristic.getValue());
+      } else if (FLAGS.equals(uuid)) {
+        mBuilder.flags(characteristic.getValue()[0]);
+      } else if (POWER_LEVELS.equals(uuid)) {
+        mBuilder.advertisedTxPowerLevels(characteristic.getValue());
+      } else if (POWER_MODE.equals(uuid)) {
+        mBuilder.txPowerMode(characteristic.getValue()[0]);
+      } else if (PERIOD.equals(uuid)) {
+        mBuilder.beaconPeriod(characteristic.getIntValue(PERIOD_FORMAT, 0));
+      }
+      if (--mPendingReads == 0) {
+        mConfigUriBeacon = mBuilder.build();
+        mKnownFields = mReadFields;
+        if (mConfigCache != null) {
+          mConfigCache.put(mAddress, mConfigUriBeacon, mKnownFields);
         }
-      } catch (URISyntaxException | IllegalArgumentException e) {
-        e.printStackTrace();
-        mUriBeaconCallback.onUriBeaconRead(null, status);
+        mUriBeaconCallback.onUriBeaconRead(mConfigUriBeacon, status);
       }
-    } else {
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      e.printStackTrace();
+      mPendingReads = -1;
       mUriBeaconCallback.onUriBeaconRead(null, status);
     }
   }
@@ -195,13 +280,22 @@ public class ProtocolV2 extends BaseProtocol {
   @Override
   public void onCharacteristicWrite(android.bluetooth.BluetoothGatt gatt,
       BluetoothGattCharacteristic characteristic, int status) {
-    // If the operation was successful
-    if (status == BluetoothGatt.GATT_SUCCESS) {
-      if (mLastUUID.equals(characteristic.getUuid())) {
-        mUriBeaconCallback.onUriBeaconWrite(status);
-      }
-    } else {
-      mUriBeaconCallback.onUriBeaconWrite(status);
-    }
+    mWriteEngine.onCharacteristicWrite(characteristic, status);
+  }
+
+  @Override
+  public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+    mWriteEngine.onReliableWriteCompleted(status);
+  }
+
+  @Override
+  public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+      int status) {
+    mWriteEngine.onDescriptorRead(descriptor, status);
+  }
+
+  @Override
+  public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+    mWriteEngine.onMtuChanged(mtu, status);
   }
 }
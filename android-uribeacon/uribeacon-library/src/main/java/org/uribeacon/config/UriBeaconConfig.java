@@ -30,6 +30,20 @@ import java.net.URISyntaxException;
 import java.util.UUID;
 
 public class UriBeaconConfig {
+  /**
+   * The URI.
+   */
+  public static final int FIELD_URI = 1;
+  /**
+   * The flags.
+   */
+  public static final int FIELD_FLAGS = 2;
+  /**
+   * The advertised tx power levels, tx power mode and beacon period, which a
+   * {@link ConfigUriBeacon} either has all of or none of.
+   */
+  public static final int FIELD_TX_POWER_AND_PERIOD = 4;
+  public static final int FIELD_ALL = FIELD_URI | FIELD_FLAGS | FIELD_TX_POWER_AND_PERIOD;
 
   private static final String TAG = UriBeaconConfig.class.getCanonicalName();
   private Context mContext;
@@ -38,16 +52,20 @@ public class UriBeaconConfig {
   private BaseProtocol mBaseProtocol;
   private GattService mService;
   private UUID mUuid;
+  private int mReadFields = FIELD_ALL;
+  private ConfigCache mConfigCache;
   private ServiceConnection mServiceConnection = new ServiceConnection() {
     @Override
     public void onServiceConnected(ComponentName className, IBinder service) {
       GattService.LocalBinder binder = (GattService.LocalBinder) service;
       mService = binder.getService();
       if (ProtocolV2.CONFIG_SERVICE_UUID.getUuid().equals(mUuid)) {
-        mBaseProtocol = new ProtocolV2(mService, mUriBeaconCallback);
+        mBaseProtocol = new ProtocolV2(mService.getConnection(), mUriBeaconCallback);
       } else if (ProtocolV1.CONFIG_SERVICE_UUID.getUuid().equals(mUuid)) {
-        mBaseProtocol = new ProtocolV1(mService, mUriBeaconCallback);
+        mBaseProtocol = new ProtocolV1(mService.getConnection(), mUriBeaconCallback);
       }
+      mBaseProtocol.setReadFields(mReadFields);
+      mBaseProtocol.setConfigCache(mConfigCache);
       mService.connect(mContext, mDevice, mBaseProtocol);
     }
 
@@ -68,6 +86,26 @@ public class UriBeaconConfig {
     return mBaseProtocol.getVersion();
   }
 
+  /**
+   * Sets the fields the caller is interested in, as a combination of the {@code FIELD_}
+   * constants. Only these fields and the lock state are read, and only these fields are written
+   * by {@link #writeUriBeacon}. Must be called before {@link #connectUriBeacon}.
+   * <p/>
+   * The version 1 protocol reads and writes the whole configuration regardless.
+   */
+  public void setReadFields(int fields) {
+    mReadFields = fields;
+  }
+
+  /**
+   * Sets a cache of beacon configurations. The configuration is not read when a fresh entry for
+   * the beacon knows the fields being read, and the cache is updated after each read and write.
+   * Must be called before {@link #connectUriBeacon}.
+   */
+  public void setConfigCache(ConfigCache configCache) {
+    mConfigCache = configCache;
+  }
+
   /**
    * Initiate the Gatt connection to the beacon
    *
@@ -115,4 +153,19 @@ public class UriBeaconConfig {
      */
     public void onUriBeaconWrite(int status);
   }
+
+  /**
+   * A {@link UriBeaconCallback} that is also told the result of each characteristic written.
+   */
+  public interface UriBeaconWriteCallback extends UriBeaconCallback {
+
+    /**
+     * Called when a characteristic has been written, before
+     * {@link UriBeaconCallback#onUriBeaconWrite}.
+     *
+     * @param uuid the characteristic written
+     * @param status Status code from the gatt request.
+     */
+    public void onCharacteristicWrite(UUID uuid, int status);
+  }
 }
\ No newline at end of file
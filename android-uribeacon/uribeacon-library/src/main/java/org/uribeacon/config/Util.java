@@ -31,6 +31,24 @@ public class Util {
     return sb.toString();
   }
 
+  /**
+   * Convert a string made by {@link #byteArrayToHexString} back into a byte array.
+   *
+   * @param s the string to convert.
+   * @return the byte array.
+   * @throws IllegalArgumentException if the string is not made of pairs of hex digits.
+   */
+  public static byte[] hexStringToByteArray(String s) {
+    if (s.length() % 2 != 0) {
+      throw new IllegalArgumentException("Odd length hex string: " + s);
+    }
+    byte[] result = new byte[s.length() / 2];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+    }
+    return result;
+  }
+
   /**
    * Concatenates two byte arrays.
    *
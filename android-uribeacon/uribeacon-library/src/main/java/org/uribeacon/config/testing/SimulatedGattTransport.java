@@ -0,0 +1,450 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config.testing;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.uribeacon.config.GattTransport;
+import org.uribeacon.config.ProtocolV2;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A {@link GattTransport} to a {@link SimulatedUriBeacon}, for testing the configuration
+ * protocols without a device.
+ * <p/>
+ * The beacon offers the UriBeacon configuration service with the properties of the spec: no
+ * writes without response and no reliable writes. Every operation answers after a configurable
+ * latency, and a configurable share of connections fail, with status
+ * {@link #STATUS_CONNECTION_FAILED} as on Android, and of requests get no answer at all, so that
+ * the client's timeouts come into play. A lost request does not reach the beacon. Chance is drawn
+ * from the given {@link Random}, so a seeded one makes a run repeatable.
+ * <p/>
+ * Callbacks are made on the thread of the given {@link Handler}, with a null {@code gatt}.
+ */
+public class SimulatedGattTransport implements GattTransport {
+  /**
+   * The status Android reports when a connection can't be established.
+   */
+  public static final int STATUS_CONNECTION_FAILED = 133;
+  public static final long DEFAULT_CONNECT_LATENCY_MILLIS = 500;
+  public static final long DEFAULT_OPERATION_LATENCY_MILLIS = 30;
+  public static final int DEFAULT_MAX_MTU = 23;
+
+  private final SimulatedUriBeacon mBeacon;
+  private final Handler mHandler;
+  private final Random mRandom;
+  private final BluetoothGattService mGattService;
+  private long mConnectLatencyMillis = DEFAULT_CONNECT_LATENCY_MILLIS;
+  private long mOperationLatencyMillis = DEFAULT_OPERATION_LATENCY_MILLIS;
+  private double mConnectFailureRate;
+  private double mLossRate;
+  private int mMaxMtu = DEFAULT_MAX_MTU;
+
+  private BluetoothGattCallback mCallback;
+  private boolean mConnected;
+  private boolean mDiscovered;
+  // Whether a request is waiting for its answer. Like BluetoothGatt, the transport takes one at a
+  // time.
+  private boolean mBusy;
+  // Bumped when the connection ends, so that answers scheduled before are dropped.
+  private int mGeneration;
+  private int mConnectionCount;
+  private int mRequestCount;
+  private int mLostCount;
+
+  /**
+   * A transport that calls back on the main thread, with a fixed seed.
+   */
+  public SimulatedGattTransport(SimulatedUriBeacon beacon) {
+    this(beacon, new Handler(Looper.getMainLooper()), new Random(0));
+  }
+
+  /**
+   * @param beacon the beacon at the other end
+   * @param handler the handler of the thread to call back on
+   * @param random the source of connection failures and lost requests
+   */
+  public SimulatedGattTransport(SimulatedUriBeacon beacon, Handler handler, Random random) {
+    mBeacon = beacon;
+    mHandler = handler;
+    mRandom = random;
+    mGattService = newConfigService();
+  }
+
+  /**
+   * Sets the time from {@link #connect} to the connection state change.
+   */
+  public synchronized void setConnectLatencyMillis(long connectLatencyMillis) {
+    mConnectLatencyMillis = connectLatencyMillis;
+  }
+
+  /**
+   * Sets the time each request takes to be answered, such as a connection interval.
+   */
+  public synchronized void setOperationLatencyMillis(long operationLatencyMillis) {
+    mOperationLatencyMillis = operationLatencyMillis;
+  }
+
+  /**
+   * Sets the share of connections that fail, from 0 to 1.
+   */
+  public synchronized void setConnectFailureRate(double connectFailureRate) {
+    mConnectFailureRate = connectFailureRate;
+  }
+
+  /**
+   * Sets the share of requests that are never answered, from 0 to 1.
+   */
+  public synchronized void setLossRate(double lossRate) {
+    mLossRate = lossRate;
+  }
+
+  /**
+   * Sets the largest MTU the beacon agrees to.
+   */
+  public synchronized void setMaxMtu(int maxMtu) {
+    mMaxMtu = maxMtu;
+  }
+
+  public SimulatedUriBeacon getBeacon() {
+    return mBeacon;
+  }
+
+  /**
+   * Returns the number of connections attempted.
+   */
+  public synchronized int getConnectionCount() {
+    return mConnectionCount;
+  }
+
+  /**
+   * Returns the number of requests taken, including lost ones.
+   */
+  public synchronized int getRequestCount() {
+    return mRequestCount;
+  }
+
+  /**
+   * Returns the number of requests that were never answered.
+   */
+  public synchronized int getLostCount() {
+    return mLostCount;
+  }
+
+  @Override
+  public synchronized boolean connect(BluetoothGattCallback callback) {
+    mCallback = callback;
+    mConnectionCount++;
+    final boolean failed = mRandom.nextDouble() < mConnectFailureRate;
+    schedule(mConnectLatencyMillis, new Answer() {
+      @Override
+      void run(BluetoothGattCallback callback) {
+        if (failed) {
+          callback.onConnectionStateChange(null, STATUS_CONNECTION_FAILED,
+              BluetoothProfile.STATE_DISCONNECTED);
+        } else {
+          callback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS,
+              BluetoothProfile.STATE_CONNECTED);
+        }
+      }
+
+      @Override
+      boolean apply() {
+        mConnected = !failed;
+        return true;
+      }
+    });
+    return true;
+  }
+
+  @Override
+  public synchronized void disconnect() {
+    if (!mConnected) {
+      return;
+    }
+    endConnection();
+    schedule(mOperationLatencyMillis, new Answer() {
+      @Override
+      void run(BluetoothGattCallback callback) {
+        callback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS,
+            BluetoothProfile.STATE_DISCONNECTED);
+      }
+    });
+  }
+
+  @Override
+  public synchronized void close() {
+    endConnection();
+    mCallback = null;
+  }
+
+  @Override
+  public synchronized boolean discoverServices() {
+    if (!startRequest()) {
+      return false;
+    }
+    scheduleRequest(new Answer() {
+      @Override
+      void run(BluetoothGattCallback callback) {
+        callback.onServicesDiscovered(null, BluetoothGatt.GATT_SUCCESS);
+      }
+
+      @Override
+      boolean apply() {
+        mDiscovered = true;
+        return true;
+      }
+    });
+    return true;
+  }
+
+  @Override
+  public synchronized BluetoothGattService getService(UUID uuid) {
+    return mDiscovered && mGattService.getUuid().equals(uuid) ? mGattService : null;
+  }
+
+  @Override
+  public synchronized boolean readCharacteristic(
+      final BluetoothGattCharacteristic characteristic) {
+    if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) == 0
+        || !startRequest()) {
+      return false;
+    }
+    scheduleRequest(new Answer() {
+      private int mStatus;
+
+      @Override
+      boolean apply() {
+        byte[] value = mBeacon.read(characteristic.getUuid());
+        if (value == null) {
+          mStatus = BluetoothGatt.GATT_READ_NOT_PERMITTED;
+        } else {
+          characteristic.setValue(value);
+          mStatus = BluetoothGatt.GATT_SUCCESS;
+        }
+        return true;
+      }
+
+      @Override
+      void run(BluetoothGattCallback callback) {
+        callback.onCharacteristicRead(null, characteristic, mStatus);
+      }
+    });
+    return true;
+  }
+
+  @Override
+  public synchronized boolean writeCharacteristic(
+      final BluetoothGattCharacteristic characteristic) {
+    if ((characteristic.getProperties() & (BluetoothGattCharacteristic.PROPERTY_WRITE
+        | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0
+        || !startRequest()) {
+      return false;
+    }
+    final byte[] value = characteristic.getValue().clone();
+    final boolean withResponse =
+        characteristic.getWriteType() != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    scheduleRequest(new Answer() {
+      private int mStatus;
+
+      @Override
+      boolean apply() {
+        mStatus = mBeacon.write(characteristic.getUuid(), value);
+        return true;
+      }
+
+      @Override
+      void run(BluetoothGattCallback callback) {
+        // Without a response, the write is reported as sent whatever the beacon made of it.
+        callback.onCharacteristicWrite(null, characteristic,
+            withResponse ? mStatus : BluetoothGatt.GATT_SUCCESS);
+      }
+    });
+    return true;
+  }
+
+  /**
+   * The characteristics have no descriptors.
+   */
+  @Override
+  public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+    return false;
+  }
+
+  @Override
+  public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+    return false;
+  }
+
+  /**
+   * The configuration service allows no reliable writes.
+   */
+  @Override
+  public boolean beginReliableWrite() {
+    return false;
+  }
+
+  @Override
+  public boolean executeReliableWrite() {
+    return false;
+  }
+
+  @Override
+  public void abortReliableWrite() {
+  }
+
+  @Override
+  public synchronized boolean requestMtu(int mtu) {
+    if (!startRequest()) {
+      return false;
+    }
+    final int agreed = Math.min(mtu, mMaxMtu);
+    scheduleRequest(new Answer() {
+      @Override
+      void run(BluetoothGattCallback callback) {
+        callback.onMtuChanged(null, agreed, BluetoothGatt.GATT_SUCCESS);
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Takes effect without a callback, as on Android. The latency is not changed by it.
+   */
+  @Override
+  public synchronized boolean requestConnectionPriority(int connectionPriority) {
+    return mConnected;
+  }
+
+  @Override
+  public String getAddress() {
+    return mBeacon.getAddress();
+  }
+
+  private BluetoothGattService newConfigService() {
+    BluetoothGattService service = new BluetoothGattService(
+        ProtocolV2.CONFIG_SERVICE_UUID.getUuid(), BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    service.addCharacteristic(newCharacteristic(ProtocolV2.LOCK_STATE));
+    service.addCharacteristic(newCharacteristic(ProtocolV2.LOCK));
+    service.addCharacteristic(newCharacteristic(ProtocolV2.UNLOCK));
+    service.addCharacteristic(newCharacteristic(ProtocolV2.DATA));
+    service.addCharacteristic(newCharacteristic(ProtocolV2.FLAGS));
+    service.addCharacteristic(newCharacteristic(ProtocolV2.POWER_LEVELS));
+    service.addCharacteristic(newCharacteristic(ProtocolV2.POWER_MODE));
+    service.addCharacteristic(newCharacteristic(ProtocolV2.PERIOD));
+    service.addCharacteristic(newCharacteristic(ProtocolV2.RESET));
+    return service;
+  }
+
+  private BluetoothGattCharacteristic newCharacteristic(UUID uuid) {
+    int properties = 0;
+    int permissions = 0;
+    if (SimulatedUriBeacon.isReadable(uuid)) {
+      properties |= BluetoothGattCharacteristic.PROPERTY_READ;
+      permissions |= BluetoothGattCharacteristic.PERMISSION_READ;
+    }
+    if (SimulatedUriBeacon.isWritable(uuid)) {
+      properties |= BluetoothGattCharacteristic.PROPERTY_WRITE;
+      permissions |= BluetoothGattCharacteristic.PERMISSION_WRITE;
+    }
+    return new BluetoothGattCharacteristic(uuid, properties, permissions);
+  }
+
+  private boolean startRequest() {
+    if (!mConnected || mBusy) {
+      return false;
+    }
+    mBusy = true;
+    mRequestCount++;
+    return true;
+  }
+
+  private void endConnection() {
+    mConnected = false;
+    mDiscovered = false;
+    mBusy = false;
+    mGeneration++;
+  }
+
+  // Answers a request after the operation latency, unless it is lost. A lost request frees the
+  // transport at the same time, but reaches neither the beacon nor the client.
+  private void scheduleRequest(final Answer answer) {
+    final boolean lost = mRandom.nextDouble() < mLossRate;
+    if (lost) {
+      mLostCount++;
+    }
+    schedule(mOperationLatencyMillis, new Answer() {
+      @Override
+      boolean apply() {
+        mBusy = false;
+        return !lost && answer.apply();
+      }
+
+      @Override
+      void run(BluetoothGattCallback callback) {
+        answer.run(callback);
+      }
+    });
+  }
+
+  private void schedule(long delayMillis, final Answer answer) {
+    final int generation = mGeneration;
+    mHandler.postDelayed(new Runnable() {
+      @Override
+      public void run() {
+        BluetoothGattCallback callback;
+        synchronized (SimulatedGattTransport.this) {
+          if (generation != mGeneration || !answer.apply()) {
+            return;
+          }
+          callback = mCallback;
+        }
+        if (callback != null) {
+          answer.run(callback);
+        }
+      }
+    }, delayMillis);
+  }
+
+  /**
+   * What happens when an answer is due.
+   */
+  private abstract static class Answer {
+    /**
+     * Applies the request to the transport and the beacon, with the transport locked.
+     *
+     * @return false if the client is not to be called back
+     */
+    boolean apply() {
+      return true;
+    }
+
+    /**
+     * Calls the client back.
+     */
+    abstract void run(BluetoothGattCallback callback);
+  }
+}
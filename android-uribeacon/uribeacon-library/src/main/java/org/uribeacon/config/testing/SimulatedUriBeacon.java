@@ -0,0 +1,286 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.config.testing;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.uribeacon.beacon.ConfigUriBeacon;
+import org.uribeacon.beacon.UriBeacon;
+import org.uribeacon.config.ProtocolV2;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The state of a beacon in configuration mode, with the characteristics of the UriBeacon
+ * configuration service, for testing. Reads and writes follow the rules and return codes of
+ * specification/ConfigService.md: writes other than Unlock need the beacon to be unlocked, values
+ * of the wrong length are refused, and Reset restores the default values.
+ * <p/>
+ * Use it with a {@link SimulatedGattTransport}. It is safe to inspect from another thread.
+ */
+public class SimulatedUriBeacon {
+  /**
+   * The URI the beacon has after a reset, standing in for the vendor specified one.
+   */
+  public static final String DEFAULT_URI = "http://uribeacon.org";
+  /**
+   * The shortest beacon period the simulated hardware supports.
+   */
+  public static final int DEFAULT_MIN_PERIOD_MILLIS = 100;
+
+  private static final int KEY_LENGTH = ConfigUriBeacon.KEY_LENGTH / 8;
+  private static final int TX_POWER_LEVELS_LENGTH = 4;
+  private static final int DEFAULT_PERIOD_MILLIS = 1000;
+  private static final byte[] DEFAULT_TX_POWER_LEVELS = {-30, -20, -10, 0};
+
+  private final String mAddress;
+  private final byte[] mDefaultUriData;
+  private final Map<UUID, Integer> mWriteFailures = new HashMap<UUID, Integer>();
+  private int mMinPeriodMillis = DEFAULT_MIN_PERIOD_MILLIS;
+  private boolean mLocked;
+  private byte[] mKey;
+  private byte[] mUriData;
+  private byte mFlags;
+  private byte[] mTxPowerLevels;
+  private byte mTxPowerMode;
+  private int mBeaconPeriod;
+  private int mReadCount;
+  private int mWriteCount;
+
+  public SimulatedUriBeacon(String address) {
+    this(address, DEFAULT_URI);
+  }
+
+  /**
+   * @param address the address of the beacon
+   * @param defaultUri the URI the beacon starts with, and has after a reset
+   */
+  public SimulatedUriBeacon(String address, String defaultUri) {
+    mAddress = address;
+    mDefaultUriData = UriBeacon.encodeUri(defaultUri);
+    reset();
+  }
+
+  public String getAddress() {
+    return mAddress;
+  }
+
+  /**
+   * Sets the shortest beacon period the beacon supports. Shorter periods written to it are raised
+   * to this one.
+   */
+  public synchronized void setMinPeriodMillis(int minPeriodMillis) {
+    mMinPeriodMillis = minPeriodMillis;
+  }
+
+  /**
+   * Makes writes to a characteristic fail with the given status, as on a faulty beacon, or
+   * succeed again if it is {@link BluetoothGatt#GATT_SUCCESS}.
+   */
+  public synchronized void setWriteFailure(UUID uuid, int status) {
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      mWriteFailures.remove(uuid);
+    } else {
+      mWriteFailures.put(uuid, status);
+    }
+  }
+
+  /**
+   * Locks the beacon with the given key, as if it had been locked by an earlier configuration.
+   */
+  public synchronized void lock(byte[] key) {
+    mKey = Arrays.copyOf(key, KEY_LENGTH);
+    mLocked = true;
+  }
+
+  /**
+   * Restores the default values, as a write to the Reset characteristic does, and unlocks the
+   * beacon.
+   */
+  public synchronized void reset() {
+    mLocked = false;
+    mKey = new byte[KEY_LENGTH];
+    mUriData = mDefaultUriData.clone();
+    mFlags = 0;
+    mTxPowerLevels = DEFAULT_TX_POWER_LEVELS.clone();
+    mTxPowerMode = ConfigUriBeacon.POWER_MODE_LOW;
+    mBeaconPeriod = DEFAULT_PERIOD_MILLIS;
+  }
+
+  /**
+   * Returns the value of a characteristic, or null if it is not readable.
+   */
+  public synchronized byte[] read(UUID uuid) {
+    mReadCount++;
+    if (ProtocolV2.LOCK_STATE.equals(uuid)) {
+      return new byte[]{(byte) (mLocked ? 1 : 0)};
+    } else if (ProtocolV2.DATA.equals(uuid)) {
+      return mUriData.clone();
+    } else if (ProtocolV2.FLAGS.equals(uuid)) {
+      return new byte[]{mFlags};
+    } else if (ProtocolV2.POWER_LEVELS.equals(uuid)) {
+      return mTxPowerLevels.clone();
+    } else if (ProtocolV2.POWER_MODE.equals(uuid)) {
+      return new byte[]{mTxPowerMode};
+    } else if (ProtocolV2.PERIOD.equals(uuid)) {
+      // uint16, little endian.
+      return new byte[]{(byte) mBeaconPeriod, (byte) (mBeaconPeriod >> 8)};
+    }
+    return null;
+  }
+
+  /**
+   * Writes a characteristic.
+   *
+   * @return the return code of the write: {@link BluetoothGatt#GATT_SUCCESS},
+   *         {@link BluetoothGatt#GATT_WRITE_NOT_PERMITTED},
+   *         {@link ConfigUriBeacon#INSUFFICIENT_AUTHORIZATION} or
+   *         {@link BluetoothGatt#GATT_INVALID_ATTRIBUTE_LENGTH}
+   */
+  public synchronized int write(UUID uuid, byte[] value) {
+    mWriteCount++;
+    Integer failure = mWriteFailures.get(uuid);
+    if (failure != null) {
+      return failure;
+    }
+    if (ProtocolV2.UNLOCK.equals(uuid)) {
+      if (value.length != KEY_LENGTH) {
+        return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+      }
+      if (mLocked && !Arrays.equals(mKey, value)) {
+        return ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION;
+      }
+      mLocked = false;
+      mKey = new byte[KEY_LENGTH];
+      return BluetoothGatt.GATT_SUCCESS;
+    }
+    if (!isWritable(uuid)) {
+      return BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+    }
+    if (mLocked) {
+      return ConfigUriBeacon.INSUFFICIENT_AUTHORIZATION;
+    }
+    if (ProtocolV2.LOCK.equals(uuid)) {
+      if (value.length != KEY_LENGTH) {
+        return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+      }
+      lock(value);
+    } else if (ProtocolV2.DATA.equals(uuid)) {
+      if (value.length > ConfigUriBeacon.MAX_URI_LENGTH) {
+        return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+      }
+      mUriData = value.clone();
+    } else if (ProtocolV2.FLAGS.equals(uuid)) {
+      if (value.length != 1) {
+        return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+      }
+      mFlags = value[0];
+    } else if (ProtocolV2.POWER_LEVELS.equals(uuid)) {
+      if (value.length != TX_POWER_LEVELS_LENGTH) {
+        return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+      }
+      mTxPowerLevels = value.clone();
+    } else if (ProtocolV2.POWER_MODE.equals(uuid)) {
+      if (value.length != 1) {
+        return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+      }
+      if (value[0] < ConfigUriBeacon.POWER_MODE_ULTRA_LOW
+          || value[0] > ConfigUriBeacon.POWER_MODE_HIGH) {
+        return BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+      }
+      mTxPowerMode = value[0];
+    } else if (ProtocolV2.PERIOD.equals(uuid)) {
+      if (value.length != 2) {
+        return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+      }
+      int period = (value[0] & 0xff) | (value[1] & 0xff) << 8;
+      // Zero disables advertising; other periods the hardware doesn't support get its minimum.
+      mBeaconPeriod = period == 0 ? 0 : Math.max(period, mMinPeriodMillis);
+    } else if (ProtocolV2.RESET.equals(uuid)) {
+      if (value.length != 1) {
+        return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+      }
+      if (value[0] != 0) {
+        reset();
+      }
+    }
+    return BluetoothGatt.GATT_SUCCESS;
+  }
+
+  /**
+   * Returns whether a characteristic can be read.
+   */
+  static boolean isReadable(UUID uuid) {
+    return ProtocolV2.LOCK_STATE.equals(uuid) || ProtocolV2.DATA.equals(uuid)
+        || ProtocolV2.FLAGS.equals(uuid) || ProtocolV2.POWER_LEVELS.equals(uuid)
+        || ProtocolV2.POWER_MODE.equals(uuid) || ProtocolV2.PERIOD.equals(uuid);
+  }
+
+  /**
+   * Returns whether a characteristic can be written, if the beacon is unlocked.
+   */
+  static boolean isWritable(UUID uuid) {
+    return ProtocolV2.LOCK.equals(uuid) || ProtocolV2.UNLOCK.equals(uuid)
+        || ProtocolV2.DATA.equals(uuid) || ProtocolV2.FLAGS.equals(uuid)
+        || ProtocolV2.POWER_LEVELS.equals(uuid) || ProtocolV2.POWER_MODE.equals(uuid)
+        || ProtocolV2.PERIOD.equals(uuid) || ProtocolV2.RESET.equals(uuid);
+  }
+
+  public synchronized boolean isLocked() {
+    return mLocked;
+  }
+
+  /**
+   * Returns the encoded URI, as in the Uri Data characteristic.
+   */
+  public synchronized byte[] getUriData() {
+    return mUriData.clone();
+  }
+
+  public synchronized byte getFlags() {
+    return mFlags;
+  }
+
+  public synchronized byte[] getAdvertisedTxPowerLevels() {
+    return mTxPowerLevels.clone();
+  }
+
+  public synchronized byte getTxPowerMode() {
+    return mTxPowerMode;
+  }
+
+  public synchronized int getBeaconPeriod() {
+    return mBeaconPeriod;
+  }
+
+  /**
+   * Returns the number of characteristic reads the beacon has answered.
+   */
+  public synchronized int getReadCount() {
+    return mReadCount;
+  }
+
+  /**
+   * Returns the number of characteristic writes the beacon has answered.
+   */
+  public synchronized int getWriteCount() {
+    return mWriteCount;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+/**
+ * Adapts the scan cycle of a duty cycled scanner to how much the devices around it change.
+ * <p>
+ * The scan mode sets a base active window and the longest idle period. After a cycle in which new
+ * devices appeared the idle period drops to the shortest, and the active window grows by the base
+ * window, up to {@link #MAX_ACTIVE_WINDOWS} of them, for as long as devices keep appearing. A
+ * cycle in which devices were only lost halves the idle period. After each cycle in which nothing
+ * changed the active window goes back to the base, and the idle period doubles until it reaches
+ * the longest. So discovery is fast when the surroundings change, and the radio is mostly off
+ * when they don't.
+ * <p>
+ * This class is not thread safe.
+ */
+class AdaptiveScanTiming {
+  /* @VisibleForTesting */ static final int MAX_ACTIVE_WINDOWS = 4;
+
+  private final int minIdleMillis;
+  private int baseActiveMillis;
+  private int maxIdleMillis;
+
+  private int activeMillis;
+  private int idleMillis;
+
+  /**
+   * @param minIdleMillis the shortest idle period, used while new devices are appearing
+   */
+  AdaptiveScanTiming(int minIdleMillis) {
+    this.minIdleMillis = minIdleMillis;
+  }
+
+  /**
+   * Sets the timing of the scan mode, and restarts at the shortest idle period so that clients
+   * starting a scan find what is around quickly.
+   *
+   * @param baseActiveMillis the active window while nothing changes
+   * @param maxIdleMillis the longest idle period
+   */
+  void reset(int baseActiveMillis, int maxIdleMillis) {
+    this.baseActiveMillis = baseActiveMillis;
+    this.maxIdleMillis = Math.max(maxIdleMillis, minIdleMillis);
+    activeMillis = baseActiveMillis;
+    idleMillis = minIdleMillis;
+  }
+
+  /**
+   * Adapts the timing to the last scan cycle.
+   *
+   * @param newDevices the number of devices first seen during the cycle
+   * @param lostDevices the number of devices lost during the cycle
+   * @return whether the length of the scan cycle has changed
+   */
+  boolean onCycleComplete(int newDevices, int lostDevices) {
+    int cycleMillis = getCycleMillis();
+    if (newDevices > 0) {
+      activeMillis = Math.min(activeMillis + baseActiveMillis,
+          MAX_ACTIVE_WINDOWS * baseActiveMillis);
+      idleMillis = minIdleMillis;
+    } else if (lostDevices > 0) {
+      activeMillis = baseActiveMillis;
+      idleMillis = Math.max(idleMillis / 2, minIdleMillis);
+    } else {
+      activeMillis = baseActiveMillis;
+      idleMillis = (int) Math.min(2L * idleMillis, maxIdleMillis);
+    }
+    return getCycleMillis() != cycleMillis;
+  }
+
+  int getActiveMillis() {
+    return activeMillis;
+  }
+
+  int getIdleMillis() {
+    return idleMillis;
+  }
+
+  int getCycleMillis() {
+    return activeMillis + idleMillis;
+  }
+
+  /**
+   * Returns the length of the scan cycle once nothing has changed for a while. Devices are lost
+   * after a number of these, so they aren't lost early just because the cycles have sped up.
+   */
+  int getSteadyCycleMillis() {
+    return baseActiveMillis + maxIdleMillis;
+  }
+}
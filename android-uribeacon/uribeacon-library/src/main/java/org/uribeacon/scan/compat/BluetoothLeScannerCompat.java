@@ -22,6 +22,9 @@
 //   Remove implementations
 //   Define setCustomScanTiming for ULR
 //   Slight updates to javadoc
+//   Define a per-callback setScanLostOverride
+//   Define setAdaptiveScanTiming
+//   Define setScanCycleListener
 
 package org.uribeacon.scan.compat;
 
@@ -117,9 +120,43 @@ public abstract class BluetoothLeScannerCompat {
     public abstract void setCustomScanTiming(
         int scanMillis, int idleMillis, long serialScanDurationMillis);
 
+    /**
+     * Sets whether the Bluetooth LE scan cycle adapts to the devices around. While it does, the
+     * scan cycle set by the {@link ScanSettings} is the slowest it runs at: it speeds up while new
+     * devices appear and backs off again while nothing changes.
+     * <p>
+     * This is an extension of the "L" Platform API.
+     * <p>
+     *
+     * @param enabled whether the scan cycle adapts.  Ignored by hardware scanners, and overridden
+     *        by {@link #setCustomScanTiming}.
+     */
+    public abstract void setAdaptiveScanTiming(boolean enabled);
+
+    /**
+     * Sets the listener to be told what happened during each Bluetooth LE scan cycle, or null to
+     * remove it.
+     * <p>
+     * This is an extension of the "L" Platform API.
+     * <p>
+     *
+     * @param listener the listener.  Never called by hardware scanners, which don't run scan
+     *        cycles of their own.
+     */
+    public abstract void setScanCycleListener(ScanCycleListener listener);
+
     /**
      * Sets the delay after which a device will be marked as lost if it hasn't been sighted
      * within the given time. Set to a negative value to allow default behaviour.
      */
     public abstract void setScanLostOverride(long lostOverrideMillis);
+
+    /**
+     * Sets the delay after which a device will be marked as lost for the scan started with
+     * {@code callback}, overriding the delay set for the scanner. Set to a negative value to go
+     * back to the scanner's delay. The override lasts until the scan is stopped.
+     * <p>
+     * This is an extension of the "L" Platform API.
+     */
+    public abstract void setScanLostOverride(ScanCallback callback, long lostOverrideMillis);
 }
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The most recent scan result of each device in range, keyed by the device address packed into a
+ * {@code long}.
+ * <p>
+ * Each device is given a slot, a small integer that stays the same for as long as the device is
+ * in the table and is reused once it has been removed. Slots are dense, so they can index
+ * per-client state such as a {@link java.util.BitSet} of the devices a client has seen, and a
+ * sweep over the table walks parallel primitive arrays rather than chasing map entries.
+ * <p>
+ * The slots are also indexed by the 16-bit service data UUIDs and manufacturer ids in each
+ * device's latest scan record, so that the devices a filter on one of them may match can be found
+ * without looking at the others.
+ * <p>
+ * Addresses are expected in the {@code "00:11:22:AA:BB:CC"} form returned by
+ * {@link android.bluetooth.BluetoothDevice#getAddress}. Any other string is given a synthetic key
+ * above the 48-bit address range.
+ * <p>
+ * This class is not thread safe.
+ */
+class DeviceTable {
+  private static final int MIN_CAPACITY = 16;
+  private static final long SYNTHETIC_KEY_BASE = 1L << 48;
+
+  // Open addressing index from key hash to slot + 1, with 0 for an empty bucket. Its length is a
+  // power of two at least twice the number of slots, so probe sequences stay short.
+  private int[] buckets = new int[MIN_CAPACITY * 2];
+
+  // Per slot state. A free slot has a null result.
+  private long[] keys = new long[MIN_CAPACITY];
+  private long[] timestampsMillis = new long[MIN_CAPACITY];
+  private ScanResult[] results = new ScanResult[MIN_CAPACITY];
+
+  // Slots below slotLimit that have been freed, to be reused before slotLimit grows.
+  private int[] freeSlots = new int[MIN_CAPACITY];
+  private int freeSlotCount;
+  private int slotLimit;
+  private int size;
+
+  // Keys handed out to addresses that are not MAC addresses, and the reverse mapping so they can
+  // be forgotten when the device is removed.
+  private final HashMap<String, Long> syntheticKeys = new HashMap<String, Long>();
+  private final HashMap<Long, String> syntheticAddresses = new HashMap<Long, String>();
+  private long nextSyntheticKey = SYNTHETIC_KEY_BASE;
+
+  // The slots of the devices whose latest scan record has service data or manufacturer specific
+  // data with each identifier. Sets are removed once empty.
+  private final SparseArray<BitSet> slotsByServiceDataUuid = new SparseArray<BitSet>();
+  private final SparseArray<BitSet> slotsByManufacturerId = new SparseArray<BitSet>();
+
+  /**
+   * Stores the result as the latest for the device, returning the device's slot.
+   */
+  int put(String address, ScanResult result) {
+    long key = getKey(address);
+    int bucket = findBucket(key);
+    int slot;
+    if (buckets[bucket] != 0) {
+      slot = buckets[bucket] - 1;
+    } else {
+      slot = allocateSlot(key);
+      // The index may have been resized.
+      bucket = findBucket(key);
+      buckets[bucket] = slot + 1;
+      size++;
+    }
+    ScanResult previous = results[slot];
+    results[slot] = result;
+    timestampsMillis[slot] = TimeUnit.NANOSECONDS.toMillis(result.getTimestampNanos());
+    // A device usually advertises the same identifiers every time, leaving the index as it was.
+    if (previous == null
+        || !hasSameIdentifiers(previous.getScanRecord(), result.getScanRecord())) {
+      if (previous != null) {
+        updateIdentifierIndex(slot, previous.getScanRecord(), false);
+      }
+      updateIdentifierIndex(slot, result.getScanRecord(), true);
+    }
+    return slot;
+  }
+
+  /**
+   * Returns the scan record of the latest result of the device if its bytes are
+   * {@code scanRecordBytes}, so that a repeated advertisement needn't be parsed again. Returns
+   * null if the device is not in the table or advertised something else.
+   */
+  ScanRecord getUnchangedScanRecord(String address, byte[] scanRecordBytes) {
+    int slot = getSlot(address);
+    if (slot < 0) {
+      return null;
+    }
+    ScanRecord scanRecord = results[slot].getScanRecord();
+    if (scanRecord == null || !Arrays.equals(scanRecord.getBytes(), scanRecordBytes)) {
+      return null;
+    }
+    return scanRecord;
+  }
+
+  /**
+   * Returns whether the result's advertisement differs from the latest result of the device, or
+   * the device is not in the table.
+   */
+  boolean isPayloadChanged(String address, ScanResult result) {
+    int slot = getSlot(address);
+    if (slot < 0) {
+      return true;
+    }
+    ScanRecord previous = results[slot].getScanRecord();
+    ScanRecord scanRecord = result.getScanRecord();
+    if (previous == scanRecord) {
+      return false;
+    }
+    return previous == null || scanRecord == null
+        || !Arrays.equals(previous.getBytes(), scanRecord.getBytes());
+  }
+
+  /**
+   * Returns the slot of the device, or -1 if it is not in the table.
+   */
+  int getSlot(String address) {
+    long key = parseAddress(address);
+    if (key < 0) {
+      Long syntheticKey = syntheticKeys.get(address);
+      if (syntheticKey == null) {
+        return -1;
+      }
+      key = syntheticKey;
+    }
+    return buckets[findBucket(key)] - 1;
+  }
+
+  /**
+   * Removes the device in {@code slot}, freeing the slot for reuse.
+   */
+  void remove(int slot) {
+    long key = keys[slot];
+    int bucket = findBucket(key);
+    if (buckets[bucket] != slot + 1) {
+      throw new IllegalArgumentException("Slot " + slot + " is not in use");
+    }
+    deleteBucket(bucket);
+    updateIdentifierIndex(slot, results[slot].getScanRecord(), false);
+    if (key >= SYNTHETIC_KEY_BASE) {
+      syntheticKeys.remove(syntheticAddresses.remove(key));
+    }
+    results[slot] = null;
+    if (freeSlotCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+    }
+    freeSlots[freeSlotCount++] = slot;
+    size--;
+  }
+
+  /**
+   * Returns the number of devices in the table.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns one more than the highest slot that may be in use. Slots up to this limit can be
+   * iterated with {@link #getResult}, skipping those for which it returns null.
+   */
+  int getSlotLimit() {
+    return slotLimit;
+  }
+
+  /**
+   * Returns the latest result of the device in {@code slot}, or null if the slot is free.
+   */
+  ScanResult getResult(int slot) {
+    return results[slot];
+  }
+
+  /**
+   * Returns the time of the latest result of the device in {@code slot}, in milliseconds.
+   */
+  long getTimestampMillis(int slot) {
+    return timestampsMillis[slot];
+  }
+
+  /**
+   * Returns the slots of the devices whose latest scan record has service data for the 16-bit
+   * service UUID, or null if there are none. The set must not be modified, and changes with the
+   * table.
+   */
+  BitSet getSlotsWithServiceData(int serviceUuid16) {
+    return slotsByServiceDataUuid.get(serviceUuid16);
+  }
+
+  /**
+   * Returns the slots of the devices whose latest scan record has manufacturer specific data for
+   * the manufacturer id, or null if there are none. The set must not be modified, and changes with
+   * the table.
+   */
+  BitSet getSlotsWithManufacturerData(int manufacturerId) {
+    return slotsByManufacturerId.get(manufacturerId);
+  }
+
+  /**
+   * Returns the address of the device in {@code slot}.
+   */
+  String getAddress(int slot) {
+    long key = keys[slot];
+    if (key >= SYNTHETIC_KEY_BASE) {
+      return syntheticAddresses.get(key);
+    }
+    char[] address = new char[17];
+    for (int i = 16; i >= 0; i--) {
+      if (i % 3 == 2) {
+        address[i] = ':';
+        continue;
+      }
+      address[i] = Character.toUpperCase(Character.forDigit((int) (key & 0xf), 16));
+      key >>>= 4;
+    }
+    return new String(address);
+  }
+
+  /**
+   * Packs a {@code "00:11:22:AA:BB:CC"} address into the low 48 bits of a long, or returns -1 if
+   * the string is not in that form.
+   */
+  /* @VisibleForTesting */ static long parseAddress(String address) {
+    if (address == null || address.length() != 17) {
+      return -1;
+    }
+    long key = 0;
+    for (int i = 0; i < 17; i++) {
+      char c = address.charAt(i);
+      if (i % 3 == 2) {
+        if (c != ':') {
+          return -1;
+        }
+        continue;
+      }
+      int digit = Character.digit(c, 16);
+      if (digit < 0) {
+        return -1;
+      }
+      key = (key << 4) | digit;
+    }
+    return key;
+  }
+
+  // Adds the slot to, or removes it from, the sets for the identifiers in the scan record.
+  private void updateIdentifierIndex(int slot, ScanRecord scanRecord, boolean add) {
+    if (scanRecord == null) {
+      return;
+    }
+    for (int field = 0; field < scanRecord.getFieldCount(); field++) {
+      SparseArray<BitSet> index = getIdentifierIndex(scanRecord.getFieldType(field));
+      if (index == null) {
+        continue;
+      }
+      int identifier = scanRecord.getFieldIdentifier(field);
+      BitSet slots = index.get(identifier);
+      if (add) {
+        if (slots == null) {
+          slots = new BitSet();
+          index.put(identifier, slots);
+        }
+        slots.set(slot);
+      } else if (slots != null) {
+        slots.clear(slot);
+        if (slots.isEmpty()) {
+          index.remove(identifier);
+        }
+      }
+    }
+  }
+
+  private SparseArray<BitSet> getIdentifierIndex(int fieldType) {
+    switch (fieldType) {
+      case ScanRecord.DATA_TYPE_SERVICE_DATA:
+        return slotsByServiceDataUuid;
+      case ScanRecord.DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+        return slotsByManufacturerId;
+      default:
+        return null;
+    }
+  }
+
+  // Whether the records have the same indexed identifiers, in the same order.
+  private static boolean hasSameIdentifiers(ScanRecord a, ScanRecord b) {
+    if (a == b) {
+      // The record was reused for a repeated advertisement.
+      return true;
+    }
+    if (a == null || b == null) {
+      return a == b;
+    }
+    int fieldA = nextIdentifiedField(a, 0);
+    int fieldB = nextIdentifiedField(b, 0);
+    while (fieldA >= 0 && fieldB >= 0) {
+      if (a.getFieldType(fieldA) != b.getFieldType(fieldB)
+          || a.getFieldIdentifier(fieldA) != b.getFieldIdentifier(fieldB)) {
+        return false;
+      }
+      fieldA = nextIdentifiedField(a, fieldA + 1);
+      fieldB = nextIdentifiedField(b, fieldB + 1);
+    }
+    return fieldA == fieldB;
+  }
+
+  // Returns the first service data or manufacturer specific data field from field on, or -1.
+  private static int nextIdentifiedField(ScanRecord scanRecord, int field) {
+    for (; field < scanRecord.getFieldCount(); field++) {
+      int fieldType = scanRecord.getFieldType(field);
+      if (fieldType == ScanRecord.DATA_TYPE_SERVICE_DATA
+          || fieldType == ScanRecord.DATA_TYPE_MANUFACTURER_SPECIFIC_DATA) {
+        return field;
+      }
+    }
+    return -1;
+  }
+
+  private long getKey(String address) {
+    long macKey = parseAddress(address);
+    if (macKey >= 0) {
+      return macKey;
+    }
+    Long key = syntheticKeys.get(address);
+    if (key == null) {
+      key = nextSyntheticKey++;
+      syntheticKeys.put(address, key);
+      syntheticAddresses.put(key, address);
+    }
+    return key;
+  }
+
+  private int allocateSlot(long key) {
+    int slot;
+    if (freeSlotCount > 0) {
+      slot = freeSlots[--freeSlotCount];
+    } else {
+      if (slotLimit == keys.length) {
+        growSlots();
+      }
+      slot = slotLimit++;
+    }
+    keys[slot] = key;
+    return slot;
+  }
+
+  private void growSlots() {
+    int capacity = keys.length * 2;
+    keys = Arrays.copyOf(keys, capacity);
+    timestampsMillis = Arrays.copyOf(timestampsMillis, capacity);
+    results = Arrays.copyOf(results, capacity);
+
+    // Rebuild the index at twice the slot capacity.
+    buckets = new int[capacity * 2];
+    for (int slot = 0; slot < slotLimit; slot++) {
+      if (results[slot] != null) {
+        buckets[findBucket(keys[slot])] = slot + 1;
+      }
+    }
+  }
+
+  // Returns the bucket holding the key, or the empty bucket where it would be inserted.
+  private int findBucket(long key) {
+    int mask = buckets.length - 1;
+    int bucket = hash(key) & mask;
+    while (buckets[bucket] != 0 && keys[buckets[bucket] - 1] != key) {
+      bucket = (bucket + 1) & mask;
+    }
+    return bucket;
+  }
+
+  // Empties a bucket, moving later entries of the probe sequence back so that lookups do not
+  // need tombstones.
+  private void deleteBucket(int bucket) {
+    int mask = buckets.length - 1;
+    int hole = bucket;
+    int next = (hole + 1) & mask;
+    while (buckets[next] != 0) {
+      int home = hash(keys[buckets[next] - 1]) & mask;
+      // Move the entry if its home bucket is not cyclically within (hole, next].
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        buckets[hole] = buckets[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    buckets[hole] = 0;
+  }
+
+  private static int hash(long key) {
+    // Addresses of one vendor share their upper bytes, so mix all bits into the low ones.
+    key *= 0x9e3779b97f4a7c15L;
+    return (int) (key ^ (key >>> 32));
+  }
+}
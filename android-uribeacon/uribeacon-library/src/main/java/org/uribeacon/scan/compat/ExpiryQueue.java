@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import java.util.Arrays;
+
+/**
+ * Slots of a {@link DeviceTable} ordered by the time at which they should next be checked for
+ * having been lost.
+ * <p>
+ * A binary min-heap over parallel primitive arrays. Finding the expired slots costs a heap
+ * operation per expired slot, however many slots are queued, so a scan cycle in which few devices
+ * are lost stays cheap even when thousands are in range.
+ * <p>
+ * Deadlines are not updated when a device is sighted again. Instead, the owner checks the device
+ * when its deadline passes and queues it again with a later deadline if it has been seen since.
+ * <p>
+ * This class is not thread safe.
+ */
+class ExpiryQueue {
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] deadlinesMillis = new long[MIN_CAPACITY];
+  private int[] slots = new int[MIN_CAPACITY];
+  private int size;
+
+  /**
+   * Queues {@code slot} to be checked once {@code deadlineMillis} has passed.
+   */
+  void add(int slot, long deadlineMillis) {
+    if (size == slots.length) {
+      deadlinesMillis = Arrays.copyOf(deadlinesMillis, size * 2);
+      slots = Arrays.copyOf(slots, size * 2);
+    }
+    int child = size++;
+    // Sift up.
+    while (child > 0) {
+      int parent = (child - 1) >>> 1;
+      if (deadlinesMillis[parent] <= deadlineMillis) {
+        break;
+      }
+      deadlinesMillis[child] = deadlinesMillis[parent];
+      slots[child] = slots[parent];
+      child = parent;
+    }
+    deadlinesMillis[child] = deadlineMillis;
+    slots[child] = slot;
+  }
+
+  /**
+   * Removes and returns the slot with the earliest deadline if that deadline is before
+   * {@code nowMillis}, or returns -1.
+   */
+  int pollExpired(long nowMillis) {
+    if (size == 0 || deadlinesMillis[0] >= nowMillis) {
+      return -1;
+    }
+    int slot = slots[0];
+    size--;
+    long lastDeadline = deadlinesMillis[size];
+    int lastSlot = slots[size];
+    // Sift the last entry down from the root.
+    int parent = 0;
+    while (true) {
+      int child = 2 * parent + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && deadlinesMillis[child + 1] < deadlinesMillis[child]) {
+        child++;
+      }
+      if (lastDeadline <= deadlinesMillis[child]) {
+        break;
+      }
+      deadlinesMillis[parent] = deadlinesMillis[child];
+      slots[parent] = slots[child];
+      parent = child;
+    }
+    deadlinesMillis[parent] = lastDeadline;
+    slots[parent] = lastSlot;
+    return slot;
+  }
+
+  /**
+   * Returns the number of queued slots.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Removes all queued slots.
+   */
+  void clear() {
+    size = 0;
+  }
+}
@@ -29,16 +29,16 @@ import org.uribeacon.scan.util.Clock;
 import org.uribeacon.scan.util.Logger;
 import org.uribeacon.scan.util.SystemClock;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements Bluetooth LE scan related API on top of
@@ -56,6 +56,10 @@ import java.util.concurrent.TimeUnit;
  * <li> IntentService worker thread can call {@link #blockingScanCycle}
  * <li> AIDL binder thread can call {@link #leScanCallback.onLeScan}
  * </ul>
+ * Only the BluetoothLeScanner APIs synchronize on the scanner. Sightings are dispatched against
+ * an immutable snapshot of the clients that is replaced on every registration change, per-client
+ * state lives in concurrent collections, and callbacks run on a serial executor per client, so
+ * neither a scan cycle nor a slow {@link ScanCallback} holds up the binder thread.
  *
  * @see <a href="http://go/ble-glossary">BLE Glossary</a>
  */
@@ -76,51 +80,179 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   /* @VisibleForTesting */ static final int LOW_LATENCY_IDLE_MILLIS = 167;
   /* @VisibleForTesting */ static final int LOW_LATENCY_ACTIVE_MILLIS = 1500;
 
+  // Number of queued ALL_MATCHES callbacks after which further updates for a client are dropped
+  // until it catches up. First match and lost callbacks are never dropped.
+  /* @VisibleForTesting */ static final int MAX_PENDING_UPDATES = 256;
+
+  // Number of devices a client's batch can hold before it is delivered early.
+  /* @VisibleForTesting */ static final int MAX_BATCH_RESULTS = 1000;
+
   /**
-   * Wraps user requests and stores the list of filters and callbacks. Also saves a set of
-   * addresses for which any of the filters have matched in order to do lost processing.
+   * Wraps user requests and stores the list of filters and callbacks. Also saves the set of
+   * devices for which any of the filters have matched in order to do lost processing.
+   * <p>
+   * Callbacks are delivered in order on the client's own executor. Once the client is stopped,
+   * callbacks that are still queued are dropped.
+   * <p>
+   * A client with a report delay gets all of its results through onBatchScanResults instead, and
+   * no found or lost callbacks, as on the L platform.
    */
   private static class ScanClient {
     final List<ScanFilter> filtersList;
-    final Set<String> addressesSeen;
+    // Slots in recentScanResults of the devices reported as found. Guarded by recentScanResults.
+    final BitSet devicesSeen = new BitSet();
     final ScanCallback callback;
     final ScanSettings settings;
+    final Executor executor;
+    final ScanCycleCounters counters;
+    final AtomicInteger pendingUpdates = new AtomicInteger();
+    // Null unless the client asked for a report delay.
+    final ScanResultBatch batch;
+    // Milliseconds after which this client is told a device is lost, or -1 to use the scanner's
+    // lost timeout. While it is set, lostExpiry holds the devicesSeen. Guarded by
+    // recentScanResults.
+    long lostOverrideMillis = -1;
+    final ExpiryQueue lostExpiry = new ExpiryQueue();
+    volatile boolean stopped;
 
-    ScanClient(ScanSettings settings, List<ScanFilter> filters, ScanCallback callback) {
+    ScanClient(ScanSettings settings, List<ScanFilter> filters, ScanCallback callback,
+        Executor executor, ScanCycleCounters counters) {
       this.settings = settings;
       this.filtersList = filters;
-      this.addressesSeen = new HashSet<String>();
       this.callback = callback;
+      this.executor = executor;
+      this.counters = counters;
+      this.batch = settings.getReportDelayMillis() > 0
+          ? new ScanResultBatch(settings.getReportDelayMillis(), MAX_BATCH_RESULTS)
+          : null;
+    }
+
+    void deliverBatch(final List<ScanResult> results) {
+      if (results == null) {
+        return;
+      }
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (stopped) {
+            return;
+          }
+          // Catch any exceptions and log them but continue processing other scan results.
+          long startNanos = counters.nanoTime();
+          boolean failed = false;
+          try {
+            callback.onBatchScanResults(results);
+          } catch (Exception e) {
+            failed = true;
+            Logger.logError("Failure while sending batched scan results to listener", e);
+          }
+          counters.recordCallback(counters.nanoTime() - startNanos, failed);
+        }
+      });
+    }
+
+    void deliver(final int callbackType, final ScanResult result, final String errorMessage) {
+      final boolean update = callbackType == ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+      if (update && pendingUpdates.incrementAndGet() > MAX_PENDING_UPDATES) {
+        pendingUpdates.decrementAndGet();
+        counters.recordDroppedUpdate();
+        return;
+      }
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (update) {
+            pendingUpdates.decrementAndGet();
+          }
+          if (stopped) {
+            return;
+          }
+          // Catch any exceptions and log them but continue processing other scan results.
+          long startNanos = counters.nanoTime();
+          boolean failed = false;
+          try {
+            callback.onScanResult(callbackType, result);
+          } catch (Exception e) {
+            failed = true;
+            Logger.logError(errorMessage, e);
+          }
+          counters.recordCallback(counters.nanoTime() - startNanos, failed);
+        }
+      });
     }
   }
 
+  // Shared by the serial executors of all clients when callbacks are not delivered directly.
+  private static ExecutorService callbackThreadPool;
+
   // Alarm Scan variables
   private final Clock clock;
   private final AlarmManager alarmManager;
   private final PendingIntent alarmIntent;
   private long alarmIntervalMillis;
 
-  // Variable to hold a scheduled task. Only used in Android 5.1.
-  ScheduledFuture scheduledTask;
+  // Runs the scan cycles when the alarm can't repeat fast enough, on Android 5.1, and measures
+  // the cycles whichever way they are started.
+  private final ScanCycleScheduler scanCycleScheduler;
 
-  // Map of BD_ADDR->ScanResult for replay to new registrations.
+  // Table of BD_ADDR->ScanResult for replay to new registrations.
   // Entries are evicted after SCAN_LOST_CYCLES cycles.
-  /* @VisibleForTesting */ final HashMap<String, ScanResult> recentScanResults;
+  // Its lock also guards the devicesSeen of every client, and is never held while calling out.
+  /* @VisibleForTesting */ final DeviceTable recentScanResults;
+
+  // The devices in recentScanResults, ordered by when they will be lost under the scanner's lost
+  // timeout, and the longest timeout they have been queued with. Guarded by recentScanResults.
+  private final ExpiryQueue recentScanExpiry = new ExpiryQueue();
+  private long recentScanExpiryTimeoutMillis;
 
+  // The scan timing is written under the scanner lock and read by scan cycles without it.
   // Default Scan Constants = Balanced
-  private int scanIdleMillis = BALANCED_IDLE_MILLIS;
-  private int scanActiveMillis = BALANCED_ACTIVE_MILLIS;
+  private volatile int scanIdleMillis = BALANCED_IDLE_MILLIS;
+  private volatile int scanActiveMillis = BALANCED_ACTIVE_MILLIS;
+
+  // Adapts scanActiveMillis and scanIdleMillis to the devices coming and going, or null to keep
+  // the timing of the scan mode. Guarded by the scanner lock.
+  private AdaptiveScanTiming adaptiveScanTiming;
+
+  // The cycle length the lost timeout is based on while the timing adapts, or 0.
+  private volatile int steadyScanCycleMillis;
+
+  // The devices first seen and lost since the last scan cycle ended. Guarded by
+  // recentScanResults.
+  private int cycleNewDevices;
+  private int cycleLostDevices;
+  // The slots in recentScanResults of the devices seen since the last scan cycle ended. Guarded
+  // by recentScanResults.
+  private final BitSet cycleDevicesSeen = new BitSet();
+
+  // Counts what the scanner does for the listener, which is told as each scan cycle ends.
+  private final ScanCycleCounters cycleCounters;
+  private volatile ScanCycleListener scanCycleListener;
 
   // Override values for scan window
-  private int overrideScanActiveMillis = -1;
-  private int overrideScanIdleMillis;
+  private volatile int overrideScanActiveMillis = -1;
+  private volatile int overrideScanIdleMillis;
 
   // Milliseconds to wait before considering a device lost. If set to a negative number
   // SCAN_LOST_CYCLES is used to determine when to inform clients about lost events.
-  private long scanLostOverrideMillis = -1;
+  private volatile long scanLostOverrideMillis = -1;
 
   private final BluetoothAdapter bluetoothAdapter;
-  /* @VisibleForTesting */ final HashMap<ScanCallback, ScanClient> serialClients;
+  /* @VisibleForTesting */ final ConcurrentHashMap<ScanCallback, ScanClient> serialClients;
+
+  // Compiled filters of serialClients. Replaced, never modified, whenever a client starts or
+  // stops, so sightings can be dispatched without locking.
+  private volatile ScanFilterMatcher<ScanClient> clientMatcher;
+
+  // Executor the client executors run their callbacks on.
+  private final Executor callbackExecutor;
+
+  // Scratch arrays for the clients matching a sighting, per dispatching thread.
+  private final ThreadLocal<boolean[][]> dispatchScratch = new ThreadLocal<boolean[][]>();
+
+  // Held for the duration of a scan cycle, so that cycles started by the alarm and by the
+  // scheduled task cannot overlap.
+  private final Object scanCycleLock = new Object();
 
   /**
    * The Bluetooth LE callback which will be registered with the OS,
@@ -131,7 +263,7 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     /**
      * Callback method called from the OS on each BLE device sighting.
      * This method is invoked on the AIDL handler thread, so all methods
-     * called here must be synchronized.
+     * called here must be safe to run concurrently with the scanner APIs.
      *
      * @param device The device discovered
      * @param rssi The signal strength in dBm it was received at
@@ -140,9 +272,20 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     @Override
     public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecordBytes) {
       long currentTimeInNanos = TimeUnit.MILLISECONDS.toNanos(clock.currentTimeMillis());
-      ScanResult result = new ScanResult(device, ScanRecord.parseFromBytes(scanRecordBytes), rssi,
-          currentTimeInNanos);
-      onScanResult(device.getAddress(), result);
+      String address = device.getAddress();
+      // Beacons mostly repeat the same advertisement, whose parsed record can be shared.
+      ScanRecord scanRecord;
+      synchronized (recentScanResults) {
+        scanRecord = recentScanResults.getUnchangedScanRecord(address, scanRecordBytes);
+      }
+      if (scanRecord == null) {
+        scanRecord = ScanRecord.parseFromBytes(scanRecordBytes);
+        if (scanRecord != null && scanRecord.isMalformed()) {
+          cycleCounters.recordParseFailure();
+        }
+      }
+      ScanResult result = new ScanResult(device, scanRecord, rssi, currentTimeInNanos);
+      onScanResult(address, result);
     }
   };
 
@@ -153,22 +296,53 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
       Context context, BluetoothManager manager, AlarmManager alarmManager) {
     this(manager, alarmManager, new SystemClock(),
         PendingIntent.getBroadcast(context, 0 /* requestCode */,
-            new Intent(context, ScanWakefulBroadcastReceiver.class), 0 /* flags */));
+            new Intent(context, ScanWakefulBroadcastReceiver.class), 0 /* flags */),
+        getCallbackThreadPool());
   }
 
   /**
-   * Testing constructor for the scanner.
+   * Testing constructor for the scanner. Callbacks are delivered on the calling thread.
    *
    * @VisibleForTesting
    */
   JbBluetoothLeScannerCompat(BluetoothManager manager, AlarmManager alarmManager,
       Clock clock, PendingIntent alarmIntent) {
+    this(manager, alarmManager, clock, alarmIntent, SerialExecutor.DIRECT_EXECUTOR);
+  }
+
+  private JbBluetoothLeScannerCompat(BluetoothManager manager, AlarmManager alarmManager,
+      Clock clock, PendingIntent alarmIntent, Executor callbackExecutor) {
     this.bluetoothAdapter = manager.getAdapter();
-    this.serialClients = new HashMap<ScanCallback, ScanClient>();
-    this.recentScanResults = new HashMap<String, ScanResult>();
+    this.serialClients = new ConcurrentHashMap<ScanCallback, ScanClient>();
+    this.recentScanResults = new DeviceTable();
+    this.callbackExecutor = callbackExecutor;
+    updateClientMatcher();
     this.alarmManager = alarmManager;
     this.alarmIntent = alarmIntent;
     this.clock = clock;
+    this.cycleCounters = new ScanCycleCounters(clock);
+    this.scanCycleScheduler = new ScanCycleScheduler(clock, new Runnable() {
+      @Override
+      public void run() {
+        blockingScanCycle();
+      }
+    });
+  }
+
+  private static synchronized ExecutorService getCallbackThreadPool() {
+    if (callbackThreadPool == null) {
+      callbackThreadPool = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "ScanCallback-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return callbackThreadPool;
   }
 
   /**
@@ -177,54 +351,147 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * receiver to release its wakelock and the phone will enter a sleep phase for the remainder of
    * the BLE scan cycle.
    * <p>
-   * This is called on the IntentService handler thread and hence is synchronized.
+   * This is called on the IntentService handler thread, or by the scan cycle scheduler on Android
+   * 5.1.
+   * It only holds the scan cycle lock, which the rest of the scanner never takes.
    * <p>
    * Suppresses the experimental 'wait not in loop' warning because we don't mind exiting early.
    * Suppresses deprecation because this is the compatibility support.
    */
   @SuppressWarnings({"WaitNotInLoop", "deprecation"})
-  synchronized void blockingScanCycle() {
-    Logger.logDebug("Starting BLE Active Scan Cycle.");
-    int activeMillis = getScanActiveMillis();
-    if (activeMillis > 0) {
-      bluetoothAdapter.startLeScan(leScanCallback);
-      // Sleep for the duration of the scan. No wakeups are expected, but catch is required.
-      try {
-        wait(activeMillis);
-      } catch (InterruptedException e) {
-        Logger.logError("Exception in ScanCycle Sleep", e);
-      } finally {
+  void blockingScanCycle() {
+    synchronized (scanCycleLock) {
+      Logger.logDebug("Starting BLE Active Scan Cycle.");
+      scanCycleScheduler.recordCycleStart();
+      int activeMillis = getScanActiveMillis();
+      if (activeMillis > 0) {
+        long activeStartMillis = millisecondsSinceBoot();
+        bluetoothAdapter.startLeScan(leScanCallback);
+        // Sleep for the duration of the scan. No wakeups are expected, but catch is required.
         try {
-          bluetoothAdapter.stopLeScan(leScanCallback);
-        } catch (NullPointerException e) {
-          // An NPE is thrown if Bluetooth has been reset since this blocking scan began.
-          Logger.logDebug("NPE thrown in BlockingScanCycle");
+          scanCycleLock.wait(activeMillis);
+        } catch (InterruptedException e) {
+          Logger.logError("Exception in ScanCycle Sleep", e);
+        } finally {
+          try {
+            bluetoothAdapter.stopLeScan(leScanCallback);
+          } catch (NullPointerException e) {
+            // An NPE is thrown if Bluetooth has been reset since this blocking scan began.
+            Logger.logDebug("NPE thrown in BlockingScanCycle");
+          }
+          long actualActiveMillis = millisecondsSinceBoot() - activeStartMillis;
+          // Active BLE scan ends
+          // Execute cycle complete to 1) detect lost devices
+          onScanCycleComplete();
+          publishScanCycleStats(activeMillis, actualActiveMillis);
         }
-        // Active BLE scan ends
-        // Execute cycle complete to 1) detect lost devices
-        onScanCycleComplete();
       }
+      scanCycleScheduler.recordCycleEnd();
+      Logger.logDebug("Stopping BLE Active Scan Cycle.");
     }
-    Logger.logDebug("Stopping BLE Active Scan Cycle.");
   }
 
-  private void callbackLostLeScanClients(String address, ScanResult result) {
-    for (ScanClient client : serialClients.values()) {
-      int wantAny = client.settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
-      int wantLost = client.settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_MATCH_LOST;
+  /**
+   * Tells the listener, if there is one, what happened during the scan cycle that has just ended.
+   *
+   * @VisibleForTesting
+   */
+  void publishScanCycleStats(long requestedActiveMillis, long actualActiveMillis) {
+    ScanCycleStats stats =
+        cycleCounters.snapshot(scanCycleScheduler, requestedActiveMillis, actualActiveMillis);
+    ScanCycleListener listener = scanCycleListener;
+    if (listener != null) {
+      try {
+        listener.onScanCycleComplete(stats);
+      } catch (RuntimeException e) {
+        Logger.logError("Failure while sending scan cycle stats to listener", e);
+      }
+    }
+  }
 
-      if (client.addressesSeen.remove(address) && (wantAny | wantLost) != 0) {
+  /**
+   * Forgets that the clients using the scanner's lost timeout have seen the device in
+   * {@code slot}, collecting the clients that want to be told it is lost. Called with the
+   * recentScanResults lock held, once the device has expired under the scanner's lost timeout.
+   *
+   * @return the latest time until which a client with its own lost timeout still needs the
+   *     device, or {@link Long#MIN_VALUE} if none does and it can be removed
+   */
+  private long collectLostLeScanClients(ScanFilterMatcher<ScanClient> clients, int slot,
+      List<ScanClient> lostClients, List<ScanResult> lostResults) {
+    long keepUntilMillis = Long.MIN_VALUE;
+    for (int i = 0; i < clients.getClientCount(); i++) {
+      ScanClient client = clients.getClient(i);
+      if (!client.devicesSeen.get(slot)) {
+        continue;
+      }
+      if (client.lostOverrideMillis >= 0) {
+        keepUntilMillis = Math.max(keepUntilMillis,
+            recentScanResults.getTimestampMillis(slot) + client.lostOverrideMillis);
+        continue;
+      }
+      client.devicesSeen.clear(slot);
+      if (wantsLost(client)) {
+        lostClients.add(client);
+        lostResults.add(recentScanResults.getResult(slot));
+      }
+    }
+    return keepUntilMillis;
+  }
 
-        // Catch any exceptions and log them but continue processing other scan results.
-        try {
-          client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_MATCH_LOST, result);
-        } catch (Exception e) {
-          Logger.logError("Failure while sending 'lost' scan result to listener", e);
-        }
+  /**
+   * Forgets the devices that a client with its own lost timeout has not seen within it,
+   * collecting them if the client wants to be told. Called with the recentScanResults lock held.
+   */
+  private void collectLostForClient(ScanClient client, long nowMillis,
+      List<ScanClient> lostClients, List<ScanResult> lostResults) {
+    int slot;
+    while ((slot = client.lostExpiry.pollExpired(nowMillis)) >= 0) {
+      long deadlineMillis = recentScanResults.getTimestampMillis(slot) + client.lostOverrideMillis;
+      if (deadlineMillis >= nowMillis) {
+        // Seen again since it was queued.
+        client.lostExpiry.add(slot, deadlineMillis);
+        continue;
+      }
+      client.devicesSeen.clear(slot);
+      if (wantsLost(client)) {
+        lostClients.add(client);
+        lostResults.add(recentScanResults.getResult(slot));
       }
     }
   }
 
+  private static boolean wantsLost(ScanClient client) {
+    int wantAny = client.settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+    int wantLost = client.settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_MATCH_LOST;
+    return (wantAny | wantLost) != 0;
+  }
+
+  /**
+   * Records that the client has seen the device in {@code slot}, returning whether it had
+   * already. Called with the recentScanResults lock held.
+   */
+  private boolean markSeen(ScanClient client, int slot) {
+    if (client.devicesSeen.get(slot)) {
+      return true;
+    }
+    client.devicesSeen.set(slot);
+    if (client.lostOverrideMillis >= 0) {
+      client.lostExpiry.add(slot,
+          recentScanResults.getTimestampMillis(slot) + client.lostOverrideMillis);
+    }
+    return false;
+  }
+
+  /**
+   * Queues the device in {@code slot} to be checked once the scanner's lost timeout has passed
+   * since it was last seen. Called with the recentScanResults lock held.
+   */
+  private void queueRecentScanExpiry(int slot, long lostTimeoutMillis) {
+    recentScanExpiry.add(slot, recentScanResults.getTimestampMillis(slot) + lostTimeoutMillis);
+    recentScanExpiryTimeoutMillis = Math.max(recentScanExpiryTimeoutMillis, lostTimeoutMillis);
+  }
+
   /**
    * Process a single scan result, sending it directly
    * to any active listeners who want to know.
@@ -232,42 +499,87 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * @VisibleForTesting
    */
   void onScanResult(String address, ScanResult result) {
-    callbackLeScanClients(address, result);
+    long startNanos = cycleCounters.nanoTime();
+    boolean matched = callbackLeScanClients(address, result);
+    cycleCounters.recordSighting(matched, cycleCounters.nanoTime() - startNanos);
   }
 
   /**
    * Distribute each scan record to registered clients. When a "found" event occurs record the
    * address in the client filter so we can later send the "lost" event to that same client.
    * <P>
-   * This method will be called by the AIDL handler thread from onLeScan.
+   * This method will be called by the AIDL handler thread from onLeScan. The clients are read
+   * from an immutable snapshot and matched without locking. Only storing the result and updating
+   * which clients have seen the device happen under the recentScanResults lock, and callbacks are
+   * made after it is released.
+   *
+   * @return whether the result matched any client
    */
-  private synchronized void callbackLeScanClients(String address, ScanResult result) {
-    for (ScanClient client : serialClients.values()) {
-      if (matchesAnyFilter(client.filtersList, result)) {
-        boolean seenItBefore = client.addressesSeen.contains(address);
+  private boolean callbackLeScanClients(String address, ScanResult result) {
+    ScanFilterMatcher<ScanClient> clients = clientMatcher;
+    boolean[][] scratch = getDispatchScratch(clients.getClientCount());
+    boolean[] matched = scratch[0];
+    boolean[] seenBefore = scratch[1];
+    boolean anyMatched = clients.match(result, matched) > 0;
+    boolean payloadChanged;
+
+    synchronized (recentScanResults) {
+      payloadChanged = recentScanResults.isPayloadChanged(address, result);
+      int deviceCount = recentScanResults.size();
+      int slot = recentScanResults.put(address, result);
+      if (recentScanResults.size() > deviceCount) {
+        queueRecentScanExpiry(slot, getLostTimeoutMillis());
+        cycleNewDevices++;
+      }
+      cycleDevicesSeen.set(slot);
+      if (anyMatched) {
+        for (int i = 0; i < clients.getClientCount(); i++) {
+          ScanClient client = clients.getClient(i);
+          if (matched[i] && client.batch == null) {
+            seenBefore[i] = markSeen(client, slot);
+          }
+        }
+      }
+    }
+
+    if (anyMatched) {
+      for (int i = 0; i < clients.getClientCount(); i++) {
+        if (!matched[i]) {
+          continue;
+        }
+        ScanClient client = clients.getClient(i);
+        if (client.batch != null) {
+          client.deliverBatch(client.batch.add(address, result, clock.currentTimeMillis()));
+          continue;
+        }
+        boolean seenItBefore = seenBefore[i];
         int clientFlags = client.settings.getCallbackType();
         int firstMatchBit = clientFlags & ScanSettings.CALLBACK_TYPE_FIRST_MATCH;
         int allMatchesBit = clientFlags & ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
 
-        // Catch any exceptions and log them but continue processing other listeners.
         if ((firstMatchBit | allMatchesBit) != 0) {
-          try {
-            if (!seenItBefore) {
-              client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, result);
-            } else if (allMatchesBit != 0) {
-              client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
-            }
-          } catch (Exception e) {
-            Logger.logError("Failure while handling scan result", e);
+          if (!seenItBefore) {
+            client.deliver(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, result,
+                "Failure while handling scan result");
+          } else if (allMatchesBit != 0
+              && (payloadChanged || !client.settings.getPayloadChangesOnly())) {
+            client.deliver(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result,
+                "Failure while handling scan result");
           }
         }
-        if (!seenItBefore) {
-          client.addressesSeen.add(address);
-        }
       }
     }
+    return anyMatched;
+  }
 
-    recentScanResults.put(address, result);
+  // Returns arrays for which clients matched a sighting and which had seen the device before.
+  private boolean[][] getDispatchScratch(int clientCount) {
+    boolean[][] scratch = dispatchScratch.get();
+    if (scratch == null || scratch[0].length < clientCount) {
+      scratch = new boolean[][] {new boolean[clientCount], new boolean[clientCount]};
+      dispatchScratch.set(scratch);
+    }
+    return scratch;
   }
 
   @Override
@@ -278,34 +590,113 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
 
   private boolean startSerialScan(ScanSettings settings, List<ScanFilter> filterList,
       ScanCallback callback) {
-    ScanClient client = new ScanClient(settings, filterList, callback);
-    serialClients.put(callback, client);
+    ScanClient client =
+        new ScanClient(settings, filterList, callback, newClientExecutor(), cycleCounters);
+    ScanClient previousClient = serialClients.put(callback, client);
+    if (previousClient != null) {
+      previousClient.stopped = true;
+    }
+    // Publish the client before replaying, so that a sighting racing with the replay is either
+    // dispatched to it or found in recentScanResults. The seen set stops it being reported twice.
+    updateClientMatcher();
 
     int clientFlags = client.settings.getCallbackType();
     int firstMatchBit = clientFlags & ScanSettings.CALLBACK_TYPE_FIRST_MATCH;
     int allMatchesBit = clientFlags & ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
 
-    // Process new registrations by immediately invoking the "found" callback
-    // with all previously sighted devices.
-    if ((firstMatchBit | allMatchesBit) != 0) {
-      for (Entry<String, ScanResult> entry : recentScanResults.entrySet()) {
-        String address = entry.getKey();
-        ScanResult savedResult = entry.getValue();
-        if (matchesAnyFilter(filterList, savedResult)) {
+    // Process new registrations by invoking the "found" callback with all previously sighted
+    // devices. Batching clients get them in their first batch. The replay runs on the client's
+    // executor, ahead of the callbacks it queues, so startScan doesn't wait for it.
+    if (client.batch != null || (firstMatchBit | allMatchesBit) != 0) {
+      final ScanClient replayClient = client;
+      client.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          replayRecentScanResults(replayClient);
+        }
+      });
+    }
 
-          // Catch any exceptions and log them but continue processing other scan results.
-          try {
-            client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, savedResult);
-          } catch (Exception e) {
-            Logger.logError("Failure while handling scan result for new listener", e);
-          }
-          client.addressesSeen.add(address);
+    updateRepeatingAlarm();
+    return true;
+  }
+
+  /**
+   * Delivers the devices in recentScanResults that match the filters of a new client, as if they
+   * had just been found. Only the devices that the index says may match are tested.
+   */
+  private void replayRecentScanResults(ScanClient client) {
+    if (client.stopped) {
+      return;
+    }
+    List<String> replayAddresses = new ArrayList<String>();
+    List<ScanResult> replayResults = new ArrayList<ScanResult>();
+    synchronized (recentScanResults) {
+      BitSet candidates = findReplayCandidates(client.filtersList);
+      int slotLimit = recentScanResults.getSlotLimit();
+      for (int slot = nextReplayCandidate(candidates, 0); slot >= 0 && slot < slotLimit;
+          slot = nextReplayCandidate(candidates, slot + 1)) {
+        ScanResult savedResult = recentScanResults.getResult(slot);
+        if (savedResult == null || !matchesAnyFilter(client.filtersList, savedResult)) {
+          continue;
+        }
+        if (client.batch == null && markSeen(client, slot)) {
+          continue;
         }
+        replayAddresses.add(recentScanResults.getAddress(slot));
+        replayResults.add(savedResult);
       }
+    }
+    for (int i = 0; i < replayResults.size(); i++) {
+      if (client.batch != null) {
+        client.deliverBatch(client.batch.add(replayAddresses.get(i), replayResults.get(i),
+            clock.currentTimeMillis()));
+      } else {
+        client.deliver(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, replayResults.get(i),
+            "Failure while handling scan result for new listener");
+      }
+    }
   }
 
-    updateRepeatingAlarm();
-    return true;
+  /**
+   * Returns the slots in recentScanResults that may match one of the filters, or null if any of
+   * them may. Each filter is looked up by the field {@link ScanFilterMatcher} indexes it by.
+   * Called with the recentScanResults lock held.
+   */
+  private BitSet findReplayCandidates(List<ScanFilter> filters) {
+    if (filters == null || filters.isEmpty()) {
+      return null;
+    }
+    BitSet candidates = new BitSet();
+    for (ScanFilter filter : filters) {
+      if (filter.getDeviceAddress() != null) {
+        int slot = recentScanResults.getSlot(filter.getDeviceAddress());
+        if (slot >= 0) {
+          candidates.set(slot);
+        }
+      } else if (filter.getServiceDataUuid() != null
+          && BluetoothUuid.is16BitUuid(filter.getServiceDataUuid())) {
+        BitSet slots = recentScanResults.getSlotsWithServiceData(
+            BluetoothUuid.getServiceIdentifierFromParcelUuid(filter.getServiceDataUuid()));
+        if (slots != null) {
+          candidates.or(slots);
+        }
+      } else if (filter.getManufacturerId() >= 0) {
+        BitSet slots = recentScanResults.getSlotsWithManufacturerData(filter.getManufacturerId());
+        if (slots != null) {
+          candidates.or(slots);
+        }
+      } else {
+        // This filter has to be tried against every device.
+        return null;
+      }
+    }
+    return candidates;
+  }
+
+  // Returns the first candidate slot from slot on, or -1. Null candidates means every slot.
+  private static int nextReplayCandidate(BitSet candidates, int slot) {
+    return candidates == null ? slot : candidates.nextSetBit(slot);
   }
 
   /**
@@ -324,6 +715,27 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     updateRepeatingAlarm();
   }
 
+  /**
+   * Turns adaptive scan timing on or off. While it is on, the timing of the scan mode is the
+   * slowest the scan cycles run at: they speed up while devices come and go, and back off while
+   * nothing changes. Custom scan timing takes precedence.
+   */
+  @Override
+  public synchronized void setAdaptiveScanTiming(boolean enabled) {
+    adaptiveScanTiming = enabled ? new AdaptiveScanTiming(LOW_LATENCY_IDLE_MILLIS) : null;
+    // Force the scan cycles to be rescheduled with the new timing.
+    alarmIntervalMillis = 0;
+    updateRepeatingAlarm();
+  }
+
+  /**
+   * Sets the listener that is told what happened during each scan cycle, or null for none.
+   */
+  @Override
+  public void setScanCycleListener(ScanCycleListener listener) {
+    scanCycleListener = listener;
+  }
+
   /**
    * Sets the time after which a sighted device will be marked as lost.
    */
@@ -332,6 +744,31 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     this.scanLostOverrideMillis = scanLostOverrideMillis;
   }
 
+  /**
+   * Sets the time after which a device sighted by one client will be marked as lost for that
+   * client, until it is stopped. Clients without one use the scanner's lost timeout.
+   */
+  @Override
+  public synchronized void setScanLostOverride(ScanCallback callback, long lostOverrideMillis) {
+    ScanClient client = serialClients.get(callback);
+    if (client == null) {
+      Logger.logWarning("Ignoring lost override for a callback that is not scanning");
+      return;
+    }
+    synchronized (recentScanResults) {
+      // Requeue the devices the client has seen under its new timeout.
+      client.lostOverrideMillis = lostOverrideMillis < 0 ? -1 : lostOverrideMillis;
+      client.lostExpiry.clear();
+      if (client.lostOverrideMillis >= 0) {
+        for (int slot = client.devicesSeen.nextSetBit(0); slot >= 0;
+            slot = client.devicesSeen.nextSetBit(slot + 1)) {
+          client.lostExpiry.add(slot,
+              recentScanResults.getTimestampMillis(slot) + client.lostOverrideMillis);
+        }
+      }
+    }
+  }
+
   /**
    * Stop scanning.
    *
@@ -339,28 +776,114 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    */
   @Override
   public synchronized void stopScan(ScanCallback callback) {
-    serialClients.remove(callback);
+    ScanClient client = serialClients.remove(callback);
+    if (client != null) {
+      client.stopped = true;
+    }
+    updateClientMatcher();
     updateRepeatingAlarm();
   }
 
   /**
    * Test for lost tags by periodically checking the found devices
-   * for any that haven't been seen recently.
+   * for any that haven't been seen recently, and deliver the batches
+   * that would be overdue by the end of the next cycle.
    *
    * @VisibleForTesting
    */
   void onScanCycleComplete() {
-    Iterator<Map.Entry<String, ScanResult>> iter = recentScanResults.entrySet().iterator();
-    long lostTimestampMillis = getLostTimestampMillis();
-
-    // Clear out any expired notifications from the "old sightings" record.
-    while (iter.hasNext()) {
-      Map.Entry<String, ScanResult> entry = iter.next();
-      String address = entry.getKey();
-      ScanResult savedResult = entry.getValue();
-      if (TimeUnit.NANOSECONDS.toMillis(savedResult.getTimestampNanos()) < lostTimestampMillis) {
-        callbackLostLeScanClients(address, savedResult);
-        iter.remove();
+    flushScanResultBatches();
+    long nowMillis = clock.currentTimeMillis();
+    long lostTimeoutMillis = getLostTimeoutMillis();
+
+    // Clear out any expired notifications from the "old sightings" record. Only the devices whose
+    // deadline has passed are looked at. The clients are read under the lock, so that every
+    // client that may have seen a device is told it was lost.
+    List<ScanClient> lostClients = new ArrayList<ScanClient>();
+    List<ScanResult> lostResults = new ArrayList<ScanResult>();
+    int newDevices;
+    int lostDevices;
+    synchronized (recentScanResults) {
+      ScanFilterMatcher<ScanClient> clients = clientMatcher;
+      for (int i = 0; i < clients.getClientCount(); i++) {
+        ScanClient client = clients.getClient(i);
+        if (client.lostOverrideMillis >= 0) {
+          collectLostForClient(client, nowMillis, lostClients, lostResults);
+        }
+      }
+
+      if (lostTimeoutMillis < recentScanExpiryTimeoutMillis) {
+        // The timeout has shortened, so devices may have been queued too late.
+        recentScanExpiry.clear();
+        recentScanExpiryTimeoutMillis = lostTimeoutMillis;
+        for (int slot = 0; slot < recentScanResults.getSlotLimit(); slot++) {
+          if (recentScanResults.getResult(slot) != null) {
+            queueRecentScanExpiry(slot, lostTimeoutMillis);
+          }
+        }
+      }
+
+      int slot;
+      while ((slot = recentScanExpiry.pollExpired(nowMillis)) >= 0) {
+        if (recentScanResults.getTimestampMillis(slot) + lostTimeoutMillis >= nowMillis) {
+          // Seen again since it was queued.
+          queueRecentScanExpiry(slot, lostTimeoutMillis);
+          continue;
+        }
+        long keepUntilMillis = collectLostLeScanClients(clients, slot, lostClients, lostResults);
+        if (keepUntilMillis >= nowMillis) {
+          recentScanExpiry.add(slot, keepUntilMillis);
+        } else {
+          recentScanResults.remove(slot);
+          cycleLostDevices++;
+        }
+      }
+      newDevices = cycleNewDevices;
+      lostDevices = cycleLostDevices;
+      cycleCounters.recordDevices(cycleDevicesSeen.cardinality(), newDevices);
+      cycleNewDevices = 0;
+      cycleLostDevices = 0;
+      cycleDevicesSeen.clear();
+    }
+    cycleCounters.recordLostEvents(lostClients.size());
+    for (int i = 0; i < lostClients.size(); i++) {
+      lostClients.get(i).deliver(ScanSettings.CALLBACK_TYPE_MATCH_LOST, lostResults.get(i),
+          "Failure while sending 'lost' scan result to listener");
+    }
+    adaptScanTiming(newDevices, lostDevices);
+  }
+
+  /**
+   * Adapts the scan timing to the devices found and lost during the cycle that just ended. If
+   * that changes the length of the cycle, the next one is scheduled after the new idle period.
+   */
+  private synchronized void adaptScanTiming(int newDevices, int lostDevices) {
+    if (adaptiveScanTiming == null || serialClients.isEmpty()) {
+      return;
+    }
+    boolean cycleChanged = adaptiveScanTiming.onCycleComplete(newDevices, lostDevices);
+    scanActiveMillis = adaptiveScanTiming.getActiveMillis();
+    scanIdleMillis = adaptiveScanTiming.getIdleMillis();
+    if (cycleChanged && overrideScanActiveMillis == -1) {
+      Logger.logDebug("Adapting scan cycle to " + newDevices + " new and " + lostDevices
+          + " lost devices");
+      alarmIntervalMillis = adaptiveScanTiming.getCycleMillis();
+      scheduleScanCycles(scanIdleMillis);
+    }
+  }
+
+  /**
+   * Delivers the batches that are due before the end of the next scan cycle. No results arrive
+   * while the scanner is idle, so waiting for a later sighting or cycle would hold them past
+   * their report delay.
+   */
+  private void flushScanResultBatches() {
+    long deadlineMillis = clock.currentTimeMillis() + getScanIdleMillis() + getScanActiveMillis();
+    ScanFilterMatcher<ScanClient> clients = clientMatcher;
+    for (int i = 0; i < clients.getClientCount(); i++) {
+      ScanClient client = clients.getClient(i);
+      if (client.batch != null) {
+        client.deliverBatch(client.batch.drainIfDueBy(deadlineMillis));
       }
     }
   }
@@ -425,10 +948,20 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
       Logger.logDebug("updateRepeatingAlarm, getMaxPriorityScanMode = " + getMaxPriorityScanMode());
     // Apply Scan Mode (Cycle Parameters)
     setScanMode(getMaxPriorityScanMode());
+    if (adaptiveScanTiming != null) {
+      // Adapt from the timing of the scan mode, starting with quick cycles.
+      adaptiveScanTiming.reset(scanActiveMillis, scanIdleMillis);
+      steadyScanCycleMillis = adaptiveScanTiming.getSteadyCycleMillis();
+      scanActiveMillis = adaptiveScanTiming.getActiveMillis();
+      scanIdleMillis = adaptiveScanTiming.getIdleMillis();
+    } else {
+      steadyScanCycleMillis = 0;
+    }
 
     if (serialClients.isEmpty()) {
       // No listeners.  Remove the repeating alarm, if there is one.
       alarmManager.cancel(alarmIntent);
+      scanCycleScheduler.stop();
       alarmIntervalMillis = 0;
       Logger.logInfo("Scan : No clients left, canceling alarm.");
     } else {
@@ -436,42 +969,64 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
       int scanPeriod = idleMillis + getScanActiveMillis();
       if ((idleMillis != 0) && (alarmIntervalMillis != scanPeriod)) {
         alarmIntervalMillis = scanPeriod;
-
-        Logger.logDebug("Setting repeating alarm with interval: " + alarmIntervalMillis);
-
-        // In Android 5.1 the shortest interval for repeating alarm is 60 seconds:
-        // http://code.google.com/p/android/issues/detail?id=161244
-        if (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP && alarmIntervalMillis < 60000) {
-          Logger.logDebug("Using LOLLIPOP_MR1 workaround.");
-          alarmManager.cancel(alarmIntent);
-          cancelScheduledTask();
-          scheduledTask = Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(new Runnable() {
-              @Override
-              public void run() {
-                blockingScanCycle();
-              }
-            },
-            0, // initial delay
-            alarmIntervalMillis,
-            TimeUnit.MILLISECONDS);
-        } else {
-          cancelScheduledTask();
-          // Specifies a repeating alarm at the scanPeriod, starting immediately.
-          alarmManager.setRepeating(AlarmManager.RTC_WAKEUP,
-              0, alarmIntervalMillis,
-              alarmIntent);
-          Logger.logInfo("Scan alarm setup complete @ " + System.currentTimeMillis());
-        }
+        scheduleScanCycles(0);
       }
     }
   }
 
-  private void cancelScheduledTask() {
-    if (scheduledTask != null) {
-      scheduledTask.cancel(false);
+  /**
+   * Starts running scan cycles every alarmIntervalMillis, the first after
+   * {@code initialDelayMillis}.
+   */
+  private void scheduleScanCycles(long initialDelayMillis) {
+    Logger.logDebug("Setting repeating alarm with interval: " + alarmIntervalMillis);
+
+    // In Android 5.1 the shortest interval for repeating alarm is 60 seconds:
+    // http://code.google.com/p/android/issues/detail?id=161244
+    if (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP && alarmIntervalMillis < 60000) {
+      Logger.logDebug("Using LOLLIPOP_MR1 workaround.");
+      alarmManager.cancel(alarmIntent);
+      scanCycleScheduler.start(alarmIntervalMillis, initialDelayMillis);
+    } else {
+      scanCycleScheduler.stop();
+      scanCycleScheduler.setRequestedPeriodMillis(alarmIntervalMillis);
+      // Specifies a repeating alarm at the scanPeriod, starting after the initial delay.
+      alarmManager.setRepeating(AlarmManager.RTC_WAKEUP,
+          clock.currentTimeMillis() + initialDelayMillis, alarmIntervalMillis,
+          alarmIntent);
+      Logger.logInfo("Scan alarm setup complete @ " + System.currentTimeMillis());
     }
   }
 
+  /**
+   * Returns the scheduler that runs and measures the scan cycles.
+   *
+   * @VisibleForTesting
+   */
+  ScanCycleScheduler getScanCycleScheduler() {
+    return scanCycleScheduler;
+  }
+
+  private Executor newClientExecutor() {
+    if (callbackExecutor == SerialExecutor.DIRECT_EXECUTOR) {
+      return callbackExecutor;
+    }
+    return new SerialExecutor(callbackExecutor);
+  }
+
+  /**
+   * Recompiles the filters of all clients and publishes them as the new client snapshot. Must be
+   * called, with the scanner lock held, whenever serialClients changes.
+   */
+  private void updateClientMatcher() {
+    List<ScanClient> clients = new ArrayList<ScanClient>(serialClients.values());
+    List<List<ScanFilter>> clientFilters = new ArrayList<List<ScanFilter>>(clients.size());
+    for (ScanClient client : clients) {
+      clientFilters.add(client.filtersList);
+    }
+    clientMatcher = new ScanFilterMatcher<ScanClient>(clients, clientFilters);
+  }
+
   private static boolean matchesAnyFilter(List<ScanFilter> filters, ScanResult result) {
     if (filters == null || filters.isEmpty()) {
       return true;
@@ -500,10 +1055,22 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * @VisibleForTesting
    */
   long getLostTimestampMillis() {
+    return clock.currentTimeMillis() - getLostTimeoutMillis();
+  }
+
+  /**
+   * Returns how long a device can go unseen before it is lost, for clients without a lost
+   * timeout of their own.
+   */
+  private long getLostTimeoutMillis() {
     if (scanLostOverrideMillis >= 0) {
-      return clock.currentTimeMillis() - scanLostOverrideMillis;
+      return scanLostOverrideMillis;
+    }
+    if (overrideScanActiveMillis == -1 && steadyScanCycleMillis > 0) {
+      // The cycles adapt, so base the timeout on the slowest of them.
+      return SCAN_LOST_CYCLES * steadyScanCycleMillis;
     }
-    return clock.currentTimeMillis() - (SCAN_LOST_CYCLES * getScanCycleMillis());
+    return SCAN_LOST_CYCLES * getScanCycleMillis();
   }
 
   /**
@@ -22,17 +22,30 @@ import android.bluetooth.BluetoothManager;
 import android.os.Build;
 
 import org.uribeacon.scan.util.Logger;
+import org.uribeacon.scan.util.SystemClock;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Implements Bluetooth LE scan related API on top of {@link android.os.Build.VERSION_CODES#LOLLIPOP}
  * and later.
+ * <p>
+ * Clients share a single platform scan through a {@link ScanMultiplexer}, so registering many of
+ * them costs one scan and one set of offloaded filters rather than one each. Found and lost events
+ * are worked out in-process rather than left to the chipset, and the lost ones are delivered by a
+ * single periodic check while the shared scan runs. Clients asking for batched results get a
+ * platform scan of their own, since the platform batches per scan.
  */
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
@@ -41,6 +54,31 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
       new HashMap<ScanCallback, android.bluetooth.le.ScanCallback>();
   private final android.bluetooth.le.BluetoothLeScanner osScanner;
 
+  // How often the devices sighted by the shared scan are checked for having been lost.
+  /* @VisibleForTesting */ static final long LOST_CHECK_INTERVAL_MILLIS = 1000;
+
+  // The clients sharing a scan, whether that scan is running, and the periodic lost check that
+  // runs alongside it. Guarded by this.
+  private final ScanMultiplexer multiplexer = new ScanMultiplexer(new SystemClock());
+  private boolean multiplexedScanStarted;
+  private ScheduledExecutorService lostCheckExecutor;
+  private ScheduledFuture<?> lostCheck;
+  private final android.bluetooth.le.ScanCallback multiplexedOsCallback =
+      new android.bluetooth.le.ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, android.bluetooth.le.ScanResult osResult) {
+          String address = osResult.getDevice().getAddress();
+          multiplexer.onScanResult(address, fromOs(osResult,
+              getScanRecord(address, osResult.getScanRecord())));
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+          Logger.logInfo("LBluetoothLeScannerCompat::onScanFailed(" + errorCode + ")");
+          multiplexer.onScanFailed(errorCode);
+        }
+      };
+
   /**
    * Package-protected constructor, used by {@link BluetoothLeScannerCompatProvider}.
    *
@@ -65,12 +103,20 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   }
 
   @Override
-  public boolean startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
-    if (callbacksMap.containsKey(callback)) {
+  public synchronized boolean startScan(List<ScanFilter> filters, ScanSettings settings,
+      ScanCallback callback) {
+    if (callbacksMap.containsKey(callback) || multiplexer.hasClient(callback)) {
       Logger.logInfo("StartScan(): BLE 'L' hardware scan already in progress...");
       stopScan(callback);
     }
-    
+
+    if (ScanMultiplexer.canMultiplex(settings)) {
+      if (multiplexer.addClient(filters, settings, callback)) {
+        return restartMultiplexedScan();
+      }
+      return multiplexedScanStarted;
+    }
+
     android.bluetooth.le.ScanSettings osSettings = toOs(settings);
     android.bluetooth.le.ScanCallback osCallback = toOs(callback);
     List<android.bluetooth.le.ScanFilter> osFilters = toOs(filters);
@@ -87,8 +133,13 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   }
 
   @Override
-  public void stopScan(ScanCallback callback) {
-    android.bluetooth.le.ScanCallback osCallback = callbacksMap.get(callback);
+  public synchronized void stopScan(ScanCallback callback) {
+    if (multiplexer.removeClient(callback)) {
+      restartMultiplexedScan();
+      return;
+    }
+
+    android.bluetooth.le.ScanCallback osCallback = callbacksMap.remove(callback);
 
     if (osCallback != null) {
       try {
@@ -100,20 +151,186 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     }
   }
 
+  /**
+   * Stops the shared scan and starts it again with the multiplexer's current filters and
+   * settings, if it has any clients left.
+   *
+   * @return whether the shared scan is running
+   */
+  private boolean restartMultiplexedScan() {
+    if (multiplexedScanStarted) {
+      multiplexedScanStarted = false;
+      try {
+        Logger.logInfo("Stopping shared BLE 'L' hardware scan");
+        osScanner.stopScan(multiplexedOsCallback);
+      } catch (Exception e) {
+        Logger.logError("Exception caught calling 'L' BluetoothLeScanner.stopScan()", e);
+      }
+    }
+    if (!multiplexer.isEmpty()) {
+      try {
+        Logger.logInfo("Starting shared BLE 'L' hardware scan");
+        osScanner.startScan(toOs(multiplexer.getFilters()), toOs(multiplexer.getSettings()),
+            multiplexedOsCallback);
+        multiplexedScanStarted = true;
+      } catch (Exception e) {
+        Logger.logError("Exception caught calling 'L' BluetoothLeScanner.startScan()", e);
+      }
+    }
+    updateLostCheck();
+    return multiplexedScanStarted;
+  }
+
+  /**
+   * Runs the lost check for as long as the shared scan does. A single check covers every device,
+   * however many are in range.
+   */
+  private void updateLostCheck() {
+    if (multiplexedScanStarted && lostCheck == null) {
+      if (lostCheckExecutor == null) {
+        lostCheckExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ScanLostCheck");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+      lostCheck = lostCheckExecutor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          multiplexer.checkLost();
+        }
+      }, LOST_CHECK_INTERVAL_MILLIS, LOST_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    } else if (!multiplexedScanStarted && lostCheck != null) {
+      lostCheck.cancel(false);
+      lostCheck = null;
+    }
+  }
+
   @Override
   public void setCustomScanTiming(int scanMillis, int idleMillis, long serialScanDurationMillis) {
     // Do nothing.  This operation is not supported, but calling it is not an error.
   }
+
+  @Override
+  public void setAdaptiveScanTiming(boolean enabled) {
+    // Do nothing.  The platform schedules its own scans.
+  }
+
+  @Override
+  public void setScanCycleListener(ScanCycleListener listener) {
+    // Do nothing.  The platform doesn't report its scan cycles.
+  }
   
+  /**
+   * Sets the time after which a device sighted by the shared scan is marked as lost. Clients with
+   * a scan of their own get lost events from the platform, if at all.
+   */
   @Override
   public synchronized void setScanLostOverride(long lostOverrideMillis) {
-    // TODO: discuss w/ bentonian how best to implement this here.
+    multiplexer.setLostTimeoutMillis(lostOverrideMillis);
+  }
+
+  /**
+   * Sets the time after which a device sighted by one client will be marked as lost for that
+   * client, until it is stopped.
+   */
+  @Override
+  public synchronized void setScanLostOverride(ScanCallback callback, long lostOverrideMillis) {
+    if (!multiplexer.setLostOverride(callback, lostOverrideMillis)) {
+      Logger.logWarning("Ignoring lost override for a callback that is not sharing the scan");
+    }
   }
 
   /////////////////////////////////////////////////////////////////////////////
   // Conversion methods
 
+  // Number of distinct settings and filter lists whose conversions are remembered.
+  private static final int CONVERSION_CACHE_SIZE = 16;
+
+  /**
+   * The @SystemApi-hidden ScanSettings.Builder setters used to set the scan result type and
+   * callback type, looked up once per process.
+   */
+  private static class HiddenSettingsMethods {
+    static final Method SET_SCAN_RESULT_TYPE = findBuilderMethod("setScanResultType");
+    static final Method SET_CALLBACK_TYPE = findBuilderMethod("setCallbackType");
+
+    private static Method findBuilderMethod(String name) {
+      try {
+        return android.bluetooth.le.ScanSettings.Builder.class.getMethod(name, int.class);
+      } catch (NoSuchMethodException e) {
+        Logger.logWarning("ScanSettings.Builder." + name + "() not found");
+        return null;
+      }
+    }
+  }
+
+  /**
+   * The compat settings that an OS ScanSettings is built from. ScanSettings doesn't implement
+   * equals(), so this is used to find an OS ScanSettings that was built before.
+   */
+  private static class SettingsKey {
+    final int scanMode;
+    final int callbackType;
+    final int scanResultType;
+    final long reportDelayMillis;
+
+    SettingsKey(ScanSettings settings) {
+      scanMode = settings.getScanMode();
+      callbackType = settings.getCallbackType();
+      scanResultType = settings.getScanResultType();
+      reportDelayMillis = settings.getReportDelayMillis();
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(scanMode, callbackType, scanResultType, reportDelayMillis);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof SettingsKey)) {
+        return false;
+      }
+      SettingsKey other = (SettingsKey) obj;
+      return scanMode == other.scanMode && callbackType == other.callbackType
+          && scanResultType == other.scanResultType
+          && reportDelayMillis == other.reportDelayMillis;
+    }
+  }
+
+  // OS settings and filters are immutable, so the ones built for equal compat settings and filter
+  // lists are reused across scans. Guarded by themselves.
+  private static final Map<SettingsKey, android.bluetooth.le.ScanSettings> osSettingsCache =
+      newConversionCache();
+  private static final Map<List<ScanFilter>, List<android.bluetooth.le.ScanFilter>>
+      osFiltersCache = newConversionCache();
+
+  private static <K, V> Map<K, V> newConversionCache() {
+    return new LinkedHashMap<K, V>(CONVERSION_CACHE_SIZE, 0.75f, true /* accessOrder */) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > CONVERSION_CACHE_SIZE;
+      }
+    };
+  }
+
   private static android.bluetooth.le.ScanSettings toOs(ScanSettings settings) {
+    SettingsKey key = new SettingsKey(settings);
+    synchronized (osSettingsCache) {
+      android.bluetooth.le.ScanSettings osSettings = osSettingsCache.get(key);
+      if (osSettings == null) {
+        osSettings = buildOsSettings(settings);
+        osSettingsCache.put(key, osSettings);
+      }
+      return osSettings;
+    }
+  }
+
+  private static android.bluetooth.le.ScanSettings buildOsSettings(ScanSettings settings) {
     android.bluetooth.le.ScanSettings.Builder builder =
         new android.bluetooth.le.ScanSettings.Builder()
             .setReportDelay(settings.getReportDelayMillis())
@@ -124,30 +341,22 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     // Eclipse doesn't recognize these methods (yet). To track changes to this, keep an eye on
     // http://cs/#android/frameworks/base/core/java/android/bluetooth/le/ScanSettings.java
     // TODO: Remove--or at least never commit to gcore.
-    Class<?> clazz = builder.getClass();
-    boolean resultTypeSet = false;
-    boolean callbackTypeSet = false;
+    Method setScanResultType = HiddenSettingsMethods.SET_SCAN_RESULT_TYPE;
+    Method setCallbackType = HiddenSettingsMethods.SET_CALLBACK_TYPE;
+    if (setScanResultType == null && setCallbackType == null) {
+      throw new RuntimeException(
+          "Failed to find setScanResultType() and setCallbackType() via reflection");
+    }
     try {
-      for (Method method : clazz.getMethods()) {
-        if (method.toString().contains(".setScanResultType(")) {
-          method.invoke(builder, settings.getScanResultType());
-          resultTypeSet = true;
-        }
-        if (method.toString().contains(".setCallbackType(")) {
-          method.invoke(builder, settings.getCallbackType());
-          callbackTypeSet = true;
-        }
-        if (resultTypeSet && callbackTypeSet) {
-          break;
-        }
+      if (setScanResultType != null) {
+        setScanResultType.invoke(builder, settings.getScanResultType());
+      }
+      if (setCallbackType != null) {
+        setCallbackType.invoke(builder, settings.getCallbackType());
       }
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
-    if (!resultTypeSet && !callbackTypeSet) {
-      throw new RuntimeException(
-          "Failed to find setScanResultType() and setCallbackType() via reflection");
-    }
     // </hack>
 
     return builder.build();
@@ -170,12 +379,19 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   }
 
   private static List<android.bluetooth.le.ScanFilter> toOs(List<ScanFilter> filters) {
-    List<android.bluetooth.le.ScanFilter> osFilters =
-        new ArrayList<android.bluetooth.le.ScanFilter>(filters.size());
-    for (ScanFilter filter : filters) {
-      osFilters.add(toOs(filter));
+    synchronized (osFiltersCache) {
+      List<android.bluetooth.le.ScanFilter> osFilters = osFiltersCache.get(filters);
+      if (osFilters == null) {
+        osFilters = new ArrayList<android.bluetooth.le.ScanFilter>(filters.size());
+        for (ScanFilter filter : filters) {
+          osFilters.add(toOs(filter));
+        }
+        osFilters = Collections.unmodifiableList(osFilters);
+        // Copy the key, as the caller may change its list later.
+        osFiltersCache.put(new ArrayList<ScanFilter>(filters), osFilters);
+      }
+      return osFilters;
     }
-    return osFilters;
   }
 
   private static android.bluetooth.le.ScanFilter toOs(ScanFilter filter) {
@@ -221,9 +437,14 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   }
 
   private static ScanResult fromOs(android.bluetooth.le.ScanResult osResult) {
+    return fromOs(osResult, fromOs(osResult.getScanRecord()));
+  }
+
+  private static ScanResult fromOs(android.bluetooth.le.ScanResult osResult,
+      ScanRecord scanRecord) {
     return new ScanResult(
         osResult.getDevice(),
-        fromOs(osResult.getScanRecord()),
+        scanRecord,
         osResult.getRssi(),
         // Convert the osResult timestamp from 'nanos since boot' to 'nanos since epoch'.
         osResult.getTimestampNanos() + getActualBootTimeNanos());
@@ -239,6 +460,16 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     return ScanRecord.parseFromBytes(osRecord.getBytes());
   }
 
+  // Converts the record of a result of the shared scan, reusing the record parsed for the
+  // device's previous result if the advertisement hasn't changed.
+  private ScanRecord getScanRecord(String address, android.bluetooth.le.ScanRecord osRecord) {
+    if (osRecord == null) {
+      return null;
+    }
+    ScanRecord scanRecord = multiplexer.getUnchangedScanRecord(address, osRecord.getBytes());
+    return scanRecord != null ? scanRecord : fromOs(osRecord);
+  }
+
   private static boolean isNullOrEmpty(String s) {
     return (s == null) || s.isEmpty();
   }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import org.uribeacon.scan.util.Clock;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what a duty cycled scanner does, for the {@link ScanCycleStats} of each cycle.
+ * <p>
+ * Events are counted from the threads they happen on without locking or allocating, so the
+ * counters can be left on. {@link #snapshot} takes the counts and starts the next cycle from
+ * zero. Events racing with the snapshot are counted in one cycle or the next.
+ */
+class ScanCycleCounters {
+  private final Clock clock;
+
+  private final AtomicLong sightings = new AtomicLong();
+  private final AtomicLong filterHits = new AtomicLong();
+  private final AtomicLong parseFailures = new AtomicLong();
+  private final AtomicLong lostEvents = new AtomicLong();
+  private final AtomicLong callbackFailures = new AtomicLong();
+  private final AtomicLong droppedUpdates = new AtomicLong();
+  private final AtomicLong dispatchNanos = new AtomicLong();
+  private final AtomicLong maxDispatchNanos = new AtomicLong();
+  private final AtomicIntegerArray dispatchHistogram =
+      new AtomicIntegerArray(ScanCycleStats.HISTOGRAM_BUCKETS);
+  private final AtomicIntegerArray callbackHistogram =
+      new AtomicIntegerArray(ScanCycleStats.HISTOGRAM_BUCKETS);
+
+  // Counted by the scanner under its own lock, and written here as the cycle ends.
+  private volatile int uniqueDevices;
+  private volatile int newDevices;
+
+  ScanCycleCounters(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the time to measure durations from, in nanoseconds.
+   */
+  long nanoTime() {
+    return clock.elapsedRealtimeNanos();
+  }
+
+  /**
+   * Counts an advertisement, whether it matched any scan, and the time spent dispatching it.
+   */
+  void recordSighting(boolean matched, long nanos) {
+    sightings.incrementAndGet();
+    if (matched) {
+      filterHits.incrementAndGet();
+    }
+    dispatchNanos.addAndGet(nanos);
+    long max;
+    while (nanos > (max = maxDispatchNanos.get())) {
+      if (maxDispatchNanos.compareAndSet(max, nanos)) {
+        break;
+      }
+    }
+    dispatchHistogram.incrementAndGet(ScanCycleStats.getBucket(nanos));
+  }
+
+  void recordParseFailure() {
+    parseFailures.incrementAndGet();
+  }
+
+  void recordLostEvents(int count) {
+    lostEvents.addAndGet(count);
+  }
+
+  /**
+   * Counts a callback, how long it took, and whether it threw.
+   */
+  void recordCallback(long nanos, boolean failed) {
+    if (failed) {
+      callbackFailures.incrementAndGet();
+    }
+    callbackHistogram.incrementAndGet(ScanCycleStats.getBucket(nanos));
+  }
+
+  void recordDroppedUpdate() {
+    droppedUpdates.incrementAndGet();
+  }
+
+  /**
+   * Sets the number of different and of new devices seen during the cycle that is ending.
+   */
+  void recordDevices(int uniqueDevices, int newDevices) {
+    this.uniqueDevices = uniqueDevices;
+    this.newDevices = newDevices;
+  }
+
+  /**
+   * Takes the counts of the cycle that has ended, and resets them for the next one.
+   *
+   * @param scheduler the scheduler that timed the cycle
+   * @param requestedActiveMillis how long the radio was meant to scan
+   * @param actualActiveMillis how long the radio scanned
+   */
+  ScanCycleStats snapshot(ScanCycleScheduler scheduler, long requestedActiveMillis,
+      long actualActiveMillis) {
+    ScanCycleStats stats = new ScanCycleStats();
+    stats.cycleNumber = scheduler.getCycleCount();
+    stats.requestedActiveMillis = requestedActiveMillis;
+    stats.actualActiveMillis = actualActiveMillis;
+    stats.requestedPeriodMillis = scheduler.getRequestedPeriodMillis();
+    stats.lastPeriodMillis = scheduler.getLastPeriodMillis();
+    stats.averagePeriodMillis = scheduler.getAveragePeriodMillis();
+    stats.overrunCount = scheduler.getOverrunCount();
+    stats.sightings = sightings.getAndSet(0);
+    stats.filterHits = filterHits.getAndSet(0);
+    // Derived from the same counts, so that hits and misses add up to the sightings.
+    stats.filterMisses = Math.max(0, stats.sightings - stats.filterHits);
+    stats.uniqueDevices = uniqueDevices;
+    stats.newDevices = newDevices;
+    stats.parseFailures = parseFailures.getAndSet(0);
+    stats.lostEvents = lostEvents.getAndSet(0);
+    stats.callbackFailures = callbackFailures.getAndSet(0);
+    stats.droppedUpdates = droppedUpdates.getAndSet(0);
+    stats.dispatchNanos = dispatchNanos.getAndSet(0);
+    stats.maxDispatchNanos = maxDispatchNanos.getAndSet(0);
+    stats.dispatchHistogram = drain(dispatchHistogram);
+    stats.callbackHistogram = drain(callbackHistogram);
+    return stats;
+  }
+
+  private static int[] drain(AtomicIntegerArray histogram) {
+    int[] counts = new int[histogram.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = histogram.getAndSet(i, 0);
+    }
+    return counts;
+  }
+}
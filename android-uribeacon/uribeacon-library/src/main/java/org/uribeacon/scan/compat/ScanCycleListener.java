@@ -0,0 +1,29 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+/**
+ * Receives the {@link ScanCycleStats} of each scan cycle of a duty cycled scanner.
+ * <p>
+ * This is an extension of the "L" Platform API.
+ */
+public interface ScanCycleListener {
+  /**
+   * Called on the scan cycle thread as each scan cycle ends, so it should return quickly.
+   */
+  void onScanCycleComplete(ScanCycleStats stats);
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import org.uribeacon.scan.util.Clock;
+import org.uribeacon.scan.util.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a scanner's scan cycles at a fixed period, and measures the cycles however they are
+ * started.
+ * <p>
+ * Cycles run on a single thread that is created the first time the scheduler starts and reused
+ * for as long as the scanner lives, so changing the period does not create threads. Cycle
+ * {@code n} is due {@code n} periods after the first, so the schedule doesn't drift by the time
+ * each cycle takes. A cycle that runs past the start of the next one causes the cycles it
+ * overlapped to be skipped rather than run back to back.
+ * <p>
+ * Scanners whose cycles are started by an alarm instead call {@link #recordCycleStart} and
+ * {@link #recordCycleEnd} themselves, so the metrics describe the cycles whichever way they run.
+ * <p>
+ * This class is thread safe.
+ */
+class ScanCycleScheduler {
+  private final Clock clock;
+  private final Runnable cycle;
+
+  // Guarded by this.
+  private ScheduledExecutorService executor;
+  private ScheduledFuture<?> nextRun;
+  private long periodMillis;
+  private long firstCycleMillis;
+  private long cycleIndex;
+  // Incremented whenever the schedule changes, so that a cycle of an old schedule that is already
+  // running does not schedule another.
+  private int generation;
+
+  // Metrics. Written by whichever thread runs the cycles, one cycle at a time.
+  private volatile long requestedPeriodMillis;
+  private volatile long cycleCount;
+  private volatile long overrunCount;
+  private volatile long lastCycleStartMillis = -1;
+  private volatile long lastPeriodMillis;
+  private volatile long totalPeriodMillis;
+
+  /**
+   * @param clock the clock cycles are timed with
+   * @param cycle runs one scan cycle, recording its start and end
+   */
+  ScanCycleScheduler(Clock clock, Runnable cycle) {
+    this.clock = clock;
+    this.cycle = cycle;
+  }
+
+  /**
+   * Runs a cycle now and then every {@code periodMillis}, replacing any previous schedule. Does
+   * nothing if the cycles already run at that period.
+   */
+  synchronized void start(long periodMillis) {
+    start(periodMillis, 0);
+  }
+
+  /**
+   * Runs a cycle after {@code initialDelayMillis} and then every {@code periodMillis}, replacing
+   * any previous schedule. Does nothing if the cycles already run at that period.
+   */
+  synchronized void start(long periodMillis, long initialDelayMillis) {
+    if (nextRun != null && this.periodMillis == periodMillis) {
+      return;
+    }
+    stop();
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "ScanCycle");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    this.periodMillis = periodMillis;
+    requestedPeriodMillis = periodMillis;
+    firstCycleMillis = elapsedMillis() + initialDelayMillis;
+    cycleIndex = 0;
+    scheduleRun(initialDelayMillis, generation);
+  }
+
+  /**
+   * Stops running cycles. A cycle that is already running is allowed to finish.
+   */
+  synchronized void stop() {
+    generation++;
+    if (nextRun != null) {
+      nextRun.cancel(false);
+      nextRun = null;
+    }
+  }
+
+  synchronized boolean isRunning() {
+    return nextRun != null;
+  }
+
+  /**
+   * Sets the period the cycles are expected to run at when they are started by something else,
+   * such as an alarm.
+   */
+  void setRequestedPeriodMillis(long periodMillis) {
+    requestedPeriodMillis = periodMillis;
+  }
+
+  /**
+   * Records that a cycle has started.
+   */
+  void recordCycleStart() {
+    long nowMillis = elapsedMillis();
+    if (lastCycleStartMillis >= 0) {
+      lastPeriodMillis = nowMillis - lastCycleStartMillis;
+      totalPeriodMillis += lastPeriodMillis;
+    }
+    lastCycleStartMillis = nowMillis;
+    cycleCount++;
+  }
+
+  /**
+   * Records that the cycle that last started has ended. It overran if the next cycle was due
+   * before it ended.
+   */
+  void recordCycleEnd() {
+    long period = requestedPeriodMillis;
+    if (period > 0 && elapsedMillis() - lastCycleStartMillis > period) {
+      overrunCount++;
+    }
+  }
+
+  /**
+   * Returns the period the cycles are meant to run at, in milliseconds.
+   */
+  long getRequestedPeriodMillis() {
+    return requestedPeriodMillis;
+  }
+
+  /**
+   * Returns the number of cycles that have started.
+   */
+  long getCycleCount() {
+    return cycleCount;
+  }
+
+  /**
+   * Returns the number of cycles that ran past the start of the next one.
+   */
+  long getOverrunCount() {
+    return overrunCount;
+  }
+
+  /**
+   * Returns the time between the starts of the last two cycles, or 0 if fewer than two have run.
+   */
+  long getLastPeriodMillis() {
+    return lastPeriodMillis;
+  }
+
+  /**
+   * Returns the average time between the starts of consecutive cycles, or 0 if fewer than two have
+   * run.
+   */
+  long getAveragePeriodMillis() {
+    long periods = cycleCount - 1;
+    return periods > 0 ? totalPeriodMillis / periods : 0;
+  }
+
+  /**
+   * Advances the schedule past the current time, returning the delay until the next cycle is due.
+   * Called with the lock held after each cycle.
+   *
+   * @VisibleForTesting
+   */
+  long advanceSchedule() {
+    long sinceFirstMillis = elapsedMillis() - firstCycleMillis;
+    // The first cycle due after now. Cycles whose time has passed are skipped.
+    cycleIndex = Math.max(cycleIndex + 1, sinceFirstMillis / periodMillis + 1);
+    return cycleIndex * periodMillis - sinceFirstMillis;
+  }
+
+  private void scheduleRun(long delayMillis, final int runGeneration) {
+    nextRun = executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          cycle.run();
+        } catch (RuntimeException e) {
+          Logger.logError("Scan cycle failed", e);
+        }
+        synchronized (ScanCycleScheduler.this) {
+          if (runGeneration == generation) {
+            scheduleRun(advanceSchedule(), runGeneration);
+          }
+        }
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private long elapsedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(clock.elapsedRealtimeNanos());
+  }
+}
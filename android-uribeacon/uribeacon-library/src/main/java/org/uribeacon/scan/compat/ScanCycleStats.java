@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import java.util.Arrays;
+
+/**
+ * What a duty cycled scanner did during one scan cycle, passed to a {@link ScanCycleListener} as
+ * each cycle ends.
+ * <p>
+ * Counts cover the time since the previous cycle ended. Callbacks run on their own threads, so a
+ * callback is counted in the cycle during which it returned. Durations are also counted in
+ * histograms of {@link #HISTOGRAM_BUCKETS} buckets: bucket 0 counts durations under a
+ * microsecond, bucket {@code i} those from 2<sup>i-1</sup> up to 2<sup>i</sup> microseconds, and
+ * the last bucket everything longer.
+ * <p>
+ * Stats are immutable once published.
+ */
+public final class ScanCycleStats {
+  /**
+   * The number of buckets in each histogram.
+   */
+  public static final int HISTOGRAM_BUCKETS = 16;
+
+  // Set by ScanCycleCounters before the stats are published.
+  long cycleNumber;
+  long requestedActiveMillis;
+  long actualActiveMillis;
+  long requestedPeriodMillis;
+  long lastPeriodMillis;
+  long averagePeriodMillis;
+  long overrunCount;
+  long sightings;
+  int uniqueDevices;
+  int newDevices;
+  long filterHits;
+  long filterMisses;
+  long parseFailures;
+  long lostEvents;
+  long callbackFailures;
+  long droppedUpdates;
+  long dispatchNanos;
+  long maxDispatchNanos;
+  int[] dispatchHistogram;
+  int[] callbackHistogram;
+
+  ScanCycleStats() {
+  }
+
+  /**
+   * Returns the number of scan cycles the scanner has run, including this one.
+   */
+  public long getCycleNumber() {
+    return cycleNumber;
+  }
+
+  /**
+   * Returns how long the radio was meant to scan during the cycle.
+   */
+  public long getRequestedActiveMillis() {
+    return requestedActiveMillis;
+  }
+
+  /**
+   * Returns how long the radio actually scanned during the cycle.
+   */
+  public long getActualActiveMillis() {
+    return actualActiveMillis;
+  }
+
+  /**
+   * Returns how much longer than requested the radio scanned, or 0 if it didn't.
+   */
+  public long getActiveOvershootMillis() {
+    return Math.max(0, actualActiveMillis - requestedActiveMillis);
+  }
+
+  /**
+   * Returns the period the cycles are meant to run at.
+   */
+  public long getRequestedPeriodMillis() {
+    return requestedPeriodMillis;
+  }
+
+  /**
+   * Returns the time between the start of the previous cycle and this one, or 0 for the first.
+   */
+  public long getLastPeriodMillis() {
+    return lastPeriodMillis;
+  }
+
+  /**
+   * Returns the average time between the starts of consecutive cycles.
+   */
+  public long getAveragePeriodMillis() {
+    return averagePeriodMillis;
+  }
+
+  /**
+   * Returns the number of cycles so far that ran past the start of the next one.
+   */
+  public long getOverrunCount() {
+    return overrunCount;
+  }
+
+  /**
+   * Returns the number of advertisements received.
+   */
+  public long getSightings() {
+    return sightings;
+  }
+
+  /**
+   * Returns the number of different devices the advertisements came from.
+   */
+  public int getUniqueDevices() {
+    return uniqueDevices;
+  }
+
+  /**
+   * Returns the number of devices seen for the first time, or the first time since they were
+   * lost.
+   */
+  public int getNewDevices() {
+    return newDevices;
+  }
+
+  /**
+   * Returns the number of advertisements that matched the filters of at least one scan.
+   */
+  public long getFilterHits() {
+    return filterHits;
+  }
+
+  /**
+   * Returns the number of advertisements that matched no scan's filters.
+   */
+  public long getFilterMisses() {
+    return filterMisses;
+  }
+
+  /**
+   * Returns the number of advertisements whose scan record could not be parsed.
+   */
+  public long getParseFailures() {
+    return parseFailures;
+  }
+
+  /**
+   * Returns the number of lost callbacks made.
+   */
+  public long getLostEvents() {
+    return lostEvents;
+  }
+
+  /**
+   * Returns the number of callbacks that threw an exception.
+   */
+  public long getCallbackFailures() {
+    return callbackFailures;
+  }
+
+  /**
+   * Returns the number of update callbacks dropped because a scan fell behind.
+   */
+  public long getDroppedUpdates() {
+    return droppedUpdates;
+  }
+
+  /**
+   * Returns the total time spent matching advertisements and queueing their callbacks.
+   */
+  public long getDispatchNanos() {
+    return dispatchNanos;
+  }
+
+  /**
+   * Returns the longest time spent matching one advertisement and queueing its callbacks.
+   */
+  public long getMaxDispatchNanos() {
+    return maxDispatchNanos;
+  }
+
+  /**
+   * Returns the histogram of the time spent matching each advertisement and queueing its
+   * callbacks.
+   */
+  public int[] getDispatchHistogram() {
+    return Arrays.copyOf(dispatchHistogram, dispatchHistogram.length);
+  }
+
+  /**
+   * Returns the histogram of the time each callback took.
+   */
+  public int[] getCallbackHistogram() {
+    return Arrays.copyOf(callbackHistogram, callbackHistogram.length);
+  }
+
+  /**
+   * Returns the duration up to which a histogram bucket counts, exclusive, or
+   * {@link Long#MAX_VALUE} for the last bucket.
+   */
+  public static long getBucketLimitNanos(int bucket) {
+    if (bucket >= HISTOGRAM_BUCKETS - 1) {
+      return Long.MAX_VALUE;
+    }
+    return (1L << bucket) * 1000;
+  }
+
+  /**
+   * Returns the histogram bucket that counts a duration.
+   */
+  static int getBucket(long nanos) {
+    long micros = nanos / 1000;
+    if (micros <= 0) {
+      return 0;
+    }
+    return Math.min(64 - Long.numberOfLeadingZeros(micros), HISTOGRAM_BUCKETS - 1);
+  }
+
+  @Override
+  public String toString() {
+    return "ScanCycleStats [cycle=" + cycleNumber + ", active=" + actualActiveMillis + "/"
+        + requestedActiveMillis + "ms, period=" + lastPeriodMillis + "/" + requestedPeriodMillis
+        + "ms, overruns=" + overrunCount + ", sightings=" + sightings + ", devices="
+        + uniqueDevices + ", new=" + newDevices + ", hits=" + filterHits + ", misses="
+        + filterMisses + ", parseFailures=" + parseFailures + ", lost=" + lostEvents
+        + ", callbackFailures=" + callbackFailures + ", dropped=" + droppedUpdates
+        + ", dispatchNanos=" + dispatchNanos + ", maxDispatchNanos=" + maxDispatchNanos + "]";
+  }
+}
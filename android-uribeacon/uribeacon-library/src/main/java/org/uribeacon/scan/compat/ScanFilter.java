@@ -20,6 +20,9 @@
 // Changes:
 //   Changed comparison of mServiceDataUuid to Objects.equals()
 //   Exposed matchesPartialData() for testing
+//   Precompute the masked service UUID and 16-bit service data UUID, and match against the raw
+//   scan record bytes instead of the materialized fields
+//   Hash the contents of the data and mask arrays, consistent with equals()
 
 package org.uribeacon.scan.compat;
 
@@ -30,7 +33,6 @@ import android.os.ParcelUuid;
 import android.os.Parcelable;
 
 import java.util.Arrays;
-import java.util.List;
 import java.util.UUID;
 
 import android.support.annotation.Nullable;
@@ -75,6 +77,17 @@ public final class ScanFilter implements Parcelable {
     @Nullable
     private final byte[] mManufacturerDataMask;
 
+    // Service UUID and mask bits, precomputed so matching does no UUID arithmetic. A null mask is
+    // all ones.
+    private final long mServiceUuidMaskMsb;
+    private final long mServiceUuidMaskLsb;
+    private final long mMaskedServiceUuidMsb;
+    private final long mMaskedServiceUuidLsb;
+
+    // The 16-bit form of mServiceDataUuid, or -1 if it has none. Service data in a scan record
+    // always has a 16-bit UUID, so a filter without one can never match.
+    private final int mServiceDataUuid16;
+
     private ScanFilter(String name, String deviceAddress, ParcelUuid uuid,
             ParcelUuid uuidMask, ParcelUuid serviceDataUuid,
             byte[] serviceData, byte[] serviceDataMask,
@@ -89,6 +102,23 @@ public final class ScanFilter implements Parcelable {
         mManufacturerId = manufacturerId;
         mManufacturerData = manufacturerData;
         mManufacturerDataMask = manufacturerDataMask;
+
+        if (uuid != null) {
+            UUID serviceUuidMask = uuidMask == null ? null : uuidMask.getUuid();
+            mServiceUuidMaskMsb = serviceUuidMask == null ? -1L
+                    : serviceUuidMask.getMostSignificantBits();
+            mServiceUuidMaskLsb = serviceUuidMask == null ? -1L
+                    : serviceUuidMask.getLeastSignificantBits();
+            mMaskedServiceUuidMsb = uuid.getUuid().getMostSignificantBits() & mServiceUuidMaskMsb;
+            mMaskedServiceUuidLsb = uuid.getUuid().getLeastSignificantBits() & mServiceUuidMaskLsb;
+        } else {
+            mServiceUuidMaskMsb = 0;
+            mServiceUuidMaskLsb = 0;
+            mMaskedServiceUuidMsb = 0;
+            mMaskedServiceUuidLsb = 0;
+        }
+        mServiceDataUuid16 = serviceDataUuid != null && BluetoothUuid.is16BitUuid(serviceDataUuid)
+                ? BluetoothUuid.getServiceIdentifierFromParcelUuid(serviceDataUuid) : -1;
     }
 
     @Override
@@ -301,23 +331,26 @@ public final class ScanFilter implements Parcelable {
         }
 
         // UUID match.
-        if (mServiceUuid != null && !matchesServiceUuids(mServiceUuid, mServiceUuidMask,
-                scanRecord.getServiceUuids())) {
+        if (mServiceUuid != null && !scanRecord.containsServiceUuid(mMaskedServiceUuidMsb,
+                mMaskedServiceUuidLsb, mServiceUuidMaskMsb, mServiceUuidMaskLsb)) {
             return false;
         }
 
         // Service data match
         if (mServiceDataUuid != null) {
-            if (!matchesPartialData(mServiceData, mServiceDataMask,
-                    scanRecord.getServiceData(mServiceDataUuid))) {
+            int field = mServiceDataUuid16 < 0
+                    ? -1 : scanRecord.findServiceData(mServiceDataUuid16);
+            if (field < 0 || !matchesIdentifiedData(mServiceData, mServiceDataMask, scanRecord,
+                    field)) {
                 return false;
             }
         }
 
         // Manufacturer data match.
         if (mManufacturerId >= 0) {
-            if (!matchesPartialData(mManufacturerData, mManufacturerDataMask,
-                    scanRecord.getManufacturerSpecificData(mManufacturerId))) {
+            int field = scanRecord.findManufacturerSpecificData(mManufacturerId);
+            if (field < 0 || !matchesIdentifiedData(mManufacturerData, mManufacturerDataMask,
+                    scanRecord, field)) {
                 return false;
             }
         }
@@ -325,36 +358,12 @@ public final class ScanFilter implements Parcelable {
         return true;
     }
 
-    // Check if the uuid pattern is contained in a list of parcel uuids.
-    private boolean matchesServiceUuids(ParcelUuid uuid, ParcelUuid parcelUuidMask,
-            List<ParcelUuid> uuids) {
-        if (uuid == null) {
-            return true;
-        }
-        if (uuids == null) {
-            return false;
-        }
-
-        for (ParcelUuid parcelUuid : uuids) {
-            UUID uuidMask = parcelUuidMask == null ? null : parcelUuidMask.getUuid();
-            if (matchesServiceUuid(uuid.getUuid(), uuidMask, parcelUuid.getUuid())) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    // Check if the uuid pattern matches the particular service uuid.
-    private boolean matchesServiceUuid(UUID uuid, UUID mask, UUID data) {
-        if (mask == null) {
-            return uuid.equals(data);
-        }
-        if ((uuid.getLeastSignificantBits() & mask.getLeastSignificantBits())
-                != (data.getLeastSignificantBits() & mask.getLeastSignificantBits())) {
-            return false;
-        }
-        return ((uuid.getMostSignificantBits() & mask.getMostSignificantBits())
-                == (data.getMostSignificantBits() & mask.getMostSignificantBits()));
+    // Check if the data pattern matches a service data or manufacturer specific data field, past
+    // its two byte identifier.
+    private static boolean matchesIdentifiedData(byte[] data, byte[] dataMask,
+            ScanRecord scanRecord, int field) {
+        return matchesPartialData(data, dataMask, scanRecord.getBytes(),
+                scanRecord.getFieldDataOffset(field) + 2, scanRecord.getFieldDataLength(field) - 2);
     }
 
     /**
@@ -362,19 +371,28 @@ public final class ScanFilter implements Parcelable {
      * @VisibleForTesting
      */
     static boolean matchesPartialData(byte[] data, byte[] dataMask, byte[] parsedData) {
-        if (parsedData == null || parsedData.length < data.length) {
+        if (parsedData == null) {
+            return false;
+        }
+        return matchesPartialData(data, dataMask, parsedData, 0, parsedData.length);
+    }
+
+    // Check whether the data pattern matches length bytes of parsedData starting at offset.
+    private static boolean matchesPartialData(byte[] data, byte[] dataMask, byte[] parsedData,
+            int offset, int length) {
+        if (length < data.length) {
             return false;
         }
         if (dataMask == null) {
             for (int i = 0; i < data.length; ++i) {
-                if (parsedData[i] != data[i]) {
+                if (parsedData[offset + i] != data[i]) {
                     return false;
                 }
             }
             return true;
         }
         for (int i = 0; i < data.length; ++i) {
-            if ((dataMask[i] & parsedData[i]) != (dataMask[i] & data[i])) {
+            if ((dataMask[i] & parsedData[offset + i]) != (dataMask[i] & data[i])) {
                 return false;
             }
         }
@@ -395,8 +413,9 @@ public final class ScanFilter implements Parcelable {
 
     @Override
     public int hashCode() {
-        return Objects.hash(mDeviceName, mDeviceAddress, mManufacturerId, mManufacturerData,
-                mManufacturerDataMask, mServiceDataUuid, mServiceData, mServiceDataMask,
+        return Objects.hash(mDeviceName, mDeviceAddress, mManufacturerId,
+                Arrays.hashCode(mManufacturerData), Arrays.hashCode(mManufacturerDataMask),
+                mServiceDataUuid, Arrays.hashCode(mServiceData), Arrays.hashCode(mServiceDataMask),
                 mServiceUuid, mServiceUuidMask);
     }
 
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Matches scan results against the union of the {@link ScanFilter}s of a set of clients.
+ * <p>
+ * Each filter is indexed by the most selective field it constrains: the device address, the
+ * 16-bit service data UUID or the manufacturer id. A sighting only evaluates the filters indexed
+ * under its own address and the identifiers of its service data and manufacturer specific data
+ * fields, plus the filters that could not be indexed, so the cost of a sighting does not grow with
+ * the number of clients filtering on other devices.
+ * <p>
+ * A client matches when any of its filters {@link ScanFilter#matches matches}, or when it has no
+ * filters at all. This is the same rule as testing every filter of every client in turn.
+ * <p>
+ * Instances are immutable; build a new one whenever the set of clients changes.
+ *
+ * @param <T> the client type
+ */
+class ScanFilterMatcher<T> {
+
+  /**
+   * A filter and the index of the client it belongs to.
+   */
+  private static class Entry {
+    final ScanFilter filter;
+    final int client;
+
+    Entry(ScanFilter filter, int client) {
+      this.filter = filter;
+      this.client = client;
+    }
+  }
+
+  private final List<T> clients;
+
+  // Clients without filters, which match every result.
+  private final int[] unfilteredClients;
+
+  private final HashMap<String, List<Entry>> filtersByAddress = new HashMap<String, List<Entry>>();
+  private final SparseArray<List<Entry>> filtersByServiceDataUuid = new SparseArray<List<Entry>>();
+  private final SparseArray<List<Entry>> filtersByManufacturerId = new SparseArray<List<Entry>>();
+
+  // Filters on none of the indexed fields. These are tried for every result.
+  private final List<Entry> unindexedFilters = new ArrayList<Entry>();
+
+  /**
+   * Compiles the filters of the clients.
+   *
+   * @param clients the clients, in the order they should be reported in
+   * @param clientFilters the filters of each client, parallel to {@code clients}. A null or empty
+   *     list matches every result.
+   */
+  ScanFilterMatcher(List<T> clients, List<List<ScanFilter>> clientFilters) {
+    if (clients.size() != clientFilters.size()) {
+      throw new IllegalArgumentException("clients and filters have different sizes");
+    }
+    this.clients = new ArrayList<T>(clients);
+
+    int[] unfiltered = new int[clients.size()];
+    int unfilteredCount = 0;
+    for (int client = 0; client < clients.size(); client++) {
+      List<ScanFilter> filters = clientFilters.get(client);
+      if (filters == null || filters.isEmpty()) {
+        unfiltered[unfilteredCount++] = client;
+        continue;
+      }
+      for (ScanFilter filter : filters) {
+        addFilter(new Entry(filter, client));
+      }
+    }
+    unfilteredClients = Arrays.copyOf(unfiltered, unfilteredCount);
+  }
+
+  private void addFilter(Entry entry) {
+    ScanFilter filter = entry.filter;
+    if (filter.getDeviceAddress() != null) {
+      List<Entry> entries = filtersByAddress.get(filter.getDeviceAddress());
+      if (entries == null) {
+        entries = new ArrayList<Entry>();
+        filtersByAddress.put(filter.getDeviceAddress(), entries);
+      }
+      entries.add(entry);
+    } else if (filter.getServiceDataUuid() != null
+        && BluetoothUuid.is16BitUuid(filter.getServiceDataUuid())) {
+      addFilter(filtersByServiceDataUuid,
+          BluetoothUuid.getServiceIdentifierFromParcelUuid(filter.getServiceDataUuid()), entry);
+    } else if (filter.getManufacturerId() >= 0) {
+      addFilter(filtersByManufacturerId, filter.getManufacturerId(), entry);
+    } else {
+      unindexedFilters.add(entry);
+    }
+  }
+
+  private static void addFilter(SparseArray<List<Entry>> index, int key, Entry entry) {
+    List<Entry> entries = index.get(key);
+    if (entries == null) {
+      entries = new ArrayList<Entry>();
+      index.put(key, entries);
+    }
+    entries.add(entry);
+  }
+
+  /**
+   * Returns the number of clients.
+   */
+  int getClientCount() {
+    return clients.size();
+  }
+
+  /**
+   * Returns the client at {@code index}, in the order given to the constructor.
+   */
+  T getClient(int index) {
+    return clients.get(index);
+  }
+
+  /**
+   * Finds the clients that the result matches.
+   *
+   * @param result the scan result
+   * @param matched set to true at the index of each matching client and false elsewhere. Must be
+   *     at least {@link #getClientCount} long.
+   * @return the number of matching clients
+   */
+  int match(ScanResult result, boolean[] matched) {
+    Arrays.fill(matched, 0, clients.size(), false);
+    int count = 0;
+    for (int client : unfilteredClients) {
+      matched[client] = true;
+      count++;
+    }
+    if (count == clients.size()) {
+      return count;
+    }
+
+    BluetoothDevice device = result.getDevice();
+    if (device != null && !filtersByAddress.isEmpty()) {
+      count += match(filtersByAddress.get(device.getAddress()), result, matched);
+    }
+
+    ScanRecord scanRecord = result.getScanRecord();
+    if (scanRecord != null
+        && (filtersByServiceDataUuid.size() > 0 || filtersByManufacturerId.size() > 0)) {
+      for (int field = 0; field < scanRecord.getFieldCount(); field++) {
+        switch (scanRecord.getFieldType(field)) {
+          case ScanRecord.DATA_TYPE_SERVICE_DATA:
+            count += match(filtersByServiceDataUuid.get(scanRecord.getFieldIdentifier(field)),
+                result, matched);
+            break;
+          case ScanRecord.DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+            count += match(filtersByManufacturerId.get(scanRecord.getFieldIdentifier(field)),
+                result, matched);
+            break;
+          default:
+            break;
+        }
+      }
+    }
+
+    count += match(unindexedFilters, result, matched);
+    return count;
+  }
+
+  // Tries the filters of clients that have not matched yet, returning the number of new matches.
+  private static int match(List<Entry> entries, ScanResult result, boolean[] matched) {
+    if (entries == null) {
+      return 0;
+    }
+    int count = 0;
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      if (!matched[entry.client] && entry.filter.matches(result)) {
+        matched[entry.client] = true;
+        count++;
+      }
+    }
+    return count;
+  }
+}
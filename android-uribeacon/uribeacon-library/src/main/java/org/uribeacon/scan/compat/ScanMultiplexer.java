@@ -0,0 +1,525 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import org.uribeacon.scan.util.Clock;
+import org.uribeacon.scan.util.Logger;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Shares a single platform scan between several {@link ScanCallback}s.
+ * <p>
+ * The shared scan runs with the union of the clients' filters, with duplicates removed, at the
+ * most aggressive scan mode any of them asked for. Its results are matched against each client's
+ * own filters in-process and delivered to the clients that match. Adding or removing a client
+ * reports whether the shared scan has to be restarted, which it only does when the merged filters
+ * or settings actually change.
+ * <p>
+ * The shared scan always asks the platform for every result, since many chipsets can't report
+ * found and lost events. They are worked out from a table of recent sightings instead, with the
+ * same semantics as {@link JbBluetoothLeScannerCompat}: a found event the first time a device
+ * matches, including the devices sighted shortly before the client registered, then every result
+ * for clients that asked for all matches, and a lost event once the device has gone unseen for the
+ * lost timeout. Clients asking for all matches get the found and lost events too.
+ * {@link #checkLost} has to be called periodically for the lost events to be delivered.
+ * <p>
+ * Clients asking for batched results can't share the scan; see {@link #canMultiplex}.
+ * <p>
+ * This class is thread safe. Results are dispatched against an immutable snapshot of the clients.
+ */
+class ScanMultiplexer {
+  // Chipsets offload only a handful of filters to the controller, and the stack fails the scan
+  // when they run out. Beyond this many distinct filters the shared scan is left unfiltered and
+  // the filtering happens in-process only.
+  /* @VisibleForTesting */ static final int MAX_SCAN_FILTERS = 16;
+
+  // How long a device can go unseen before it is lost, unless overridden. The platform scans in
+  // windows about 5 seconds apart, so this allows as many missed windows as the JB scanner allows
+  // missed cycles.
+  /* @VisibleForTesting */ static final long DEFAULT_LOST_TIMEOUT_MILLIS =
+      JbBluetoothLeScannerCompat.SCAN_LOST_CYCLES * 5000;
+
+  private static class Client {
+    final List<ScanFilter> filters;
+    final ScanSettings settings;
+    final ScanCallback callback;
+    // Slots in recentScanResults of the devices the client has matched and not lost. Guarded by
+    // recentScanResults.
+    final BitSet devicesSeen = new BitSet();
+    // The devicesSeen, ordered by when they would be lost. Guarded by recentScanResults.
+    final ExpiryQueue lostExpiry = new ExpiryQueue();
+    // Milliseconds after which this client is told a device is lost, or -1 to use the
+    // multiplexer's lost timeout. Guarded by recentScanResults.
+    long lostOverrideMillis = -1;
+
+    Client(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+      this.filters = filters;
+      this.settings = settings;
+      this.callback = callback;
+    }
+
+    /**
+     * Whether the client is told when a device is first seen, as clients wanting every result are
+     * too.
+     */
+    boolean wantsFound() {
+      return (settings.getCallbackType() & (ScanSettings.CALLBACK_TYPE_FIRST_MATCH
+          | ScanSettings.CALLBACK_TYPE_ALL_MATCHES)) != 0;
+    }
+
+    boolean wantsAll() {
+      return (settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0;
+    }
+
+    /**
+     * Whether the client is told when a device is lost, as clients wanting every result are too.
+     */
+    boolean wantsLost() {
+      return (settings.getCallbackType() & (ScanSettings.CALLBACK_TYPE_MATCH_LOST
+          | ScanSettings.CALLBACK_TYPE_ALL_MATCHES)) != 0;
+    }
+
+    void deliver(int callbackType, ScanResult result) {
+      // Catch any exceptions and log them but continue processing other clients.
+      try {
+        callback.onScanResult(callbackType, result);
+      } catch (Exception e) {
+        Logger.logError("Failure while handling scan result", e);
+      }
+    }
+  }
+
+  private final Clock clock;
+
+  // Guarded by this.
+  private final LinkedHashMap<ScanCallback, Client> clients =
+      new LinkedHashMap<ScanCallback, Client>();
+  private List<ScanFilter> mergedFilters = Collections.emptyList();
+  private ScanSettings mergedSettings;
+
+  private volatile ScanFilterMatcher<Client> clientMatcher = new ScanFilterMatcher<Client>(
+      Collections.<Client>emptyList(), Collections.<List<ScanFilter>>emptyList());
+
+  // The latest result of each device sighted within the longest lost timeout, for replay to new
+  // clients and to report lost devices with. Its lock also guards the sighting state of every
+  // client, and is never held while calling out.
+  /* @VisibleForTesting */ final DeviceTable recentScanResults = new DeviceTable();
+  // The devices in recentScanResults, ordered by when no client will need them any more.
+  // Guarded by recentScanResults.
+  private final ExpiryQueue recentScanExpiry = new ExpiryQueue();
+  private volatile long lostTimeoutMillis = DEFAULT_LOST_TIMEOUT_MILLIS;
+
+  // Scratch arrays for the clients matching a sighting, per dispatching thread.
+  private final ThreadLocal<boolean[][]> dispatchScratch = new ThreadLocal<boolean[][]>();
+
+  ScanMultiplexer(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Returns whether a client with these settings can share the scan. The platform batches results
+   * per scan, so clients asking for a report delay need a scan of their own.
+   */
+  static boolean canMultiplex(ScanSettings settings) {
+    return settings.getReportDelayMillis() == 0;
+  }
+
+  /**
+   * Adds a client, replacing any client with the same callback. A client that wants found events
+   * is told about the matching devices sighted within its lost timeout before this returns.
+   *
+   * @return whether the shared scan has to be restarted with the new {@link #getFilters} and
+   *     {@link #getSettings}
+   */
+  boolean addClient(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+    Client client = new Client(filters, settings, callback);
+    boolean changed;
+    synchronized (this) {
+      clients.put(callback, client);
+      changed = update();
+    }
+    if (client.wantsFound()) {
+      replayRecentScanResults(client);
+    }
+    return changed;
+  }
+
+  /**
+   * Removes a client.
+   *
+   * @return whether the shared scan has to be restarted, or stopped if there are no clients left
+   */
+  synchronized boolean removeClient(ScanCallback callback) {
+    if (clients.remove(callback) == null) {
+      return false;
+    }
+    return update();
+  }
+
+  synchronized boolean hasClient(ScanCallback callback) {
+    return clients.containsKey(callback);
+  }
+
+  synchronized boolean isEmpty() {
+    return clients.isEmpty();
+  }
+
+  /**
+   * Returns the filters the shared scan should run with. An empty list means every result.
+   */
+  synchronized List<ScanFilter> getFilters() {
+    return mergedFilters;
+  }
+
+  /**
+   * Returns the settings the shared scan should run with, or null if there are no clients.
+   */
+  synchronized ScanSettings getSettings() {
+    return mergedSettings;
+  }
+
+  /**
+   * Sets the time after which a sighted device is lost, for clients without a lost timeout of
+   * their own.
+   *
+   * @param lostTimeoutMillis the timeout, or a negative number for the default
+   */
+  void setLostTimeoutMillis(long lostTimeoutMillis) {
+    synchronized (recentScanResults) {
+      this.lostTimeoutMillis =
+          lostTimeoutMillis < 0 ? DEFAULT_LOST_TIMEOUT_MILLIS : lostTimeoutMillis;
+      // Requeue the devices of the clients using it, as they may have been queued too late.
+      ScanFilterMatcher<Client> clients = clientMatcher;
+      for (int i = 0; i < clients.getClientCount(); i++) {
+        Client client = clients.getClient(i);
+        if (client.lostOverrideMillis < 0) {
+          requeueSeenDevices(client);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets the time after which a device sighted by one client is lost for that client, until it is
+   * removed.
+   *
+   * @param lostOverrideMillis the timeout, or a negative number for the multiplexer's
+   * @return false if there is no such client
+   */
+  boolean setLostOverride(ScanCallback callback, long lostOverrideMillis) {
+    Client client;
+    synchronized (this) {
+      client = clients.get(callback);
+    }
+    if (client == null) {
+      return false;
+    }
+    synchronized (recentScanResults) {
+      client.lostOverrideMillis = lostOverrideMillis < 0 ? -1 : lostOverrideMillis;
+      requeueSeenDevices(client);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the parsed scan record of the latest result of the device if it has the same bytes,
+   * or null.
+   */
+  ScanRecord getUnchangedScanRecord(String address, byte[] scanRecordBytes) {
+    synchronized (recentScanResults) {
+      return recentScanResults.getUnchangedScanRecord(address, scanRecordBytes);
+    }
+  }
+
+  /**
+   * Delivers a result of the shared scan to the clients whose filters match it. A device a client
+   * hasn't seen is reported as found; after that, clients that want every result get it, unless
+   * they only want payload changes and the device's advertisement is unchanged.
+   */
+  void onScanResult(String address, ScanResult result) {
+    ScanFilterMatcher<Client> matcher = clientMatcher;
+    int clientCount = matcher.getClientCount();
+    boolean[][] scratch = getDispatchScratch(clientCount);
+    boolean[] matched = scratch[0];
+    boolean[] seenBefore = scratch[1];
+    boolean anyMatched = matcher.match(result, matched) > 0;
+    boolean payloadChanged;
+
+    synchronized (recentScanResults) {
+      payloadChanged = recentScanResults.isPayloadChanged(address, result);
+      int deviceCount = recentScanResults.size();
+      int slot = recentScanResults.put(address, result);
+      if (recentScanResults.size() > deviceCount) {
+        recentScanExpiry.add(slot,
+            recentScanResults.getTimestampMillis(slot) + getRetentionMillis(matcher));
+      }
+      for (int i = 0; anyMatched && i < clientCount; i++) {
+        if (matched[i]) {
+          seenBefore[i] = markSeen(matcher.getClient(i), slot);
+        }
+      }
+    }
+
+    for (int i = 0; anyMatched && i < clientCount; i++) {
+      if (!matched[i]) {
+        continue;
+      }
+      Client client = matcher.getClient(i);
+      if (!client.wantsFound()) {
+        continue;
+      }
+      if (!seenBefore[i]) {
+        client.deliver(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, result);
+      } else if (client.wantsAll()
+          && (payloadChanged || !client.settings.getPayloadChangesOnly())) {
+        client.deliver(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+      }
+    }
+  }
+
+  // Returns arrays for which clients matched a sighting and which had seen the device before.
+  private boolean[][] getDispatchScratch(int clientCount) {
+    boolean[][] scratch = dispatchScratch.get();
+    if (scratch == null || scratch[0].length < clientCount) {
+      scratch = new boolean[][] {new boolean[clientCount], new boolean[clientCount]};
+      dispatchScratch.set(scratch);
+    }
+    return scratch;
+  }
+
+  /**
+   * Tells every client that the shared scan failed.
+   */
+  void onScanFailed(int errorCode) {
+    ScanFilterMatcher<Client> matcher = clientMatcher;
+    for (int i = 0; i < matcher.getClientCount(); i++) {
+      matcher.getClient(i).callback.onScanFailed(errorCode);
+    }
+  }
+
+  /**
+   * Tells the clients about the devices they have not seen within their lost timeout, and forgets
+   * the devices that no client can need any more. Only the devices whose deadline has passed are
+   * looked at, so this is cheap to call often.
+   */
+  void checkLost() {
+    long nowMillis = clock.currentTimeMillis();
+    List<Client> lostClients = new ArrayList<Client>();
+    List<ScanResult> lostResults = new ArrayList<ScanResult>();
+    synchronized (recentScanResults) {
+      ScanFilterMatcher<Client> clients = clientMatcher;
+      for (int i = 0; i < clients.getClientCount(); i++) {
+        Client client = clients.getClient(i);
+        int slot;
+        while ((slot = client.lostExpiry.pollExpired(nowMillis)) >= 0) {
+          if (!client.devicesSeen.get(slot)) {
+            // Queued for a device that has since been lost.
+            continue;
+          }
+          long deadlineMillis = recentScanResults.getTimestampMillis(slot) + getTimeout(client);
+          if (deadlineMillis >= nowMillis) {
+            // Seen again since it was queued.
+            client.lostExpiry.add(slot, deadlineMillis);
+            continue;
+          }
+          client.devicesSeen.clear(slot);
+          if (client.wantsLost()) {
+            lostClients.add(client);
+            lostResults.add(recentScanResults.getResult(slot));
+          }
+        }
+      }
+
+      long retentionMillis = getRetentionMillis(clients);
+      int slot;
+      while ((slot = recentScanExpiry.pollExpired(nowMillis)) >= 0) {
+        long deadlineMillis = recentScanResults.getTimestampMillis(slot) + retentionMillis;
+        if (deadlineMillis >= nowMillis) {
+          recentScanExpiry.add(slot, deadlineMillis);
+          continue;
+        }
+        // Clients that still hold the device got a longer timeout after it was queued.
+        for (int i = 0; i < clients.getClientCount(); i++) {
+          Client client = clients.getClient(i);
+          if (client.devicesSeen.get(slot)) {
+            client.devicesSeen.clear(slot);
+            if (client.wantsLost()) {
+              lostClients.add(client);
+              lostResults.add(recentScanResults.getResult(slot));
+            }
+          }
+        }
+        recentScanResults.remove(slot);
+      }
+    }
+    for (int i = 0; i < lostClients.size(); i++) {
+      lostClients.get(i).deliver(ScanSettings.CALLBACK_TYPE_MATCH_LOST, lostResults.get(i));
+    }
+  }
+
+  // Delivers found events for the devices in recentScanResults that match a new client.
+  private void replayRecentScanResults(Client client) {
+    long nowMillis = clock.currentTimeMillis();
+    List<ScanResult> replayResults = new ArrayList<ScanResult>();
+    synchronized (recentScanResults) {
+      for (int slot = 0; slot < recentScanResults.getSlotLimit(); slot++) {
+        ScanResult savedResult = recentScanResults.getResult(slot);
+        if (savedResult == null
+            || recentScanResults.getTimestampMillis(slot) + getTimeout(client) < nowMillis
+            || !matchesAnyFilter(client.filters, savedResult)) {
+          continue;
+        }
+        if (!markSeen(client, slot)) {
+          replayResults.add(savedResult);
+        }
+      }
+    }
+    for (ScanResult result : replayResults) {
+      client.deliver(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, result);
+    }
+  }
+
+  /**
+   * Records that the client has seen the device in {@code slot}, returning whether it had
+   * already. Called with the recentScanResults lock held.
+   */
+  private boolean markSeen(Client client, int slot) {
+    if (client.devicesSeen.get(slot)) {
+      return true;
+    }
+    client.devicesSeen.set(slot);
+    client.lostExpiry.add(slot, recentScanResults.getTimestampMillis(slot) + getTimeout(client));
+    return false;
+  }
+
+  // Rebuilds the client's queue under its current timeout. Called with the recentScanResults
+  // lock held.
+  private void requeueSeenDevices(Client client) {
+    client.lostExpiry.clear();
+    for (int slot = client.devicesSeen.nextSetBit(0); slot >= 0;
+        slot = client.devicesSeen.nextSetBit(slot + 1)) {
+      client.lostExpiry.add(slot, recentScanResults.getTimestampMillis(slot) + getTimeout(client));
+    }
+  }
+
+  private long getTimeout(Client client) {
+    return client.lostOverrideMillis >= 0 ? client.lostOverrideMillis : lostTimeoutMillis;
+  }
+
+  // The longest time any client may need a device for after it was last seen.
+  private long getRetentionMillis(ScanFilterMatcher<Client> clients) {
+    long retentionMillis = lostTimeoutMillis;
+    for (int i = 0; i < clients.getClientCount(); i++) {
+      retentionMillis = Math.max(retentionMillis, clients.getClient(i).lostOverrideMillis);
+    }
+    return retentionMillis;
+  }
+
+  // Recomputes the snapshot and merged scan after the clients change, returning whether the
+  // merged scan is different.
+  private boolean update() {
+    List<Client> clientList = new ArrayList<Client>(clients.values());
+    List<List<ScanFilter>> clientFilters = new ArrayList<List<ScanFilter>>(clientList.size());
+    for (Client client : clientList) {
+      clientFilters.add(client.filters);
+    }
+    clientMatcher = new ScanFilterMatcher<Client>(clientList, clientFilters);
+
+    List<ScanFilter> filters = mergeFilters(clientFilters);
+    ScanSettings settings = mergeSettings(clientList);
+    boolean changed = !filters.equals(mergedFilters) || !sameSettings(settings, mergedSettings);
+    mergedFilters = filters;
+    mergedSettings = settings;
+    return changed;
+  }
+
+  private static List<ScanFilter> mergeFilters(List<List<ScanFilter>> clientFilters) {
+    LinkedHashSet<ScanFilter> filters = new LinkedHashSet<ScanFilter>();
+    for (List<ScanFilter> list : clientFilters) {
+      if (list == null || list.isEmpty()) {
+        // This client wants every result, so the scan can't be filtered.
+        return Collections.emptyList();
+      }
+      filters.addAll(list);
+    }
+    if (filters.size() > MAX_SCAN_FILTERS) {
+      Logger.logInfo("Too many scan filters to offload (" + filters.size() + "), scanning for all");
+      return Collections.emptyList();
+    }
+    return new ArrayList<ScanFilter>(filters);
+  }
+
+  private static ScanSettings mergeSettings(List<Client> clientList) {
+    if (clientList.isEmpty()) {
+      return null;
+    }
+    int scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+    int scanResultType = ScanSettings.SCAN_RESULT_TYPE_ABBREVIATED;
+    for (Client client : clientList) {
+      if (getScanModePriority(client.settings.getScanMode()) > getScanModePriority(scanMode)) {
+        scanMode = client.settings.getScanMode();
+      }
+      if (client.settings.getScanResultType() == ScanSettings.SCAN_RESULT_TYPE_FULL) {
+        scanResultType = ScanSettings.SCAN_RESULT_TYPE_FULL;
+      }
+    }
+    return new ScanSettings.Builder()
+        .setScanMode(scanMode)
+        .setScanResultType(scanResultType)
+        .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+        .build();
+  }
+
+  private static boolean sameSettings(ScanSettings a, ScanSettings b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    return a.getScanMode() == b.getScanMode()
+        && a.getScanResultType() == b.getScanResultType()
+        && a.getCallbackType() == b.getCallbackType()
+        && a.getReportDelayMillis() == b.getReportDelayMillis();
+  }
+
+  private static int getScanModePriority(int mode) {
+    switch (mode) {
+      case ScanSettings.SCAN_MODE_LOW_LATENCY:
+        return 2;
+      case ScanSettings.SCAN_MODE_BALANCED:
+        return 1;
+      default:
+        return 0;
+    }
+  }
+
+  private static boolean matchesAnyFilter(List<ScanFilter> filters, ScanResult result) {
+    if (filters == null || filters.isEmpty()) {
+      return true;
+    }
+    for (ScanFilter filter : filters) {
+      if (filter.matches(result)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
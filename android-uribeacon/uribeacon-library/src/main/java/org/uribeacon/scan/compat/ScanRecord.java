@@ -20,6 +20,10 @@
 // Changes:
 //   Use package Logger class.
 //   Replace ArrayMap (new in Android L) with HashMap
+//   Index the AD structures once and materialize UUIDs, service data, manufacturer data and
+//   local name lazily on first access
+//   Expose the field index so filters can be matched against the raw bytes
+//   Expose whether the record could be parsed, for scan telemetry
 
 package org.uribeacon.scan.compat;
 
@@ -37,6 +41,10 @@ import java.util.Map;
 
 /**
  * Represents a scan record from Bluetooth LE scan.
+ * <p>
+ * Parsing only validates the record and indexes the offsets of its AD structures into the raw
+ * bytes. Service UUIDs, service data, manufacturer specific data and the local name are
+ * materialized on first access, so records that are never inspected cost no more than the index.
  */
 public final class ScanRecord {
 
@@ -52,28 +60,44 @@ public final class ScanRecord {
     private static final int DATA_TYPE_LOCAL_NAME_SHORT = 0x08;
     private static final int DATA_TYPE_LOCAL_NAME_COMPLETE = 0x09;
     private static final int DATA_TYPE_TX_POWER_LEVEL = 0x0A;
-    private static final int DATA_TYPE_SERVICE_DATA = 0x16;
-    private static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+    static final int DATA_TYPE_SERVICE_DATA = 0x16;
+    static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
 
-    // Flags of the advertising data.
-    private final int mAdvertiseFlags;
+    private static final int[] NO_FIELDS = new int[0];
 
-    @Nullable
-    private final List<ParcelUuid> mServiceUuids;
+    private static final long BASE_UUID_MSB =
+            BluetoothUuid.BASE_UUID.getUuid().getMostSignificantBits();
+    private static final long BASE_UUID_LSB =
+            BluetoothUuid.BASE_UUID.getUuid().getLeastSignificantBits();
 
-    private final SparseArray<byte[]> mManufacturerSpecificData;
-
-    private final Map<ParcelUuid, byte[]> mServiceData;
+    // Flags of the advertising data.
+    private final int mAdvertiseFlags;
 
     // Transmission power level(in dB).
     private final int mTxPowerLevel;
 
-    // Local name of the Bluetooth LE device.
-    private final String mDeviceName;
-
     // Raw bytes of scan record.
     private final byte[] mBytes;
 
+    // Offsets into mBytes of the field type byte of every AD structure that is materialized
+    // lazily. Null if the record could not be parsed.
+    @Nullable
+    private final int[] mFieldOffsets;
+
+    // Lazily materialized fields. Each value is published before its flag, so a reader that sees
+    // the flag set also sees the value.
+    private List<ParcelUuid> mServiceUuids;
+    private volatile boolean mServiceUuidsParsed;
+
+    private SparseArray<byte[]> mManufacturerSpecificData;
+    private volatile boolean mManufacturerSpecificDataParsed;
+
+    private Map<ParcelUuid, byte[]> mServiceData;
+    private volatile boolean mServiceDataParsed;
+
+    private String mDeviceName;
+    private volatile boolean mDeviceNameParsed;
+
     /**
      * Returns the advertising flags indicating the discoverable mode and capability of the device.
      * Returns -1 if the flag field is not set.
@@ -87,6 +111,10 @@ public final class ScanRecord {
      * bluetooth GATT services.
      */
     public List<ParcelUuid> getServiceUuids() {
+        if (!mServiceUuidsParsed) {
+            mServiceUuids = parseServiceUuids();
+            mServiceUuidsParsed = true;
+        }
         return mServiceUuids;
     }
 
@@ -95,6 +123,10 @@ public final class ScanRecord {
      * data.
      */
     public SparseArray<byte[]> getManufacturerSpecificData() {
+        if (!mManufacturerSpecificDataParsed) {
+            mManufacturerSpecificData = parseManufacturerSpecificData();
+            mManufacturerSpecificDataParsed = true;
+        }
         return mManufacturerSpecificData;
     }
 
@@ -104,13 +136,21 @@ public final class ScanRecord {
      */
     @Nullable
     public byte[] getManufacturerSpecificData(int manufacturerId) {
-        return mManufacturerSpecificData.get(manufacturerId);
+        SparseArray<byte[]> manufacturerData = getManufacturerSpecificData();
+        if (manufacturerData == null) {
+            return null;
+        }
+        return manufacturerData.get(manufacturerId);
     }
 
     /**
      * Returns a map of service UUID and its corresponding service data.
      */
     public Map<ParcelUuid, byte[]> getServiceData() {
+        if (!mServiceDataParsed) {
+            mServiceData = parseServiceData();
+            mServiceDataParsed = true;
+        }
         return mServiceData;
     }
 
@@ -123,7 +163,11 @@ public final class ScanRecord {
         if (serviceDataUuid == null) {
             return null;
         }
-        return mServiceData.get(serviceDataUuid);
+        Map<ParcelUuid, byte[]> serviceData = getServiceData();
+        if (serviceData == null) {
+            return null;
+        }
+        return serviceData.get(serviceDataUuid);
     }
 
     /**
@@ -142,6 +186,10 @@ public final class ScanRecord {
      */
     @Nullable
     public String getDeviceName() {
+        if (!mDeviceNameParsed) {
+            mDeviceName = parseDeviceName();
+            mDeviceNameParsed = true;
+        }
         return mDeviceName;
     }
 
@@ -152,15 +200,128 @@ public final class ScanRecord {
         return mBytes;
     }
 
-    private ScanRecord(List<ParcelUuid> serviceUuids,
-            SparseArray<byte[]> manufacturerData,
-            Map<ParcelUuid, byte[]> serviceData,
-            int advertiseFlags, int txPowerLevel,
-            String localName, byte[] bytes) {
-        mServiceUuids = serviceUuids;
-        mManufacturerSpecificData = manufacturerData;
-        mServiceData = serviceData;
-        mDeviceName = localName;
+    /**
+     * Returns the number of indexed AD structures. These are the service UUID lists, local names,
+     * service data and manufacturer specific data, in the order they appear in the record. Returns
+     * 0 if the record could not be parsed.
+     */
+    int getFieldCount() {
+        return mFieldOffsets == null ? 0 : mFieldOffsets.length;
+    }
+
+    /**
+     * Returns whether the record could not be parsed, in which case only the raw bytes are set.
+     */
+    boolean isMalformed() {
+        return mFieldOffsets == null;
+    }
+
+    /**
+     * Returns the data type of the indexed field.
+     */
+    int getFieldType(int field) {
+        return fieldType(mFieldOffsets[field]);
+    }
+
+    /**
+     * Returns the offset into {@link #getBytes} where the data of the indexed field starts.
+     */
+    int getFieldDataOffset(int field) {
+        return mFieldOffsets[field] + 1;
+    }
+
+    /**
+     * Returns the length of the data of the indexed field.
+     */
+    int getFieldDataLength(int field) {
+        return fieldDataLength(mFieldOffsets[field]);
+    }
+
+    /**
+     * Returns the two byte little endian identifier at the start of a service data or
+     * manufacturer specific data field. That is the 16-bit service UUID or the manufacturer id.
+     */
+    int getFieldIdentifier(int field) {
+        int currentPos = getFieldDataOffset(field);
+        return ((mBytes[currentPos + 1] & 0xFF) << 8) + (mBytes[currentPos] & 0xFF);
+    }
+
+    /**
+     * Returns the index of the field whose data {@link #getServiceData(ParcelUuid)} would return
+     * for the 16-bit service UUID, or -1 if there is none.
+     */
+    int findServiceData(int serviceUuid16) {
+        return findLastField(DATA_TYPE_SERVICE_DATA, serviceUuid16);
+    }
+
+    /**
+     * Returns the index of the field whose data {@link #getManufacturerSpecificData(int)} would
+     * return for the manufacturer id, or -1 if there is none.
+     */
+    int findManufacturerSpecificData(int manufacturerId) {
+        return findLastField(DATA_TYPE_MANUFACTURER_SPECIFIC_DATA, manufacturerId);
+    }
+
+    // The last field of a type and identifier wins, as it does when the fields are materialized.
+    private int findLastField(int fieldType, int identifier) {
+        for (int field = getFieldCount() - 1; field >= 0; field--) {
+            if (getFieldType(field) == fieldType && getFieldIdentifier(field) == identifier) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if any of the service UUIDs in the record, ANDed with the mask, equals the
+     * masked UUID. This is equivalent to testing each entry of {@link #getServiceUuids} but works
+     * on the raw bytes.
+     */
+    boolean containsServiceUuid(long maskedMsb, long maskedLsb, long maskMsb, long maskLsb) {
+        for (int field = 0; field < getFieldCount(); field++) {
+            int fieldType = getFieldType(field);
+            if (fieldType < DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL
+                    || fieldType > DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE) {
+                continue;
+            }
+            int uuidLength = uuidLength(fieldType);
+            int currentPos = getFieldDataOffset(field);
+            for (int dataLength = getFieldDataLength(field); dataLength > 0;
+                    dataLength -= uuidLength) {
+                long msb;
+                long lsb;
+                if (uuidLength == BluetoothUuid.UUID_BYTES_128_BIT) {
+                    lsb = readLittleEndianLong(mBytes, currentPos);
+                    msb = readLittleEndianLong(mBytes, currentPos + 8);
+                } else {
+                    long shortUuid = mBytes[currentPos] & 0xFF;
+                    shortUuid += (mBytes[currentPos + 1] & 0xFF) << 8;
+                    if (uuidLength == BluetoothUuid.UUID_BYTES_32_BIT) {
+                        shortUuid += (mBytes[currentPos + 2] & 0xFF) << 16;
+                        shortUuid += (mBytes[currentPos + 3] & 0xFF) << 24;
+                    }
+                    msb = BASE_UUID_MSB + (shortUuid << 32);
+                    lsb = BASE_UUID_LSB;
+                }
+                if ((msb & maskMsb) == maskedMsb && (lsb & maskLsb) == maskedLsb) {
+                    return true;
+                }
+                currentPos += uuidLength;
+            }
+        }
+        return false;
+    }
+
+    private static long readLittleEndianLong(byte[] bytes, int start) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (bytes[start + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private ScanRecord(int[] fieldOffsets, int advertiseFlags, int txPowerLevel, byte[] bytes) {
+        mFieldOffsets = fieldOffsets;
         mAdvertiseFlags = advertiseFlags;
         mTxPowerLevel = txPowerLevel;
         mBytes = bytes;
@@ -173,6 +334,9 @@ public final class ScanRecord {
      * <p>
      * All numerical multi-byte entities and values shall use little-endian <strong>byte</strong>
      * order.
+     * <p>
+     * The record is validated and indexed in place; no field is copied out of
+     * {@code scanRecord} until it is first requested.
      *
      * @param scanRecord The scan record of Bluetooth LE advertisement and/or scan response.
      * @hide
@@ -184,98 +348,233 @@ public final class ScanRecord {
 
         int currentPos = 0;
         int advertiseFlag = -1;
-        List<ParcelUuid> serviceUuids = new ArrayList<ParcelUuid>();
-        String localName = null;
         int txPowerLevel = Integer.MIN_VALUE;
+        int indexedFields = 0;
+
+        while (currentPos < scanRecord.length) {
+            // length is unsigned int.
+            int length = scanRecord[currentPos++] & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            if (currentPos >= scanRecord.length) {
+                return invalidRecord(scanRecord);
+            }
+            // Note the length includes the length of the field type itself.
+            int dataLength = length - 1;
+            // fieldType is unsigned int.
+            int fieldType = scanRecord[currentPos++] & 0xFF;
+            switch (fieldType) {
+                case DATA_TYPE_FLAGS:
+                    if (currentPos >= scanRecord.length) {
+                        return invalidRecord(scanRecord);
+                    }
+                    advertiseFlag = scanRecord[currentPos] & 0xFF;
+                    break;
+                case DATA_TYPE_TX_POWER_LEVEL:
+                    if (currentPos >= scanRecord.length) {
+                        return invalidRecord(scanRecord);
+                    }
+                    txPowerLevel = scanRecord[currentPos];
+                    break;
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                    // A trailing partial UUID is still read whole, as the eager parser did.
+                    int uuidLength = uuidLength(fieldType);
+                    int uuidCount = (dataLength + uuidLength - 1) / uuidLength;
+                    if (currentPos + uuidCount * uuidLength > scanRecord.length) {
+                        return invalidRecord(scanRecord);
+                    }
+                    indexedFields++;
+                    break;
+                case DATA_TYPE_LOCAL_NAME_SHORT:
+                case DATA_TYPE_LOCAL_NAME_COMPLETE:
+                    if (currentPos + dataLength > scanRecord.length) {
+                        return invalidRecord(scanRecord);
+                    }
+                    indexedFields++;
+                    break;
+                case DATA_TYPE_SERVICE_DATA:
+                case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    // Both start with a two byte identifier in little endian.
+                    if (dataLength < 2 || currentPos + dataLength > scanRecord.length) {
+                        return invalidRecord(scanRecord);
+                    }
+                    indexedFields++;
+                    break;
+                default:
+                    // Just ignore, we don't handle such data type.
+                    break;
+            }
+            currentPos += dataLength;
+        }
+
+        return new ScanRecord(indexFields(scanRecord, indexedFields), advertiseFlag,
+                txPowerLevel, scanRecord);
+    }
+
+    // Logs an unparseable record and returns an empty record with the raw bytes in it, ignoring
+    // anything that might have been parsed before the error.
+    private static ScanRecord invalidRecord(byte[] scanRecord) {
+        Logger.logError("unable to parse scan record: " + Arrays.toString(scanRecord));
+        return new ScanRecord(null, -1, Integer.MIN_VALUE, scanRecord);
+    }
+
+    // Second pass over an already validated record, collecting the field type offsets of the
+    // structures that are materialized lazily.
+    private static int[] indexFields(byte[] scanRecord, int fieldCount) {
+        if (fieldCount == 0) {
+            return NO_FIELDS;
+        }
+        int[] fieldOffsets = new int[fieldCount];
+        int index = 0;
+        int currentPos = 0;
+        while (index < fieldCount) {
+            int length = scanRecord[currentPos] & 0xFF;
+            int fieldType = scanRecord[currentPos + 1] & 0xFF;
+            if (isIndexedType(fieldType)) {
+                fieldOffsets[index++] = currentPos + 1;
+            }
+            currentPos += length + 1;
+        }
+        return fieldOffsets;
+    }
+
+    private static boolean isIndexedType(int fieldType) {
+        switch (fieldType) {
+            case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+            case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+            case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+            case DATA_TYPE_LOCAL_NAME_SHORT:
+            case DATA_TYPE_LOCAL_NAME_COMPLETE:
+            case DATA_TYPE_SERVICE_DATA:
+            case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int uuidLength(int fieldType) {
+        switch (fieldType) {
+            case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                return BluetoothUuid.UUID_BYTES_16_BIT;
+            case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+            case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                return BluetoothUuid.UUID_BYTES_32_BIT;
+            default:
+                return BluetoothUuid.UUID_BYTES_128_BIT;
+        }
+    }
+
+    // Returns the type of the indexed field whose type byte is at offset.
+    private int fieldType(int offset) {
+        return mBytes[offset] & 0xFF;
+    }
+
+    // Returns the data length of the indexed field whose type byte is at offset.
+    private int fieldDataLength(int offset) {
+        return (mBytes[offset - 1] & 0xFF) - 1;
+    }
 
+    @Nullable
+    private List<ParcelUuid> parseServiceUuids() {
+        if (mFieldOffsets == null) {
+            return null;
+        }
+        List<ParcelUuid> serviceUuids = null;
+        for (int offset : mFieldOffsets) {
+            int fieldType = fieldType(offset);
+            if (fieldType < DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL
+                    || fieldType > DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE) {
+                continue;
+            }
+            if (serviceUuids == null) {
+                serviceUuids = new ArrayList<ParcelUuid>();
+            }
+            parseServiceUuid(mBytes, offset + 1, fieldDataLength(offset), uuidLength(fieldType),
+                    serviceUuids);
+        }
+        if (serviceUuids != null && serviceUuids.isEmpty()) {
+            return null;
+        }
+        return serviceUuids;
+    }
+
+    @Nullable
+    private SparseArray<byte[]> parseManufacturerSpecificData() {
+        if (mFieldOffsets == null) {
+            return null;
+        }
         SparseArray<byte[]> manufacturerData = new SparseArray<byte[]>();
-        Map<ParcelUuid, byte[]> serviceData = new HashMap<ParcelUuid, byte[]>();
+        for (int offset : mFieldOffsets) {
+            if (fieldType(offset) != DATA_TYPE_MANUFACTURER_SPECIFIC_DATA) {
+                continue;
+            }
+            // The first two bytes of the manufacturer specific data are
+            // manufacturer ids in little endian.
+            int currentPos = offset + 1;
+            int manufacturerId = ((mBytes[currentPos + 1] & 0xFF) << 8)
+                    + (mBytes[currentPos] & 0xFF);
+            manufacturerData.put(manufacturerId,
+                    extractBytes(mBytes, currentPos + 2, fieldDataLength(offset) - 2));
+        }
+        return manufacturerData;
+    }
 
-        try {
-            while (currentPos < scanRecord.length) {
-                // length is unsigned int.
-                int length = scanRecord[currentPos++] & 0xFF;
-                if (length == 0) {
-                    break;
-                }
-                // Note the length includes the length of the field type itself.
-                int dataLength = length - 1;
-                // fieldType is unsigned int.
-                int fieldType = scanRecord[currentPos++] & 0xFF;
-                switch (fieldType) {
-                    case DATA_TYPE_FLAGS:
-                        advertiseFlag = scanRecord[currentPos] & 0xFF;
-                        break;
-                    case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
-                    case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
-                        parseServiceUuid(scanRecord, currentPos,
-                                dataLength, BluetoothUuid.UUID_BYTES_16_BIT, serviceUuids);
-                        break;
-                    case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
-                    case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
-                        parseServiceUuid(scanRecord, currentPos, dataLength,
-                                BluetoothUuid.UUID_BYTES_32_BIT, serviceUuids);
-                        break;
-                    case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
-                    case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
-                        parseServiceUuid(scanRecord, currentPos, dataLength,
-                                BluetoothUuid.UUID_BYTES_128_BIT, serviceUuids);
-                        break;
-                    case DATA_TYPE_LOCAL_NAME_SHORT:
-                    case DATA_TYPE_LOCAL_NAME_COMPLETE:
-                        localName = new String(
-                                extractBytes(scanRecord, currentPos, dataLength));
-                        break;
-                    case DATA_TYPE_TX_POWER_LEVEL:
-                        txPowerLevel = scanRecord[currentPos];
-                        break;
-                    case DATA_TYPE_SERVICE_DATA:
-                        // The first two bytes of the service data are service data UUID in little
-                        // endian. The rest bytes are service data.
-                        int serviceUuidLength = BluetoothUuid.UUID_BYTES_16_BIT;
-                        byte[] serviceDataUuidBytes = extractBytes(scanRecord, currentPos,
-                                serviceUuidLength);
-                        ParcelUuid serviceDataUuid = BluetoothUuid.parseUuidFrom(
-                                serviceDataUuidBytes);
-                        byte[] serviceDataArray = extractBytes(scanRecord,
-                                currentPos + serviceUuidLength, dataLength - serviceUuidLength);
-                        serviceData.put(serviceDataUuid, serviceDataArray);
-                        break;
-                    case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
-                        // The first two bytes of the manufacturer specific data are
-                        // manufacturer ids in little endian.
-                        int manufacturerId = ((scanRecord[currentPos + 1] & 0xFF) << 8)
-                                + (scanRecord[currentPos] & 0xFF);
-                        byte[] manufacturerDataBytes = extractBytes(scanRecord, currentPos + 2,
-                                dataLength - 2);
-                        manufacturerData.put(manufacturerId, manufacturerDataBytes);
-                        break;
-                    default:
-                        // Just ignore, we don't handle such data type.
-                        break;
-                }
-                currentPos += dataLength;
+    @Nullable
+    private Map<ParcelUuid, byte[]> parseServiceData() {
+        if (mFieldOffsets == null) {
+            return null;
+        }
+        Map<ParcelUuid, byte[]> serviceData = new HashMap<ParcelUuid, byte[]>();
+        for (int offset : mFieldOffsets) {
+            if (fieldType(offset) != DATA_TYPE_SERVICE_DATA) {
+                continue;
             }
+            // The first two bytes of the service data are service data UUID in little
+            // endian. The rest bytes are service data.
+            int currentPos = offset + 1;
+            int serviceUuidLength = BluetoothUuid.UUID_BYTES_16_BIT;
+            ParcelUuid serviceDataUuid = BluetoothUuid.parseUuidFrom(
+                    extractBytes(mBytes, currentPos, serviceUuidLength));
+            serviceData.put(serviceDataUuid, extractBytes(mBytes,
+                    currentPos + serviceUuidLength, fieldDataLength(offset) - serviceUuidLength));
+        }
+        return serviceData;
+    }
 
-            if (serviceUuids.isEmpty()) {
-                serviceUuids = null;
+    @Nullable
+    private String parseDeviceName() {
+        if (mFieldOffsets == null) {
+            return null;
+        }
+        String localName = null;
+        for (int offset : mFieldOffsets) {
+            int fieldType = fieldType(offset);
+            if (fieldType == DATA_TYPE_LOCAL_NAME_SHORT
+                    || fieldType == DATA_TYPE_LOCAL_NAME_COMPLETE) {
+                localName = new String(extractBytes(mBytes, offset + 1, fieldDataLength(offset)));
             }
-            return new ScanRecord(serviceUuids, manufacturerData, serviceData,
-                    advertiseFlag, txPowerLevel, localName, scanRecord);
-        } catch (Exception e) {
-            Logger.logError("unable to parse scan record: " + Arrays.toString(scanRecord), e);
-            // As the record is invalid, ignore all the parsed results for this packet
-            // and return an empty record with raw scanRecord bytes in results
-            return new ScanRecord(null, null, null, -1, Integer.MIN_VALUE, null, scanRecord);
         }
+        return localName;
     }
 
     @Override
     public String toString() {
-        return "ScanRecord [mAdvertiseFlags=" + mAdvertiseFlags + ", mServiceUuids=" + mServiceUuids
-                + ", mManufacturerSpecificData=" + Utils.toString(mManufacturerSpecificData)
-                + ", mServiceData=" + Utils.toString(mServiceData)
-                + ", mTxPowerLevel=" + mTxPowerLevel + ", mDeviceName=" + mDeviceName + "]";
+        return "ScanRecord [mAdvertiseFlags=" + mAdvertiseFlags
+                + ", mServiceUuids=" + getServiceUuids()
+                + ", mManufacturerSpecificData=" + Utils.toString(getManufacturerSpecificData())
+                + ", mServiceData=" + Utils.toString(getServiceData())
+                + ", mTxPowerLevel=" + mTxPowerLevel + ", mDeviceName=" + getDeviceName() + "]";
     }
 
     // Parse service UUIDs.
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Buffers the scan results of a client that asked for a report delay, to be delivered together
+ * through {@link ScanCallback#onBatchScanResults}.
+ * <p>
+ * A device sighted several times within one batch is reported once, with its latest result, in
+ * the position of its first sighting. The batch holds at most {@code capacity} devices; once it
+ * is full it is due, whatever the report delay.
+ * <p>
+ * This class is thread safe.
+ */
+class ScanResultBatch {
+  private final long reportDelayMillis;
+  private final int capacity;
+  private final LinkedHashMap<String, ScanResult> results = new LinkedHashMap<String, ScanResult>();
+
+  // When the oldest result in the batch was added.
+  private long startMillis;
+
+  ScanResultBatch(long reportDelayMillis, int capacity) {
+    this.reportDelayMillis = reportDelayMillis;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Adds a result to the batch.
+   *
+   * @return the results of the batch if it is now due, or null
+   */
+  synchronized List<ScanResult> add(String address, ScanResult result, long nowMillis) {
+    if (results.isEmpty()) {
+      startMillis = nowMillis;
+    }
+    results.put(address, result);
+    if (results.size() >= capacity || nowMillis - startMillis >= reportDelayMillis) {
+      return drain();
+    }
+    return null;
+  }
+
+  /**
+   * Empties the batch if it is due at or before {@code deadlineMillis}.
+   *
+   * @return the results of the batch, or null if it is empty or not due yet
+   */
+  synchronized List<ScanResult> drainIfDueBy(long deadlineMillis) {
+    if (results.isEmpty() || startMillis + reportDelayMillis > deadlineMillis) {
+      return null;
+    }
+    return drain();
+  }
+
+  private List<ScanResult> drain() {
+    List<ScanResult> batch = new ArrayList<ScanResult>(results.values());
+    results.clear();
+    return batch;
+  }
+}
@@ -16,7 +16,9 @@
 
 // THIS IS MODIFIED COPY OF THE "L" PLATFORM CLASS. BE CAREFUL ABOUT EDITS.
 // THIS CODE SHOULD FOLLOW ANDROID STYLE.
-
+//
+// Changes:
+//   Add payloadChangesOnly, to skip updates that repeat a device's advertisement
 
 package org.uribeacon.scan.compat;
 
@@ -92,6 +94,9 @@ public final class ScanSettings implements Parcelable {
     // Time of delay for reporting the scan result
     private long mReportDelayMillis;
 
+    // Whether all matches callbacks are only made when the advertisement changes
+    private boolean mPayloadChangesOnly;
+
     public int getScanMode() {
         return mScanMode;
     }
@@ -111,12 +116,21 @@ public final class ScanSettings implements Parcelable {
         return mReportDelayMillis;
     }
 
+    /**
+     * Returns whether {@link #CALLBACK_TYPE_ALL_MATCHES} callbacks are only made for
+     * advertisements that differ from the previous one received from the device.
+     */
+    public boolean getPayloadChangesOnly() {
+        return mPayloadChangesOnly;
+    }
+
     private ScanSettings(int scanMode, int callbackType, int scanResultType,
-            long reportDelayMillis) {
+            long reportDelayMillis, boolean payloadChangesOnly) {
         mScanMode = scanMode;
         mCallbackType = callbackType;
         mScanResultType = scanResultType;
         mReportDelayMillis = reportDelayMillis;
+        mPayloadChangesOnly = payloadChangesOnly;
     }
 
     private ScanSettings(Parcel in) {
@@ -124,6 +138,7 @@ public final class ScanSettings implements Parcelable {
         mCallbackType = in.readInt();
         mScanResultType = in.readInt();
         mReportDelayMillis = in.readLong();
+        mPayloadChangesOnly = in.readInt() != 0;
     }
 
     @Override
@@ -132,6 +147,7 @@ public final class ScanSettings implements Parcelable {
         dest.writeInt(mCallbackType);
         dest.writeInt(mScanResultType);
         dest.writeLong(mReportDelayMillis);
+        dest.writeInt(mPayloadChangesOnly ? 1 : 0);
     }
 
     @Override
@@ -163,6 +179,7 @@ public final class ScanSettings implements Parcelable {
         private int mCallbackType = CALLBACK_TYPE_ALL_MATCHES;
         private int mScanResultType = SCAN_RESULT_TYPE_FULL;
         private long mReportDelayMillis = 0;
+        private boolean mPayloadChangesOnly = false;
 
         /**
          * Set scan mode for Bluetooth LE scan.
@@ -240,12 +257,26 @@ public final class ScanSettings implements Parcelable {
             return this;
         }
 
+        /**
+         * Set whether {@link ScanSettings#CALLBACK_TYPE_ALL_MATCHES} callbacks are only made when
+         * a device's advertisement changes. Repeats of the same advertisement, which differ only
+         * in signal strength and time, are not reported.
+         * <p>
+         * This is an extension of the "L" Platform API.
+         *
+         * @param payloadChangesOnly Whether to skip advertisements that repeat the previous one.
+         */
+        public Builder setPayloadChangesOnly(boolean payloadChangesOnly) {
+            mPayloadChangesOnly = payloadChangesOnly;
+            return this;
+        }
+
         /**
          * Build {@link ScanSettings}.
          */
         public ScanSettings build() {
             return new ScanSettings(mScanMode, mCallbackType, mScanResultType,
-                    mReportDelayMillis);
+                    mReportDelayMillis, mPayloadChangesOnly);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+/**
+ * Smooths RSSI with an exponential moving average, as {@link WeightedAverage} does. Each sample
+ * contributes a fixed factor of the smoothed value, however long ago the previous one was taken.
+ */
+public class ExponentialSmoother implements RssiSmoother {
+  private final double mSmoothFactor;
+
+  /**
+   * @param smoothFactor the weight of each new sample, between 0 and 1
+   */
+  public ExponentialSmoother(double smoothFactor) {
+    mSmoothFactor = smoothFactor;
+  }
+
+  public double getSmoothFactor() {
+    return mSmoothFactor;
+  }
+
+  @Override
+  public int getStateSize() {
+    return 1;
+  }
+
+  @Override
+  public void reset(double[] state, int offset, double rssi, long timestampNanos) {
+    state[offset] = rssi;
+  }
+
+  @Override
+  public double update(double[] state, int offset, double rssi, long timestampNanos) {
+    state[offset] = mSmoothFactor * rssi + (1.0 - mSmoothFactor) * state[offset];
+    return state[offset];
+  }
+
+  @Override
+  public double getValue(double[] state, int offset) {
+    return state[offset];
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+/**
+ * Smooths RSSI with a one dimensional Kalman filter.
+ * <p>
+ * The filter tracks its estimate of the RSSI together with the variance of that estimate. Between
+ * samples the variance grows by the process noise for each second that passed, since the device or
+ * the observer may have moved. Each sample is then weighted by how the variance of the estimate
+ * compares to the variance of the measurements: a sample taken long after the previous one, or
+ * one from a quiet signal, moves the estimate a long way, while frequent samples of a noisy signal
+ * are averaged. The measurement variance is learnt for each device from how far its samples fall
+ * from the predictions. A sample too far from the prediction to be noise is taken to mean the
+ * beacon or the observer moved, and the estimate jumps most of the way to it. So the filter
+ * follows a beacon that moves and holds still on one that doesn't, where an exponential average
+ * either lags or jitters.
+ * <p>
+ * The state of a device is its estimate, the estimate variance, the measurement variance and the
+ * timestamp of its last sample.
+ */
+public class KalmanSmoother implements RssiSmoother {
+  /**
+   * The default process noise, in dBm<sup>2</sup> per second, allowing for someone walking.
+   */
+  public static final double DEFAULT_PROCESS_NOISE = 4.0;
+
+  /**
+   * The default initial measurement variance, in dBm<sup>2</sup>.
+   */
+  public static final double DEFAULT_MEASUREMENT_VARIANCE = 16.0;
+
+  // The interval assumed between samples without timestamps.
+  private static final double DEFAULT_INTERVAL_SECONDS = 1.0;
+  // How fast the measurement variance follows the observed noise, and its floor.
+  private static final double VARIANCE_ADAPTATION = 0.05;
+  private static final double MIN_MEASUREMENT_VARIANCE = 1.0;
+  // Innovations with a square more than this many times their expected variance, beyond three
+  // standard deviations, are movement rather than noise.
+  private static final double MOVEMENT_THRESHOLD = 9.0;
+
+  private static final int ESTIMATE = 0;
+  private static final int ESTIMATE_VARIANCE = 1;
+  private static final int MEASUREMENT_VARIANCE = 2;
+  private static final int TIMESTAMP = 3;
+
+  private final double mProcessNoise;
+  private final double mMeasurementVariance;
+
+  public KalmanSmoother() {
+    this(DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_VARIANCE);
+  }
+
+  /**
+   * @param processNoise how much the true RSSI may vary per second, in dBm<sup>2</sup>
+   * @param measurementVariance the variance of samples about the true RSSI, in dBm<sup>2</sup>,
+   *        until it has been learnt
+   * @throws IllegalArgumentException if either is negative, or the measurement variance is 0
+   */
+  public KalmanSmoother(double processNoise, double measurementVariance) {
+    if (!(processNoise >= 0)) {
+      throw new IllegalArgumentException("invalid process noise " + processNoise);
+    }
+    if (!(measurementVariance > 0)) {
+      throw new IllegalArgumentException("invalid measurement variance " + measurementVariance);
+    }
+    mProcessNoise = processNoise;
+    mMeasurementVariance = measurementVariance;
+  }
+
+  @Override
+  public int getStateSize() {
+    return 4;
+  }
+
+  @Override
+  public void reset(double[] state, int offset, double rssi, long timestampNanos) {
+    state[offset + ESTIMATE] = rssi;
+    state[offset + ESTIMATE_VARIANCE] = mMeasurementVariance;
+    state[offset + MEASUREMENT_VARIANCE] = mMeasurementVariance;
+    state[offset + TIMESTAMP] = timestampNanos;
+  }
+
+  @Override
+  public double update(double[] state, int offset, double rssi, long timestampNanos) {
+    double lastTimestampNanos = state[offset + TIMESTAMP];
+    double intervalSeconds = DEFAULT_INTERVAL_SECONDS;
+    if (timestampNanos > 0 && lastTimestampNanos > 0) {
+      intervalSeconds = Math.max(0, (timestampNanos - lastTimestampNanos) / 1e9);
+    }
+
+    // Predict: the estimate stays, but grows less certain with time.
+    double estimateVariance = state[offset + ESTIMATE_VARIANCE] + mProcessNoise * intervalSeconds;
+
+    // The innovation has a variance of the estimate variance plus the measurement variance, so
+    // the excess of its square over the estimate variance is a sample of the measurement variance.
+    // An innovation too large for that is movement, which makes the estimate that uncertain.
+    double innovation = rssi - state[offset + ESTIMATE];
+    double innovationSquared = innovation * innovation;
+    double measurementVariance = state[offset + MEASUREMENT_VARIANCE];
+    if (innovationSquared > MOVEMENT_THRESHOLD * (estimateVariance + measurementVariance)) {
+      estimateVariance = innovationSquared - measurementVariance;
+    } else {
+      measurementVariance += VARIANCE_ADAPTATION
+          * (innovationSquared - estimateVariance - measurementVariance);
+      measurementVariance = Math.max(measurementVariance, MIN_MEASUREMENT_VARIANCE);
+    }
+
+    // Correct.
+    double gain = estimateVariance / (estimateVariance + measurementVariance);
+    state[offset + ESTIMATE] += gain * innovation;
+    state[offset + ESTIMATE_VARIANCE] = (1 - gain) * estimateVariance;
+    state[offset + MEASUREMENT_VARIANCE] = measurementVariance;
+    if (timestampNanos > 0) {
+      state[offset + TIMESTAMP] = timestampNanos;
+    }
+    return state[offset + ESTIMATE];
+  }
+
+  @Override
+  public double getValue(double[] state, int offset) {
+    return state[offset + ESTIMATE];
+  }
+
+  /**
+   * Returns the variance of the estimate of a device, in dBm<sup>2</sup>.
+   */
+  public double getEstimateVariance(double[] state, int offset) {
+    return state[offset + ESTIMATE_VARIANCE];
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+/**
+ * A table driven version of the conversions in {@link RangingUtils}, for a given path loss
+ * exponent.
+ * <p>
+ * Path loss grows by 10 * n * log10(d) with distance, where n is the path loss exponent of the
+ * environment: 2 in free space, typically 2.7 to 3.5 indoors where walls and people absorb the
+ * signal. RSSI and calibrated TX power are signed bytes, so the distance depends only on a path
+ * loss between -255 and 255, and the region boundaries on one of 256 TX powers. Both are tabulated
+ * when the model is created, and the conversions look them up instead of calling
+ * {@link Math#pow} and {@link Math#log10}. Values outside those ranges are computed.
+ * <p>
+ * {@link #FREE_SPACE} gives exactly the results of {@link RangingUtils}. Models are immutable and
+ * thread safe.
+ */
+public final class RangingModel {
+  /**
+   * The path loss exponent of free space, which {@link RangingUtils} assumes.
+   */
+  public static final double FREE_SPACE_EXPONENT = 2.0;
+
+  /**
+   * The model {@link RangingUtils} implements.
+   */
+  public static final RangingModel FREE_SPACE = new RangingModel(FREE_SPACE_EXPONENT);
+
+  private static final int MIN_TX_POWER = Byte.MIN_VALUE;
+  private static final int MAX_TX_POWER = Byte.MAX_VALUE;
+  private static final int MIN_PATH_LOSS = Byte.MIN_VALUE - Byte.MAX_VALUE;
+  private static final int MAX_PATH_LOSS = Byte.MAX_VALUE - Byte.MIN_VALUE;
+
+  private final double mPathLossExponent;
+  // Indexed by path loss - MIN_PATH_LOSS.
+  private final double[] mDistances = new double[MAX_PATH_LOSS - MIN_PATH_LOSS + 1];
+  private final int[] mRegions = new int[MAX_PATH_LOSS - MIN_PATH_LOSS + 1];
+  // Indexed by calibrated TX power - MIN_TX_POWER.
+  private final int[] mNearToMidPathLoss = new int[MAX_TX_POWER - MIN_TX_POWER + 1];
+  private final int[] mMidToFarPathLoss = new int[MAX_TX_POWER - MIN_TX_POWER + 1];
+
+  /**
+   * @param pathLossExponent how fast the signal weakens with distance in the environment,
+   *        {@link #FREE_SPACE_EXPONENT} in free space
+   * @throws IllegalArgumentException if the exponent is not positive
+   */
+  public RangingModel(double pathLossExponent) {
+    if (!(pathLossExponent > 0)) {
+      throw new IllegalArgumentException("invalid path loss exponent " + pathLossExponent);
+    }
+    mPathLossExponent = pathLossExponent;
+    for (int pathLoss = MIN_PATH_LOSS; pathLoss <= MAX_PATH_LOSS; pathLoss++) {
+      double distance = computeDistance(pathLoss);
+      mDistances[pathLoss - MIN_PATH_LOSS] = distance;
+      mRegions[pathLoss - MIN_PATH_LOSS] = RangingUtils.regionFromDistance(distance);
+    }
+    for (int txPower = MIN_TX_POWER; txPower <= MAX_TX_POWER; txPower++) {
+      mNearToMidPathLoss[txPower - MIN_TX_POWER] =
+          computePathLossAt(RangingUtils.NEAR_TO_MID_METERS, txPower);
+      mMidToFarPathLoss[txPower - MIN_TX_POWER] =
+          computePathLossAt(RangingUtils.MID_TO_FAR_METERS, txPower);
+    }
+  }
+
+  public double getPathLossExponent() {
+    return mPathLossExponent;
+  }
+
+  /**
+   * Convert RSSI to path loss. See {@link RangingUtils#pathLossFromRssi}.
+   */
+  public int pathLossFromRssi(int rssi, int txPowerAtSource) {
+    return txPowerAtSource - rssi;
+  }
+
+  /**
+   * Convert a distance to the RSSI that would be measured there. See
+   * {@link RangingUtils#rssiFromDistance}. Distances are continuous, so this is computed.
+   */
+  public int rssiFromDistance(double distanceInMeters, int txPowerAtSource) {
+    double pathLoss = 10 * mPathLossExponent * Math.log10(distanceInMeters);
+    return (int) (txPowerAtSource - pathLoss);
+  }
+
+  /**
+   * Convert RSSI to distance. See {@link RangingUtils#distanceFromRssi}.
+   */
+  public double distanceFromRssi(int rssi, int txPowerAtSource) {
+    return distanceFromPathLoss(txPowerAtSource - rssi);
+  }
+
+  /**
+   * Returns the distance at which a signal would have lost {@code pathLoss} dBm.
+   */
+  public double distanceFromPathLoss(int pathLoss) {
+    if (pathLoss < MIN_PATH_LOSS || pathLoss > MAX_PATH_LOSS) {
+      return computeDistance(pathLoss);
+    }
+    return mDistances[pathLoss - MIN_PATH_LOSS];
+  }
+
+  /**
+   * Returns the region a beacon is in, as {@link RangingUtils#regionFromDistance} of its distance.
+   */
+  public int regionFromRssi(int rssi, int txPowerAtSource) {
+    return regionFromPathLoss(txPowerAtSource - rssi);
+  }
+
+  /**
+   * Returns the region a beacon is in given the path loss of its signal.
+   */
+  public int regionFromPathLoss(int pathLoss) {
+    if (pathLoss < MIN_PATH_LOSS || pathLoss > MAX_PATH_LOSS) {
+      return RangingUtils.regionFromDistance(computeDistance(pathLoss));
+    }
+    return mRegions[pathLoss - MIN_PATH_LOSS];
+  }
+
+  /**
+   * Returns the path loss at {@link RangingUtils#NEAR_TO_MID_METERS}, as measured from the RSSI
+   * {@link #rssiFromDistance} gives there.
+   */
+  public int nearToMidPathLoss(int txPowerAtSource) {
+    if (txPowerAtSource < MIN_TX_POWER || txPowerAtSource > MAX_TX_POWER) {
+      return computePathLossAt(RangingUtils.NEAR_TO_MID_METERS, txPowerAtSource);
+    }
+    return mNearToMidPathLoss[txPowerAtSource - MIN_TX_POWER];
+  }
+
+  /**
+   * Returns the path loss at {@link RangingUtils#MID_TO_FAR_METERS}, as measured from the RSSI
+   * {@link #rssiFromDistance} gives there.
+   */
+  public int midToFarPathLoss(int txPowerAtSource) {
+    if (txPowerAtSource < MIN_TX_POWER || txPowerAtSource > MAX_TX_POWER) {
+      return computePathLossAt(RangingUtils.MID_TO_FAR_METERS, txPowerAtSource);
+    }
+    return mMidToFarPathLoss[txPowerAtSource - MIN_TX_POWER];
+  }
+
+  private double computeDistance(int pathLoss) {
+    return Math.pow(10, (pathLoss - RangingUtils.FREE_SPACE_PATH_LOSS_CONSTANT_FOR_BLE)
+        / (10 * mPathLossExponent));
+  }
+
+  private int computePathLossAt(double distanceInMeters, int txPowerAtSource) {
+    return pathLossFromRssi(rssiFromDistance(distanceInMeters, txPowerAtSource), txPowerAtSource);
+  }
+
+  @Override
+  public String toString() {
+    return "RangingModel [pathLossExponent=" + mPathLossExponent + "]";
+  }
+}
@@ -16,6 +16,7 @@
 
 package org.uribeacon.scan.util;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -26,6 +27,17 @@ import java.util.Map;
  * For example, the hysteresis function transitions to the NEAR region when the
  * path loss rises above N, but does not transition out of NEAR until the path
  * loss drops below N-H, preventing a ping-pong effect on boundaries.
+ * <p>
+ * The state of each beacon is kept in parallel arrays, indexed by a slot per address, so
+ * tracking thousands of beacons costs no objects per beacon beyond its slot, and an update
+ * touches a few array elements. Distances and region boundaries come from the tables of a
+ * {@link RangingModel}, {@link RangingModel#FREE_SPACE} unless another is given.
+ * <p>
+ * RSSI is smoothed with an {@link ExponentialSmoother} unless another {@link RssiSmoother} is set.
+ * A {@link KalmanSmoother} follows moving beacons more closely, given the timestamps of the
+ * sightings. By default the nearest beacon is chosen from the raw path loss of each sighting; once
+ * a smoother is set with {@link #setSmoother}, it is chosen from the smoothed path loss, so RSSI
+ * jitter between beacons at similar distances doesn't make the nearest one flip.
  */
 public class RegionResolver {
   // The default hysteresis values for the near, mid and far regions,
@@ -38,77 +50,66 @@ public class RegionResolver {
   private static final int DEFAULT_FAR_HYSTERESIS_HIGH = 2;
   private static final double START_SMOOTHING_METERS = 1.0;
   private static final double DEFAULT_SMOOTH_FACTOR = 0.5;
+  private static final int INITIAL_CAPACITY = 16;
 
-  private class DeviceSighting {
-    private int mPathLoss;
-    private int mRegion;
-    private double mDistance;
-
-    public DeviceSighting(int pathLoss, int region, double distance) {
-      mPathLoss = pathLoss;
-      mRegion = region;
-      mDistance = distance;
-    }
-
-    public int getPathLoss() {
-      return mPathLoss;
-    }
-
-    public int getRegion() {
-      return mRegion;
-    }
-
-    public double getDistance() {
-      return mDistance;
-    }
-
-    public void setDistance(double distance) {
-      mDistance = distance;
-    }
-
-    public void setPathloss(int pathloss) {
-      mPathLoss = pathloss;
-    }
-
-    public void setRegion(int region) {
-      mRegion = region;
-    }
-  }
-
-  private Map<String, DeviceSighting> mStabilizedDeviceRegion;
-  private Integer mNearestHysteresis;
-  private Integer mMidHysteresisLow;
-  private Integer mFarHysteresisLow;
-  private Integer mMidHysteresisHigh;
-  private Integer mFarHysteresisHigh;
+  private int mNearestHysteresis;
+  private int mMidHysteresisLow;
+  private int mFarHysteresisLow;
+  private int mMidHysteresisHigh;
+  private int mFarHysteresisHigh;
   private String mNearestAddress;
-  private Integer mNearestPathLoss;
+  private int mNearestPathLoss;
   private boolean mNotifyOnSameNearestDevice;
-  private double mSmoothFactor;
-  private Map<String, WeightedAverage> mSmoothedRssi =
-      new HashMap<String, WeightedAverage>();
+  private RssiSmoother mSmoother;
+  // Whether the nearest beacon is chosen from the smoothed path loss, rather than the raw one.
+  private boolean mNearestFromSmoothed;
+  private final RangingModel mRangingModel;
+
+  // The slot of each tracked device. Slots of lost devices are reused.
+  private final Map<String, Integer> mSlots = new HashMap<String, Integer>();
+  private int[] mFreeSlots = new int[INITIAL_CAPACITY];
+  private int mFreeSlotCount;
+  private int mSlotLimit;
+
+  // The state of the device in each slot: the state of its smoother, which starts at
+  // slot * mSmoother.getStateSize(), and its stabilized path loss, region and distance.
+  private double[] mSmootherState;
+  private int[] mPathLoss = new int[INITIAL_CAPACITY];
+  private int[] mRegion = new int[INITIAL_CAPACITY];
+  private double[] mDistance = new double[INITIAL_CAPACITY];
 
   public RegionResolver() {
-    mStabilizedDeviceRegion = new HashMap<String, DeviceSighting>();
-    mNearestHysteresis = DEFAULT_NEAREST_HYSTERESIS;
-    mMidHysteresisLow = DEFAULT_MID_HYSTERESIS_LOW;
-    mMidHysteresisHigh = DEFAULT_MID_HYSTERESIS_HIGH;
-    mFarHysteresisLow = DEFAULT_FAR_HYSTERESIS_LOW;
-    mFarHysteresisHigh = DEFAULT_FAR_HYSTERESIS_HIGH;
-    mNotifyOnSameNearestDevice = false;
-    mSmoothFactor = DEFAULT_SMOOTH_FACTOR;
+    this(DEFAULT_NEAREST_HYSTERESIS, DEFAULT_MID_HYSTERESIS_LOW, DEFAULT_MID_HYSTERESIS_HIGH,
+        DEFAULT_FAR_HYSTERESIS_LOW, DEFAULT_FAR_HYSTERESIS_HIGH, DEFAULT_SMOOTH_FACTOR);
+  }
+
+  /**
+   * Creates a resolver that ranges beacons with the model of their environment.
+   */
+  public RegionResolver(RangingModel rangingModel) {
+    this(DEFAULT_NEAREST_HYSTERESIS, DEFAULT_MID_HYSTERESIS_LOW, DEFAULT_MID_HYSTERESIS_HIGH,
+        DEFAULT_FAR_HYSTERESIS_LOW, DEFAULT_FAR_HYSTERESIS_HIGH, DEFAULT_SMOOTH_FACTOR,
+        rangingModel);
   }
 
   public RegionResolver(int nearestHysteresis, int midHysteresisLow, int midHysteresisHigh,
       int farHysteresisLow, int farHysteresisHigh, double smoothFactor) {
-    mStabilizedDeviceRegion = new HashMap<String, DeviceSighting>();
+    this(nearestHysteresis, midHysteresisLow, midHysteresisHigh, farHysteresisLow,
+        farHysteresisHigh, smoothFactor, RangingModel.FREE_SPACE);
+  }
+
+  public RegionResolver(int nearestHysteresis, int midHysteresisLow, int midHysteresisHigh,
+      int farHysteresisLow, int farHysteresisHigh, double smoothFactor,
+      RangingModel rangingModel) {
     mNearestHysteresis = nearestHysteresis;
     mMidHysteresisLow = midHysteresisLow;
-    mMidHysteresisHigh = midHysteresisHigh;   
+    mMidHysteresisHigh = midHysteresisHigh;
     mFarHysteresisLow = farHysteresisLow;
     mFarHysteresisHigh = farHysteresisHigh;
     mNotifyOnSameNearestDevice = false;
-    mSmoothFactor = smoothFactor;
+    mSmoother = new ExponentialSmoother(smoothFactor);
+    mSmootherState = new double[INITIAL_CAPACITY * mSmoother.getStateSize()];
+    mRangingModel = rangingModel;
   }
 
   /**
@@ -124,16 +125,70 @@ public class RegionResolver {
    * @return true if device is the new nearest.
    */
   public boolean onUpdate(String address, int rssi, int calibratedTxPower) {
+    return onUpdate(address, rssi, calibratedTxPower, 0);
+  }
+
+  /**
+   * Updates the stabilized region of a beacon as {@link #onUpdate(String, int, int)}, giving the
+   * smoother the time of the sighting.
+   *
+   * @param timestampNanos when the beacon was seen, as
+   *        {@link org.uribeacon.scan.compat.ScanResult#getTimestampNanos}, or 0 if unknown
+   * @return true if device is the new nearest.
+   */
+  public boolean onUpdate(String address, int rssi, int calibratedTxPower, long timestampNanos) {
+    Integer slot = mSlots.get(address);
+    if (slot == null) {
+      return update(allocateSlot(address), true, address, rssi, calibratedTxPower,
+          timestampNanos);
+    }
+    return update(slot, false, address, rssi, calibratedTxPower, timestampNanos);
+  }
+
+  /**
+   * Updates the stabilized regions of beacons from a batch of sightings, as
+   * {@link #onUpdate(String, int, int)} does for each sighting in turn.
+   *
+   * @param addresses the address of the beacon of each sighting
+   * @param rssis the RSSI of each sighting
+   * @param calibratedTxPowers the calibrated TX power of each sighting
+   * @param count the number of sightings in the arrays
+   * @return true if a beacon became the new nearest during the batch.
+   */
+  public boolean onUpdate(String[] addresses, int[] rssis, int[] calibratedTxPowers, int count) {
+    return onUpdate(addresses, rssis, calibratedTxPowers, null, count);
+  }
+
+  /**
+   * Updates the stabilized regions of beacons from a batch of sightings, as
+   * {@link #onUpdate(String, int, int, long)} does for each sighting in turn.
+   *
+   * @param timestampsNanos when each sighting was made, or null if unknown
+   * @return true if a beacon became the new nearest during the batch.
+   * @see #onUpdate(String[], int[], int[], int)
+   */
+  public boolean onUpdate(String[] addresses, int[] rssis, int[] calibratedTxPowers,
+      long[] timestampsNanos, int count) {
+    boolean nearestHasChanged = false;
+    for (int i = 0; i < count; i++) {
+      nearestHasChanged |= onUpdate(addresses[i], rssis[i], calibratedTxPowers[i],
+          timestampsNanos == null ? 0 : timestampsNanos[i]);
+    }
+    return nearestHasChanged;
+  }
+
+  private boolean update(int slot, boolean isNew, String address, int rssi,
+      int calibratedTxPower, long timestampNanos) {
     // Check to see if the beacon gets qualified as the beacon closest to the
     // listener.
     String currentNearest = mNearestAddress;
     boolean nearestHasChanged = false;
 
-    int newPathLoss = RangingUtils.pathLossFromRssi(rssi, calibratedTxPower);
-    double newDistance = RangingUtils.distanceFromRssi(rssi, calibratedTxPower);
-    int newRegion = RangingUtils.regionFromDistance(newDistance);
+    int newPathLoss = mRangingModel.pathLossFromRssi(rssi, calibratedTxPower);
+    double newDistance = mRangingModel.distanceFromPathLoss(newPathLoss);
+    int newRegion = mRangingModel.regionFromPathLoss(newPathLoss);
 
-    int smoothedRssi = getSmoothedRssi(address, rssi);
+    int smoothedRssi = smoothRssi(slot, isNew, rssi, timestampNanos);
 
     // Don't apply smoothing to devices that are "close enough". These
     // will have a small region of error anyways, so no need to introduce
@@ -141,55 +196,56 @@ public class RegionResolver {
     boolean noSmoothing = newDistance < START_SMOOTHING_METERS;
 
     int smoothedPathLoss = noSmoothing ? newPathLoss
-        : RangingUtils.pathLossFromRssi(smoothedRssi, calibratedTxPower);
+        : mRangingModel.pathLossFromRssi(smoothedRssi, calibratedTxPower);
     double smoothedDistance = noSmoothing ? newDistance
-        : RangingUtils.distanceFromRssi(smoothedRssi, calibratedTxPower);
+        : mRangingModel.distanceFromPathLoss(smoothedPathLoss);
     int smoothedRegion = noSmoothing ? newRegion
-        : RangingUtils.regionFromDistance(smoothedDistance);
+        : mRangingModel.regionFromPathLoss(smoothedPathLoss);
+
+    // Beacons in the NEAR region are all "close enough" not to be smoothed, so the nearest one is
+    // chosen from the smoother's output itself when a smoother was set for it.
+    int nearestPathLoss = newPathLoss;
+    int nearestRegion = newRegion;
+    if (mNearestFromSmoothed) {
+      nearestPathLoss = mRangingModel.pathLossFromRssi(smoothedRssi, calibratedTxPower);
+      nearestRegion = mRangingModel.regionFromPathLoss(nearestPathLoss);
+    }
 
     if (!address.equals(currentNearest)) {
       // Check the new sighting is in the NEAR region to continue
-      if (newRegion == RangingUtils.Region.NEAR) {
+      if (nearestRegion == RangingUtils.Region.NEAR) {
         // Address of device NOT equal, but is it nearer?
-        if (mNearestAddress == null || newPathLoss < mNearestPathLoss - mNearestHysteresis) {
+        if (mNearestAddress == null || nearestPathLoss < mNearestPathLoss - mNearestHysteresis) {
           // Nearer device found.
           mNearestAddress = address;
-          mNearestPathLoss = newPathLoss;
+          mNearestPathLoss = nearestPathLoss;
           nearestHasChanged = true;
         }
       }
     } else {
       // Only allow a device to be considered "nearest" if it is within the
       // nearest region.
-      if (newRegion != RangingUtils.Region.NEAR) {
+      if (nearestRegion != RangingUtils.Region.NEAR) {
         mNearestAddress = null;
         mNearestPathLoss = 0;
         nearestHasChanged = true;
       } else {
         // Address EQUAL, so update path loss of nearest device
-        mNearestPathLoss = newPathLoss;
+        mNearestPathLoss = nearestPathLoss;
       }
     }
 
-    if (!mStabilizedDeviceRegion.containsKey(address)) {
-      mStabilizedDeviceRegion.put(address, new DeviceSighting(smoothedPathLoss, smoothedRegion,
-          smoothedDistance));
+    if (isNew) {
+      mPathLoss[slot] = smoothedPathLoss;
+      mRegion[slot] = smoothedRegion;
+      mDistance[slot] = smoothedDistance;
     } else {
       // If this is a device we've seen before, determine if the device has
       // changed its region classification.
-      DeviceSighting sighting = mStabilizedDeviceRegion.get(address);
-      int oldRegion = sighting.getRegion();
-
-      sighting.setPathloss(smoothedPathLoss);
-      sighting.setDistance(smoothedDistance);
+      int oldRegion = mRegion[slot];
 
-      int midRssi = RangingUtils.rssiFromDistance(RangingUtils.NEAR_TO_MID_METERS, 
-          calibratedTxPower);
-      double midPathLoss = RangingUtils.pathLossFromRssi(midRssi, calibratedTxPower);
-
-      int farRssi = RangingUtils.rssiFromDistance(RangingUtils.MID_TO_FAR_METERS, 
-          calibratedTxPower);
-      double farPathLoss = RangingUtils.pathLossFromRssi(farRssi, calibratedTxPower);
+      mPathLoss[slot] = smoothedPathLoss;
+      mDistance[slot] = smoothedDistance;
 
       // If the region of the beacon has changed since the last time we recorded
       // the beacon, we check to see if the change in path loss is beyond the hysteresis
@@ -198,21 +254,23 @@ public class RegionResolver {
       // rather than just a random fluctuation of the radio signal, and reduces the amount
       // of region transitions for beacons near the region boundaries.
       if (smoothedRegion != oldRegion) {
+        int midPathLoss = mRangingModel.nearToMidPathLoss(calibratedTxPower);
+        int farPathLoss = mRangingModel.midToFarPathLoss(calibratedTxPower);
         switch (oldRegion) {
           case RangingUtils.Region.NEAR:
             if (smoothedPathLoss > midPathLoss + mMidHysteresisHigh) {
-              sighting.setRegion(smoothedRegion);
+              mRegion[slot] = smoothedRegion;
             }
             break;
           case RangingUtils.Region.MID:
             if (smoothedPathLoss < midPathLoss - mMidHysteresisLow
                 || smoothedPathLoss > farPathLoss + mFarHysteresisHigh) {
-              sighting.setRegion(smoothedRegion);
+              mRegion[slot] = smoothedRegion;
             }
             break;
           case RangingUtils.Region.FAR:
             if (smoothedPathLoss < midPathLoss - mFarHysteresisLow) {
-              sighting.setRegion(smoothedRegion);
+              mRegion[slot] = smoothedRegion;
             }
             break;
         }
@@ -223,12 +281,19 @@ public class RegionResolver {
   }
 
   /**
-   * Removes the a device from the region tracking data structure.
+   * Removes the a device from the region tracking data structure. If it is seen again, its
+   * smoothing starts afresh.
    *
    * @return true if the device was the nearest.
    */
   public boolean onLost(String address) {
-    mStabilizedDeviceRegion.remove(address);
+    Integer slot = mSlots.remove(address);
+    if (slot != null) {
+      if (mFreeSlotCount == mFreeSlots.length) {
+        mFreeSlots = Arrays.copyOf(mFreeSlots, mFreeSlots.length * 2);
+      }
+      mFreeSlots[mFreeSlotCount++] = slot;
+    }
 
     if (address.equals(mNearestAddress)) {
       mNearestAddress = null;
@@ -250,8 +315,9 @@ public class RegionResolver {
    * Returns stabilized region for that device
    */
   public int getRegion(String address) {
-    if (mStabilizedDeviceRegion.containsKey(address)) {
-      return mStabilizedDeviceRegion.get(address).getRegion();
+    Integer slot = mSlots.get(address);
+    if (slot != null) {
+      return mRegion[slot];
     }
     return RangingUtils.Region.FAR;
   }
@@ -260,12 +326,20 @@ public class RegionResolver {
    * Return the current distance of the device.
    */
   public double getDistance(String address) {
-    if (mStabilizedDeviceRegion.containsKey(address)) {
-      return mStabilizedDeviceRegion.get(address).getDistance();
+    Integer slot = mSlots.get(address);
+    if (slot != null) {
+      return mDistance[slot];
     }
     return 0.0;
   }
 
+  /**
+   * Returns the number of devices being tracked.
+   */
+  public int size() {
+    return mSlots.size();
+  }
+
   /**
    * If true, the onUpdate method will always return true if a new nearest
    * beacon was found, even if it was the same as the previous nearest beacon.
@@ -285,18 +359,77 @@ public class RegionResolver {
     mNotifyOnSameNearestDevice = flag;
   }
 
-  private int getSmoothedRssi(String address, int rssi) {
-    if (mSmoothedRssi.get(address) == null) {
-      mSmoothedRssi.put(address, new WeightedAverage(mSmoothFactor));
+  /**
+   * Returns the smoothed RSSI of the device, or 0 if it is not being tracked.
+   */
+  public int getSmoothedRssi(String address) {
+    Integer slot = mSlots.get(address);
+    if (slot == null) {
+      return 0;
+    }
+    return (int) mSmoother.getValue(mSmootherState, slot * mSmoother.getStateSize());
+  }
+
+  /**
+   * Smooths RSSI with an {@link ExponentialSmoother} that gives each new RSSI the weight
+   * {@code smoothFactor}, as by default: the smoothed RSSI gives the distances and regions, and
+   * the nearest beacon is chosen from the raw path loss. See {@link #setSmoother}.
+   */
+  public void setSmoothFactor(double smoothFactor) {
+    installSmoother(new ExponentialSmoother(smoothFactor));
+    mNearestFromSmoothed = false;
+  }
+
+  /**
+   * Sets the smoother of the RSSI of every device, from the next update on. The smoothers of the
+   * devices being tracked restart at their current smoothed RSSI. The smoothed RSSI then also
+   * decides which beacon is the nearest, and whether it is in the NEAR region.
+   */
+  public void setSmoother(RssiSmoother smoother) {
+    installSmoother(smoother);
+    mNearestFromSmoothed = true;
+  }
+
+  public RssiSmoother getSmoother() {
+    return mSmoother;
+  }
+
+  private void installSmoother(RssiSmoother smoother) {
+    int oldStateSize = mSmoother.getStateSize();
+    int stateSize = smoother.getStateSize();
+    double[] state = new double[mPathLoss.length * stateSize];
+    for (int slot : mSlots.values()) {
+      double smoothedRssi = mSmoother.getValue(mSmootherState, slot * oldStateSize);
+      smoother.reset(state, slot * stateSize, smoothedRssi, 0);
     }
-    return (int) mSmoothedRssi.get(address).addValue(rssi);
+    mSmoother = smoother;
+    mSmootherState = state;
   }
 
-  public int getSmoothedRssi(String address) {
-    return (int) mSmoothedRssi.get(address).getValue();
+  private int smoothRssi(int slot, boolean isNew, int rssi, long timestampNanos) {
+    int offset = slot * mSmoother.getStateSize();
+    if (isNew) {
+      mSmoother.reset(mSmootherState, offset, rssi, timestampNanos);
+      return rssi;
+    }
+    return (int) mSmoother.update(mSmootherState, offset, rssi, timestampNanos);
   }
 
-  public void setSmoothFactor(double smoothFactor) {
-    mSmoothFactor = smoothFactor;
+  private int allocateSlot(String address) {
+    int slot;
+    if (mFreeSlotCount > 0) {
+      slot = mFreeSlots[--mFreeSlotCount];
+    } else {
+      if (mSlotLimit == mPathLoss.length) {
+        int capacity = mSlotLimit * 2;
+        mSmootherState = Arrays.copyOf(mSmootherState, capacity * mSmoother.getStateSize());
+        mPathLoss = Arrays.copyOf(mPathLoss, capacity);
+        mRegion = Arrays.copyOf(mRegion, capacity);
+        mDistance = Arrays.copyOf(mDistance, capacity);
+      }
+      slot = mSlotLimit++;
+    }
+    mSlots.put(address, slot);
+    return slot;
   }
-}
\ No newline at end of file
+}
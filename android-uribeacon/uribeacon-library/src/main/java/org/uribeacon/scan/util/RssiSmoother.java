@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+/**
+ * Smooths the RSSI of a number of devices to reduce signal noise.
+ * <p>
+ * A smoother keeps no state of its own. The state of each device lives in a slice of a double
+ * array owned by the caller, {@link #getStateSize} elements long, so tracking many devices costs
+ * no objects per device and an update allocates nothing. One smoother can serve any number of
+ * devices and callers.
+ */
+public interface RssiSmoother {
+  /**
+   * Returns the number of elements of the state of one device.
+   */
+  int getStateSize();
+
+  /**
+   * Starts the state of a device with its first sample.
+   *
+   * @param state the array holding the state
+   * @param offset the index of the device's state in the array
+   * @param rssi the RSSI sampled
+   * @param timestampNanos when the sample was taken, as
+   *        {@link org.uribeacon.scan.compat.ScanResult#getTimestampNanos}, or 0 if unknown
+   */
+  void reset(double[] state, int offset, double rssi, long timestampNanos);
+
+  /**
+   * Adds a sample to the state of a device.
+   *
+   * @return the smoothed RSSI
+   * @see #reset
+   */
+  double update(double[] state, int offset, double rssi, long timestampNanos);
+
+  /**
+   * Returns the smoothed RSSI of a device.
+   */
+  double getValue(double[] state, int offset);
+}
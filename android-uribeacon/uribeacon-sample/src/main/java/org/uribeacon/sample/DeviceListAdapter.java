@@ -22,6 +22,7 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import org.uribeacon.beacon.UriBeacon;
+import org.uribeacon.beacon.UriBeaconCache;
 import org.uribeacon.scan.compat.ScanResult;
 import org.uribeacon.scan.util.RangingUtils;
 import org.uribeacon.widget.ScanResultAdapter;
@@ -37,6 +38,11 @@ import java.util.concurrent.TimeUnit;
 class DeviceListAdapter extends ScanResultAdapter {
   private static final SimpleDateFormat TIMESTAMP_FORMAT =
       new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSS", Locale.US);
+  // Number of distinct beacon payloads to remember; more than fit on screen.
+  private static final int URI_BEACON_CACHE_SIZE = 64;
+
+  // Every redraw parses the same few payloads again, so decode each one once.
+  private final UriBeaconCache mUriBeaconCache = new UriBeaconCache(URI_BEACON_CACHE_SIZE);
 
   // Adapter for holding devices found through scanning.
   public DeviceListAdapter(LayoutInflater layoutInflater) {
@@ -68,7 +74,7 @@ class DeviceListAdapter extends ScanResultAdapter {
     ScanResult scanResult = deviceSighting.scanResult;
     UriBeacon beacon;
     byte txPowerLevel;
-    beacon = UriBeacon.parseFromBytes(scanResult.getScanRecord().getBytes());
+    beacon = mUriBeaconCache.parseFromBytes(scanResult.getScanRecord().getBytes());
 
     String displayName = null;
     if (beacon != null) {